@@ -39,12 +39,13 @@ import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -148,7 +149,7 @@ public abstract class AbstractBlockChain {
     }
     // Holds blocks that we have received but can't plug into the chain yet, e.g. because they were created whilst we
     // were downloading the block chain.
-    private final LinkedHashMap<Sha256Hash, OrphanBlock> orphanBlocks = new LinkedHashMap<>();
+    private final OrphanBlockPool orphanBlocks = new OrphanBlockPool();
 
     /** False positive estimation uses a double exponential moving average. */
     public static final double FP_ESTIMATOR_ALPHA = 0.0001;
@@ -485,11 +486,11 @@ public abstract class AbstractBlockChain {
         lock.lock();
         try {
             // Quick check for duplicates to avoid an expensive check further down (in findSplit). This can happen a lot
-            // when connecting orphan transactions due to the dumb brute force algorithm we use.
+            // when the same block is received from several peers.
             if (block.equals(getChainHead().getHeader())) {
                 return true;
             }
-            if (tryConnecting && orphanBlocks.containsKey(block.getHash())) {
+            if (tryConnecting && orphanBlocks.contains(block.getHash())) {
                 return false;
             }
 
@@ -541,9 +542,7 @@ public abstract class AbstractBlockChain {
                 checkState(tryConnecting, () ->
                         "bug in tryConnectingOrphans");
                 log.warn("Block does not connect: {} prev {}", block.getHashAsString(), block.getPrevBlockHash());
-                orphanBlocks.put(block.getHash(), new OrphanBlock(block, filteredTxHashList, filteredTxn));
-                if (tryConnecting)
-                    tryConnectingOrphans();
+                orphanBlocks.add(new OrphanBlock(block, filteredTxHashList, filteredTxn));
                 return false;
             } else {
                 checkState(lock.isHeldByCurrentThread());
@@ -551,7 +550,7 @@ public abstract class AbstractBlockChain {
                 params.checkDifficultyTransitions(storedPrev, block, blockStore);
                 connectBlock(block, storedPrev, shouldVerifyTransactions(), filteredTxHashList, filteredTxn);
                 if (tryConnecting)
-                    tryConnectingOrphans();
+                    tryConnectingOrphans(block.getHash());
                 return true;
             }
         } finally {
@@ -568,9 +567,7 @@ public abstract class AbstractBlockChain {
     public Set<Sha256Hash> drainOrphanBlocks() {
         lock.lock();
         try {
-            Set<Sha256Hash> hashes = new HashSet<>(orphanBlocks.keySet());
-            orphanBlocks.clear();
-            return hashes;
+            return orphanBlocks.clear();
         } finally {
             lock.unlock();
         }
@@ -961,41 +958,28 @@ public abstract class AbstractBlockChain {
     }
 
     /**
-     * For each block in orphanBlocks, see if we can now fit it on top of the chain and if so, do so.
+     * Connects the orphan blocks that descend from the given block, which has just been connected. Orphans are looked
+     * up by the hash of their parent, so the whole tree of descendants is connected in a single walk.
      */
-    private void tryConnectingOrphans() throws VerificationException, BlockStoreException, PrunedException {
+    private void tryConnectingOrphans(Sha256Hash connected) throws VerificationException, BlockStoreException, PrunedException {
         checkState(lock.isHeldByCurrentThread());
-        // For each block in our orphan list, try and fit it onto the head of the chain. If we succeed remove it
-        // from the list and keep going. If we changed the head of the list at the end of the round try again until
-        // we can't fit anything else on the top.
-        //
-        // This algorithm is kind of crappy, we should do a topo-sort then just connect them in order, but for small
-        // numbers of orphan blocks it does OK.
-        int blocksConnectedThisRound;
-        do {
-            blocksConnectedThisRound = 0;
-            Iterator<OrphanBlock> iter = orphanBlocks.values().iterator();
-            while (iter.hasNext()) {
-                OrphanBlock orphanBlock = iter.next();
-                // Look up the blocks previous.
-                StoredBlock prev = getStoredBlockInCurrentScope(orphanBlock.block.getPrevBlockHash());
-                if (prev == null) {
-                    // This is still an unconnected/orphan block.
-                    if (log.isDebugEnabled())
-                        log.debug("Orphan block {} is not connectable right now", orphanBlock.block.getHash());
-                    continue;
-                }
-                // Otherwise we can connect it now.
+        int blocksConnected = 0;
+        Deque<Sha256Hash> parents = new ArrayDeque<>();
+        parents.add(connected);
+        while (!parents.isEmpty()) {
+            for (OrphanBlock orphanBlock : orphanBlocks.getChildren(parents.poll())) {
                 // False here ensures we don't recurse infinitely downwards when connecting huge chains.
                 log.info("Connected orphan {}", orphanBlock.block.getHash());
                 add(orphanBlock.block, false, orphanBlock.filteredTxHashes, orphanBlock.filteredTxn);
-                iter.remove();
-                blocksConnectedThisRound++;
-            }
-            if (blocksConnectedThisRound > 0) {
-                log.info("Connected {} orphan blocks.", blocksConnectedThisRound);
+                orphanBlocks.remove(orphanBlock.block.getHash());
+                parents.add(orphanBlock.block.getHash());
+                blocksConnected++;
             }
-        } while (blocksConnectedThisRound > 0);
+        }
+        if (blocksConnected > 0) {
+            log.info("Connected {} orphan blocks.", blocksConnected);
+            orphanBlocks.connected(blocksConnected);
+        }
     }
 
     /**
@@ -1043,7 +1027,63 @@ public abstract class AbstractBlockChain {
     public boolean isOrphan(Sha256Hash block) {
         lock.lock();
         try {
-            return orphanBlocks.containsKey(block);
+            return orphanBlocks.contains(block);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the limits of the pool of orphan blocks, the blocks that don't connect to the chain yet. Once there are more
+     * orphans than that, or they take more bytes than that, the oldest ones are thrown away. Defaults to 1000 blocks
+     * and 64 MB.
+     * @param maxBlocks maximum number of orphan blocks
+     * @param maxBytes  maximum approximate size of the orphan blocks in bytes
+     */
+    public void setOrphanBlockLimits(int maxBlocks, long maxBytes) {
+        lock.lock();
+        try {
+            orphanBlocks.setLimits(maxBlocks, maxBytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of orphan blocks currently held. */
+    public int getOrphanBlockCount() {
+        lock.lock();
+        try {
+            return orphanBlocks.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the approximate size of the orphan blocks currently held, in bytes. */
+    public long getOrphanBlockBytes() {
+        lock.lock();
+        try {
+            return orphanBlocks.bytes();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many orphan blocks have been thrown away to stay within the limits. */
+    public long getEvictedOrphanBlockCount() {
+        lock.lock();
+        try {
+            return orphanBlocks.evictions();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the largest number of orphan blocks that were connected at once, when their missing parent arrived. */
+    public int getLongestConnectedOrphanChain() {
+        lock.lock();
+        try {
+            return orphanBlocks.longestConnectedChain();
         } finally {
             lock.unlock();
         }
@@ -23,16 +23,26 @@ import org.bitcoinj.base.internal.ByteUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.Buffer;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 
 import static org.bitcoinj.base.internal.ByteUtils.readUint32;
 import static org.bitcoinj.base.internal.Preconditions.check;
+import static org.bitcoinj.base.internal.Preconditions.checkArgument;
 
 /**
  * <p>Methods to serialize and de-serialize messages to the Bitcoin network format as defined in
@@ -41,9 +51,13 @@ import static org.bitcoinj.base.internal.Preconditions.check;
  * <p>To be able to serialize and deserialize new Message subclasses the following criteria needs to be met.</p>
  *
  * <ul>
- * <li>The proper Class instance needs to be mapped to its message name in the names variable below</li>
+ * <li>The proper Class instance needs to be mapped to its message name, and a parser registered for that name, either
+ * in the tables below or by calling {@link #registerMessageParser(String, Class, MessageParser)}</li>
  * <li>Message.bitcoinSerializeToStream() needs to be properly subclassed</li>
  * </ul>
+ *
+ * <p>Incoming messages are dispatched to their parser through a perfect hash table of the known commands, which is
+ * looked up with the raw command bytes of the packet header.</p>
  */
 public class BitcoinSerializer extends MessageSerializer {
     private static final Logger log = LoggerFactory.getLogger(BitcoinSerializer.class);
@@ -53,7 +67,7 @@ public class BitcoinSerializer extends MessageSerializer {
     private final int packetMagic;
     private final int protocolVersion;
 
-    private static final Map<Class<? extends Message>, String> names = new HashMap<>();
+    private static final Map<Class<? extends Message>, String> names = new ConcurrentHashMap<>();
 
     static {
         names.put(VersionMessage.class, "version");
@@ -78,6 +92,120 @@ public class BitcoinSerializer extends MessageSerializer {
         names.put(RejectMessage.class, "reject");
         names.put(SendHeadersMessage.class, "sendheaders");
         names.put(FeeFilterMessage.class, "feefilter");
+        names.put(GetCFiltersMessage.class, "getcfilters");
+        names.put(CFilterMessage.class, "cfilter");
+        names.put(GetCFHeadersMessage.class, "getcfheaders");
+        names.put(CFHeadersMessage.class, "cfheaders");
+    }
+
+    /**
+     * Parses the payload of a message. Used to register parsers for messages that bitcoinj doesn't know about, see
+     * {@link #registerMessageParser(String, Class, MessageParser)}.
+     * <p>
+     * The payload is only valid during the call: it is usually backed by a pooled buffer that is reused for other
+     * messages once parsing returns. Parsers must copy any bytes they keep rather than holding on to the buffer or
+     * slices of it.
+     */
+    @FunctionalInterface
+    public interface MessageParser {
+        Message parse(ByteBuffer payload) throws ProtocolException, BufferUnderflowException;
+    }
+
+    // The parsers of the built-in messages get the serializer, for its extension points and protocol version.
+    private interface Parser {
+        Message parse(BitcoinSerializer serializer, ByteBuffer payload) throws ProtocolException, BufferUnderflowException;
+    }
+
+    private static final List<CommandTable.Entry<Parser>> builtInParsers = Arrays.asList(
+            parser("version", (s, payload) -> VersionMessage.read(payload)),
+            parser("inv", BitcoinSerializer::makeInventoryMessage),
+            parser("block", BitcoinSerializer::makeBlock),
+            parser("merkleblock", BitcoinSerializer::makeFilteredBlock),
+            parser("getdata", (s, payload) -> GetDataMessage.read(payload)),
+            parser("getblocks", (s, payload) -> GetBlocksMessage.read(payload)),
+            parser("getheaders", (s, payload) -> GetHeadersMessage.read(payload)),
+            parser("tx", BitcoinSerializer::makeTransaction),
+            parser("sendaddrv2", emptyParser(SendAddrV2Message::new)),
+            parser("addr", BitcoinSerializer::makeAddressV1Message),
+            parser("addrv2", BitcoinSerializer::makeAddressV2Message),
+            parser("ping", (s, payload) -> Ping.read(payload)),
+            parser("pong", (s, payload) -> Pong.read(payload)),
+            parser("verack", emptyParser(VersionAck::new)),
+            parser("headers", (s, payload) -> HeadersMessage.read(payload)),
+            parser("filterload", BitcoinSerializer::makeBloomFilter),
+            parser("notfound", (s, payload) -> NotFoundMessage.read(payload)),
+            parser("mempool", (s, payload) -> new MemoryPoolMessage()),
+            parser("reject", (s, payload) -> RejectMessage.read(payload)),
+            parser("sendheaders", emptyParser(SendHeadersMessage::new)),
+            parser("feefilter", (s, payload) -> FeeFilterMessage.read(payload)),
+            parser("getcfilters", (s, payload) -> GetCFiltersMessage.read(payload)),
+            parser("cfilter", (s, payload) -> CFilterMessage.read(payload)),
+            parser("getcfheaders", (s, payload) -> GetCFHeadersMessage.read(payload)),
+            parser("cfheaders", (s, payload) -> CFHeadersMessage.read(payload)));
+
+    // Parsers registered by applications, by command. Guarded by the class.
+    private static final Map<String, CommandTable.Entry<Parser>> registeredParsers = new LinkedHashMap<>();
+    // All parsers, for looking them up from packet headers and by command. Both are replaced as a whole when a parser
+    // is registered.
+    private static volatile CommandTable<Parser> parsers;
+    private static volatile Map<String, CommandTable.Entry<Parser>> parsersByCommand;
+
+    static {
+        updateParsers();
+    }
+
+    private static CommandTable.Entry<Parser> parser(String command, Parser parser) {
+        return new CommandTable.Entry<>(command, parser);
+    }
+
+    private static Parser emptyParser(Supplier<Message> constructor) {
+        return (s, payload) -> {
+            check(!payload.hasRemaining(), ProtocolException::new);
+            return constructor.get();
+        };
+    }
+
+    private static void updateParsers() {
+        Map<String, CommandTable.Entry<Parser>> byCommand = new HashMap<>();
+        for (CommandTable.Entry<Parser> entry : builtInParsers)
+            byCommand.put(entry.command, entry);
+        byCommand.putAll(registeredParsers);
+        parsers = CommandTable.of(byCommand.values());
+        parsersByCommand = byCommand;
+    }
+
+    /**
+     * <p>Registers a parser for messages with the given command, so that all serializers parse them into messages of the
+     * given type rather than ignoring them, and can serialize messages of that type. The type must implement
+     * {@link Message#serialize()}. Registering a parser for a command again replaces the previous one, and its type.
+     * Registering a type again under another command replaces its previous command.</p>
+     *
+     * <p>This allows applications to support messages that bitcoinj doesn't know about, without having to subclass the
+     * serializer. The messages are passed to the {@link PreMessageReceivedEventListener}s of the peers.</p>
+     *
+     * @param command the command of the messages, at most twelve ASCII characters
+     * @param type    type of the messages
+     * @param parser  parser for the payload of the messages
+     * @throws IllegalArgumentException if the command or the type is one of the messages that bitcoinj knows about
+     */
+    public static void registerMessageParser(String command, Class<? extends Message> type, MessageParser parser) {
+        Objects.requireNonNull(parser);
+        synchronized (BitcoinSerializer.class) {
+            String previous = names.get(type);
+            checkArgument(previous == null || registeredParsers.containsKey(previous), () ->
+                    "type is already known: " + type.getName());
+            checkArgument(registeredParsers.containsKey(command) || !names.containsValue(command), () ->
+                    "command is already known: " + command);
+            CommandTable.Entry<Parser> entry = parser(command, (s, payload) -> parser.parse(payload));
+            // the type may have been registered under another command
+            if (previous != null)
+                registeredParsers.remove(previous);
+            registeredParsers.put(command, entry);
+            // the replaced parser may have been registered with another type
+            names.values().remove(command);
+            names.put(type, command);
+            updateParsers();
+        }
     }
 
     /**
@@ -185,16 +313,30 @@ public class BitcoinSerializer extends MessageSerializer {
 
     /**
      * Deserialize payload only.  You must provide a header, typically obtained by calling
-     * {@link BitcoinSerializer#deserializeHeader}.
+     * {@link BitcoinSerializer#deserializeHeader}. The payload is parsed straight from the given buffer, without
+     * copying it first.
      */
     @Override
     public Message deserializePayload(BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException {
-        byte[] payloadBytes = new byte[header.size];
-        in.get(payloadBytes, 0, header.size);
+        if (in.remaining() < header.size)
+            throw new BufferUnderflowException();
+        ByteBuffer payload = in.slice();
+        ((Buffer) payload).limit(header.size);
+        ((Buffer) in).position(in.position() + header.size);
+
+        MessageDigest digest = Sha256Hash.newDigest();
+        digest.update(payload.duplicate());
+        return deserializePayload(header, payload, Sha256Hash.hash(digest.digest()));
+    }
 
+    /**
+     * Deserialize a payload whose double SHA-256 hash has already been calculated, typically while its bytes were
+     * being received. The hash is checked against the checksum of the header, and the payload is parsed straight from
+     * the given buffer. The message doesn't keep references to the buffer, so it can be reused afterwards.
+     */
+    @Override
+    public Message deserializePayload(BitcoinPacketHeader header, ByteBuffer payload, byte[] hash) throws ProtocolException {
         // Verify the checksum.
-        byte[] hash;
-        hash = Sha256Hash.hashTwice(payloadBytes);
         if (header.checksum[0] != hash[0] || header.checksum[1] != hash[1] ||
                 header.checksum[2] != hash[2] || header.checksum[3] != hash[3]) {
             throw new ProtocolException("Checksum failed to verify, actual " +
@@ -204,68 +346,31 @@ public class BitcoinSerializer extends MessageSerializer {
 
         if (log.isDebugEnabled()) {
             log.debug("Received {} byte '{}' message: {}", header.size, header.command,
-                    ByteUtils.formatHex(payloadBytes));
+                    formatHex(payload));
         }
 
         try {
-            return makeMessage(header.command, payloadBytes, hash);
+            return makeMessage(header, payload.duplicate());
         } catch (Exception e) {
-            throw new ProtocolException("Error deserializing message " + ByteUtils.formatHex(payloadBytes) + "\n", e);
+            throw new ProtocolException("Error deserializing message " + formatHex(payload) + "\n", e);
         }
     }
 
-    private Message makeMessage(String command, byte[] payloadBytes, byte[] hash) throws ProtocolException {
-        ByteBuffer payload = ByteBuffer.wrap(payloadBytes);
-        // We use an if ladder rather than reflection because reflection is very slow on Android.
-        if (command.equals("version")) {
-            return VersionMessage.read(payload);
-        } else if (command.equals("inv")) {
-            return makeInventoryMessage(payload);
-        } else if (command.equals("block")) {
-            return makeBlock(payload);
-        } else if (command.equals("merkleblock")) {
-            return makeFilteredBlock(payload);
-        } else if (command.equals("getdata")) {
-            return GetDataMessage.read(payload);
-        } else if (command.equals("getblocks")) {
-            return GetBlocksMessage.read(payload);
-        } else if (command.equals("getheaders")) {
-            return GetHeadersMessage.read(payload);
-        } else if (command.equals("tx")) {
-            return makeTransaction(payload);
-        } else if (command.equals("sendaddrv2")) {
-            check(!payload.hasRemaining(), ProtocolException::new);
-            return new SendAddrV2Message();
-        } else if (command.equals("addr")) {
-            return makeAddressV1Message(payload);
-        } else if (command.equals("addrv2")) {
-            return makeAddressV2Message(payload);
-        } else if (command.equals("ping")) {
-            return Ping.read(payload);
-        } else if (command.equals("pong")) {
-            return Pong.read(payload);
-        } else if (command.equals("verack")) {
-            check(!payload.hasRemaining(), ProtocolException::new);
-            return new VersionAck();
-        } else if (command.equals("headers")) {
-            return HeadersMessage.read(payload);
-        } else if (command.equals("filterload")) {
-            return makeBloomFilter(payload);
-        } else if (command.equals("notfound")) {
-            return NotFoundMessage.read(payload);
-        } else if (command.equals("mempool")) {
-            return new MemoryPoolMessage();
-        } else if (command.equals("reject")) {
-            return RejectMessage.read(payload);
-        } else if (command.equals("sendheaders")) {
-            check(!payload.hasRemaining(), ProtocolException::new);
-            return new SendHeadersMessage();
-        } else if (command.equals("feefilter")) {
-            return FeeFilterMessage.read(payload);
-        } else {
+    private static String formatHex(ByteBuffer payload) {
+        byte[] bytes = new byte[payload.remaining()];
+        payload.duplicate().get(bytes);
+        return ByteUtils.formatHex(bytes);
+    }
+
+    private Message makeMessage(BitcoinPacketHeader header, ByteBuffer payload) throws ProtocolException {
+        CommandTable.Entry<Parser> entry = header.parser;
+        if (entry == null) // e.g. garbage after the NULL terminator of the command
+            entry = parsersByCommand.get(header.command);
+        if (entry == null) {
             check(!payload.hasRemaining(), ProtocolException::new);
-            return new UnknownMessage(command);
+            return new UnknownMessage(header.command);
         }
+        return entry.value.parse(this, payload);
     }
 
     /**
@@ -362,6 +467,8 @@ public class BitcoinSerializer extends MessageSerializer {
         public final String command;
         public final int size;
         public final byte[] checksum;
+        // The parser of the command, if it is a known one.
+        @Nullable private final CommandTable.Entry<Parser> parser;
 
         public BitcoinPacketHeader(ByteBuffer in) throws ProtocolException, BufferUnderflowException {
             header = new byte[HEADER_LENGTH];
@@ -369,12 +476,18 @@ public class BitcoinSerializer extends MessageSerializer {
 
             int cursor = 0;
 
-            // The command is a NULL terminated string, unless the command fills all twelve bytes
-            // in which case the termination is implicit.
-            for (; header[cursor] != 0 && cursor < COMMAND_LEN; cursor++) ;
-            byte[] commandBytes = new byte[cursor];
-            System.arraycopy(header, 0, commandBytes, 0, cursor);
-            command = new String(commandBytes, StandardCharsets.US_ASCII);
+            // Known commands are looked up directly, which saves decoding them.
+            parser = parsers.get(header, 0);
+            if (parser != null) {
+                command = parser.command;
+            } else {
+                // The command is a NULL terminated string, unless the command fills all twelve bytes
+                // in which case the termination is implicit.
+                for (; cursor < COMMAND_LEN && header[cursor] != 0; cursor++) ;
+                byte[] commandBytes = new byte[cursor];
+                System.arraycopy(header, 0, commandBytes, 0, cursor);
+                command = new String(commandBytes, StandardCharsets.US_ASCII);
+            }
             cursor = COMMAND_LEN;
 
             size = (int) readUint32(header, cursor);
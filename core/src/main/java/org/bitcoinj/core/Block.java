@@ -55,7 +55,6 @@ import java.util.Objects;
 import java.util.stream.IntStream;
 
 import static org.bitcoinj.base.Coin.FIFTY_COINS;
-import static org.bitcoinj.base.Sha256Hash.hashTwice;
 import static org.bitcoinj.base.internal.Preconditions.check;
 import static org.bitcoinj.base.internal.Preconditions.checkState;
 
@@ -124,6 +123,9 @@ public class Block extends BaseMessage {
     private final long version;
     private Sha256Hash prevBlockHash;
     private Sha256Hash merkleRoot, witnessRoot;
+    // The merkle root that was last found to match the transactions, compared by identity. Any change to the
+    // transactions replaces merkleRoot, which makes checkMerkleRoot() calculate it again.
+    @Nullable private Sha256Hash verifiedMerkleRoot;
     private Instant time;
     private long difficultyTarget; // "nBits"
     private long nonce;
@@ -496,11 +498,18 @@ public class Block extends BaseMessage {
     }
 
     private void checkMerkleRoot() throws VerificationException {
-        Sha256Hash calculatedRoot = calculateMerkleRoot();
-        if (!calculatedRoot.equals(merkleRoot)) {
+        if (merkleRoot != null && merkleRoot == verifiedMerkleRoot)
+            return;
+        MerkleHasher.Result calculated = MerkleHasher.calculate(transactions, false);
+        if (!calculated.root.equals(merkleRoot)) {
             log.error("Merkle tree did not verify");
-            throw new VerificationException("Merkle hashes do not match: " + calculatedRoot + " vs " + merkleRoot);
+            throw new VerificationException("Merkle hashes do not match: " + calculated.root + " vs " + merkleRoot);
         }
+        // The root matches, but the same root can be had with duplicated transactions, see CVE-2012-2459. This block
+        // is invalid, but must not make us reject the valid block with the same hash.
+        if (calculated.mutated)
+            throw new VerificationException("Merkle tree of block " + getHashAsString() + " contains duplicates");
+        verifiedMerkleRoot = merkleRoot;
     }
 
     // For testing only
@@ -530,16 +539,6 @@ public class Block extends BaseMessage {
     }
 
     private Sha256Hash calculateMerkleRoot() {
-        List<Sha256Hash> tree = buildMerkleTree(false);
-        return tree.get(tree.size() - 1);
-    }
-
-    private Sha256Hash calculateWitnessRoot() {
-        List<Sha256Hash> tree = buildMerkleTree(true);
-        return tree.get(tree.size() - 1);
-    }
-
-    private List<Sha256Hash> buildMerkleTree(boolean useWTxId) {
         // The Merkle root is based on a tree of hashes calculated from the transactions:
         //
         //     root
@@ -570,34 +569,11 @@ public class Block extends BaseMessage {
         //    2     3    4  4
         //  / \   / \   / \
         // t1 t2 t3 t4 t5 t5
-        ArrayList<Sha256Hash> tree = new ArrayList<>(transactions.size());
-        // Start by adding all the hashes of the transactions as leaves of the tree.
-        for (Transaction tx : transactions) {
-            final Sha256Hash hash;
-            if (useWTxId && tx.isCoinBase())
-                hash = Sha256Hash.ZERO_HASH;
-            else
-                hash = useWTxId ? tx.getWTxId() : tx.getTxId();
-            tree.add(hash);
-        }
-        int levelOffset = 0; // Offset in the list where the currently processed level starts.
-        // Step through each level, stopping when we reach the root (levelSize == 1).
-        for (int levelSize = transactions.size(); levelSize > 1; levelSize = (levelSize + 1) / 2) {
-            // For each pair of nodes on that level:
-            for (int left = 0; left < levelSize; left += 2) {
-                // The right hand node can be the same as the left hand, in the case where we don't have enough
-                // transactions.
-                int right = Math.min(left + 1, levelSize - 1);
-                Sha256Hash leftHash = tree.get(levelOffset + left);
-                Sha256Hash rightHash = tree.get(levelOffset + right);
-                tree.add(Sha256Hash.wrapReversed(hashTwice(
-                        leftHash.serialize(),
-                        rightHash.serialize())));
-            }
-            // Move to the next level.
-            levelOffset += levelSize;
-        }
-        return tree;
+        return MerkleHasher.calculate(transactions, false).root;
+    }
+
+    private Sha256Hash calculateWitnessRoot() {
+        return MerkleHasher.calculate(transactions, true).root;
     }
 
     /**
@@ -1020,6 +996,18 @@ public class Block extends BaseMessage {
         block.checkTimestamp();
     }
 
+    /**
+     * Checks that the merkle root of the header matches the transactions. This is part of
+     * {@link #verifyTransactions(NetworkParameters, Block, int, EnumSet)}, which won't hash the transactions again
+     * as long as they don't change, so the check can be done ahead of time, for example on another thread.
+     *
+     * @param block  block to verify, with transactions
+     * @throws VerificationException if the merkle root doesn't match
+     */
+    public static void verifyMerkleRoot(Block block) throws VerificationException {
+        block.checkMerkleRoot();
+    }
+
     /**
      * Checks the block contents
      *
@@ -0,0 +1,173 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.base.VarInt;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import static org.bitcoinj.base.internal.Preconditions.check;
+import static org.bitcoinj.base.internal.Preconditions.checkArgument;
+
+/**
+ * Represents a "cfheaders" message on the P2P network, sent in response to a {@link GetCFHeadersMessage}. It carries
+ * the filter hashes of a range of blocks and the filter header of the block before the range, from which the filter
+ * headers of the range follow: each filter header is the double SHA-256 of the filter hash and the previous filter
+ * header.
+ * <p>
+ * See <a href="https://github.com/bitcoin/bips/blob/master/bip-0157.mediawiki">BIP157</a> for details.
+ * <p>
+ * Instances of this class are immutable.
+ */
+public class CFHeadersMessage extends BaseMessage {
+    private final int filterType;
+    private final Sha256Hash stopHash;
+    private final Sha256Hash previousFilterHeader;
+    private final List<Sha256Hash> filterHashes;
+
+    /**
+     * Create a filter headers message.
+     *
+     * @param filterType           type of filter, e.g. {@link GolombCodedSet#BASIC_FILTER_TYPE}
+     * @param stopHash             hash of the last block of the range
+     * @param previousFilterHeader filter header of the block before the range
+     * @param filterHashes         filter hashes of the blocks of the range
+     * @return cfheaders message
+     */
+    public static CFHeadersMessage of(int filterType, Sha256Hash stopHash, Sha256Hash previousFilterHeader,
+                                      List<Sha256Hash> filterHashes) {
+        checkArgument(filterType >= 0 && filterType <= 0xff, () -> "filter type out of range: " + filterType);
+        checkArgument(filterHashes.size() <= GetCFHeadersMessage.MAX_HEADERS, () ->
+                "too many filter hashes: " + filterHashes.size());
+        return new CFHeadersMessage(filterType, Objects.requireNonNull(stopHash),
+                Objects.requireNonNull(previousFilterHeader), new ArrayList<>(filterHashes));
+    }
+
+    /**
+     * Deserialize this message from a given payload.
+     *
+     * @param payload payload to deserialize from
+     * @return read message
+     * @throws BufferUnderflowException if the read message extends beyond the remaining bytes of the payload
+     */
+    public static CFHeadersMessage read(ByteBuffer payload) throws BufferUnderflowException, ProtocolException {
+        int filterType = Byte.toUnsignedInt(payload.get());
+        Sha256Hash stopHash = Sha256Hash.read(payload);
+        Sha256Hash previousFilterHeader = Sha256Hash.read(payload);
+        VarInt countVarInt = VarInt.read(payload);
+        check(countVarInt.fitsInt(), BufferUnderflowException::new);
+        int count = countVarInt.intValue();
+        if (count > GetCFHeadersMessage.MAX_HEADERS)
+            throw new ProtocolException("Too many filter hashes: got " + count + " which is larger than " +
+                    GetCFHeadersMessage.MAX_HEADERS);
+        List<Sha256Hash> filterHashes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            filterHashes.add(Sha256Hash.read(payload));
+        return new CFHeadersMessage(filterType, stopHash, previousFilterHeader, filterHashes);
+    }
+
+    private CFHeadersMessage(int filterType, Sha256Hash stopHash, Sha256Hash previousFilterHeader,
+                             List<Sha256Hash> filterHashes) {
+        this.filterType = filterType;
+        this.stopHash = stopHash;
+        this.previousFilterHeader = previousFilterHeader;
+        this.filterHashes = Collections.unmodifiableList(filterHashes);
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(filterType);
+        stream.write(stopHash.serialize());
+        stream.write(previousFilterHeader.serialize());
+        stream.write(VarInt.of(filterHashes.size()).serialize());
+        for (Sha256Hash filterHash : filterHashes)
+            stream.write(filterHash.serialize());
+    }
+
+    /**
+     * Calculates the filter header of a block, which commits to its filter and to the filter headers of all the
+     * blocks before it.
+     *
+     * @param filterHash           hash of the filter of the block
+     * @param previousFilterHeader filter header of the previous block
+     * @return filter header
+     */
+    public static Sha256Hash filterHeader(Sha256Hash filterHash, Sha256Hash previousFilterHeader) {
+        return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(filterHash.serialize(), previousFilterHeader.serialize()));
+    }
+
+    /**
+     * Gets the type of the filters.
+     *
+     * @return filter type
+     */
+    public int filterType() {
+        return filterType;
+    }
+
+    /**
+     * Gets the hash of the last block of the range.
+     *
+     * @return stop hash
+     */
+    public Sha256Hash stopHash() {
+        return stopHash;
+    }
+
+    /**
+     * Gets the filter header of the block before the range.
+     *
+     * @return previous filter header
+     */
+    public Sha256Hash previousFilterHeader() {
+        return previousFilterHeader;
+    }
+
+    /**
+     * Gets the filter hashes of the blocks of the range, in order.
+     *
+     * @return unmodifiable list of filter hashes
+     */
+    public List<Sha256Hash> filterHashes() {
+        return filterHashes;
+    }
+
+    /**
+     * Gets the filter header of the last block of the range.
+     *
+     * @return filter header of the stop block
+     */
+    public Sha256Hash stopFilterHeader() {
+        Sha256Hash header = previousFilterHeader;
+        for (Sha256Hash filterHash : filterHashes)
+            header = filterHeader(filterHash, header);
+        return header;
+    }
+
+    @Override
+    public String toString() {
+        return "cfheaders: type " + filterType + ", " + filterHashes.size() + " hashes up to " + stopHash;
+    }
+}
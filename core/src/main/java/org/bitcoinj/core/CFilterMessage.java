@@ -0,0 +1,138 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.base.VarInt;
+import org.bitcoinj.base.internal.Buffers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Objects;
+
+import static org.bitcoinj.base.internal.Preconditions.checkArgument;
+
+/**
+ * Represents a "cfilter" message on the P2P network, which carries the compact block filter of one block, sent in
+ * response to a {@link GetCFiltersMessage}.
+ * <p>
+ * See <a href="https://github.com/bitcoin/bips/blob/master/bip-0157.mediawiki">BIP157</a> for details.
+ * <p>
+ * Instances of this class are immutable.
+ */
+public class CFilterMessage extends BaseMessage {
+    private final int filterType;
+    private final Sha256Hash blockHash;
+    private final byte[] filter;
+
+    /**
+     * Create a filter message.
+     *
+     * @param filterType type of filter, e.g. {@link GolombCodedSet#BASIC_FILTER_TYPE}
+     * @param blockHash  hash of the block the filter is of
+     * @param filter     serialized filter
+     * @return cfilter message
+     */
+    public static CFilterMessage of(int filterType, Sha256Hash blockHash, byte[] filter) {
+        checkArgument(filterType >= 0 && filterType <= 0xff, () -> "filter type out of range: " + filterType);
+        return new CFilterMessage(filterType, Objects.requireNonNull(blockHash), Arrays.copyOf(filter, filter.length));
+    }
+
+    /**
+     * Deserialize this message from a given payload.
+     *
+     * @param payload payload to deserialize from
+     * @return read message
+     * @throws BufferUnderflowException if the read message extends beyond the remaining bytes of the payload
+     */
+    public static CFilterMessage read(ByteBuffer payload) throws BufferUnderflowException, ProtocolException {
+        int filterType = Byte.toUnsignedInt(payload.get());
+        Sha256Hash blockHash = Sha256Hash.read(payload);
+        byte[] filter = Buffers.readLengthPrefixedBytes(payload);
+        return new CFilterMessage(filterType, blockHash, filter);
+    }
+
+    private CFilterMessage(int filterType, Sha256Hash blockHash, byte[] filter) {
+        this.filterType = filterType;
+        this.blockHash = blockHash;
+        this.filter = filter;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(filterType);
+        stream.write(blockHash.serialize());
+        stream.write(VarInt.of(filter.length).serialize());
+        stream.write(filter);
+    }
+
+    /**
+     * Gets the type of the filter.
+     *
+     * @return filter type
+     */
+    public int filterType() {
+        return filterType;
+    }
+
+    /**
+     * Gets the hash of the block the filter is of.
+     *
+     * @return block hash
+     */
+    public Sha256Hash blockHash() {
+        return blockHash;
+    }
+
+    /**
+     * Gets the serialized filter.
+     *
+     * @return serialized filter
+     */
+    public byte[] filter() {
+        return Arrays.copyOf(filter, filter.length);
+    }
+
+    /**
+     * Gets the hash of the filter, as committed to by the filter headers.
+     *
+     * @return filter hash
+     */
+    public Sha256Hash filterHash() {
+        return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(filter));
+    }
+
+    /**
+     * Parses the filter, which must be a {@link GolombCodedSet#BASIC_FILTER_TYPE} filter.
+     *
+     * @return parsed filter
+     * @throws ProtocolException if the filter is of another type or cannot be parsed
+     */
+    public GolombCodedSet toGolombCodedSet() throws ProtocolException {
+        if (filterType != GolombCodedSet.BASIC_FILTER_TYPE)
+            throw new ProtocolException("unsupported filter type: " + filterType);
+        return GolombCodedSet.ofBasicFilter(blockHash, filter);
+    }
+
+    @Override
+    public String toString() {
+        return "cfilter: type " + filterType + " for " + blockHash + ", " + filter.length + " bytes";
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.base.internal.ByteUtils;
+
+import javax.annotation.Nullable;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+/**
+ * <p>An immutable table of the message commands known to {@link BitcoinSerializer}, looked up directly from the twelve
+ * command bytes of a packet header. The table is a perfect hash: its size and hash seed are chosen when it is built so
+ * that every command has a slot of its own, so a lookup is one hash and one comparison, without decoding the command
+ * into a string first.</p>
+ *
+ * @param <V> values, typically parsers
+ */
+final class CommandTable<V> {
+    static final int COMMAND_LEN = 12;
+
+    /** A command along with its value. */
+    static final class Entry<V> {
+        final String command;
+        final V value;
+        // the command bytes, zero padded to twelve bytes, as read by ByteUtils
+        private final long low;
+        private final long high;
+
+        Entry(String command, V value) {
+            if (command.isEmpty() || command.length() > COMMAND_LEN)
+                throw new IllegalArgumentException("command must be 1 to " + COMMAND_LEN + " characters: " + command);
+            this.command = command;
+            this.value = value;
+            byte[] bytes = new byte[COMMAND_LEN];
+            byte[] ascii = command.getBytes(StandardCharsets.US_ASCII);
+            System.arraycopy(ascii, 0, bytes, 0, ascii.length);
+            this.low = ByteUtils.readInt64(bytes, 0);
+            this.high = ByteUtils.readUint32(bytes, 8);
+        }
+    }
+
+    private final Entry<V>[] slots;
+    private final int shift;
+    private final long seed;
+
+    private CommandTable(Entry<V>[] slots, int shift, long seed) {
+        this.slots = slots;
+        this.shift = shift;
+        this.seed = seed;
+    }
+
+    /** Builds a table of the given entries, which must have distinct commands. */
+    static <V> CommandTable<V> of(Collection<Entry<V>> entries) {
+        // Start with a load factor of at most a quarter, and try a number of seeds before doubling the size.
+        for (int bits = 32 - Integer.numberOfLeadingZeros(Math.max(1, entries.size() * 4 - 1)); ; bits++) {
+            int shift = 64 - bits;
+            for (long seed = 0; seed < 256; seed++) {
+                Entry<V>[] slots = newSlots(1 << bits);
+                boolean perfect = true;
+                for (Entry<V> entry : entries) {
+                    int slot = slot(entry.low, entry.high, seed, shift);
+                    if (slots[slot] != null) {
+                        if (slots[slot].command.equals(entry.command))
+                            throw new IllegalArgumentException("duplicate command: " + entry.command);
+                        perfect = false;
+                        break;
+                    }
+                    slots[slot] = entry;
+                }
+                if (perfect)
+                    return new CommandTable<>(slots, shift, seed);
+            }
+        }
+    }
+
+    /**
+     * Looks up the command in the twelve bytes at the given offset, which are zero padded as in a packet header.
+     *
+     * @return entry of the command, or null if it isn't in the table
+     */
+    @Nullable
+    Entry<V> get(byte[] bytes, int offset) {
+        long low = ByteUtils.readInt64(bytes, offset);
+        long high = ByteUtils.readUint32(bytes, offset + 8);
+        Entry<V> entry = slots[slot(low, high, seed, shift)];
+        return entry != null && entry.low == low && entry.high == high ? entry : null;
+    }
+
+    /** Number of slots, which is a power of two. */
+    int capacity() {
+        return slots.length;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <V> Entry<V>[] newSlots(int size) {
+        return new Entry[size];
+    }
+
+    private static int slot(long low, long high, long seed, int shift) {
+        long h = (low ^ seed * 0x9E3779B97F4A7C15L) * 0xC2B2AE3D27D4EB4FL;
+        h = (h ^ high ^ (h >>> 31)) * 0x9E3779B97F4A7C15L;
+        return (int) ((h ^ (h >>> 29)) >>> shift);
+    }
+}
@@ -0,0 +1,396 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.base.internal.FutureUtils;
+import org.bitcoinj.base.internal.TimeUtils;
+import org.bitcoinj.wallet.Wallet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * <p>Downloads the block chain for a {@link PeerGroup} using BIP157/158 compact block filters. The download peer
+ * supplies the headers and the filter hashes, while the filters themselves are fetched from all connected peers in
+ * parallel and checked against those hashes. The filters are matched against the scripts of the wallets locally, and
+ * only the blocks that match are downloaded in full. Blocks are added to the chain in order, the matching ones with
+ * their transactions and the others as headers, so that the wallets see every block.</p>
+ *
+ * <p>A filter hash is only trusted if another peer sends the same one, or if it leads up to a checkpointed filter
+ * header. Otherwise the download peer could hide transactions by committing to filters that leave them out, so blocks
+ * with untrusted filter hashes are downloaded in full.</p>
+ *
+ * <p>Unlike with Bloom filters, the peers don't learn anything about the wallets other than which blocks they
+ * download.</p>
+ */
+class CompactFilterClient extends HeadersFirstDownloader {
+    private static final Logger log = LoggerFactory.getLogger(CompactFilterClient.class);
+
+    // Filter requests aren't split into smaller ranges than this, as each of them costs a round trip.
+    private static final int MIN_FILTERS_PER_REQUEST = 100;
+    // A request that hasn't been answered after this long fails, so that the download peer is asked instead, or the
+    // batch fails if it was the download peer that didn't answer. Longer than for blocks, as a range of filters is
+    // only complete once all of them have arrived.
+    static final Duration STALL_TIMEOUT = Duration.ofSeconds(30);
+    private static final Duration STALL_CHECK_INTERVAL = Duration.ofSeconds(1);
+
+    private final List<Wallet> wallets;
+    // Filter headers known to be correct, by block hash.
+    private final Map<Sha256Hash, Sha256Hash> checkpoints = new ConcurrentHashMap<>();
+
+    // The last block of the previous batch and its filter header, to check that the filter header chain continues.
+    // Only used by the batches, which don't run concurrently.
+    @Nullable private Sha256Hash lastFilterBlockHash;
+    @Nullable private Sha256Hash lastFilterHeader;
+
+    CompactFilterClient(PeerGroup peerGroup, AbstractBlockChain chain, List<Wallet> wallets) {
+        super(peerGroup, chain);
+        this.wallets = wallets;
+    }
+
+    /**
+     * Adds a filter header that is known to be correct, which the filter headers sent by the download peer must lead
+     * up to.
+     *
+     * @param blockHash    hash of the block
+     * @param filterHeader basic filter header of the block
+     */
+    void addCheckpoint(Sha256Hash blockHash, Sha256Hash filterHeader) {
+        checkpoints.put(blockHash, filterHeader);
+    }
+
+    @Override
+    protected CompletableFuture<Void> processBatch(Peer peer, List<Block> headers, int startHeight,
+                                                   BiConsumer<Block, FilteredBlock> onBlockAdded) {
+        return new Batch(peer, headers, startHeight, onBlockAdded).process();
+    }
+
+    private List<byte[]> filterScripts() {
+        List<byte[]> scripts = new ArrayList<>();
+        for (Wallet wallet : wallets)
+            scripts.addAll(wallet.getFilterScripts());
+        return scripts;
+    }
+
+    private static class Request {
+        final Peer source;
+        final Instant time;
+
+        Request(Peer source, Instant time) {
+            this.source = source;
+            this.time = time;
+        }
+    }
+
+    private class Batch {
+        private final Peer peer;
+        private final List<Block> headers;
+        private final int startHeight;
+        private final BiConsumer<Block, FilteredBlock> onBlockAdded;
+        // Index of the first header after the fast catchup time. Only the blocks from there on need to be matched.
+        private final int first;
+        private final List<Peer> sources;
+        // The peer whose filter hashes the ones of the download peer are checked against, if any.
+        @Nullable private final Peer witness;
+        // Whether the filter hashes are confirmed by the witness or a checkpoint, by index from first on.
+        private boolean[] vouched;
+        private List<CFilterMessage> filters;
+        private boolean[] verified;
+        private List<byte[]> scripts;
+        // Downloads of the matching blocks, by index.
+        private final Map<Integer, CompletableFuture<Block>> blocks = new HashMap<>();
+        private int nextSource = 0;
+        // Requests that haven't been answered yet, and the peers that didn't answer one in time, which aren't asked for
+        // anything else.
+        private final Map<CompletableFuture<?>, Request> pending = new ConcurrentHashMap<>();
+        private final Set<Peer> stalled = ConcurrentHashMap.newKeySet();
+        @Nullable private ScheduledFuture<?> stallCheck;
+
+        Batch(Peer peer, List<Block> headers, int startHeight, BiConsumer<Block, FilteredBlock> onBlockAdded) {
+            this.peer = peer;
+            this.headers = headers;
+            this.startHeight = startHeight;
+            this.onBlockAdded = onBlockAdded;
+            this.first = firstAfterFastCatchupTime(headers);
+            // The download peer comes first, so that it is asked for the first range of filters.
+            this.sources = new ArrayList<>();
+            sources.add(peer);
+            for (Peer other : connectedPeers())
+                if (other != peer && other.getPeerVersionMessage().services().has(Services.NODE_COMPACT_FILTERS))
+                    sources.add(other);
+            this.witness = sources.size() > 1 ? sources.get(1) : null;
+        }
+
+        CompletableFuture<Void> process() {
+            if (first == headers.size())
+                return addBlocks(0);
+            try {
+                stallCheck = peerGroup.executor.scheduleAtFixedRate(this::checkForStalls,
+                        STALL_CHECK_INTERVAL.toMillis(), STALL_CHECK_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Can happen during shutdown.
+            }
+            return download().whenComplete((v, t) -> {
+                if (stallCheck != null)
+                    stallCheck.cancel(false);
+            });
+        }
+
+        private CompletableFuture<Void> download() {
+            int count = headers.size() - first;
+            Sha256Hash stopHash = headers.get(headers.size() - 1).getHash();
+            CompletableFuture<CFHeadersMessage> filterHeaders = track(peer,
+                    peer.getFilterHeaders(startHeight + first, stopHash));
+            CompletableFuture<CFHeadersMessage> witnessHeaders = witness != null
+                    ? fetchWitnessHeaders(witness, stopHash) : CompletableFuture.completedFuture(null);
+            // Fan the filter requests out across the peers.
+            int perRequest = Math.min(GetCFiltersMessage.MAX_FILTERS,
+                    Math.max(MIN_FILTERS_PER_REQUEST, (count + sources.size() - 1) / sources.size()));
+            List<CompletableFuture<List<CFilterMessage>>> requests = new ArrayList<>();
+            for (int from = 0; from < count; from += perRequest)
+                requests.add(fetchFilters(sources.get(requests.size() % sources.size()), from,
+                        Math.min(from + perRequest, count)));
+            return filterHeaders.thenCombine(witnessHeaders, this::checkFilterHeaders)
+                    .thenCombine(FutureUtils.allAsList(requests), (hashes, ranges) -> {
+                List<CFilterMessage> filters = new ArrayList<>(count);
+                ranges.forEach(filters::addAll);
+                verify(hashes, filters);
+                scripts = filterScripts();
+                match(first);
+                log.info("{}: {} of {} blocks from height {} match the wallets", peer, blocks.size(), headers.size(),
+                        startHeight);
+                return null;
+            }).thenCompose(v -> addBlocks(0));
+        }
+
+        // Fetches the filters of headers first + from (inclusive) to first + to (exclusive) from the given peer.
+        private CompletableFuture<List<CFilterMessage>> fetchFilters(Peer source, int from, int to) {
+            List<Block> range = headers.subList(first + from, first + to);
+            CompletableFuture<List<CFilterMessage>> request = track(source, source.getFilters(startHeight + first + from,
+                    range.get(range.size() - 1).getHash())).thenApply(filters -> {
+                        if (filters.size() != range.size())
+                            throw new ProtocolException("Got " + filters.size() + " filters instead of " + range.size());
+                        for (int i = 0; i < range.size(); i++)
+                            if (!filters.get(i).blockHash().equals(range.get(i).getHash()))
+                                throw new ProtocolException("Got filter of unexpected block " + filters.get(i).blockHash());
+                        return filters;
+                    });
+            if (source == peer)
+                return request;
+            // Another peer failing is no reason to give up, as the download peer can serve the filters as well.
+            return request.handle((filters, t) -> {
+                if (t == null)
+                    return CompletableFuture.completedFuture(filters);
+                log.info("{}: Could not get filters, asking {} instead", source, peer, t);
+                return fetchFilters(peer, from, to);
+            }).thenCompose(f -> f);
+        }
+
+        // Fetches the filter hashes of the batch from the witness. If it can't serve them, there is no second opinion.
+        private CompletableFuture<CFHeadersMessage> fetchWitnessHeaders(Peer witness, Sha256Hash stopHash) {
+            return track(witness, witness.getFilterHeaders(startHeight + first, stopHash)).handle((hashes, t) -> {
+                if (t == null)
+                    return hashes;
+                log.info("{}: Could not get filter headers to check those of {} against", witness, peer, t);
+                return null;
+            });
+        }
+
+        private CompletableFuture<Block> fetchBlock(Peer source, Sha256Hash hash) {
+            CompletableFuture<Block> request = track(source, source.getBlock(hash));
+            if (source == peer)
+                return request;
+            return request.handle((block, t) -> {
+                if (t == null)
+                    return CompletableFuture.completedFuture(block);
+                log.info("{}: Could not get block, asking {} instead", source, peer, t);
+                return track(peer, peer.getBlock(hash));
+            }).thenCompose(f -> f);
+        }
+
+        // Keeps track of the request until it is answered, so that it can be failed if that takes too long.
+        private <T> CompletableFuture<T> track(Peer source, CompletableFuture<T> request) {
+            if (!request.isDone()) {
+                pending.put(request, new Request(source, TimeUtils.currentTime()));
+                request.whenComplete((v, t) -> pending.remove(request));
+            }
+            return request;
+        }
+
+        // Fails the requests that stalled, which lets the fallbacks of the requests take over.
+        private void checkForStalls() {
+            Instant now = TimeUtils.currentTime();
+            for (Map.Entry<CompletableFuture<?>, Request> entry : pending.entrySet()) {
+                Request request = entry.getValue();
+                if (now.isBefore(request.time.plus(STALL_TIMEOUT)))
+                    continue;
+                log.info("{}: Request stalled, giving up on it", request.source);
+                if (request.source != peer)
+                    stalled.add(request.source);
+                entry.getKey().completeExceptionally(new PeerException(request.source + " didn't answer within "
+                        + STALL_TIMEOUT.getSeconds() + " seconds"));
+            }
+        }
+
+        // Checks the filter hashes committed to by the download peer, and finds out which of them are confirmed by the
+        // witness or a checkpoint.
+        private CFHeadersMessage checkFilterHeaders(CFHeadersMessage hashes, @Nullable CFHeadersMessage witnessHashes) {
+            if (!answersRequest(hashes))
+                throw new ProtocolException("Got filter headers that don't match the request: " + hashes);
+            Sha256Hash prevBlockHash = first > 0 ? headers.get(first - 1).getHash() : headers.get(0).getPrevBlockHash();
+            if (prevBlockHash.equals(lastFilterBlockHash) && !hashes.previousFilterHeader().equals(lastFilterHeader))
+                throw new ProtocolException("Filter header chain doesn't connect at " + prevBlockHash);
+            List<Sha256Hash> filterHashes = hashes.filterHashes();
+            vouched = new boolean[filterHashes.size()];
+            // A checkpointed filter header commits to all the filter hashes before it.
+            Sha256Hash filterHeader = hashes.previousFilterHeader();
+            checkCheckpoint(prevBlockHash, filterHeader);
+            for (int i = 0; i < filterHashes.size(); i++) {
+                filterHeader = CFHeadersMessage.filterHeader(filterHashes.get(i), filterHeader);
+                if (checkCheckpoint(headers.get(first + i).getHash(), filterHeader))
+                    Arrays.fill(vouched, 0, i + 1, true);
+            }
+            if (witnessHashes != null && answersRequest(witnessHashes)) {
+                int disagreements = 0;
+                for (int i = 0; i < filterHashes.size(); i++) {
+                    if (vouched[i])
+                        continue;
+                    vouched[i] = witnessHashes.filterHashes().get(i).equals(filterHashes.get(i));
+                    if (!vouched[i])
+                        disagreements++;
+                }
+                if (disagreements > 0)
+                    log.warn("{}: {} filter hashes differ from those of {}, downloading their blocks in full", peer,
+                            disagreements, witness);
+            } else {
+                if (witnessHashes != null)
+                    log.warn("{}: Got filter headers that don't match the request: {}", witness, witnessHashes);
+                if (!vouched[vouched.length - 1])
+                    log.warn("{}: No other peer to check filter hashes against, downloading blocks in full", peer);
+            }
+            lastFilterBlockHash = hashes.stopHash();
+            lastFilterHeader = filterHeader;
+            return hashes;
+        }
+
+        private boolean answersRequest(CFHeadersMessage hashes) {
+            return hashes.filterType() == GolombCodedSet.BASIC_FILTER_TYPE
+                    && hashes.stopHash().equals(headers.get(headers.size() - 1).getHash())
+                    && hashes.filterHashes().size() == headers.size() - first;
+        }
+
+        // Returns whether there is a checkpoint for the block and the filter header matches it.
+        private boolean checkCheckpoint(Sha256Hash blockHash, Sha256Hash filterHeader) {
+            Sha256Hash checkpoint = checkpoints.get(blockHash);
+            if (checkpoint == null)
+                return false;
+            if (!checkpoint.equals(filterHeader))
+                throw new ProtocolException("Filter header of " + blockHash + " doesn't match checkpoint: " + filterHeader);
+            return true;
+        }
+
+        // Checks the filters against the filter hashes committed to by the download peer. Only filters with confirmed
+        // hashes can be trusted.
+        private void verify(CFHeadersMessage hashes, List<CFilterMessage> filters) {
+            this.filters = filters;
+            this.verified = new boolean[filters.size()];
+            for (int i = 0; i < filters.size(); i++) {
+                boolean matchesHash = filters.get(i).filterType() == GolombCodedSet.BASIC_FILTER_TYPE
+                        && filters.get(i).filterHash().equals(hashes.filterHashes().get(i));
+                if (!matchesHash)
+                    log.warn("{}: Filter of {} doesn't match its filter hash", peer, filters.get(i).blockHash());
+                verified[i] = vouched[i] && matchesHash;
+            }
+        }
+
+        // Matches the filters of the blocks from the given index on, and starts downloading the blocks that match.
+        private void match(int from) {
+            for (int i = Math.max(from, first); i < headers.size(); i++) {
+                if (blocks.containsKey(i) || !matches(i - first))
+                    continue;
+                blocks.put(i, fetchBlock(nextSource(), headers.get(i).getHash()));
+            }
+        }
+
+        // Picks the peers to download the matching blocks from in turn, skipping those that stalled.
+        private Peer nextSource() {
+            while (true) {
+                Peer source = sources.get(nextSource++ % sources.size());
+                if (source == peer || !stalled.contains(source))
+                    return source;
+            }
+        }
+
+        private boolean matches(int index) {
+            // A filter that can't be trusted could hide transactions, so fall back to downloading the block.
+            if (!verified[index])
+                return true;
+            try {
+                return filters.get(index).toGolombCodedSet().matchAny(scripts);
+            } catch (ProtocolException e) {
+                log.warn("{}: Could not parse filter of {}", peer, filters.get(index).blockHash(), e);
+                return true;
+            }
+        }
+
+        // Adds the blocks from the given index on to the chain, waiting for the downloads of the matching ones.
+        private CompletableFuture<Void> addBlocks(int from) {
+            for (int i = from; i < headers.size(); i++) {
+                CompletableFuture<Block> block = blocks.get(i);
+                if (block == null) {
+                    add(headers.get(i), null, onBlockAdded);
+                } else if (block.isDone()) {
+                    addMatching(i, block.join());
+                } else {
+                    int index = i;
+                    return block.thenCompose(b -> {
+                        addMatching(index, b);
+                        return addBlocks(index + 1);
+                    });
+                }
+            }
+            return CompletableFuture.completedFuture(null);
+        }
+
+        private void addMatching(int index, Block block) {
+            add(block, null, onBlockAdded);
+            // The block may have used keys of the lookahead zone, in which case the wallets have derived new keys that
+            // the rest of the batch must be matched against as well.
+            List<byte[]> scripts = filterScripts();
+            if (scripts.size() != this.scripts.size()) {
+                this.scripts = scripts;
+                match(index + 1);
+            }
+        }
+    }
+}
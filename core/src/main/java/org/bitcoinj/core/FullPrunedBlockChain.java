@@ -22,10 +22,10 @@ import org.bitcoinj.base.Sha256Hash;
 import org.bitcoinj.params.BitcoinNetworkParams;
 import org.bitcoinj.script.Script;
 import org.bitcoinj.script.Script.VerifyFlag;
+import org.bitcoinj.script.ScriptExecutionCache;
 import org.bitcoinj.script.ScriptPattern;
 import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.store.FullPrunedBlockStore;
-import org.bitcoinj.utils.ContextPropagatingThreadFactory;
 import org.bitcoinj.wallet.Wallet;
 import org.bitcoinj.wallet.WalletExtension;
 import org.slf4j.Logger;
@@ -33,18 +33,14 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import java.io.File;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.Locale;
 import java.util.Set;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.FutureTask;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.bitcoinj.base.internal.Preconditions.checkState;
 
@@ -66,6 +62,10 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
 
     // Whether or not to execute scriptPubKeys before accepting a transaction (i.e. check signatures).
     private boolean runScripts = true;
+    // Transactions whose scripts are known to be valid, so they don't need to be executed again.
+    @Nullable
+    private volatile ScriptExecutionCache scriptExecutionCache =
+            ScriptExecutionCache.withMaxBytes(ScriptExecutionCache.DEFAULT_MAX_BYTES);
 
     /**
      * Constructs a block chain connected to the given wallet and store. To obtain a {@link Wallet} you can construct
@@ -131,42 +131,106 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         this.runScripts = value;
     }
 
+    /**
+     * Set the cache of transactions whose scripts have already been verified. Before running the scripts of a
+     * transaction, the cache is consulted, and transactions that pass are added to it. This mostly saves work when
+     * blocks are connected again during a re-org, or if the same cache has been filled by verifying relayed
+     * transactions. By default, a cache limited to {@link ScriptExecutionCache#DEFAULT_MAX_BYTES} is used.
+     *
+     * @param scriptExecutionCache cache to use from now on, or null to disable caching
+     */
+    public void setScriptExecutionCache(@Nullable ScriptExecutionCache scriptExecutionCache) {
+        this.scriptExecutionCache = scriptExecutionCache;
+    }
+
+    /**
+     * Get the cache of transactions whose scripts have already been verified.
+     *
+     * @return script execution cache, or null if caching is disabled
+     */
+    @Nullable
+    public ScriptExecutionCache getScriptExecutionCache() {
+        return scriptExecutionCache;
+    }
+
     // TODO: Remove lots of duplicated code in the two connectTransactions
 
-    // TODO: execute in order of largest transaction (by input count) first
-    ExecutorService scriptVerificationExecutor = Executors.newFixedThreadPool(
-            Runtime.getRuntime().availableProcessors(), new ContextPropagatingThreadFactory("Script verification"));
+    // Shared by all blocks, so that worker threads are reused.
+    private final ForkJoinPool scriptVerificationPool = ScriptVerificationScheduler.newPool();
+    @Nullable
+    private volatile ScriptVerificationStats lastScriptVerificationStats;
 
     /**
-     * A job submitted to the executor which verifies signatures.
+     * Statistics about verifying the scripts of a block.
      */
-    private static class Verifier implements Callable<VerificationException> {
-        final Transaction tx;
-        final List<Script> prevOutScripts;
-        final Set<VerifyFlag> verifyFlags;
-
-        public Verifier(final Transaction tx, final List<Script> prevOutScripts, final Set<VerifyFlag> verifyFlags) {
-            this.tx = tx;
-            this.prevOutScripts = prevOutScripts;
-            this.verifyFlags = verifyFlags;
+    public static final class ScriptVerificationStats {
+        private final int transactions;
+        private final int inputs;
+        private final Duration elapsed;
+        private final Duration busy;
+
+        ScriptVerificationStats(int transactions, int inputs, Duration elapsed, Duration busy) {
+            this.transactions = transactions;
+            this.inputs = inputs;
+            this.elapsed = elapsed;
+            this.busy = busy;
+        }
+
+        /** Number of transactions whose scripts were run. */
+        public int transactions() {
+            return transactions;
+        }
+
+        /** Number of inputs whose scripts were run. */
+        public int inputs() {
+            return inputs;
+        }
+
+        /** Wall-clock time from the first transaction being scheduled until all were verified. */
+        public Duration elapsed() {
+            return elapsed;
+        }
+
+        /** Sum of the time spent by all workers verifying inputs. */
+        public Duration busy() {
+            return busy;
+        }
+
+        /** Average number of workers that were busy verifying, i.e. busy time divided by elapsed time. */
+        public double parallelism() {
+            return elapsed.isZero() ? 0 : (double) busy.toNanos() / elapsed.toNanos();
         }
 
-        @Nullable
         @Override
-        public VerificationException call() throws Exception {
-            try {
-                ListIterator<Script> prevOutIt = prevOutScripts.listIterator();
-                for (int index = 0; index < tx.getInputs().size(); index++) {
-                    tx.getInput(index).getScriptSig().correctlySpends(tx, index, null, null, prevOutIt.next(),
-                            verifyFlags);
-                }
-            } catch (VerificationException e) {
-                return e;
-            }
-            return null;
+        public String toString() {
+            return String.format(Locale.US, "%d txns, %d inputs verified in %d ms, parallelism %.1f", transactions,
+                    inputs, elapsed.toMillis(), parallelism());
+        }
+    }
+
+    /**
+     * Get statistics about verifying the scripts of the most recently connected block.
+     *
+     * @return statistics, or null if no scripts have been verified yet
+     */
+    @Nullable
+    public ScriptVerificationStats getLastScriptVerificationStats() {
+        return lastScriptVerificationStats;
+    }
+
+    private void finishScriptVerification(ScriptVerificationScheduler scheduler) throws VerificationException {
+        ScriptVerificationStats stats = scheduler.verify();
+        if (stats.inputs() > 0) {
+            lastScriptVerificationStats = stats;
+            log.debug("Scripts: {}", stats);
         }
     }
 
+    private boolean isScriptExecutionCached(Transaction tx, Set<VerifyFlag> verifyFlags) {
+        ScriptExecutionCache cache = scriptExecutionCache;
+        return cache != null && cache.contains(tx, verifyFlags);
+    }
+
     /**
      * Get the {@link Script} from the script bytes or return Script of empty byte array.
      */
@@ -210,10 +274,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         LinkedList<UTXO> txOutsCreated = new LinkedList<>();
         long sigOps = 0;
 
-        if (scriptVerificationExecutor.isShutdown())
-            scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-
-        List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<>(block.getTransactions().size());
+        ScriptVerificationScheduler scriptVerification = new ScriptVerificationScheduler(scriptVerificationPool,
+                scriptExecutionCache, Script.getSignatureCache());
         try {
             if (!params.isCheckpoint(height)) {
                 // BIP30 violator blocks are ones that contain a duplicated transaction. They are all in the
@@ -236,7 +298,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 boolean isCoinBase = tx.isCoinBase();
                 Coin valueIn = Coin.ZERO;
                 Coin valueOut = Coin.ZERO;
-                final List<Script> prevOutScripts = new LinkedList<>();
+                final List<Script> prevOutScripts = new ArrayList<>(tx.getInputs().size());
+                final List<Coin> prevOutValues = new ArrayList<>(tx.getInputs().size());
                 final Set<VerifyFlag> verifyFlags = params.getTransactionVerificationFlags(block, tx, getVersionTally(), height);
                 if (!isCoinBase) {
                     // For each input of the transaction remove the corresponding output from the set of unspent
@@ -265,6 +328,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                         }
 
                         prevOutScripts.add(prevOut.getScript());
+                        prevOutValues.add(prevOut.getValue());
                         blockStore.removeUnspentTransactionOutput(prevOut);
                         txOutsSpent.add(prevOut);
                     }
@@ -295,30 +359,14 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     totalFees = totalFees.add(valueIn.subtract(valueOut));
                 }
 
-                if (!isCoinBase && runScripts) {
-                    // Because correctlySpends modifies transactions, this must come after we are done with tx
-                    FutureTask<VerificationException> future = new FutureTask<>(new Verifier(tx, prevOutScripts, verifyFlags));
-                    scriptVerificationExecutor.execute(future);
-                    listScriptVerificationResults.add(future);
-                }
+                if (!isCoinBase && runScripts && !isScriptExecutionCached(tx, verifyFlags))
+                    scriptVerification.add(tx, prevOutScripts, prevOutValues, verifyFlags);
             }
             if (params.network().exceedsMaxMoney(totalFees) || getBlockInflation(height).add(totalFees).compareTo(coinbaseValue) < 0)
                 throw new VerificationException("Transaction fees out of range");
-            for (Future<VerificationException> future : listScriptVerificationResults) {
-                VerificationException e;
-                try {
-                    e = future.get();
-                } catch (InterruptedException thrownE) {
-                    throw new RuntimeException(thrownE); // Shouldn't happen
-                } catch (ExecutionException thrownE) {
-                    log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                    throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                }
-                if (e != null)
-                    throw e;
-            }
+            finishScriptVerification(scriptVerification);
         } catch (VerificationException | BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
+            scriptVerification.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         }
@@ -343,6 +391,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             throw new PrunedException(newBlock.getHeader().getHash());
         }
         TransactionOutputChanges txOutChanges;
+        ScriptVerificationScheduler scriptVerification = new ScriptVerificationScheduler(scriptVerificationPool,
+                scriptExecutionCache, Script.getSignatureCache());
         try {
             List<Transaction> transactions = block.getTransactions();
             if (transactions != null) {
@@ -360,16 +410,14 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 Coin totalFees = Coin.ZERO;
                 Coin coinbaseValue = null;
 
-                if (scriptVerificationExecutor.isShutdown())
-                    scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-                List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<>(transactions.size());
                 for (final Transaction tx : transactions) {
                     final Set<VerifyFlag> verifyFlags =
                         params.getTransactionVerificationFlags(newBlock.getHeader(), tx, getVersionTally(), Integer.SIZE);
                     boolean isCoinBase = tx.isCoinBase();
                     Coin valueIn = Coin.ZERO;
                     Coin valueOut = Coin.ZERO;
-                    final List<Script> prevOutScripts = new LinkedList<>();
+                    final List<Script> prevOutScripts = new ArrayList<>(tx.getInputs().size());
+                    final List<Coin> prevOutValues = new ArrayList<>(tx.getInputs().size());
 
                     if (!isCoinBase) {
                         for (int index = 0; index < tx.getInputs().size(); index++) {
@@ -391,6 +439,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                             // TODO: Enforce DER signature format
 
                             prevOutScripts.add(prevOut.getScript());
+                            prevOutValues.add(prevOut.getValue());
 
                             blockStore.removeUnspentTransactionOutput(prevOut);
                             txOutsSpent.add(prevOut);
@@ -422,29 +471,13 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                         totalFees = totalFees.add(valueIn.subtract(valueOut));
                     }
 
-                    if (!isCoinBase) {
-                        // Because correctlySpends modifies transactions, this must come after we are done with tx
-                        FutureTask<VerificationException> future = new FutureTask<>(new Verifier(tx, prevOutScripts, verifyFlags));
-                        scriptVerificationExecutor.execute(future);
-                        listScriptVerificationResults.add(future);
-                    }
+                    if (!isCoinBase && !isScriptExecutionCached(tx, verifyFlags))
+                        scriptVerification.add(tx, prevOutScripts, prevOutValues, verifyFlags);
                 }
                 if (params.network().exceedsMaxMoney(totalFees) || getBlockInflation(newBlock.getHeight()).add(totalFees).compareTo(coinbaseValue) < 0)
                     throw new VerificationException("Transaction fees out of range");
                 txOutChanges = new TransactionOutputChanges(txOutsCreated, txOutsSpent);
-                for (Future<VerificationException> future : listScriptVerificationResults) {
-                    VerificationException e;
-                    try {
-                        e = future.get();
-                    } catch (InterruptedException thrownE) {
-                        throw new RuntimeException(thrownE); // Shouldn't happen
-                    } catch (ExecutionException thrownE) {
-                        log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                        throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                    }
-                    if (e != null)
-                        throw e;
-                }
+                finishScriptVerification(scriptVerification);
             } else {
                 txOutChanges = block.getTxOutChanges();
                 if (!params.isCheckpoint(newBlock.getHeight()))
@@ -459,7 +492,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     blockStore.removeUnspentTransactionOutput(out);
             }
         } catch (VerificationException | BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
+            scriptVerification.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         }
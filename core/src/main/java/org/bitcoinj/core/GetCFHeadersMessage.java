@@ -0,0 +1,134 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.base.internal.ByteUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+import static org.bitcoinj.base.internal.Preconditions.checkArgument;
+
+/**
+ * Represents a "getcfheaders" message on the P2P network, which requests the hashes of the compact block filters of
+ * a range of blocks. The peer answers with a {@link CFHeadersMessage}, which also contains the filter header of the
+ * block before the start height so that the filter header chain can be followed.
+ * <p>
+ * See <a href="https://github.com/bitcoin/bips/blob/master/bip-0157.mediawiki">BIP157</a> for details.
+ * <p>
+ * Instances of this class are immutable.
+ */
+public class GetCFHeadersMessage extends BaseMessage {
+    /** The maximum number of filter headers that can be requested with one message. */
+    public static final int MAX_HEADERS = 2000;
+
+    private final int filterType;
+    private final int startHeight;
+    private final Sha256Hash stopHash;
+
+    /**
+     * Create a request for filter headers of the given type.
+     *
+     * @param filterType  type of filter, e.g. {@link GolombCodedSet#BASIC_FILTER_TYPE}
+     * @param startHeight height of the first block to get the filter header of
+     * @param stopHash    hash of the last block to get the filter header of
+     * @return getcfheaders message
+     */
+    public static GetCFHeadersMessage of(int filterType, int startHeight, Sha256Hash stopHash) {
+        checkArgument(filterType >= 0 && filterType <= 0xff, () -> "filter type out of range: " + filterType);
+        checkArgument(startHeight >= 0, () -> "start height out of range: " + startHeight);
+        return new GetCFHeadersMessage(filterType, startHeight, Objects.requireNonNull(stopHash));
+    }
+
+    /**
+     * Deserialize this message from a given payload.
+     *
+     * @param payload payload to deserialize from
+     * @return read message
+     * @throws BufferUnderflowException if the read message extends beyond the remaining bytes of the payload
+     */
+    public static GetCFHeadersMessage read(ByteBuffer payload) throws BufferUnderflowException, ProtocolException {
+        int filterType = Byte.toUnsignedInt(payload.get());
+        long startHeight = ByteUtils.readUint32(payload);
+        if (startHeight > Integer.MAX_VALUE)
+            throw new ProtocolException("start height out of range: " + startHeight);
+        Sha256Hash stopHash = Sha256Hash.read(payload);
+        return new GetCFHeadersMessage(filterType, (int) startHeight, stopHash);
+    }
+
+    private GetCFHeadersMessage(int filterType, int startHeight, Sha256Hash stopHash) {
+        this.filterType = filterType;
+        this.startHeight = startHeight;
+        this.stopHash = stopHash;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(filterType);
+        ByteUtils.writeInt32LE(startHeight, stream);
+        stream.write(stopHash.serialize());
+    }
+
+    /**
+     * Gets the type of filter the headers are requested of.
+     *
+     * @return filter type
+     */
+    public int filterType() {
+        return filterType;
+    }
+
+    /**
+     * Gets the height of the first block to get the filter header of.
+     *
+     * @return start height
+     */
+    public int startHeight() {
+        return startHeight;
+    }
+
+    /**
+     * Gets the hash of the last block to get the filter header of.
+     *
+     * @return stop hash
+     */
+    public Sha256Hash stopHash() {
+        return stopHash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        GetCFHeadersMessage other = (GetCFHeadersMessage) o;
+        return filterType == other.filterType && startHeight == other.startHeight && stopHash.equals(other.stopHash);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(filterType, startHeight, stopHash);
+    }
+
+    @Override
+    public String toString() {
+        return "getcfheaders: type " + filterType + " from " + startHeight + " to " + stopHash;
+    }
+}
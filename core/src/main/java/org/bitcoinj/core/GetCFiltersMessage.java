@@ -0,0 +1,134 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.base.internal.ByteUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+import static org.bitcoinj.base.internal.Preconditions.checkArgument;
+
+/**
+ * Represents a "getcfilters" message on the P2P network, which requests the compact block filters of a range of
+ * blocks. The peer answers with one {@link CFilterMessage} per block, from the block at the start height up to the
+ * stop block, in order.
+ * <p>
+ * See <a href="https://github.com/bitcoin/bips/blob/master/bip-0157.mediawiki">BIP157</a> for details.
+ * <p>
+ * Instances of this class are immutable.
+ */
+public class GetCFiltersMessage extends BaseMessage {
+    /** The maximum number of filters that can be requested with one message. */
+    public static final int MAX_FILTERS = 1000;
+
+    private final int filterType;
+    private final int startHeight;
+    private final Sha256Hash stopHash;
+
+    /**
+     * Create a request for filters of the given type.
+     *
+     * @param filterType  type of filter, e.g. {@link GolombCodedSet#BASIC_FILTER_TYPE}
+     * @param startHeight height of the first block to get the filter of
+     * @param stopHash    hash of the last block to get the filter of
+     * @return getcfilters message
+     */
+    public static GetCFiltersMessage of(int filterType, int startHeight, Sha256Hash stopHash) {
+        checkArgument(filterType >= 0 && filterType <= 0xff, () -> "filter type out of range: " + filterType);
+        checkArgument(startHeight >= 0, () -> "start height out of range: " + startHeight);
+        return new GetCFiltersMessage(filterType, startHeight, Objects.requireNonNull(stopHash));
+    }
+
+    /**
+     * Deserialize this message from a given payload.
+     *
+     * @param payload payload to deserialize from
+     * @return read message
+     * @throws BufferUnderflowException if the read message extends beyond the remaining bytes of the payload
+     */
+    public static GetCFiltersMessage read(ByteBuffer payload) throws BufferUnderflowException, ProtocolException {
+        int filterType = Byte.toUnsignedInt(payload.get());
+        long startHeight = ByteUtils.readUint32(payload);
+        if (startHeight > Integer.MAX_VALUE)
+            throw new ProtocolException("start height out of range: " + startHeight);
+        Sha256Hash stopHash = Sha256Hash.read(payload);
+        return new GetCFiltersMessage(filterType, (int) startHeight, stopHash);
+    }
+
+    private GetCFiltersMessage(int filterType, int startHeight, Sha256Hash stopHash) {
+        this.filterType = filterType;
+        this.startHeight = startHeight;
+        this.stopHash = stopHash;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(filterType);
+        ByteUtils.writeInt32LE(startHeight, stream);
+        stream.write(stopHash.serialize());
+    }
+
+    /**
+     * Gets the type of filter requested.
+     *
+     * @return filter type
+     */
+    public int filterType() {
+        return filterType;
+    }
+
+    /**
+     * Gets the height of the first block to get the filter of.
+     *
+     * @return start height
+     */
+    public int startHeight() {
+        return startHeight;
+    }
+
+    /**
+     * Gets the hash of the last block to get the filter of.
+     *
+     * @return stop hash
+     */
+    public Sha256Hash stopHash() {
+        return stopHash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        GetCFiltersMessage other = (GetCFiltersMessage) o;
+        return filterType == other.filterType && startHeight == other.startHeight && stopHash.equals(other.stopHash);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(filterType, startHeight, stopHash);
+    }
+
+    @Override
+    public String toString() {
+        return "getcfilters: type " + filterType + " from " + startHeight + " to " + stopHash;
+    }
+}
@@ -59,6 +59,11 @@ public class GetDataMessage extends ListMessage {
                             blockHash)));
     }
 
+    public static GetDataMessage ofFilteredBlock(Sha256Hash blockHash) {
+        return new GetDataMessage(Collections.singletonList(
+                new InventoryItem(InventoryItem.Type.FILTERED_BLOCK, blockHash)));
+    }
+
     public static GetDataMessage ofTransaction(Sha256Hash txId, boolean includeWitness) {
         return new GetDataMessage(Collections.singletonList(
                 new InventoryItem(includeWitness
@@ -0,0 +1,357 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.base.VarInt;
+import org.bitcoinj.base.internal.ByteUtils;
+import org.bitcoinj.script.ScriptOpCodes;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.bitcoinj.base.internal.Preconditions.checkArgument;
+
+/**
+ * <p>A Golomb-coded set is a compact, probabilistic representation of a set of byte strings, used for the compact
+ * block filters that full nodes serve to light clients. Each element is hashed with SipHash-2-4 onto a range of
+ * {@code N * M} values, and the sorted hashes are encoded as Golomb-Rice coded differences with {@code P} bits of
+ * remainder. Like a {@link BloomFilter}, it may match elements that were never added to it, with a probability of
+ * about {@code 1/M}, but never fails to match elements that were.</p>
+ *
+ * <p>Unlike Bloom filters, compact block filters are computed by the full node for every block regardless of who is
+ * asking, so the client matches its own scripts against them locally and doesn't reveal anything about its wallet
+ * to the node.</p>
+ *
+ * <p>See <a href="https://github.com/bitcoin/bips/blob/master/bip-0158.mediawiki">BIP158</a> for details.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class GolombCodedSet {
+    /** The type of the basic filter, which contains the output scripts and the scripts spent by a block. */
+    public static final int BASIC_FILTER_TYPE = 0;
+    /** The Golomb-Rice coding parameter of the basic filter. */
+    public static final int BASIC_FILTER_P = 19;
+    /** The inverse false positive rate of the basic filter. */
+    public static final long BASIC_FILTER_M = 784931;
+
+    private final long k0;
+    private final long k1;
+    private final int p;
+    private final long m;
+    private final int n;
+    private final byte[] filter;
+    private final int dataOffset;
+
+    /**
+     * Parses a basic filter of a block.
+     *
+     * @param blockHash hash of the block, the first 16 bytes of which key the hash function
+     * @param filter    serialized filter
+     * @return parsed filter
+     * @throws ProtocolException if the filter is malformed
+     */
+    public static GolombCodedSet ofBasicFilter(Sha256Hash blockHash, byte[] filter) throws ProtocolException {
+        byte[] key = blockHash.serialize();
+        return new GolombCodedSet(ByteUtils.readInt64(key, 0), ByteUtils.readInt64(key, 8), BASIC_FILTER_P,
+                BASIC_FILTER_M, filter);
+    }
+
+    /**
+     * Builds the basic filter of a block. It contains the output scripts of the block, except for OP_RETURN outputs,
+     * and the scripts of the outputs spent by the block.
+     *
+     * @param block        block, with transactions
+     * @param spentScripts scripts of the outputs spent by the inputs of the block, in any order
+     * @return built filter
+     */
+    public static GolombCodedSet ofBlock(Block block, Collection<byte[]> spentScripts) {
+        List<byte[]> elements = new ArrayList<>(spentScripts);
+        for (Transaction tx : block.getTransactions()) {
+            for (TransactionOutput output : tx.getOutputs()) {
+                byte[] script = output.getScriptBytes();
+                if (script.length > 0 && script[0] != ScriptOpCodes.OP_RETURN)
+                    elements.add(script);
+            }
+        }
+        byte[] key = block.getHash().serialize();
+        return build(ByteUtils.readInt64(key, 0), ByteUtils.readInt64(key, 8), BASIC_FILTER_P, BASIC_FILTER_M,
+                elements);
+    }
+
+    /**
+     * Builds a filter with the given parameters. Empty and duplicate elements are left out.
+     *
+     * @param k0       first half of the SipHash key
+     * @param k1       second half of the SipHash key
+     * @param p        Golomb-Rice coding parameter
+     * @param m        inverse false positive rate
+     * @param elements elements of the set
+     * @return built filter
+     */
+    public static GolombCodedSet build(long k0, long k1, int p, long m, Collection<byte[]> elements) {
+        checkArgument(p > 0 && p < 32, () -> "p out of range: " + p);
+        checkArgument(m > 0 && m < 1L << 32, () -> "m out of range: " + m);
+        Set<ByteBuffer> unique = new HashSet<>();
+        for (byte[] element : elements)
+            if (element.length > 0)
+                unique.add(ByteBuffer.wrap(element));
+        long range = unique.size() * m;
+        long[] values = new long[unique.size()];
+        int i = 0;
+        for (ByteBuffer element : unique)
+            values[i++] = multiplyHighUnsigned(sipHash24(k0, k1, element.array()), range);
+        Arrays.sort(values);
+        BitWriter writer = new BitWriter();
+        byte[] size = VarInt.of(values.length).serialize();
+        writer.stream.write(size, 0, size.length);
+        long previous = 0;
+        for (long value : values) {
+            writer.writeGolombRice(value - previous, p);
+            previous = value;
+        }
+        return new GolombCodedSet(k0, k1, p, m, writer.toByteArray());
+    }
+
+    /**
+     * Parses a filter with the given parameters.
+     *
+     * @param k0     first half of the SipHash key
+     * @param k1     second half of the SipHash key
+     * @param p      Golomb-Rice coding parameter
+     * @param m      inverse false positive rate
+     * @param filter serialized filter: the number of elements as a variable length integer, followed by the coded
+     *               differences
+     * @throws ProtocolException if the filter is malformed
+     */
+    public GolombCodedSet(long k0, long k1, int p, long m, byte[] filter) throws ProtocolException {
+        checkArgument(p > 0 && p < 32, () -> "p out of range: " + p);
+        checkArgument(m > 0 && m < 1L << 32, () -> "m out of range: " + m);
+        ByteBuffer buf = ByteBuffer.wrap(filter);
+        VarInt nVarInt;
+        try {
+            nVarInt = VarInt.read(buf);
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Filter is empty");
+        }
+        if (!nVarInt.fitsInt())
+            throw new ProtocolException("Too many elements in filter: " + nVarInt);
+        this.k0 = k0;
+        this.k1 = k1;
+        this.p = p;
+        this.m = m;
+        this.n = nVarInt.intValue();
+        this.filter = filter;
+        this.dataOffset = buf.position();
+    }
+
+    /** Returns the number of elements in the set. */
+    public int size() {
+        return n;
+    }
+
+    /** Returns the serialized filter. */
+    public byte[] serialize() {
+        return Arrays.copyOf(filter, filter.length);
+    }
+
+    /**
+     * Returns true if the given element may be in the set. The set is decoded up to where the element would be, so
+     * to look for several elements use {@link #matchAny(Collection)} instead.
+     *
+     * @throws ProtocolException if the coded differences are malformed
+     */
+    public boolean match(byte[] element) throws ProtocolException {
+        if (n == 0)
+            return false;
+        long target = hashToRange(element);
+        BitReader reader = new BitReader(filter, dataOffset);
+        long value = 0;
+        for (int i = 0; i < n; i++) {
+            value += reader.readGolombRice(p);
+            if (value == target)
+                return true;
+            if (value > target)
+                return false;
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if any of the given elements may be in the set. The hashes of the elements are sorted, so that
+     * they can be merged with the set in a single pass, which stops at the first match. That makes matching many
+     * elements, such as all the scripts of a wallet, cost little more than decoding the set once.
+     *
+     * @throws ProtocolException if the coded differences are malformed
+     */
+    public boolean matchAny(Collection<byte[]> elements) throws ProtocolException {
+        if (n == 0 || elements.isEmpty())
+            return false;
+        long[] targets = new long[elements.size()];
+        int t = 0;
+        for (byte[] element : elements)
+            targets[t++] = hashToRange(element);
+        Arrays.sort(targets);
+        BitReader reader = new BitReader(filter, dataOffset);
+        long value = reader.readGolombRice(p);
+        int decoded = 1;
+        t = 0;
+        while (true) {
+            long target = targets[t];
+            if (value == target)
+                return true;
+            if (value < target) {
+                if (decoded == n)
+                    return false;
+                value += reader.readGolombRice(p);
+                decoded++;
+            } else if (++t == targets.length) {
+                return false;
+            }
+        }
+    }
+
+    /** Maps an element onto [0, N * M), the range of the hashed values of the set. */
+    long hashToRange(byte[] element) {
+        return multiplyHighUnsigned(sipHash24(k0, k1, element), n * m);
+    }
+
+    // The upper 64 bits of the unsigned 128 bit product of x and y.
+    static long multiplyHighUnsigned(long x, long y) {
+        long x0 = x & 0xffffffffL, x1 = x >>> 32;
+        long y0 = y & 0xffffffffL, y1 = y >>> 32;
+        long t = x1 * y0 + ((x0 * y0) >>> 32);
+        long u = x0 * y1 + (t & 0xffffffffL);
+        return x1 * y1 + (t >>> 32) + (u >>> 32);
+    }
+
+    /** SipHash-2-4 of the given data, with the 128 bit key k0, k1. */
+    static long sipHash24(long k0, long k1, byte[] data) {
+        long v0 = k0 ^ 0x736f6d6570736575L;
+        long v1 = k1 ^ 0x646f72616e646f6dL;
+        long v2 = k0 ^ 0x6c7967656e657261L;
+        long v3 = k1 ^ 0x7465646279746573L;
+        int end = data.length & ~7;
+        for (int i = 0; i < end; i += 8) {
+            long word = ByteUtils.readInt64(data, i);
+            v3 ^= word;
+            for (int round = 0; round < 2; round++) {
+                v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+                v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+                v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+                v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+            }
+            v0 ^= word;
+        }
+        long last = (long) data.length << 56;
+        for (int i = data.length - 1; i >= end; i--)
+            last |= (data[i] & 0xffL) << ((i - end) * 8);
+        v3 ^= last;
+        for (int round = 0; round < 2; round++) {
+            v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+            v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+            v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+            v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+        }
+        v0 ^= last;
+        v2 ^= 0xff;
+        for (int round = 0; round < 4; round++) {
+            v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+            v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+            v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+            v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+        }
+        return v0 ^ v1 ^ v2 ^ v3;
+    }
+
+    /** Writes a stream of bits, most significant bit first. */
+    private static class BitWriter {
+        private final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        private int buffer;
+        private int buffered; // number of bits in the buffer
+
+        void writeGolombRice(long value, int p) {
+            for (long quotient = value >>> p; quotient > 0; quotient--)
+                writeBit(true);
+            writeBit(false);
+            for (int i = p - 1; i >= 0; i--)
+                writeBit(((value >>> i) & 1) != 0);
+        }
+
+        private void writeBit(boolean bit) {
+            buffer = (buffer << 1) | (bit ? 1 : 0);
+            if (++buffered == 8) {
+                stream.write(buffer);
+                buffer = 0;
+                buffered = 0;
+            }
+        }
+
+        byte[] toByteArray() {
+            if (buffered > 0)
+                stream.write(buffer << (8 - buffered));
+            buffer = 0;
+            buffered = 0;
+            return stream.toByteArray();
+        }
+    }
+
+    /** Reads a stream of bits, most significant bit first. */
+    private static class BitReader {
+        private final byte[] data;
+        private int position; // in bits
+
+        BitReader(byte[] data, int offset) {
+            this.data = data;
+            this.position = offset * 8;
+        }
+
+        long readGolombRice(int p) throws ProtocolException {
+            long quotient = 0;
+            while (readBit())
+                quotient++;
+            return (quotient << p) | readBits(p);
+        }
+
+        private boolean readBit() throws ProtocolException {
+            if (position >= data.length * 8)
+                throw new ProtocolException("Filter ends prematurely");
+            boolean bit = (data[position >>> 3] & (0x80 >>> (position & 7))) != 0;
+            position++;
+            return bit;
+        }
+
+        private long readBits(int count) throws ProtocolException {
+            long bits = 0;
+            for (int i = 0; i < count; i++)
+                bits = (bits << 1) | (readBit() ? 1 : 0);
+            return bits;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "GolombCodedSet{n=" + n + ", p=" + p + ", m=" + m + ", " + filter.length + " bytes}";
+    }
+}
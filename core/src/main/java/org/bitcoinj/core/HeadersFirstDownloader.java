@@ -0,0 +1,132 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.base.internal.FutureUtils;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+
+import javax.annotation.Nullable;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+/**
+ * <p>Takes over the chain download from the download peer of a {@link PeerGroup}. The download peer only sends headers,
+ * which are handed to the downloader in batches, and the downloader adds them to the chain along with whatever block
+ * bodies it needs, fetching them from other peers as well.</p>
+ *
+ * <p>Batches are processed one after the other, in the order they were received, and only start once the previous
+ * batch has been added to the chain. The next batch can be requested as soon as one starts, so that its headers arrive
+ * while the blocks of the current one are still being downloaded.</p>
+ */
+abstract class HeadersFirstDownloader {
+    protected final PeerGroup peerGroup;
+    protected final AbstractBlockChain chain;
+
+    private CompletableFuture<Void> lastBatch = CompletableFuture.completedFuture(null);
+
+    HeadersFirstDownloader(PeerGroup peerGroup, AbstractBlockChain chain) {
+        this.peerGroup = peerGroup;
+        this.chain = chain;
+    }
+
+    /**
+     * Adds the given headers to the chain, along with the bodies of the blocks the downloader needs.
+     *
+     * @param peer         the download peer, which sent the headers
+     * @param headers      headers, in chain order
+     * @param onBlockAdded called with every block or header added to the chain, and the filtered block if it was one
+     * @param onStarted    called when the processing of the headers starts, after the previous batch has been added
+     * @return future that completes once all the headers have been added
+     */
+    CompletableFuture<Void> processHeaders(Peer peer, List<Block> headers,
+                                           BiConsumer<Block, FilteredBlock> onBlockAdded, Runnable onStarted) {
+        synchronized (this) {
+            // Start after the previous batch, whether it succeeded or not.
+            CompletableFuture<Void> batch = lastBatch.handle((v, t) -> null)
+                    .thenCompose(v -> {
+                        onStarted.run();
+                        return processUnknownHeaders(peer, headers, onBlockAdded);
+                    });
+            lastBatch = batch;
+            return batch;
+        }
+    }
+
+    private CompletableFuture<Void> processUnknownHeaders(Peer peer, List<Block> headers,
+                                                          BiConsumer<Block, FilteredBlock> onBlockAdded) {
+        BlockStore store = chain.getBlockStore();
+        try {
+            // Skip the headers we already have, which happens if the same range was requested twice.
+            int known = 0;
+            while (known < headers.size() && store.get(headers.get(known).getHash()) != null)
+                known++;
+            headers = headers.subList(known, headers.size());
+            if (headers.isEmpty())
+                return CompletableFuture.completedFuture(null);
+            StoredBlock prev = store.get(headers.get(0).getPrevBlockHash());
+            if (prev == null)
+                throw new ProtocolException("Got unconnected header from peer: " + headers.get(0).getHashAsString());
+            return processBatch(peer, headers, prev.getHeight() + 1, onBlockAdded);
+        } catch (BlockStoreException e) {
+            return FutureUtils.failedFuture(e);
+        }
+    }
+
+    /**
+     * Adds a batch of headers that all connect to the chain.
+     *
+     * @param startHeight height of the first header
+     */
+    protected abstract CompletableFuture<Void> processBatch(Peer peer, List<Block> headers, int startHeight,
+                                                            BiConsumer<Block, FilteredBlock> onBlockAdded);
+
+    /** Returns the peers to download block bodies and filters from. */
+    List<Peer> connectedPeers() {
+        return peerGroup.getConnectedPeers();
+    }
+
+    /** Returns the index of the first of the given headers that isn't before the fast catchup time. */
+    protected int firstAfterFastCatchupTime(List<Block> headers) {
+        Instant fastCatchupTime = peerGroup.getFastCatchupTime();
+        int first = 0;
+        while (first < headers.size() && headers.get(first).time().isBefore(fastCatchupTime))
+            first++;
+        return first;
+    }
+
+    /**
+     * Adds a block, header or filtered block to the chain.
+     *
+     * @param block         the block or header, or the header of the filtered block
+     * @param filteredBlock the filtered block, if it is one
+     */
+    protected void add(Block block, @Nullable FilteredBlock filteredBlock,
+                       BiConsumer<Block, FilteredBlock> onBlockAdded) {
+        try {
+            boolean connected = filteredBlock != null ? chain.add(filteredBlock) : chain.add(block);
+            if (!connected)
+                throw new ProtocolException("Got unconnected block from peer: " + block.getHashAsString());
+        } catch (PrunedException e) {
+            // We pruned away some of the data we need to properly handle this block.
+            throw new RuntimeException(e);
+        }
+        onBlockAdded.accept(block, filteredBlock);
+    }
+}
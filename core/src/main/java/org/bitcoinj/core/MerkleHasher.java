@@ -0,0 +1,125 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.base.Sha256Hash;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * <p>Calculates the Merkle root of the transactions of a block. Leaves are hashed on the common
+ * {@link java.util.concurrent.ForkJoinPool} for large blocks. Interior levels are hashed in place in a single array,
+ * with a digest per thread, so no objects are allocated per node.</p>
+ *
+ * <p>Also detects the malleation of CVE-2012-2459: because the last node of a level with an odd number of nodes is
+ * paired with itself, a list of transactions that ends with a duplicated subtree has the same root as the list
+ * without it. Such a tree always contains two sibling nodes that are equal, which is what is checked for, as in
+ * Bitcoin Core.</p>
+ */
+final class MerkleHasher {
+    // Blocks with at least this many transactions have their leaves hashed in parallel.
+    static final int PARALLEL_THRESHOLD = 512;
+
+    private static final int HASH_LENGTH = Sha256Hash.LENGTH;
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(Sha256Hash::newDigest);
+
+    /** Root of a Merkle tree, and whether the tree contains two equal sibling nodes. */
+    static final class Result {
+        final Sha256Hash root;
+        final boolean mutated;
+
+        private Result(Sha256Hash root, boolean mutated) {
+            this.root = root;
+            this.mutated = mutated;
+        }
+    }
+
+    private MerkleHasher() {
+    }
+
+    /**
+     * Calculate the Merkle root of the given transactions, using either their txids or their wtxids. For the witness
+     * root, the wtxid of the coinbase is taken to be zero.
+     *
+     * @param transactions transactions of the block, must not be empty
+     * @param useWTxId     true to use wtxids, false to use txids
+     * @return root of the tree, and whether it was mutated
+     */
+    static Result calculate(List<Transaction> transactions, boolean useWTxId) {
+        int size = transactions.size();
+        byte[] nodes = new byte[size * HASH_LENGTH];
+        IntStream leaves = IntStream.range(0, size);
+        if (size >= PARALLEL_THRESHOLD)
+            leaves = leaves.parallel();
+        leaves.forEach(i -> {
+            Transaction tx = transactions.get(i);
+            Sha256Hash hash;
+            if (useWTxId && tx.isCoinBase())
+                hash = Sha256Hash.ZERO_HASH;
+            else
+                hash = useWTxId ? tx.getWTxId() : tx.getTxId();
+            System.arraycopy(hash.serialize(), 0, nodes, i * HASH_LENGTH, HASH_LENGTH);
+        });
+        return calculate(nodes, size);
+    }
+
+    /**
+     * Calculate the Merkle root of the given leaves, which are overwritten by the interior nodes.
+     *
+     * @param nodes leaves in serialized (little endian) form, one after another
+     * @param size  number of leaves
+     * @return root of the tree, and whether it was mutated
+     */
+    static Result calculate(byte[] nodes, int size) {
+        MessageDigest digest = DIGEST.get();
+        byte[] first = new byte[HASH_LENGTH];
+        boolean mutated = false;
+        try {
+            // Each level is written over the start of the previous one: node i is only written after nodes 2i and 2i+1
+            // have been read.
+            for (int levelSize = size; levelSize > 1; levelSize = (levelSize + 1) / 2) {
+                for (int left = 0; left < levelSize; left += 2) {
+                    // The right hand node is the same as the left hand one if the level has an odd number of nodes.
+                    int right = Math.min(left + 1, levelSize - 1);
+                    if (right != left && equal(nodes, left, right))
+                        mutated = true;
+                    digest.update(nodes, left * HASH_LENGTH, HASH_LENGTH);
+                    digest.update(nodes, right * HASH_LENGTH, HASH_LENGTH);
+                    digest.digest(first, 0, HASH_LENGTH);
+                    digest.update(first);
+                    digest.digest(nodes, left / 2 * HASH_LENGTH, HASH_LENGTH);
+                }
+            }
+        } catch (DigestException e) {
+            throw new RuntimeException(e); // cannot happen, the buffers are large enough
+        }
+        byte[] root = new byte[HASH_LENGTH];
+        System.arraycopy(nodes, 0, root, 0, HASH_LENGTH);
+        return new Result(Sha256Hash.wrapReversed(root), mutated);
+    }
+
+    private static boolean equal(byte[] nodes, int a, int b) {
+        int offsetA = a * HASH_LENGTH, offsetB = b * HASH_LENGTH;
+        for (int i = 0; i < HASH_LENGTH; i++)
+            if (nodes[offsetA + i] != nodes[offsetB + i])
+                return false;
+        return true;
+    }
+}
@@ -18,6 +18,8 @@
 
 package org.bitcoinj.core;
 
+import org.bitcoinj.base.internal.ByteUtils;
+
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.BufferUnderflowException;
@@ -56,6 +58,21 @@ public abstract class MessageSerializer {
      */
     public abstract Message deserializePayload(BitcoinSerializer.BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException, UnsupportedOperationException;
 
+    /**
+     * Deserialize a payload whose double SHA-256 hash has already been calculated, typically while its bytes were
+     * being received. You must provide a header, typically obtained by calling {@link BitcoinSerializer#deserializeHeader}.
+     * The default implementation checks the hash against the checksum of the header and then hands the payload to
+     * {@link #deserializePayload(BitcoinSerializer.BitcoinPacketHeader, ByteBuffer)}. Implementations can override it
+     * to avoid hashing the payload again.
+     */
+    public Message deserializePayload(BitcoinSerializer.BitcoinPacketHeader header, ByteBuffer payload, byte[] hash) throws ProtocolException, UnsupportedOperationException {
+        for (int i = 0; i < header.checksum.length; i++)
+            if (header.checksum[i] != hash[i])
+                throw new ProtocolException("Checksum failed to verify, actual " + ByteUtils.formatHex(hash) +
+                        " vs " + ByteUtils.formatHex(header.checksum));
+        return deserializePayload(header, payload);
+    }
+
     /**
      * Make an address message from the payload. Extension point for alternative
      * serialization format support.
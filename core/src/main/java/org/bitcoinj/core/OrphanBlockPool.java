@@ -0,0 +1,175 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.core.AbstractBlockChain.OrphanBlock;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.bitcoinj.base.internal.Preconditions.checkArgument;
+
+/**
+ * <p>Holds the blocks that an {@link AbstractBlockChain} has received but can't connect yet, because it doesn't have
+ * their parent. Orphans are indexed by the hash of their parent as well, so that once a block has been connected its
+ * descendants are found directly, without looking at all the other orphans.</p>
+ *
+ * <p>The pool is bounded by the number of orphans and by their approximate size in bytes. If adding an orphan goes over
+ * either limit, the oldest orphans are evicted. The newest orphan is always kept, even if it is bigger than the limit
+ * by itself, because the peer that added it goes on to look up its root. An orphan makes the peer request the blocks
+ * leading up to it, so an evicted orphan is downloaded again later.</p>
+ *
+ * <p>This class is not thread-safe.</p>
+ */
+final class OrphanBlockPool {
+    static final int DEFAULT_MAX_BLOCKS = 1000;
+    static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+
+    // In the order they were added, which is the order they are evicted in.
+    private final LinkedHashMap<Sha256Hash, OrphanBlock> blocks = new LinkedHashMap<>();
+    private final Map<Sha256Hash, List<OrphanBlock>> blocksByPrevHash = new HashMap<>();
+    private int maxBlocks = DEFAULT_MAX_BLOCKS;
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    private long bytes;
+    private long evictions;
+    private int longestConnectedChain;
+
+    /** Sets the limits, evicting the oldest orphans but the newest if there are more than that already. */
+    void setLimits(int maxBlocks, long maxBytes) {
+        checkArgument(maxBlocks > 0 && maxBytes > 0, () -> "limits must be positive");
+        this.maxBlocks = maxBlocks;
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    /**
+     * Adds an orphan, replacing the one with the same hash, and evicts the oldest other orphans if over the limits.
+     */
+    void add(OrphanBlock orphan) {
+        remove(orphan.block.getHash());
+        blocks.put(orphan.block.getHash(), orphan);
+        blocksByPrevHash.computeIfAbsent(orphan.block.getPrevBlockHash(), h -> new ArrayList<>(1)).add(orphan);
+        bytes += sizeOf(orphan);
+        evict();
+    }
+
+    @Nullable
+    OrphanBlock get(Sha256Hash hash) {
+        return blocks.get(hash);
+    }
+
+    boolean contains(Sha256Hash hash) {
+        return blocks.containsKey(hash);
+    }
+
+    /** Returns the orphans whose parent is the block of the given hash. */
+    List<OrphanBlock> getChildren(Sha256Hash prevHash) {
+        List<OrphanBlock> children = blocksByPrevHash.get(prevHash);
+        return children != null ? new ArrayList<>(children) : Collections.emptyList();
+    }
+
+    /**
+     * Removes the orphan of the given hash.
+     *
+     * @return the removed orphan, or null if there was none
+     */
+    @Nullable
+    OrphanBlock remove(Sha256Hash hash) {
+        OrphanBlock orphan = blocks.remove(hash);
+        if (orphan != null)
+            unindex(orphan);
+        return orphan;
+    }
+
+    /** Removes all orphans, and returns their hashes. */
+    Set<Sha256Hash> clear() {
+        Set<Sha256Hash> hashes = new HashSet<>(blocks.keySet());
+        blocks.clear();
+        blocksByPrevHash.clear();
+        bytes = 0;
+        return hashes;
+    }
+
+    /** Records that the given number of orphans has just been connected, after their missing parent arrived. */
+    void connected(int count) {
+        longestConnectedChain = Math.max(longestConnectedChain, count);
+    }
+
+    /** Number of orphans. */
+    int size() {
+        return blocks.size();
+    }
+
+    /** Approximate size of the orphans, in bytes. */
+    long bytes() {
+        return bytes;
+    }
+
+    /** Number of orphans that were evicted to stay within the limits. */
+    long evictions() {
+        return evictions;
+    }
+
+    /** Largest number of orphans that were connected at once. */
+    int longestConnectedChain() {
+        return longestConnectedChain;
+    }
+
+    private void evict() {
+        Iterator<OrphanBlock> it = blocks.values().iterator();
+        // never evict the newest orphan
+        while ((blocks.size() > maxBlocks || bytes > maxBytes) && blocks.size() > 1) {
+            OrphanBlock orphan = it.next();
+            it.remove();
+            unindex(orphan);
+            evictions++;
+        }
+    }
+
+    private void unindex(OrphanBlock orphan) {
+        Sha256Hash prevHash = orphan.block.getPrevBlockHash();
+        List<OrphanBlock> siblings = blocksByPrevHash.get(prevHash);
+        siblings.remove(orphan);
+        if (siblings.isEmpty())
+            blocksByPrevHash.remove(prevHash);
+        bytes -= sizeOf(orphan);
+    }
+
+    // Approximate size of an orphan in memory, going by its size on the wire.
+    static long sizeOf(OrphanBlock orphan) {
+        if (orphan.filteredTxHashes == null)
+            return orphan.block.messageSize();
+        long size = Block.HEADER_SIZE + (long) orphan.filteredTxHashes.size() * Sha256Hash.LENGTH;
+        for (Transaction tx : orphan.filteredTxn.values())
+            size += tx.messageSize();
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "OrphanBlockPool{size=" + blocks.size() + ", bytes=" + bytes + ", evictions=" + evictions + "}";
+    }
+}
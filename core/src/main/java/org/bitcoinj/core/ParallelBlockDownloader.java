@@ -0,0 +1,428 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.base.internal.TimeUtils;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
+import org.bitcoinj.wallet.Wallet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * <p>Downloads the block chain for a {@link PeerGroup} headers first. The download peer supplies the headers, which
+ * are checked and added to the chain in batches, while the bodies of the blocks after the fast catchup time are
+ * requested from all connected peers in parallel. Those are full blocks, or filtered blocks if a Bloom filter is in
+ * use.</p>
+ *
+ * <p>Requests are scheduled over a sliding window ahead of the next block to be added to the chain, which is bounded by
+ * the size of the blocks that are buffered or expected, and spread over the least busy peers, with a limit on the
+ * number of requests each peer has in flight. Blocks that arrive out of order are buffered until the blocks before
+ * them have been added. A request that a peer doesn't answer in time, or can't answer, for example because it
+ * disconnected, is given to another peer.</p>
+ *
+ * <p>Blocks are added to the chain by a single thread of the downloader, so that the network threads of the peers
+ * only ever wait for the bookkeeping of the requests.</p>
+ */
+class ParallelBlockDownloader extends HeadersFirstDownloader {
+    private static final Logger log = LoggerFactory.getLogger(ParallelBlockDownloader.class);
+
+    // Blocks are requested while the blocks buffered, plus the expected size of the blocks in flight, stay below this.
+    static final long WINDOW_BYTES = 32 * 1024 * 1024;
+    // Expected size of a block until the first ones have been received.
+    static final int INITIAL_BLOCK_SIZE_ESTIMATE = 256 * 1024;
+    // Maximum number of blocks requested from a peer at the same time.
+    static final int MAX_IN_FLIGHT_PER_PEER = 16;
+    // A request that hasn't been answered after this long is given to another peer as well.
+    static final Duration STALL_TIMEOUT = Duration.ofSeconds(10);
+    // A block that still couldn't be downloaded after this many requests fails the batch.
+    static final int MAX_ATTEMPTS = 8;
+
+    private final List<Wallet> wallets;
+    private final Executor adder;
+    // Average size of the blocks received so far, carried over from one batch to the next.
+    private volatile long blockSizeEstimate = INITIAL_BLOCK_SIZE_ESTIMATE;
+
+    ParallelBlockDownloader(PeerGroup peerGroup, AbstractBlockChain chain, List<Wallet> wallets) {
+        // A single thread that goes away when there's nothing to add.
+        this(peerGroup, chain, wallets, new ThreadPoolExecutor(0, 1, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), new ContextPropagatingThreadFactory("Parallel block download")));
+    }
+
+    /**
+     * @param adder executor that adds the blocks to the chain, which must run its tasks one after the other
+     */
+    ParallelBlockDownloader(PeerGroup peerGroup, AbstractBlockChain chain, List<Wallet> wallets, Executor adder) {
+        super(peerGroup, chain);
+        this.wallets = wallets;
+        this.adder = adder;
+    }
+
+    @Override
+    protected CompletableFuture<Void> processBatch(Peer peer, List<Block> headers, int startHeight,
+                                                   BiConsumer<Block, FilteredBlock> onBlockAdded) {
+        Batch batch = new Batch(peer, headers, startHeight, onBlockAdded, peerGroup.isDownloadingFilteredBlocks());
+        synchronized (batch) {
+            batch.start();
+        }
+        return batch.done;
+    }
+
+    private static class Request {
+        final int index;
+        final Peer source;
+        final Instant time;
+
+        Request(int index, Peer source, Instant time) {
+            this.index = index;
+            this.source = source;
+            this.time = time;
+        }
+    }
+
+    // Answers arrive on the network threads of the peers, and blocks are added on the adder. All state is guarded by
+    // the lock of the batch, which is never held while adding a block.
+    private class Batch {
+        private final Peer peer;
+        private final List<Block> headers;
+        private final int startHeight;
+        private final BiConsumer<Block, FilteredBlock> onBlockAdded;
+        private final boolean filtered;
+        // Index of the first header after the fast catchup time. Only the bodies of the blocks from there on are needed.
+        private final int first;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        // Index of the next block to hand to the adder, and of the next block to request.
+        private int next;
+        private int nextRequest;
+        // Whether the adder is working on this batch.
+        private boolean adding;
+        // Blocks that arrived ahead of the next block to add, by index, and their total size.
+        private final Map<Integer, Message> received = new HashMap<>();
+        private long receivedBytes;
+        // Requests that haven't been answered yet, by index. A block has several if it was given to more peers.
+        private final Map<Integer, List<Request>> inFlight = new HashMap<>();
+        private final Map<Peer, Integer> inFlightPerPeer = new HashMap<>();
+        // Blocks to request again, along with the peer that failed to deliver them.
+        private final Map<Integer, Peer> retries = new LinkedHashMap<>();
+        private final int[] attempts;
+        // Incremented when the Bloom filter is exhausted. Answers to requests made before that are thrown away.
+        private int generation;
+        private boolean awaitingFreshFilter;
+        @Nullable private ScheduledFuture<?> stallCheck;
+
+        Batch(Peer peer, List<Block> headers, int startHeight, BiConsumer<Block, FilteredBlock> onBlockAdded,
+              boolean filtered) {
+            this.peer = peer;
+            this.headers = headers;
+            this.startHeight = startHeight;
+            this.onBlockAdded = onBlockAdded;
+            this.filtered = filtered;
+            this.first = firstAfterFastCatchupTime(headers);
+            this.nextRequest = first;
+            this.attempts = new int[headers.size()];
+        }
+
+        void start() {
+            if (first < headers.size()) {
+                log.info("{}: Downloading {} blocks from height {} in parallel", peer, headers.size() - first,
+                        startHeight + first);
+                try {
+                    long interval = STALL_TIMEOUT.toMillis() / 10;
+                    stallCheck = peerGroup.executor.scheduleAtFixedRate(this::checkForStalls, interval, interval,
+                            TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    // Can happen during shutdown.
+                }
+            }
+            update();
+        }
+
+        // Lets the adder add what can be added to the chain, and requests more blocks.
+        private void update() {
+            if (done.isDone())
+                return;
+            try {
+                if (!adding && !awaitingFreshFilter && (next < first || received.containsKey(next))) {
+                    adding = true;
+                    adder.execute(this::addReady);
+                }
+                schedule();
+            } catch (RuntimeException e) {
+                finish(e);
+            }
+        }
+
+        private void finish(@Nullable Throwable t) {
+            if (stallCheck != null)
+                stallCheck.cancel(false);
+            if (t == null)
+                done.complete(null);
+            else
+                done.completeExceptionally(t);
+        }
+
+        // Runs on the adder. Adds blocks to the chain in order, for as long as the next one has been received.
+        private void addReady() {
+            while (true) {
+                int index;
+                int generation;
+                Message block;
+                synchronized (this) {
+                    if (done.isDone() || awaitingFreshFilter) {
+                        adding = false;
+                        return;
+                    }
+                    if (next == headers.size()) {
+                        adding = false;
+                        finish(null);
+                        return;
+                    }
+                    if (next < first) {
+                        block = headers.get(next);
+                    } else {
+                        block = received.remove(next);
+                        if (block == null) {
+                            adding = false;
+                            return;
+                        }
+                        receivedBytes -= block.messageSize();
+                    }
+                    index = next++;
+                    generation = this.generation;
+                }
+                try {
+                    if (block instanceof FilteredBlock) {
+                        FilteredBlock filteredBlock = (FilteredBlock) block;
+                        if (checkForFilterExhaustion(filteredBlock)) {
+                            synchronized (this) {
+                                adding = false;
+                                if (generation == this.generation)
+                                    awaitFreshFilter(index, filteredBlock);
+                            }
+                            return;
+                        }
+                        add(filteredBlock.getBlockHeader(), filteredBlock, onBlockAdded);
+                    } else {
+                        add((Block) block, null, onBlockAdded);
+                    }
+                } catch (RuntimeException e) {
+                    synchronized (this) {
+                        adding = false;
+                        finish(e);
+                    }
+                    return;
+                }
+                if (index < first)
+                    continue;
+                synchronized (this) {
+                    // The window has moved on.
+                    try {
+                        schedule();
+                    } catch (RuntimeException e) {
+                        adding = false;
+                        finish(e);
+                        return;
+                    }
+                }
+            }
+        }
+
+        private boolean checkForFilterExhaustion(FilteredBlock filteredBlock) {
+            boolean exhausted = false;
+            for (Wallet wallet : wallets)
+                exhausted |= wallet.checkForFilterExhaustion(filteredBlock);
+            return exhausted;
+        }
+
+        // The wallets have derived new keys which the filter that the block was filtered with didn't contain, so it
+        // may be missing transactions. Once the new filter has been sent to the peers, the block and all the blocks
+        // after it are requested again.
+        private void awaitFreshFilter(int index, FilteredBlock filteredBlock) {
+            log.info("Bloom filter exhausted whilst processing block {}, waiting for a fresh filter",
+                    filteredBlock.getHash());
+            awaitingFreshFilter = true;
+            generation++;
+            received.clear();
+            receivedBytes = 0;
+            inFlight.clear();
+            retries.clear();
+            next = index;
+            nextRequest = index;
+            peerGroup.recalculateFastCatchupAndFilter(PeerGroup.FilterRecalculateMode.SEND_IF_CHANGED)
+                    .whenComplete((filter, t) -> {
+                        synchronized (this) {
+                            awaitingFreshFilter = false;
+                            update();
+                        }
+                    });
+        }
+
+        private void schedule() {
+            if (awaitingFreshFilter || done.isDone())
+                return;
+            List<Peer> sources = sources();
+            for (Iterator<Map.Entry<Integer, Peer>> it = retries.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Integer, Peer> retry = it.next();
+                int index = retry.getKey();
+                if (isReceived(index)) {
+                    it.remove();
+                    continue;
+                }
+                if (attempts[index] >= MAX_ATTEMPTS) {
+                    finish(new PeerException("Could not download block " + headers.get(index).getHashAsString()
+                            + " after " + MAX_ATTEMPTS + " attempts"));
+                    return;
+                }
+                Peer source = pickSource(sources, retry.getValue());
+                if (source == null)
+                    return;
+                it.remove();
+                request(index, source);
+            }
+            while (nextRequest < headers.size() && windowHasRoom()) {
+                Peer source = pickSource(sources, null);
+                if (source == null)
+                    return;
+                request(nextRequest++, source);
+            }
+        }
+
+        // Whether another block fits into the window. Requests for blocks that have already been received from another
+        // peer don't count, as a stalled peer may never answer them. Nothing pending always leaves room for one.
+        private boolean windowHasRoom() {
+            int pending = 0;
+            for (int index : inFlight.keySet())
+                if (!isReceived(index))
+                    pending++;
+            return pending == 0 || receivedBytes + pending * blockSizeEstimate < WINDOW_BYTES;
+        }
+
+        // Whether the block has been received, or even added to the chain already.
+        private boolean isReceived(int index) {
+            return index < next || received.containsKey(index);
+        }
+
+        private List<Peer> sources() {
+            long services = filtered ? Services.NODE_NETWORK : Services.NODE_NETWORK | Services.NODE_WITNESS;
+            List<Peer> sources = new ArrayList<>();
+            for (Peer source : connectedPeers())
+                if (source.getPeerVersionMessage().services().has(services))
+                    sources.add(source);
+            return sources;
+        }
+
+        // Picks the least busy of the given peers that can take another request, avoiding the given peer if another one
+        // can take it.
+        @Nullable
+        private Peer pickSource(List<Peer> sources, @Nullable Peer avoid) {
+            Peer best = null;
+            int bestLoad = Integer.MAX_VALUE;
+            for (Peer source : sources) {
+                int load = inFlightPerPeer.getOrDefault(source, 0);
+                if (load >= MAX_IN_FLIGHT_PER_PEER)
+                    continue;
+                if (source == avoid)
+                    load += MAX_IN_FLIGHT_PER_PEER;
+                if (load < bestLoad) {
+                    best = source;
+                    bestLoad = load;
+                }
+            }
+            return best;
+        }
+
+        private void request(int index, Peer source) {
+            attempts[index]++;
+            Request request = new Request(index, source, TimeUtils.currentTime());
+            inFlight.computeIfAbsent(index, i -> new ArrayList<>()).add(request);
+            inFlightPerPeer.merge(source, 1, Integer::sum);
+            int generation = this.generation;
+            Sha256Hash hash = headers.get(index).getHash();
+            CompletableFuture<? extends Message> answer = filtered ? source.getFilteredBlock(hash)
+                    : source.getBlock(hash);
+            answer.whenComplete((block, t) -> {
+                synchronized (this) {
+                    onAnswer(request, generation, block, t);
+                }
+            });
+        }
+
+        private void onAnswer(Request request, int generation, @Nullable Message block, @Nullable Throwable t) {
+            inFlightPerPeer.merge(request.source, -1, Integer::sum);
+            List<Request> requests = inFlight.get(request.index);
+            if (requests != null && requests.remove(request) && requests.isEmpty())
+                inFlight.remove(request.index);
+            if (done.isDone() || generation != this.generation)
+                return;
+            int index = request.index;
+            if (isReceived(index)) {
+                // Another peer was faster.
+            } else if (t != null) {
+                log.info("{}: Could not get block {}", request.source, headers.get(index).getHash(), t);
+                if (!inFlight.containsKey(index))
+                    retries.putIfAbsent(index, request.source);
+            } else {
+                received.put(index, block);
+                receivedBytes += block.messageSize();
+                blockSizeEstimate = (blockSizeEstimate * 7 + block.messageSize()) / 8;
+            }
+            update();
+        }
+
+        private void checkForStalls() {
+            synchronized (this) {
+                if (done.isDone())
+                    return;
+                Instant now = TimeUtils.currentTime();
+                for (Map.Entry<Integer, List<Request>> entry : inFlight.entrySet()) {
+                    List<Request> requests = entry.getValue();
+                    Request latest = requests.get(requests.size() - 1);
+                    if (isReceived(entry.getKey()) || now.isBefore(latest.time.plus(STALL_TIMEOUT))
+                            || retries.containsKey(entry.getKey()))
+                        continue;
+                    log.info("{}: Request for block {} stalled, asking another peer", latest.source,
+                            headers.get(entry.getKey()).getHash());
+                    retries.put(entry.getKey(), latest.source);
+                }
+                try {
+                    schedule();
+                } catch (RuntimeException e) {
+                    finish(e);
+                }
+            }
+        }
+    }
+}
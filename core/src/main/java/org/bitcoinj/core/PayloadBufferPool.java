@@ -0,0 +1,96 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>A pool of heap buffers for the payloads of messages that are too large for the read buffer of a connection, so
+ * that receiving blocks doesn't allocate a new multi-megabyte array for each of them. Buffers come in power of two
+ * sizes, and the pool keeps at most a few of each size and a limited number of bytes in total.</p>
+ *
+ * <p>A buffer may be released as soon as the message has been parsed from it, as messages copy whatever they need
+ * out of the payload rather than keeping references to it.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ */
+final class PayloadBufferPool {
+    // Payloads smaller than this fit into the read buffer of a connection, so they don't need a pooled buffer.
+    private static final int MIN_SIZE_SHIFT = 12;
+    private static final int MAX_SIZE_SHIFT = 32 - Integer.numberOfLeadingZeros(Message.MAX_SIZE - 1);
+    private static final int MAX_BUFFERS_PER_SIZE = 4;
+
+    /** The pool shared by all connections. */
+    static final PayloadBufferPool SHARED = new PayloadBufferPool(32 * 1024 * 1024);
+
+    private final long maxPooledBytes;
+    private final AtomicLong pooledBytes = new AtomicLong();
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final Deque<ByteBuffer>[] buffers = new Deque[MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1];
+
+    PayloadBufferPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+        for (int i = 0; i < buffers.length; i++)
+            buffers[i] = new ConcurrentLinkedDeque<>();
+    }
+
+    /**
+     * Takes a buffer from the pool, or allocates a new one.
+     *
+     * @param size number of bytes needed, at most {@link Message#MAX_SIZE}
+     * @return buffer with its position at zero and its limit at the given size
+     */
+    ByteBuffer acquire(int size) {
+        int shift = shift(size);
+        ByteBuffer buffer = buffers[shift - MIN_SIZE_SHIFT].pollFirst();
+        if (buffer != null)
+            pooledBytes.addAndGet(-buffer.capacity());
+        else
+            buffer = ByteBuffer.allocate(1 << shift);
+        ((Buffer) buffer).clear();
+        ((Buffer) buffer).limit(size);
+        return buffer;
+    }
+
+    /** Returns a buffer that was acquired from this pool. The buffer must not be used anymore afterwards. */
+    void release(ByteBuffer buffer) {
+        Deque<ByteBuffer> pool = buffers[shift(buffer.capacity()) - MIN_SIZE_SHIFT];
+        // Both limits are checked loosely, as exceeding them by a buffer or two under contention is harmless.
+        if (pool.size() >= MAX_BUFFERS_PER_SIZE || pooledBytes.get() + buffer.capacity() > maxPooledBytes)
+            return;
+        pooledBytes.addAndGet(buffer.capacity());
+        pool.offerFirst(buffer);
+    }
+
+    /** Number of bytes held by the pool. */
+    long pooledBytes() {
+        return pooledBytes.get();
+    }
+
+    // The power of two that the size is rounded up to.
+    private static int shift(int size) {
+        if (size < 0 || size > Message.MAX_SIZE)
+            throw new IllegalArgumentException("size out of range: " + size);
+        if (size <= 1 << MIN_SIZE_SHIFT)
+            return MIN_SIZE_SHIFT;
+        return 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+}
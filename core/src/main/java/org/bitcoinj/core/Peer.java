@@ -166,6 +166,21 @@ public class Peer extends PeerSocketHandler {
     // TODO: The types/locking should be rationalised a bit.
     private final Queue<GetDataRequest<?>> getDataFutures;
     @GuardedBy("getAddrFutures") private final LinkedList<CompletableFuture<AddressMessage>> getAddrFutures;
+    // Outstanding getcfilters requests, in the order they were sent. The peer answers each of them with a cfilter
+    // message per block, so the filters received are collected into the oldest request until its stop block is reached.
+    private static class FiltersRequest extends CompletableFuture<List<CFilterMessage>> {
+        final Sha256Hash stopHash;
+        final List<CFilterMessage> filters = new ArrayList<>();
+        FiltersRequest(Sha256Hash stopHash) {
+            this.stopHash = stopHash;
+        }
+    }
+    @GuardedBy("getFiltersFutures") private final LinkedList<FiltersRequest> getFiltersFutures = new LinkedList<>();
+    @GuardedBy("getFilterHeadersFutures") private final LinkedList<CompletableFuture<CFHeadersMessage>> getFilterHeadersFutures
+        = new LinkedList<>();
+    // If set, headers received during chain download are handed to this downloader, which adds them to the chain along
+    // with the block bodies it fetches, possibly from other peers as well.
+    @Nullable private volatile HeadersFirstDownloader vHeadersFirstDownloader;
 
     // Outstanding pings against this peer and how long the last one took to complete.
     private final ReentrantLock pingIntervalsLock = new ReentrantLock();
@@ -408,6 +423,23 @@ public class Peer extends PeerSocketHandler {
         for (final ListenerRegistration<PeerDisconnectedEventListener> registration : disconnectedEventListeners) {
             registration.executor.execute(() -> registration.listener.onPeerDisconnected(Peer.this, 0));
         }
+        // Filter requests are not answered by anyone else, so let the requesters know they can stop waiting.
+        List<CompletableFuture<?>> filterFutures = new ArrayList<>();
+        synchronized (getFiltersFutures) {
+            filterFutures.addAll(getFiltersFutures);
+            getFiltersFutures.clear();
+        }
+        synchronized (getFilterHeadersFutures) {
+            filterFutures.addAll(getFilterHeadersFutures);
+            getFilterHeadersFutures.clear();
+        }
+        for (CompletableFuture<?> future : filterFutures)
+            future.completeExceptionally(new PeerException("Connection closed"));
+        // The same goes for blocks and transactions, which a downloader can then request from other peers.
+        for (GetDataRequest<?> req : getDataFutures) {
+            if (getDataFutures.remove(req))
+                req.completeExceptionally(new PeerException("Connection closed"));
+        }
     }
 
     @Override
@@ -493,6 +525,10 @@ public class Peer extends PeerSocketHandler {
             // We ignore this message, because we don't announce new blocks.
         } else if (m instanceof FeeFilterMessage) {
             processFeeFilter((FeeFilterMessage) m);
+        } else if (m instanceof CFilterMessage) {
+            processFilter((CFilterMessage) m);
+        } else if (m instanceof CFHeadersMessage) {
+            processFilterHeaders((CFHeadersMessage) m);
         } else {
             log.warn("{}: Received unhandled message: {}", this, m);
         }
@@ -511,6 +547,39 @@ public class Peer extends PeerSocketHandler {
         future.complete(message);
     }
 
+    private void processFilter(CFilterMessage m) {
+        FiltersRequest request;
+        boolean complete;
+        synchronized (getFiltersFutures) {
+            request = getFiltersFutures.peek();
+            if (request == null) {
+                log.warn("{}: Received filter we did not ask for: {}", this, m.blockHash());
+                return;
+            }
+            request.filters.add(m);
+            complete = m.blockHash().equals(request.stopHash);
+            if (!complete && request.filters.size() < GetCFiltersMessage.MAX_FILTERS)
+                return;
+            getFiltersFutures.poll();
+        }
+        if (complete)
+            request.complete(request.filters);
+        else
+            request.completeExceptionally(new ProtocolException("Too many filters before " + request.stopHash));
+    }
+
+    private void processFilterHeaders(CFHeadersMessage m) {
+        CompletableFuture<CFHeadersMessage> future;
+        synchronized (getFilterHeadersFutures) {
+            future = getFilterHeadersFutures.poll();
+        }
+        if (future == null) {
+            log.warn("{}: Received filter headers we did not ask for: {}", this, m.stopHash());
+            return;
+        }
+        future.complete(m);
+    }
+
     private void processVersionMessage(VersionMessage peerVersionMessage) throws ProtocolException {
         if (vPeerVersionMessage != null)
             throw new ProtocolException("Got two version messages from peer");
@@ -634,6 +703,12 @@ public class Peer extends PeerSocketHandler {
             lock.unlock();
         }
 
+        HeadersFirstDownloader headersFirstDownloader = vHeadersFirstDownloader;
+        if (headersFirstDownloader != null) {
+            processHeadersFirst(headersFirstDownloader, m.getBlockHeaders());
+            return;
+        }
+
         try {
             checkState(!downloadBlockBodies, () -> toString());
             for (int i = 0; i < m.getBlockHeaders().size(); i++) {
@@ -693,6 +768,46 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    private void processHeadersFirst(HeadersFirstDownloader headersFirstDownloader, List<Block> headers) {
+        if (!vDownloadData) {
+            log.info("Lost download peer status, throwing away downloaded headers.");
+            return;
+        }
+        // The downloader fetches data from other peers as well, so the headers are processed asynchronously. If there
+        // are more headers to come, they are requested as soon as processing starts, so that they arrive while the
+        // blocks of these are still downloading. That keeps at most one batch waiting.
+        boolean more = headers.size() >= HeadersMessage.MAX_HEADERS;
+        Sha256Hash last = headers.isEmpty() ? null : headers.get(headers.size() - 1).getHash();
+        Runnable requestMore = () -> {
+            if (more && vDownloadData)
+                requestHeadersAfter(last);
+        };
+        headersFirstDownloader.processHeaders(this, headers, this::invokeOnBlocksDownloaded, requestMore)
+                .whenComplete((v, t) -> {
+                    if (t != null) {
+                        log.warn("{}: Could not process downloaded headers, disconnecting", this, t);
+                        close();
+                    }
+                });
+    }
+
+    // Requests the headers that follow the given one, which doesn't need to be in the chain yet.
+    private void requestHeadersAfter(Sha256Hash hash) {
+        lock.lock();
+        try {
+            BlockLocator chainLocator = buildBlockLocator(blockChain);
+            List<Sha256Hash> hashes = new ArrayList<>(chainLocator.size() + 1);
+            hashes.add(hash);
+            hashes.addAll(chainLocator.getHashes());
+            lastGetBlocksBegin = hash;
+            lastGetBlocksEnd = Sha256Hash.ZERO_HASH;
+            sendMessage(new GetHeadersMessage(params.getSerializer().getProtocolVersion(), new BlockLocator(hashes),
+                    Sha256Hash.ZERO_HASH));
+        } finally {
+            lock.unlock();
+        }
+    }
+
     protected void processGetData(GetDataMessage getdata) {
         log.info("{}: Received getdata message: {}", getAddress(), getdata.toString());
         ArrayList<Message> items = new ArrayList<>();
@@ -982,8 +1097,11 @@ public class Peer extends PeerSocketHandler {
                 lock.lock();
                 try {
                     if (downloadBlockBodies) {
-                        final Block orphanRoot = Objects.requireNonNull(blockChain.getOrphanRoot(m.getHash()));
-                        blockChainDownloadLocked(orphanRoot.getHash());
+                        blockChainDownloadLocked(orphanRootHash(m.getHash()));
+                    } else if (vHeadersFirstDownloader != null) {
+                        // Headers are always downloaded when using a headers first downloader, and the orphan is
+                        // connected once its parent has been added.
+                        blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
                     } else {
                         log.info("Did not start chain download on solved block due to in-flight header download.");
                     }
@@ -1004,6 +1122,7 @@ public class Peer extends PeerSocketHandler {
     protected void endFilteredBlock(FilteredBlock m) {
         if (log.isDebugEnabled())
             log.debug("{}: Received broadcast filtered block {}", getAddress(), m.getHash().toString());
+        if (maybeHandleRequestedData(m, m.getHash())) return;
         if (!vDownloadData) {
             if (log.isDebugEnabled())
                 log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHash().toString());
@@ -1084,8 +1203,7 @@ public class Peer extends PeerSocketHandler {
                 // no matter how many blocks are solved, and therefore that the (2) duplicate filtering can work.
                 lock.lock();
                 try {
-                    final Block orphanRoot = Objects.requireNonNull(blockChain.getOrphanRoot(m.getHash()));
-                    blockChainDownloadLocked(orphanRoot.getHash());
+                    blockChainDownloadLocked(orphanRootHash(m.getHash()));
                 } finally {
                     lock.unlock();
                 }
@@ -1223,8 +1341,7 @@ public class Peer extends PeerSocketHandler {
                     if (blockChain.isOrphan(item) && downloadBlockBodies) {
                         // If an orphan was re-advertised, ask for more blocks unless we are not currently downloading
                         // full block data because we have a getheaders outstanding.
-                        final Block orphanRoot = Objects.requireNonNull(blockChain.getOrphanRoot(item));
-                        blockChainDownloadLocked(orphanRoot.getHash());
+                        blockChainDownloadLocked(orphanRootHash(item));
                     } else {
                         // Don't re-request blocks we already requested. Normally this should not happen. However there is
                         // an edge case: if a block is solved and we complete the inv<->getdata<->block<->getblocks cycle
@@ -1281,6 +1398,21 @@ public class Peer extends PeerSocketHandler {
         return sendSingleGetData(getdata);
     }
 
+    /**
+     * Asks the connected peer for the block of the given hash, filtered by the Bloom filter that was last sent to it,
+     * and returns a future that completes with the filtered block once the matching transactions that follow it have
+     * been received as well.
+     */
+    public CompletableFuture<FilteredBlock> getFilteredBlock(Sha256Hash blockHash) {
+        // This does not need to be locked.
+        log.info("Request to fetch filtered block {}", blockHash);
+        GetDataMessage getdata = GetDataMessage.ofFilteredBlock(blockHash);
+        CompletableFuture<FilteredBlock> future = sendSingleGetData(getdata);
+        // The pong marks the end of the transactions of the filtered block, in case nothing else follows them.
+        sendMessage(Ping.random());
+        return future;
+    }
+
     /**
      * Asks the connected peer for the given transaction from its memory pool. Transactions in the chain cannot be
      * retrieved this way because peers don't have a transaction ID to transaction-pos-on-disk index, and besides,
@@ -1314,6 +1446,44 @@ public class Peer extends PeerSocketHandler {
         return future;
     }
 
+    /**
+     * Asks the connected peer for the basic compact block filters of a range of blocks, and returns a future that
+     * completes with the filters in block order once the filter of the stop block has been received. The peer must
+     * support {@link Services#NODE_COMPACT_FILTERS}.
+     *
+     * @param startHeight height of the first block of the range
+     * @param stopHash    hash of the last block of the range, at most {@link GetCFiltersMessage#MAX_FILTERS} blocks
+     *                    after the first
+     * @return future for the filters
+     */
+    public CompletableFuture<List<CFilterMessage>> getFilters(int startHeight, Sha256Hash stopHash) {
+        FiltersRequest request = new FiltersRequest(stopHash);
+        // Requests must be queued in the same order as they are sent, as that's the order they are answered in.
+        synchronized (getFiltersFutures) {
+            getFiltersFutures.add(request);
+            sendMessage(GetCFiltersMessage.of(GolombCodedSet.BASIC_FILTER_TYPE, startHeight, stopHash));
+        }
+        return request;
+    }
+
+    /**
+     * Asks the connected peer for the basic filter hashes of a range of blocks, and returns a future that completes
+     * with the answer. The peer must support {@link Services#NODE_COMPACT_FILTERS}.
+     *
+     * @param startHeight height of the first block of the range
+     * @param stopHash    hash of the last block of the range, at most {@link GetCFHeadersMessage#MAX_HEADERS} blocks
+     *                    after the first
+     * @return future for the filter headers
+     */
+    public CompletableFuture<CFHeadersMessage> getFilterHeaders(int startHeight, Sha256Hash stopHash) {
+        CompletableFuture<CFHeadersMessage> future = new CompletableFuture<>();
+        synchronized (getFilterHeadersFutures) {
+            getFilterHeadersFutures.add(future);
+            sendMessage(GetCFHeadersMessage.of(GolombCodedSet.BASIC_FILTER_TYPE, startHeight, stopHash));
+        }
+        return future;
+    }
+
     /**
      * When downloading the block chain, the bodies will be skipped for blocks created before the given date. Any
      * transactions relevant to the wallet will therefore not be found, but if you know your wallet has no such
@@ -1346,13 +1516,28 @@ public class Peer extends PeerSocketHandler {
         lock.lock();
         try {
             this.fastCatchupTime = params.getGenesisBlock().time();
-            downloadBlockBodies = true;
+            downloadBlockBodies = vHeadersFirstDownloader == null;
             this.useFilteredBlocks = useFilteredBlocks;
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * Sets the downloader that takes over the chain download, instead of this peer downloading the bodies of all blocks
+     * after the fast catchup time. Only headers are requested from the peer while a downloader is set.
+     */
+    void setHeadersFirstDownloader(@Nullable HeadersFirstDownloader headersFirstDownloader) {
+        lock.lock();
+        try {
+            this.vHeadersFirstDownloader = headersFirstDownloader;
+            if (headersFirstDownloader != null)
+                downloadBlockBodies = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Links the given wallet to this peer. If you have multiple peers, you should use a {@link PeerGroup} to manage
      * them and use the {@link PeerGroup#addWallet(Wallet)} method instead of registering the wallet with each peer
@@ -1367,6 +1552,13 @@ public class Peer extends PeerSocketHandler {
         wallets.remove(wallet);
     }
 
+    // The orphan may already have been evicted from the orphan pool by blocks of other peers, in which case we download
+    // the chain up to the orphan itself.
+    private Sha256Hash orphanRootHash(Sha256Hash orphan) {
+        Block orphanRoot = blockChain.getOrphanRoot(orphan);
+        return orphanRoot != null ? orphanRoot.getHash() : orphan;
+    }
+
     // Keep track of the last request we made to the peer in blockChainDownloadLocked so we can avoid redundant and harmful
     // getblocks requests.
     @GuardedBy("lock")
@@ -25,6 +25,7 @@ import com.google.common.util.concurrent.Runnables;
 import com.google.common.util.concurrent.Uninterruptibles;
 import net.jcip.annotations.GuardedBy;
 import org.bitcoinj.base.Network;
+import org.bitcoinj.base.Sha256Hash;
 import org.bitcoinj.base.internal.InternalUtils;
 import org.bitcoinj.base.internal.PlatformUtils;
 import org.bitcoinj.base.internal.Stopwatch;
@@ -370,6 +371,14 @@ public class PeerGroup implements TransactionBroadcaster {
 
     /** Whether bloom filter support is enabled when using a non FullPrunedBlockchain*/
     private volatile boolean vBloomFilteringEnabled = true;
+    /** Whether the chain is downloaded using compact block filters instead */
+    private volatile boolean vCompactFilteringEnabled = false;
+    // Downloads the chain using compact block filters, if enabled.
+    @Nullable private final CompactFilterClient compactFilterClient;
+    /** Whether block bodies are downloaded from all connected peers in parallel */
+    private volatile boolean vParallelDownloadEnabled = false;
+    // Downloads the block bodies from all connected peers, if enabled.
+    @Nullable private final ParallelBlockDownloader parallelBlockDownloader;
 
     /**
      * Creates a PeerGroup for the given network. No chain is provided so this node will report its chain height
@@ -429,6 +438,8 @@ public class PeerGroup implements TransactionBroadcaster {
         fastCatchupTime = params.getGenesisBlock().time();
         wallets = new CopyOnWriteArrayList<>();
         peerFilterProviders = new CopyOnWriteArrayList<>();
+        compactFilterClient = chain != null ? new CompactFilterClient(this, chain, wallets) : null;
+        parallelBlockDownloader = chain != null ? new ParallelBlockDownloader(this, chain, wallets) : null;
 
         executor = createPrivateExecutor();
 
@@ -1360,8 +1371,17 @@ public class PeerGroup implements TransactionBroadcaster {
             public void go() {
                 checkState(!lock.isHeldByCurrentThread());
                 // Fully verifying mode doesn't use this optimization (it can't as it needs to see all transactions).
-                if ((chain != null && chain.shouldVerifyTransactions()) || !vBloomFilteringEnabled)
+                if ((chain != null && chain.shouldVerifyTransactions()) || !vBloomFilteringEnabled) {
+                    // Compact block filters still only need to be matched from the earliest key time on, adjusted
+                    // backwards for clock drift in the same way as by the Bloom filter calculation.
+                    if (vCompactFilteringEnabled) {
+                        Instant earliestKeyTime = Instant.MAX;
+                        for (PeerFilterProvider provider : peerFilterProviders /* COW */)
+                            earliestKeyTime = TimeUtils.earlier(earliestKeyTime, provider.earliestKeyCreationTime());
+                        setFastCatchupTime(earliestKeyTime.minus(7, ChronoUnit.DAYS));
+                    }
                     return;
+                }
                 // We only ever call bloomFilterMerger.calculate on jobQueue, so we cannot be calculating two filters at once.
                 FilterMerger.Result result = bloomFilterMerger.calculate(Collections.unmodifiableList(peerFilterProviders /* COW */));
                 boolean send;
@@ -1702,6 +1722,7 @@ public class PeerGroup implements TransactionBroadcaster {
                     removeDataEventListenerFromPeer(downloadPeer, downloadListener);
                 }
                 downloadPeer.setDownloadData(false);
+                downloadPeer.setHeadersFirstDownloader(null);
             }
             downloadPeer = peer;
             if (downloadPeer != null) {
@@ -1712,6 +1733,10 @@ public class PeerGroup implements TransactionBroadcaster {
                 downloadPeer.setDownloadData(true);
                 if (chain != null)
                     downloadPeer.setFastDownloadParameters(bloomFilterMerger.getLastFilter() != null, fastCatchupTime);
+                if (vCompactFilteringEnabled)
+                    downloadPeer.setHeadersFirstDownloader(compactFilterClient);
+                else if (vParallelDownloadEnabled)
+                    downloadPeer.setHeadersFirstDownloader(parallelBlockDownloader);
             }
         } finally {
             lock.unlock();
@@ -2454,4 +2479,73 @@ public class PeerGroup implements TransactionBroadcaster {
     public boolean isBloomFilteringEnabled() {
         return vBloomFilteringEnabled;
     }
+
+    /**
+     * <p>Can be used to download the chain using BIP157/158 compact block filters rather than Bloom filters. Instead of
+     * handing a filter of the wallets to the peers, the filters that the peers calculate for every block are matched
+     * locally, and only the blocks that match are downloaded in full. This keeps the wallets private from the peers,
+     * at the cost of downloading the filters. Filters are fetched from all connected peers in parallel.</p>
+     *
+     * <p>Enabling compact filters disables Bloom filtering and, as with {@link #setRequiredServices(long)}, makes the
+     * PeerGroup connect only to peers that serve compact filters. Call this before starting the PeerGroup, and
+     * don't use it with a fully verifying chain.</p>
+     */
+    public void setCompactFilteringEnabled(boolean compactFilteringEnabled) {
+        lock.lock();
+        try {
+            checkState(!compactFilteringEnabled || chain == null || !chain.shouldVerifyTransactions(), () ->
+                    "compact filters are incompatible with fully verifying");
+            this.vCompactFilteringEnabled = compactFilteringEnabled;
+            if (compactFilteringEnabled) {
+                setBloomFilteringEnabled(false);
+                setRequiredServices(requiredServices | Services.NODE_COMPACT_FILTERS);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns whether the chain is downloaded using compact block filters: defaults to false. */
+    public boolean isCompactFilteringEnabled() {
+        return vCompactFilteringEnabled;
+    }
+
+    /**
+     * <p>Adds a basic filter header that is known to be correct, for use with compact block filters. The filter hashes
+     * sent by the download peer are checked against the filter hashes of another connected peer, and against any
+     * checkpoints they lead up to. Download peers that contradict a checkpoint are disconnected.</p>
+     *
+     * <p>Filters whose hashes are confirmed by neither can't be trusted, so their blocks are downloaded in full. A
+     * checkpoint therefore saves bandwidth when only one peer serving compact filters is connected.</p>
+     *
+     * @param blockHash    hash of the block
+     * @param filterHeader basic filter header of the block, as defined by BIP157
+     */
+    public void addFilterHeaderCheckpoint(Sha256Hash blockHash, Sha256Hash filterHeader) {
+        checkState(compactFilterClient != null, () -> "compact filters need a chain");
+        compactFilterClient.addCheckpoint(blockHash, filterHeader);
+    }
+
+    /**
+     * <p>Can be used to download the chain headers first, from the download peer, and then the block bodies from all
+     * connected peers in parallel, rather than all of it from the download peer. Bodies are full blocks, or filtered
+     * blocks when Bloom filtering is in use, and are only downloaded after the fast catchup time. Blocks that a peer is
+     * slow to deliver are requested from another peer.</p>
+     *
+     * <p>Call this before starting the PeerGroup. Compact block filters, if enabled, take precedence.</p>
+     */
+    public void setParallelDownloadEnabled(boolean parallelDownloadEnabled) {
+        this.vParallelDownloadEnabled = parallelDownloadEnabled;
+    }
+
+    /** Returns whether block bodies are downloaded from all connected peers in parallel: defaults to false. */
+    public boolean isParallelDownloadEnabled() {
+        return vParallelDownloadEnabled;
+    }
+
+    /** Returns whether blocks are downloaded as filtered blocks, which is the case once a Bloom filter has been sent. */
+    boolean isDownloadingFilteredBlocks() {
+        return vBloomFilteringEnabled && (chain == null || !chain.shouldVerifyTransactions())
+                && bloomFilterMerger.getLastFilter() != null;
+    }
 }
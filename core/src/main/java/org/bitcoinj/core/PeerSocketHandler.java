@@ -17,6 +17,7 @@
 package org.bitcoinj.core;
 
 import com.google.common.annotations.VisibleForTesting;
+import org.bitcoinj.base.Sha256Hash;
 import org.bitcoinj.base.internal.FutureUtils;
 import org.bitcoinj.net.MessageWriteTarget;
 import org.bitcoinj.net.NioClient;
@@ -36,6 +37,7 @@ import java.nio.Buffer;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.NotYetConnectedException;
+import java.security.MessageDigest;
 import java.time.Duration;
 import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
@@ -62,9 +64,10 @@ public abstract class PeerSocketHandler implements TimeoutHandler, StreamConnect
 
     // The ByteBuffers passed to us from the writeTarget are static in size, and usually smaller than some messages we
     // will receive. For SPV clients, this should be rare (ie we're mostly dealing with small transactions), but for
-    // messages which are larger than the read buffer, we have to keep a temporary buffer with its bytes.
-    private byte[] largeReadBuffer;
-    private int largeReadBufferPos;
+    // messages which are larger than the read buffer, we have to keep a temporary buffer with its bytes. The buffer is
+    // taken from a pool, and the checksum is calculated as the bytes arrive so the message can be parsed right away.
+    private ByteBuffer largeReadBuffer;
+    private MessageDigest largeReadDigest;
     private BitcoinSerializer.BitcoinPacketHeader header;
 
     public PeerSocketHandler(NetworkParameters params, InetSocketAddress remoteIp) {
@@ -151,15 +154,22 @@ public abstract class PeerSocketHandler implements TimeoutHandler, StreamConnect
                     // This can only happen in the first iteration
                     checkState(firstMessage);
                     // Read new bytes into the largeReadBuffer
-                    int bytesToGet = Math.min(buff.remaining(), largeReadBuffer.length - largeReadBufferPos);
-                    buff.get(largeReadBuffer, largeReadBufferPos, bytesToGet);
-                    largeReadBufferPos += bytesToGet;
+                    readIntoLargeReadBuffer(buff);
                     // Check the largeReadBuffer's status
-                    if (largeReadBufferPos == largeReadBuffer.length) {
+                    if (!largeReadBuffer.hasRemaining()) {
                         // ...processing a message if one is available
-                        processMessage(serializer.deserializePayload(header, ByteBuffer.wrap(largeReadBuffer)));
-                        largeReadBuffer = null;
-                        header = null;
+                        ((Buffer) largeReadBuffer).flip();
+                        byte[] hash = Sha256Hash.hash(largeReadDigest.digest());
+                        Message message;
+                        try {
+                            message = serializer.deserializePayload(header, largeReadBuffer, hash);
+                        } finally {
+                            PayloadBufferPool.SHARED.release(largeReadBuffer);
+                            largeReadBuffer = null;
+                            largeReadDigest = null;
+                            header = null;
+                        }
+                        processMessage(message);
                         firstMessage = false;
                     } else // ...or just returning if we don't have enough bytes yet
                         return buff.position();
@@ -179,9 +189,9 @@ public abstract class PeerSocketHandler implements TimeoutHandler, StreamConnect
                             header = serializer.deserializeHeader(buff);
                             // Initialize the largeReadBuffer with the next message's size and fill it with any bytes
                             // left in buff
-                            largeReadBuffer = new byte[header.size];
-                            largeReadBufferPos = buff.remaining();
-                            buff.get(largeReadBuffer, 0, largeReadBufferPos);
+                            largeReadBuffer = PayloadBufferPool.SHARED.acquire(header.size);
+                            largeReadDigest = Sha256Hash.newDigest();
+                            readIntoLargeReadBuffer(buff);
                         } catch (BufferUnderflowException e1) {
                             // If we went through a whole buffer's worth of bytes without getting a header, give up
                             // In cases where the buff is just really small, we could create a second largeReadBuffer
@@ -206,6 +216,15 @@ public abstract class PeerSocketHandler implements TimeoutHandler, StreamConnect
         }
     }
 
+    // Moves as many bytes as fit from buff to the largeReadBuffer, adding them to the checksum on the way.
+    private void readIntoLargeReadBuffer(ByteBuffer buff) {
+        ByteBuffer bytes = buff.slice();
+        ((Buffer) bytes).limit(Math.min(buff.remaining(), largeReadBuffer.remaining()));
+        ((Buffer) buff).position(buff.position() + bytes.remaining());
+        largeReadDigest.update(bytes.duplicate());
+        largeReadBuffer.put(bytes);
+    }
+
     /**
      * Sets the {@link MessageWriteTarget} used to write messages to the peer. This should almost never be called, it is
      * called automatically by {@link NioClient} or
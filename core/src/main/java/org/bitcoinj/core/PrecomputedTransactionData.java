@@ -0,0 +1,97 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.base.Coin;
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.base.internal.ByteUtils;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * <p>Holds the parts of a
+ * <a href="https://github.com/bitcoin/bips/blob/master/bip-0143.mediawiki">BIP143</a> signature hash that are the
+ * same for every input of a transaction: {@code hashPrevouts}, {@code hashSequence} and {@code hashOutputs}. This is
+ * the equivalent of {@code PrecomputedTransactionData} in Bitcoin Core.</p>
+ *
+ * <p>Without it, every call to {@link Transaction#hashForWitnessSignature(int, byte[], Coin, byte)} hashes all inputs
+ * and outputs again, which makes signing or verifying a transaction quadratic in the number of its inputs. Compute it
+ * once via {@link #of(Transaction)} and pass it to
+ * {@link Transaction#hashForWitnessSignature(int, byte[], Coin, byte, PrecomputedTransactionData)} for each input.</p>
+ *
+ * <p>The precomputed data covers the outpoints and sequence numbers of all inputs and all outputs. It stays valid
+ * while scriptSigs and witnesses are filled in, but must be computed again if any of the covered fields change.</p>
+ *
+ * <p>Instances of this class are immutable and can be shared between threads.</p>
+ */
+public final class PrecomputedTransactionData {
+    private final byte[] hashPrevouts;
+    private final byte[] hashSequence;
+    private final byte[] hashOutputs;
+
+    /**
+     * Precompute the signature hash parts for the given transaction.
+     *
+     * @param tx transaction to precompute for
+     * @return precomputed data
+     */
+    public static PrecomputedTransactionData of(Transaction tx) {
+        Objects.requireNonNull(tx);
+        List<TransactionInput> inputs = tx.getInputs();
+        List<TransactionOutput> outputs = tx.getOutputs();
+
+        ByteBuffer prevouts = ByteBuffer.allocate(inputs.size() * TransactionOutPoint.BYTES);
+        ByteBuffer sequences = ByteBuffer.allocate(inputs.size() * 4);
+        for (TransactionInput input : inputs) {
+            input.getOutpoint().write(prevouts);
+            ByteUtils.writeInt32LE(input.getSequenceNumber(), sequences);
+        }
+
+        int outputsSize = 0;
+        for (TransactionOutput output : outputs)
+            outputsSize += output.messageSize();
+        ByteBuffer outs = ByteBuffer.allocate(outputsSize);
+        for (TransactionOutput output : outputs)
+            output.write(outs);
+
+        return new PrecomputedTransactionData(Sha256Hash.hashTwice(prevouts.array()),
+                Sha256Hash.hashTwice(sequences.array()), Sha256Hash.hashTwice(outs.array()));
+    }
+
+    private PrecomputedTransactionData(byte[] hashPrevouts, byte[] hashSequence, byte[] hashOutputs) {
+        this.hashPrevouts = hashPrevouts;
+        this.hashSequence = hashSequence;
+        this.hashOutputs = hashOutputs;
+    }
+
+    /** Double SHA-256 of the outpoints of all inputs. The returned array must not be modified. */
+    byte[] hashPrevouts() {
+        return hashPrevouts;
+    }
+
+    /** Double SHA-256 of the sequence numbers of all inputs. The returned array must not be modified. */
+    byte[] hashSequence() {
+        return hashSequence;
+    }
+
+    /** Double SHA-256 of all outputs. The returned array must not be modified. */
+    byte[] hashOutputs() {
+        return hashOutputs;
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.base.Coin;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.Script.VerifyFlag;
+import org.bitcoinj.script.ScriptExecutionCache;
+import org.bitcoinj.script.ScriptPattern;
+import org.bitcoinj.script.SignatureCache;
+import org.bitcoinj.script.SignaturePrevalidator;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>Verifies the scripts of all transactions of a block on a {@link ForkJoinPool}. Work is split at input
+ * granularity, so that a single transaction with many inputs is verified on all cores, and idle workers steal inputs
+ * from busy ones. Verification starts as soon as a transaction is {@link #add(Transaction, List, List, Set) added}, so
+ * it overlaps with the rest of block connection. After the first failure, remaining inputs are skipped.</p>
+ *
+ * <p>If a {@link SignatureCache} is given, the tasks hand the signatures of standard inputs to a shared
+ * {@link SignaturePrevalidator} instead of executing their scripts. It batch verifies them whenever
+ * {@link #SIGNATURES_PER_BATCH} have been collected, on the task that completed the batch, and the remainder in
+ * {@link #verify()}. A valid signature completes its input without computing the signature hash again, an invalid
+ * one falls back to script execution for the error.</p>
+ *
+ * <p>An instance is used for a single block, from a single thread. The pool is meant to be shared across blocks, see
+ * {@link #newPool()}.</p>
+ */
+final class ScriptVerificationScheduler {
+    private static final Logger log = LoggerFactory.getLogger(ScriptVerificationScheduler.class);
+
+    // Inputs up to this number are verified by a single task, larger ranges are split.
+    private static final int INPUTS_PER_TASK = 4;
+    // Collected signatures are batch verified in groups of this size.
+    private static final int SIGNATURES_PER_BATCH = 64;
+
+    private final ForkJoinPool pool;
+    @Nullable private final ScriptExecutionCache scriptExecutionCache;
+    @Nullable private final SignaturePrevalidator prevalidator;
+    private final List<ForkJoinTask<?>> tasks = new ArrayList<>();
+    private final AtomicReference<VerificationException> failure = new AtomicReference<>();
+    private final LongAdder busyNanos = new LongAdder();
+    private final long startNanos = System.nanoTime();
+    private int transactions;
+    private int inputs;
+
+    /**
+     * Create a pool for script verification, with one worker per available processor. The workers inherit the
+     * {@link Context} of the thread that creates them.
+     */
+    static ForkJoinPool newPool() {
+        return new ForkJoinPool(Runtime.getRuntime().availableProcessors(), pool -> {
+            final Context context = Context.get();
+            ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool) {
+                @Override
+                protected void onStart() {
+                    super.onStart();
+                    Context.propagate(context);
+                }
+            };
+            thread.setName("Script verification-" + thread.getPoolIndex());
+            return thread;
+        }, Threading.uncaughtExceptionHandler, false);
+    }
+
+    ScriptVerificationScheduler(ForkJoinPool pool, @Nullable ScriptExecutionCache scriptExecutionCache,
+                                @Nullable SignatureCache signatureCache) {
+        this.pool = pool;
+        this.scriptExecutionCache = scriptExecutionCache;
+        this.prevalidator = signatureCache != null ?
+                new SignaturePrevalidator(signatureCache, SIGNATURES_PER_BATCH, pool) : null;
+    }
+
+    /**
+     * Start verifying the scripts of all inputs of a transaction.
+     *
+     * @param tx             transaction to verify, which must not be modified until {@link #verify()} returns
+     * @param prevOutScripts the scriptPubKeys spent by the inputs, in input order
+     * @param prevOutValues  the values spent by the inputs, in input order
+     * @param verifyFlags    flags to verify with
+     */
+    void add(Transaction tx, List<Script> prevOutScripts, List<Coin> prevOutValues, Set<VerifyFlag> verifyFlags) {
+        int size = tx.getInputs().size();
+        if (size == 0)
+            return;
+        InputRange task = new InputRange(new TransactionJob(tx, prevOutScripts, prevOutValues, verifyFlags, size), 0,
+                size);
+        pool.execute(task);
+        tasks.add(task);
+        transactions++;
+        inputs += size;
+    }
+
+    /**
+     * Wait for all added transactions to be verified.
+     *
+     * @return statistics about this verification
+     * @throws VerificationException the first failure that was encountered
+     */
+    FullPrunedBlockChain.ScriptVerificationStats verify() throws VerificationException {
+        for (ForkJoinTask<?> task : tasks)
+            task.join();
+        if (prevalidator != null) {
+            prevalidator.prevalidate(pool);
+            log.debug("Prevalidated {} signatures", prevalidator.size());
+        }
+        VerificationException e = failure.get();
+        if (e != null)
+            throw e;
+        return new FullPrunedBlockChain.ScriptVerificationStats(transactions, inputs,
+                Duration.ofNanos(System.nanoTime() - startNanos), Duration.ofNanos(busyNanos.sum()));
+    }
+
+    /**
+     * Skip all inputs that haven't been verified yet, for example because the block turned out to be invalid for
+     * other reasons.
+     */
+    void cancel() {
+        fail(new VerificationException("Script verification cancelled"));
+    }
+
+    private void fail(VerificationException e) {
+        failure.compareAndSet(null, e);
+    }
+
+    /** Executes the scripts of an input, recording a failure. Returns true if the input spends correctly. */
+    private boolean execute(TransactionJob job, int index) {
+        try {
+            TransactionInput input = job.tx.getInput(index);
+            input.getScriptSig().correctlySpends(job.tx, index, input.getWitness(), job.prevOutValues.get(index),
+                    job.prevOutScripts.get(index), job.verifyFlags, job.precomputed(index));
+            return true;
+        } catch (VerificationException e) {
+            fail(e);
+            return false;
+        } catch (RuntimeException e) {
+            log.error("Script.correctlySpends threw a non-normal exception: " + e);
+            fail(new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", e));
+            return false;
+        }
+    }
+
+    private final class TransactionJob {
+        final Transaction tx;
+        final List<Script> prevOutScripts;
+        final List<Coin> prevOutValues;
+        final Set<VerifyFlag> verifyFlags;
+        final AtomicInteger remaining;
+        @Nullable private volatile PrecomputedTransactionData precomputed;
+
+        TransactionJob(Transaction tx, List<Script> prevOutScripts, List<Coin> prevOutValues,
+                       Set<VerifyFlag> verifyFlags, int inputs) {
+            this.tx = tx;
+            this.prevOutScripts = prevOutScripts;
+            this.prevOutValues = prevOutValues;
+            this.verifyFlags = verifyFlags;
+            this.remaining = new AtomicInteger(inputs);
+        }
+
+        /** Signature hash parts for segwit inputs, computed once per transaction. Null for other inputs. */
+        @Nullable
+        PrecomputedTransactionData precomputed(int index) {
+            if (!ScriptPattern.isP2WPKH(prevOutScripts.get(index)))
+                return null;
+            PrecomputedTransactionData data = precomputed;
+            if (data == null) // racing tasks may compute it twice, which is harmless
+                precomputed = data = PrecomputedTransactionData.of(tx);
+            return data;
+        }
+
+        /** Record that some inputs spend correctly. */
+        void verified(int inputs) {
+            if (inputs > 0 && remaining.addAndGet(-inputs) == 0 && scriptExecutionCache != null)
+                scriptExecutionCache.add(tx, verifyFlags);
+        }
+    }
+
+    /** Verifies the inputs {@code from} (inclusive) to {@code to} (exclusive) of a transaction. */
+    @SuppressWarnings("serial")
+    private final class InputRange extends RecursiveAction {
+        private final TransactionJob job;
+        private final int from;
+        private final int to;
+
+        InputRange(TransactionJob job, int from, int to) {
+            this.job = job;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > INPUTS_PER_TASK) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new InputRange(job, from, mid), new InputRange(job, mid, to));
+                return;
+            }
+            long start = System.nanoTime();
+            int verified = 0;
+            try {
+                for (int index = from; index < to; index++) {
+                    if (failure.get() != null)
+                        return;
+                    if (prevalidate(index))
+                        continue;
+                    if (!execute(job, index))
+                        return;
+                    verified++;
+                }
+            } finally {
+                busyNanos.add(System.nanoTime() - start);
+            }
+            job.verified(verified);
+        }
+
+        /** Hand the signature of an input to the prevalidator. Returns false if it wasn't collected. */
+        private boolean prevalidate(int index) {
+            if (prevalidator == null)
+                return false;
+            return prevalidator.add(job.tx, index, job.tx.getInput(index).getWitness(), job.prevOutValues.get(index),
+                    job.prevOutScripts.get(index), job.precomputed(index), valid -> {
+                        if (valid || execute(job, index))
+                            job.verified(1);
+                    });
+        }
+    }
+}
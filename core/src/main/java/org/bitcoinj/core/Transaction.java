@@ -51,10 +51,10 @@ import javax.annotation.Nullable;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.math.BigInteger;
 import java.math.RoundingMode;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -67,6 +67,7 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
 
 import static org.bitcoinj.base.internal.Preconditions.check;
 import static org.bitcoinj.base.internal.Preconditions.checkArgument;
@@ -164,6 +165,15 @@ public class Transaction extends BaseMessage {
 
     private volatile LockTime vLockTime;
 
+    // Cached ids of this transaction. Every mutator of the serialized form clears them via unCache(), and if null
+    // getTxId() and getWTxId() will recalculate them.
+    @Nullable private Sha256Hash cachedTxId;
+    @Nullable private Sha256Hash cachedWTxId;
+
+    // Global counters of how often the cached ids could be used, exposed for profiling.
+    private static final LongAdder idCacheHits = new LongAdder();
+    private static final LongAdder idCacheMisses = new LongAdder();
+
     // This is either the time the transaction was broadcast as measured from the local clock, or the time from the
     // block in which it was included. Note that this can be changed by re-orgs so the wallet may update this field.
     // Old serialized transactions don't have this field, thus null is valid. It is used for returning an ordered
@@ -324,16 +334,18 @@ public class Transaction extends BaseMessage {
 
     /**
      * Returns the transaction id as you see them in block explorers. It is used as a reference by transaction inputs
-     * via outpoints.
+     * via outpoints. The id is cached until the transaction is modified.
      */
     public Sha256Hash getTxId() {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        try {
-            bitcoinSerializeToStream(baos, false);
-        } catch (IOException e) {
-            throw new RuntimeException(e); // cannot happen
+        Sha256Hash txId = cachedTxId;
+        if (txId != null) {
+            idCacheHits.increment();
+            return txId;
         }
-        return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(baos.toByteArray()));
+        idCacheMisses.increment();
+        txId = calculateId(false);
+        cachedTxId = txId;
+        return txId;
     }
 
     /**
@@ -349,15 +361,54 @@ public class Transaction extends BaseMessage {
      * same as {@link #getTxId()}.
      */
     public Sha256Hash getWTxId() {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        if (!hasWitnesses())
+            return getTxId();
+        Sha256Hash wTxId = cachedWTxId;
+        if (wTxId != null) {
+            idCacheHits.increment();
+            return wTxId;
+        }
+        idCacheMisses.increment();
+        wTxId = calculateId(true);
+        cachedWTxId = wTxId;
+        return wTxId;
+    }
+
+    private Sha256Hash calculateId(boolean useSegwit) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(messageSize());
         try {
-            bitcoinSerializeToStream(baos, hasWitnesses());
+            bitcoinSerializeToStream(baos, useSegwit);
         } catch (IOException e) {
             throw new RuntimeException(e); // cannot happen
         }
         return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(baos.toByteArray()));
     }
 
+    /**
+     * Clears the cached ids. Must be called whenever anything that is part of the serialized form of this transaction
+     * changes, including its inputs, outputs and witnesses.
+     */
+    void unCache() {
+        cachedTxId = null;
+        cachedWTxId = null;
+    }
+
+    /**
+     * Returns how many calls to {@link #getTxId()} or {@link #getWTxId()}, across all transactions, could be served
+     * from the cache.
+     */
+    public static long getIdCacheHits() {
+        return idCacheHits.sum();
+    }
+
+    /**
+     * Returns how many calls to {@link #getTxId()} or {@link #getWTxId()}, across all transactions, had to serialize
+     * and hash the transaction.
+     */
+    public static long getIdCacheMisses() {
+        return idCacheMisses.sum();
+    }
+
     /** Gets the transaction weight as defined in BIP141. */
     public int getWeight() {
         if (!hasWitnesses())
@@ -840,6 +891,7 @@ public class Transaction extends BaseMessage {
             input.setParent(null);
         }
         inputs.clear();
+        unCache();
     }
 
     /**
@@ -860,6 +912,7 @@ public class Transaction extends BaseMessage {
     public TransactionInput addInput(TransactionInput input) {
         input.setParent(this);
         inputs.add(input);
+        unCache();
         return input;
     }
 
@@ -1000,6 +1053,7 @@ public class Transaction extends BaseMessage {
             output.setParent(null);
         }
         outputs.clear();
+        unCache();
     }
 
     /**
@@ -1008,6 +1062,7 @@ public class Transaction extends BaseMessage {
     public TransactionOutput addOutput(TransactionOutput to) {
         to.setParent(this);
         outputs.add(to);
+        unCache();
         return to;
     }
 
@@ -1167,86 +1222,102 @@ public class Transaction extends BaseMessage {
         //
         //   https://en.bitcoin.it/wiki/Contracts
 
-        try {
-            // Create a copy of this transaction to operate upon because we need make changes to the inputs and outputs.
-            // It would not be thread-safe to change the attributes of the transaction object itself.
-            Transaction tx = Transaction.read(ByteBuffer.wrap(serialize()));
-
-            // Clear input scripts in preparation for signing. If we're signing a fresh
-            // transaction that step isn't very helpful, but it doesn't add much cost relative to the actual
-            // EC math so we'll do it anyway.
-            for (int i = 0; i < tx.inputs.size(); i++) {
-                TransactionInput input = tx.inputs.get(i);
-                input.clearScriptBytes();
-                input.setWitness(null);
-            }
+        // This step has no purpose beyond being synchronized with Bitcoin Core's bugs. OP_CODESEPARATOR
+        // is a legacy holdover from a previous, broken design of executing scripts that shipped in Bitcoin 0.1.
+        // It was seriously flawed and would have let anyone take anyone elses money. Later versions switched to
+        // the design we use today where scripts are executed independently but share a stack. This left the
+        // OP_CODESEPARATOR instruction having no purpose as it was only meant to be used internally, not actually
+        // ever put into scripts. Deleting OP_CODESEPARATOR is a step that should never be required but if we don't
+        // do it, we could split off the best chain.
+        connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
+
+        int basicSigHashType = sigHashType & 0x1f;
+        boolean anyoneCanPay = (sigHashType & SigHash.ANYONECANPAY.value) == SigHash.ANYONECANPAY.value;
+        boolean sigHashNone = basicSigHashType == SigHash.NONE.value;
+        boolean sigHashSingle = basicSigHashType == SigHash.SINGLE.value;
+        if (sigHashSingle && inputIndex >= outputs.size()) {
+            // The input index is beyond the number of outputs, it's a buggy signature made by a broken
+            // Bitcoin implementation. Bitcoin Core also contains a bug in handling this case:
+            // any transaction output that is signed in this case will result in both the signed output
+            // and any future outputs to this public key being steal-able by anyone who has
+            // the resulting signature and the public key (both of which are part of the signed tx input).
+
+            // Bitcoin Core's bug is that SignatureHash was supposed to return a hash and on this codepath it
+            // actually returns the constant "1" to indicate an error, which is never checked for. Oops.
+            return Sha256Hash.wrap("0100000000000000000000000000000000000000000000000000000000000000");
+        }
 
-            // This step has no purpose beyond being synchronized with Bitcoin Core's bugs. OP_CODESEPARATOR
-            // is a legacy holdover from a previous, broken design of executing scripts that shipped in Bitcoin 0.1.
-            // It was seriously flawed and would have let anyone take anyone elses money. Later versions switched to
-            // the design we use today where scripts are executed independently but share a stack. This left the
-            // OP_CODESEPARATOR instruction having no purpose as it was only meant to be used internally, not actually
-            // ever put into scripts. Deleting OP_CODESEPARATOR is a step that should never be required but if we don't
-            // do it, we could split off the best chain.
-            connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
-
-            // Set the input to the script of its output. Bitcoin Core does this but the step has no obvious purpose as
-            // the signature covers the hash of the prevout transaction which obviously includes the output script
-            // already. Perhaps it felt safer to him in some way, or is another leftover from how the code was written.
-            TransactionInput input = tx.inputs.get(inputIndex);
-            input.setScriptBytes(connectedScript);
-
-            if ((sigHashType & 0x1f) == SigHash.NONE.value) {
-                // SIGHASH_NONE means no outputs are signed at all - the signature is effectively for a "blank cheque".
-                tx.outputs = new ArrayList<>(0);
-                // The signature isn't broken by new versions of the transaction issued by other parties.
-                for (int i = 0; i < tx.inputs.size(); i++)
-                    if (i != inputIndex)
-                        tx.inputs.get(i).setSequenceNumber(0);
-            } else if ((sigHashType & 0x1f) == SigHash.SINGLE.value) {
-                // SIGHASH_SINGLE means only sign the output at the same index as the input (ie, my output).
-                if (inputIndex >= tx.outputs.size()) {
-                    // The input index is beyond the number of outputs, it's a buggy signature made by a broken
-                    // Bitcoin implementation. Bitcoin Core also contains a bug in handling this case:
-                    // any transaction output that is signed in this case will result in both the signed output
-                    // and any future outputs to this public key being steal-able by anyone who has
-                    // the resulting signature and the public key (both of which are part of the signed tx input).
-
-                    // Bitcoin Core's bug is that SignatureHash was supposed to return a hash and on this codepath it
-                    // actually returns the constant "1" to indicate an error, which is never checked for. Oops.
-                    return Sha256Hash.wrap("0100000000000000000000000000000000000000000000000000000000000000");
-                }
-                // In SIGHASH_SINGLE the outputs after the matching input index are deleted, and the outputs before
-                // that position are "nulled out". Unintuitively, the value in a "null" transaction is set to -1.
-                tx.outputs = new ArrayList<>(tx.outputs.subList(0, inputIndex + 1));
-                for (int i = 0; i < inputIndex; i++)
-                    tx.outputs.set(i, new TransactionOutput(tx, Coin.NEGATIVE_SATOSHI, new byte[] {}));
-                // The signature isn't broken by new versions of the transaction issued by other parties.
-                for (int i = 0; i < tx.inputs.size(); i++)
-                    if (i != inputIndex)
-                        tx.inputs.get(i).setSequenceNumber(0);
+        // Rather than copying and modifying this transaction, the simplified form is streamed straight into the
+        // digest. The scratch buffer fits the largest fixed size field, an outpoint.
+        MessageDigest digest = Sha256Hash.newDigest();
+        byte[] scratch = new byte[TransactionOutPoint.BYTES];
+        updateUint32(digest, scratch, version);
+
+        // Input scripts are cleared, except for the input being signed which gets the script of its output. Bitcoin
+        // Core does this but the step has no obvious purpose as the signature covers the hash of the prevout
+        // transaction which obviously includes the output script already. Perhaps it felt safer to him in some way,
+        // or is another leftover from how the code was written.
+        if (anyoneCanPay) {
+            // SIGHASH_ANYONECANPAY means the signature in the input is not broken by changes/additions/removals
+            // of other inputs. For example, this is useful for building assurance contracts.
+            digest.update(VarInt.of(1).serialize());
+            updateInput(digest, scratch, inputs.get(inputIndex), connectedScript, false);
+        } else {
+            digest.update(VarInt.of(inputs.size()).serialize());
+            for (int i = 0; i < inputs.size(); i++) {
+                // For SIGHASH_NONE and SIGHASH_SINGLE, the signature isn't broken by new versions of the
+                // transaction issued by other parties.
+                if (i == inputIndex)
+                    updateInput(digest, scratch, inputs.get(i), connectedScript, false);
+                else
+                    updateInput(digest, scratch, inputs.get(i), EMPTY_SCRIPT, sigHashNone || sigHashSingle);
             }
+        }
 
-            if ((sigHashType & SigHash.ANYONECANPAY.value) == SigHash.ANYONECANPAY.value) {
-                // SIGHASH_ANYONECANPAY means the signature in the input is not broken by changes/additions/removals
-                // of other inputs. For example, this is useful for building assurance contracts.
-                tx.inputs = new ArrayList<>();
-                tx.inputs.add(input);
-            }
+        if (sigHashNone) {
+            // SIGHASH_NONE means no outputs are signed at all - the signature is effectively for a "blank cheque".
+            digest.update(VarInt.of(0).serialize());
+        } else if (sigHashSingle) {
+            // SIGHASH_SINGLE means only sign the output at the same index as the input (ie, my output).
+            // In SIGHASH_SINGLE the outputs after the matching input index are deleted, and the outputs before
+            // that position are "nulled out". Unintuitively, the value in a "null" transaction is set to -1.
+            digest.update(VarInt.of(inputIndex + 1).serialize());
+            for (int i = 0; i < inputIndex; i++)
+                digest.update(NULL_OUTPUT);
+            digest.update(outputs.get(inputIndex).serialize());
+        } else {
+            digest.update(VarInt.of(outputs.size()).serialize());
+            for (TransactionOutput output : outputs)
+                digest.update(output.serialize());
+        }
 
-            ByteArrayOutputStream bos = new ByteArrayOutputStream(255); // just a guess at an average tx length
-            tx.bitcoinSerializeToStream(bos, false);
-            // We also have to write a hash type (sigHashType is actually an unsigned char)
-            writeInt32LE(0x000000ff & sigHashType, bos);
-            // Note that this is NOT reversed to ensure it will be signed correctly. If it were to be printed out
-            // however then we would expect that it is IS reversed.
-            Sha256Hash hash = Sha256Hash.twiceOf(bos.toByteArray());
-            bos.close();
+        updateUint32(digest, scratch, vLockTime.rawValue());
+        // We also have to write a hash type (sigHashType is actually an unsigned char)
+        updateUint32(digest, scratch, 0x000000ff & sigHashType);
+        // Note that this is NOT reversed to ensure it will be signed correctly. If it were to be printed out
+        // however then we would expect that it is IS reversed.
+        return Sha256Hash.wrap(digest.digest(digest.digest()));
+    }
 
-            return hash;
-        } catch (IOException e) {
-            throw new RuntimeException(e);  // Cannot happen.
-        }
+    private static final byte[] EMPTY_SCRIPT = new byte[0];
+    private static final byte[] NULL_OUTPUT = new TransactionOutput(null, Coin.NEGATIVE_SATOSHI, EMPTY_SCRIPT).serialize();
+
+    private static void updateUint32(MessageDigest digest, byte[] scratch, long val) {
+        ByteUtils.writeInt32LE(val, scratch, 0);
+        digest.update(scratch, 0, 4);
+    }
+
+    private static void updateInput(MessageDigest digest, byte[] scratch, TransactionInput input, byte[] script,
+                                    boolean zeroSequence) {
+        TransactionOutPoint outpoint = input.getOutpoint();
+        byte[] hash = outpoint.hash().getBytes();
+        for (int i = 0; i < Sha256Hash.LENGTH; i++)
+            scratch[i] = hash[Sha256Hash.LENGTH - 1 - i];
+        ByteUtils.writeInt32LE(outpoint.index(), scratch, Sha256Hash.LENGTH);
+        digest.update(scratch, 0, TransactionOutPoint.BYTES);
+        digest.update(VarInt.of(script.length).serialize());
+        digest.update(script);
+        updateUint32(digest, scratch, zeroSequence ? 0 : input.getSequenceNumber());
     }
 
     public TransactionSignature calculateWitnessSignature(
@@ -1270,6 +1341,23 @@ public class Transaction extends BaseMessage {
         return calculateWitnessSignature(inputIndex, key, scriptCode.program(), value, hashType, anyoneCanPay);
     }
 
+    /**
+     * Calculates a witness signature for the given input, reusing signature hash parts that are common to all inputs.
+     * See {@link #hashForWitnessSignature(int, byte[], Coin, byte, PrecomputedTransactionData)}.
+     */
+    public TransactionSignature calculateWitnessSignature(
+            int inputIndex,
+            ECKey key,
+            Script scriptCode,
+            Coin value,
+            SigHash hashType,
+            boolean anyoneCanPay,
+            PrecomputedTransactionData precomputed) {
+        byte sigHashType = (byte) TransactionSignature.calcSigHashValue(hashType, anyoneCanPay);
+        Sha256Hash hash = hashForWitnessSignature(inputIndex, scriptCode.program(), value, sigHashType, precomputed);
+        return new TransactionSignature(key.sign(hash), hashType, anyoneCanPay);
+    }
+
     public TransactionSignature calculateWitnessSignature(
             int inputIndex,
             ECKey key,
@@ -1332,70 +1420,58 @@ public class Transaction extends BaseMessage {
             byte[] scriptCode,
             Coin prevValue,
             byte sigHashType){
-        ByteArrayOutputStream bos = new ByteArrayOutputStream(255); // just a guess at an average tx length
-        try {
-            byte[] hashPrevouts = new byte[32];
-            byte[] hashSequence = new byte[32];
-            byte[] hashOutputs = new byte[32];
-            int basicSigHashType = sigHashType & 0x1f;
-            boolean anyoneCanPay = (sigHashType & SigHash.ANYONECANPAY.value) == SigHash.ANYONECANPAY.value;
-            boolean signAll = (basicSigHashType != SigHash.SINGLE.value) && (basicSigHashType != SigHash.NONE.value);
-
-            if (!anyoneCanPay) {
-                ByteArrayOutputStream bosHashPrevouts = new ByteArrayOutputStream(256);
-                for (TransactionInput input : this.inputs) {
-                    bosHashPrevouts.write(input.getOutpoint().hash().serialize());
-                    writeInt32LE(input.getOutpoint().index(), bosHashPrevouts);
-                }
-                hashPrevouts = Sha256Hash.hashTwice(bosHashPrevouts.toByteArray());
-            }
-
-            if (!anyoneCanPay && signAll) {
-                ByteArrayOutputStream bosSequence = new ByteArrayOutputStream(256);
-                for (TransactionInput input : this.inputs) {
-                    writeInt32LE(input.getSequenceNumber(), bosSequence);
-                }
-                hashSequence = Sha256Hash.hashTwice(bosSequence.toByteArray());
-            }
+        return hashForWitnessSignature(inputIndex, scriptCode, prevValue, sigHashType,
+                PrecomputedTransactionData.of(this));
+    }
 
-            if (signAll) {
-                ByteArrayOutputStream bosHashOutputs = new ByteArrayOutputStream(256);
-                for (TransactionOutput output : this.outputs) {
-                    writeInt64LE(
-                            BigInteger.valueOf(output.getValue().getValue()),
-                            bosHashOutputs
-                    );
-                    bosHashOutputs.write(VarInt.of(output.getScriptBytes().length).serialize());
-                    bosHashOutputs.write(output.getScriptBytes());
-                }
-                hashOutputs = Sha256Hash.hashTwice(bosHashOutputs.toByteArray());
-            } else if (basicSigHashType == SigHash.SINGLE.value && inputIndex < outputs.size()) {
-                ByteArrayOutputStream bosHashOutputs = new ByteArrayOutputStream(256);
-                writeInt64LE(
-                        BigInteger.valueOf(this.outputs.get(inputIndex).getValue().getValue()),
-                        bosHashOutputs
-                );
-                bosHashOutputs.write(VarInt.of(this.outputs.get(inputIndex).getScriptBytes().length).serialize());
-                bosHashOutputs.write(this.outputs.get(inputIndex).getScriptBytes());
-                hashOutputs = Sha256Hash.hashTwice(bosHashOutputs.toByteArray());
-            }
-            writeInt32LE(version, bos);
-            bos.write(hashPrevouts);
-            bos.write(hashSequence);
-            bos.write(inputs.get(inputIndex).getOutpoint().hash().serialize());
-            writeInt32LE(inputs.get(inputIndex).getOutpoint().index(), bos);
-            bos.write(VarInt.of(scriptCode.length).serialize());
-            bos.write(scriptCode);
-            writeInt64LE(BigInteger.valueOf(prevValue.getValue()), bos);
-            writeInt32LE(inputs.get(inputIndex).getSequenceNumber(), bos);
-            bos.write(hashOutputs);
-            writeInt32LE(this.vLockTime.rawValue(), bos);
-            writeInt32LE(0x000000ff & sigHashType, bos);
-        } catch (IOException e) {
-            throw new RuntimeException(e);  // Cannot happen.
+    /**
+     * <p>Calculates a signature hash as per
+     * <a href="https://github.com/bitcoin/bips/blob/master/bip-0143.mediawiki">BIP143</a>, reusing the parts of the
+     * hash that are common to all inputs. Use this when calculating signature hashes for more than one input of the
+     * same transaction.</p>
+     *
+     * @param inputIndex   input the signature is being calculated for. Tx signatures are always relative to an input.
+     * @param scriptCode   the script that should be in the given input during signing.
+     * @param prevValue    the value of the coin being spent
+     * @param sigHashType  signature hash type, including the anyone-can-pay flag
+     * @param precomputed  data precomputed from this transaction via {@link PrecomputedTransactionData#of(Transaction)}
+     * @return signature hash
+     */
+    public Sha256Hash hashForWitnessSignature(
+            int inputIndex,
+            byte[] scriptCode,
+            Coin prevValue,
+            byte sigHashType,
+            PrecomputedTransactionData precomputed) {
+        int basicSigHashType = sigHashType & 0x1f;
+        boolean anyoneCanPay = (sigHashType & SigHash.ANYONECANPAY.value) == SigHash.ANYONECANPAY.value;
+        boolean signAll = (basicSigHashType != SigHash.SINGLE.value) && (basicSigHashType != SigHash.NONE.value);
+
+        byte[] hashPrevouts = anyoneCanPay ? Sha256Hash.ZERO_HASH.getBytes() : precomputed.hashPrevouts();
+        byte[] hashSequence = !anyoneCanPay && signAll ? precomputed.hashSequence() : Sha256Hash.ZERO_HASH.getBytes();
+        byte[] hashOutputs;
+        if (signAll) {
+            hashOutputs = precomputed.hashOutputs();
+        } else if (basicSigHashType == SigHash.SINGLE.value && inputIndex < outputs.size()) {
+            hashOutputs = Sha256Hash.hashTwice(outputs.get(inputIndex).serialize());
+        } else {
+            hashOutputs = Sha256Hash.ZERO_HASH.getBytes();
         }
 
-        return Sha256Hash.twiceOf(bos.toByteArray());
+        TransactionInput input = inputs.get(inputIndex);
+        ByteBuffer buf = ByteBuffer.allocate(4 + 32 + 32 + TransactionOutPoint.BYTES +
+                VarInt.sizeOf(scriptCode.length) + scriptCode.length + 8 + 4 + 32 + 4 + 4);
+        writeInt32LE(version, buf);
+        buf.put(hashPrevouts);
+        buf.put(hashSequence);
+        input.getOutpoint().write(buf);
+        Buffers.writeLengthPrefixedBytes(buf, scriptCode);
+        writeInt64LE(prevValue.getValue(), buf);
+        writeInt32LE(input.getSequenceNumber(), buf);
+        buf.put(hashOutputs);
+        writeInt32LE(this.vLockTime.rawValue(), buf);
+        writeInt32LE(0x000000ff & sigHashType, buf);
+        return Sha256Hash.twiceOf(buf.array());
     }
 
     @Override
@@ -1490,6 +1566,7 @@ public class Transaction extends BaseMessage {
             log.warn("You are setting the lock time on a transaction but none of the inputs have non-default sequence numbers. This will not do what you expect!");
         }
         this.vLockTime = LockTime.of(lockTime);
+        unCache();
     }
 
     public long getVersion() {
@@ -1498,6 +1575,7 @@ public class Transaction extends BaseMessage {
 
     public void setVersion(int version) {
         this.version = version;
+        unCache();
     }
 
     /** Returns an unmodifiable view of all inputs. */
@@ -1531,6 +1609,7 @@ public class Transaction extends BaseMessage {
     /** Randomly re-orders the transaction outputs: good for privacy */
     public void shuffleOutputs() {
         Collections.shuffle(outputs);
+        unCache();
     }
 
     /** Same as getInputs().get(index). */
@@ -248,6 +248,7 @@ public class TransactionInput {
         checkArgument(sequence >= 0 && sequence <= ByteUtils.MAX_UNSIGNED_INTEGER, () ->
                 "sequence out of range: " + sequence);
         this.sequence = sequence;
+        unCacheParent();
     }
 
     /**
@@ -279,6 +280,7 @@ public class TransactionInput {
     void setScriptBytes(byte[] scriptBytes) {
         this.scriptSig = null;
         this.scriptBytes = scriptBytes;
+        unCacheParent();
     }
 
     /**
@@ -310,6 +312,7 @@ public class TransactionInput {
      */
     public void setWitness(TransactionWitness witness) {
         this.witness = witness;
+        unCacheParent();
     }
 
     /**
@@ -529,6 +532,11 @@ public class TransactionInput {
         this.parent = parent;
     }
 
+    private void unCacheParent() {
+        if (parent != null)
+            parent.unCache();
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -38,8 +38,15 @@ import java.util.concurrent.locks.ReentrantLock;
  *
  * <p>It is <b>not</b> at this time directly equivalent to the Bitcoin Core memory pool, which tracks
  * all transactions not currently included in the best chain - it's simply a cache.</p>
+ *
+ * <p>The table is split into stripes by transaction hash, each with its own lock and its share of the size limit, so
+ * that peers announcing different transactions don't contend with each other.</p>
  */
 public class TxConfidenceTable {
+    /**
+     * @deprecated the table is guarded by a lock per stripe, this lock isn't used
+     */
+    @Deprecated
     protected final ReentrantLock lock = Threading.lock(TxConfidenceTable.class);
 
     private static class WeakConfidenceReference extends WeakReference<TransactionConfidence> {
@@ -49,7 +56,29 @@ public class TxConfidenceTable {
             hash = confidence.getTransactionHash();
         }
     }
-    private final Map<Sha256Hash, WeakConfidenceReference> table;
+
+    // One part of the table, holding the transactions whose hash maps to it.
+    private static class Stripe {
+        final ReentrantLock lock = Threading.lock(Stripe.class);
+        final Map<Sha256Hash, WeakConfidenceReference> table;
+
+        Stripe(int size) {
+            table = new LinkedHashMap<Sha256Hash, WeakConfidenceReference>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Sha256Hash, WeakConfidenceReference> entry) {
+                    // An arbitrary choice to stop the memory used by tracked transactions getting too huge in the
+                    // event of some kind of DoS attack.
+                    return size() > size;
+                }
+            };
+        }
+    }
+
+    // Tables are split into at most this many stripes, each tracking at least MIN_STRIPE_SIZE transactions.
+    private static final int MAX_STRIPES = 16;
+    private static final int MIN_STRIPE_SIZE = 32;
+
+    private final Stripe[] stripes;
     private final TransactionConfidence.Factory confidenceFactory;
 
     // This ReferenceQueue gets entries added to it when they are only weakly reachable, ie, the TxConfidenceTable is the
@@ -57,7 +86,7 @@ public class TxConfidenceTable {
     // corresponding to expired transactions. In this way memory usage of the system is in line with however many
     // transactions you actually care to track the confidence of. We can still end up with lots of hashes being stored
     // if our peers flood us with invs but the MAX_SIZE param caps this.
-    private ReferenceQueue<TransactionConfidence> referenceQueue;
+    private final ReferenceQueue<TransactionConfidence> referenceQueue;
 
     /** The max size of a table created with the no-args constructor. */
     public static final int MAX_SIZE = 1000;
@@ -72,14 +101,11 @@ public class TxConfidenceTable {
     }
 
     TxConfidenceTable(final int size, TransactionConfidence.Factory confidenceFactory){
-        table = new LinkedHashMap<Sha256Hash, WeakConfidenceReference>() {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, WeakConfidenceReference> entry) {
-                // An arbitrary choice to stop the memory used by tracked transactions getting too huge in the event
-                // of some kind of DoS attack.
-                return size() > size;
-            }
-        };
+        // A power of two, so that the stripe can be picked by masking. The size is divided among the stripes.
+        int count = Integer.highestOneBit(Math.max(1, Math.min(MAX_STRIPES, size / MIN_STRIPE_SIZE)));
+        stripes = new Stripe[count];
+        for (int i = 0; i < count; i++)
+            stripes[i] = new Stripe(size / count + (i < size % count ? 1 : 0));
         referenceQueue = new ReferenceQueue<>();
         this.confidenceFactory = confidenceFactory;
     }
@@ -101,6 +127,11 @@ public class TxConfidenceTable {
         return tx.getConfidence(this);
     }
 
+    private Stripe stripe(Sha256Hash hash) {
+        int h = hash.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (stripes.length - 1)];
+    }
+
     /**
      * If any transactions have expired due to being only weakly reachable through us, go ahead and delete their
      * table entries - it means we downloaded the transaction and sent it to various event listeners, none of
@@ -108,17 +139,19 @@ public class TxConfidenceTable {
      * are relevant to any of our wallets.
      */
     private void cleanTable() {
-        lock.lock();
-        try {
-            Reference<? extends TransactionConfidence> ref;
-            while ((ref = referenceQueue.poll()) != null) {
-                // Find which transaction got deleted by the GC.
-                WeakConfidenceReference txRef = (WeakConfidenceReference) ref;
-                // And remove the associated map entry so the other bits of memory can also be reclaimed.
-                table.remove(txRef.hash);
+        Reference<? extends TransactionConfidence> ref;
+        while ((ref = referenceQueue.poll()) != null) {
+            // Find which transaction got deleted by the GC.
+            WeakConfidenceReference txRef = (WeakConfidenceReference) ref;
+            // And remove the associated map entry so the other bits of memory can also be reclaimed, unless it has
+            // been replaced in the meantime.
+            Stripe stripe = stripe(txRef.hash);
+            stripe.lock.lock();
+            try {
+                stripe.table.remove(txRef.hash, txRef);
+            } finally {
+                stripe.lock.unlock();
             }
-        } finally {
-            lock.unlock();
         }
     }
 
@@ -126,24 +159,25 @@ public class TxConfidenceTable {
      * Returns the number of peers that have seen the given hash recently.
      */
     public int numBroadcastPeers(Sha256Hash txHash) {
-        lock.lock();
+        cleanTable();
+        Stripe stripe = stripe(txHash);
+        stripe.lock.lock();
         try {
-            cleanTable();
-            WeakConfidenceReference entry = table.get(txHash);
+            WeakConfidenceReference entry = stripe.table.get(txHash);
             if (entry == null) {
                 return 0;  // No such TX known.
             } else {
                 TransactionConfidence confidence = entry.get();
                 if (confidence == null) {
                     // Such a TX hash was seen, but nothing seemed to care so we ended up throwing away the data.
-                    table.remove(txHash);
+                    stripe.table.remove(txHash);
                     return 0;
                 } else {
                     return confidence.numBroadcastPeers();
                 }
             }
         } finally {
-            lock.unlock();
+            stripe.lock.unlock();
         }
     }
 
@@ -156,13 +190,14 @@ public class TxConfidenceTable {
     public TransactionConfidence seen(Sha256Hash hash, PeerAddress byPeer) {
         TransactionConfidence confidence;
         boolean fresh = false;
-        lock.lock();
+        cleanTable();
+        Stripe stripe = stripe(hash);
+        stripe.lock.lock();
         try {
-            cleanTable();
-            confidence = getOrCreate(hash);
+            confidence = getOrCreate(stripe, hash);
             fresh = confidence.markBroadcastBy(byPeer);
         } finally {
-            lock.unlock();
+            stripe.lock.unlock();
         }
         if (fresh)
             confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.SEEN_PEERS);
@@ -175,14 +210,12 @@ public class TxConfidenceTable {
      */
     public TransactionConfidence getOrCreate(Sha256Hash hash) {
         Objects.requireNonNull(hash);
-        lock.lock();
+        Stripe stripe = stripe(hash);
+        stripe.lock.lock();
         try {
-            TransactionConfidence confidence = getConfidence(hash);
-            return (confidence != null)
-                    ? confidence
-                    : newConfidence(hash);
+            return getOrCreate(stripe, hash);
         } finally {
-            lock.unlock();
+            stripe.lock.unlock();
         }
     }
 
@@ -192,25 +225,34 @@ public class TxConfidenceTable {
      */
     @Nullable
     public TransactionConfidence get(Sha256Hash hash) {
-        lock.lock();
+        Stripe stripe = stripe(hash);
+        stripe.lock.lock();
         try {
-            return getConfidence(hash);
+            return getConfidence(stripe, hash);
         } finally {
-            lock.unlock();
+            stripe.lock.unlock();
         }
     }
 
-    // Internal: assumes lock is in place
+    // Internal: assumes the lock of the stripe is in place
+    private TransactionConfidence getOrCreate(Stripe stripe, Sha256Hash hash) {
+        TransactionConfidence confidence = getConfidence(stripe, hash);
+        return (confidence != null)
+                ? confidence
+                : newConfidence(stripe, hash);
+    }
+
+    // Internal: assumes the lock of the stripe is in place
     @Nullable
-    private TransactionConfidence getConfidence(Sha256Hash hash) {
-        WeakConfidenceReference ref = table.get(hash);
+    private TransactionConfidence getConfidence(Stripe stripe, Sha256Hash hash) {
+        WeakConfidenceReference ref = stripe.table.get(hash);
         return (ref != null) ? ref.get() : null;
     }
 
-    // Internal: assumes lock is in place
-    private TransactionConfidence newConfidence(Sha256Hash hash) {
+    // Internal: assumes the lock of the stripe is in place
+    private TransactionConfidence newConfidence(Stripe stripe, Sha256Hash hash) {
         TransactionConfidence newConfidence = confidenceFactory.createConfidence(hash);
-        table.put(hash, new WeakConfidenceReference(newConfidence, referenceQueue));
+        stripe.table.put(hash, new WeakConfidenceReference(newConfidence, referenceQueue));
         return newConfidence;
     }
 }
@@ -0,0 +1,168 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.crypto;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.params.ECPrivateKeyParameters;
+import org.bouncycastle.crypto.signers.ECDSASigner;
+import org.bouncycastle.crypto.signers.HMacDSAKCalculator;
+import org.bouncycastle.math.ec.ECAlgorithms;
+import org.bouncycastle.math.ec.ECCurve;
+import org.bouncycastle.math.ec.ECFieldElement;
+import org.bouncycastle.math.ec.ECPoint;
+import org.bouncycastle.util.BigIntegers;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.bitcoinj.base.internal.Preconditions.checkArgument;
+
+/**
+ * <p>A pure Java {@link Secp256k1Provider}, built on the secp256k1-specific curve implementation of Bouncy Castle.
+ * That implementation already does field arithmetic specialized to the secp256k1 prime, and scalar multiplication
+ * with the GLV endomorphism. On top of it, this provider:</p>
+ *
+ * <ul>
+ *     <li>verifies via a single interleaved wNAF double-scalar multiplication of the generator and the public key
+ *     (Strauss-Shamir), and compares the result against r without converting it to affine coordinates,</li>
+ *     <li>keeps used public keys decoded, along with the wNAF tables that were precomputed for them, so that
+ *     verifying several signatures of the same key decodes it only once. Lookups don't lock, and when the cache is
+ *     full a random key is evicted,</li>
+ *     <li>signs via the fixed-point comb multiplier, which performs the same sequence of operations for every
+ *     nonce.</li>
+ * </ul>
+ */
+public final class BouncyCastleSecp256k1Provider implements Secp256k1Provider {
+    /** Default number of decoded public keys to keep. */
+    public static final int DEFAULT_PUBKEY_CACHE_SIZE = 1024;
+
+    private final ConcurrentHashMap<ByteBuffer, ECPoint> pubKeyCache = new ConcurrentHashMap<>();
+    // The cached keys, for picking one to evict. Guarded by itself, which is only taken on cache misses.
+    private final ByteBuffer[] pubKeyCacheSlots;
+    private int pubKeyCacheSlotsUsed;
+
+    /**
+     * Create a provider that keeps up to {@link #DEFAULT_PUBKEY_CACHE_SIZE} decoded public keys.
+     */
+    public BouncyCastleSecp256k1Provider() {
+        this(DEFAULT_PUBKEY_CACHE_SIZE);
+    }
+
+    /**
+     * Create a provider that keeps up to the given number of decoded public keys.
+     *
+     * @param pubKeyCacheSize number of decoded public keys to keep, or 0 to not keep any
+     */
+    public BouncyCastleSecp256k1Provider(int pubKeyCacheSize) {
+        checkArgument(pubKeyCacheSize >= 0, () -> "pubKeyCacheSize must not be negative: " + pubKeyCacheSize);
+        this.pubKeyCacheSlots = new ByteBuffer[pubKeyCacheSize];
+    }
+
+    @Override
+    public ECKey.ECDSASignature sign(byte[] hash, BigInteger privKey) {
+        ECDSASigner signer = new ECDSASigner(new HMacDSAKCalculator(new SHA256Digest()));
+        signer.init(true, new ECPrivateKeyParameters(privKey, ECKey.CURVE));
+        BigInteger[] components = signer.generateSignature(hash);
+        return new ECKey.ECDSASignature(components[0], components[1]);
+    }
+
+    @Override
+    public boolean verify(byte[] hash, ECKey.ECDSASignature signature, byte[] pubKey) {
+        ECPoint q = decodePubKey(pubKey);
+        BigInteger n = ECKey.CURVE.getN();
+        BigInteger r = signature.r;
+        BigInteger s = signature.s;
+        if (r.signum() <= 0 || r.compareTo(n) >= 0 || s.signum() <= 0 || s.compareTo(n) >= 0)
+            return false;
+
+        return verify(calculateE(n, hash), r, BigIntegers.modOddInverseVar(n, s), q);
+    }
+
+    /**
+     * Verify a signature, given the inverse of its s value.
+     *
+     * @param e hash that was signed, as returned by {@link #calculateE(BigInteger, byte[])}
+     * @param r r value of the signature, already checked to be in range
+     * @param w inverse of the s value of the signature modulo the curve order
+     * @param q public key
+     * @return true if the signature is valid
+     */
+    static boolean verify(BigInteger e, BigInteger r, BigInteger w, ECPoint q) {
+        BigInteger n = ECKey.CURVE.getN();
+        BigInteger u1 = e.multiply(w).mod(n);
+        BigInteger u2 = r.multiply(w).mod(n);
+        ECPoint point = ECAlgorithms.sumOfTwoMultiplies(ECKey.CURVE.getG(), u1, q, u2);
+        if (point.isInfinity())
+            return false;
+
+        ECCurve curve = point.getCurve();
+        if (curve.getCoordinateSystem() == ECCurve.COORD_JACOBIAN) {
+            // x = X / Z^2, so instead of inverting Z we check r * Z^2 == X. As x is reduced mod n for the
+            // comparison, r + n is a candidate as well if it's still a field element.
+            ECFieldElement zSquared = point.getZCoord(0).square();
+            ECFieldElement x = point.getXCoord();
+            for (BigInteger candidate = r; curve.isValidFieldElement(candidate); candidate = candidate.add(n)) {
+                if (curve.fromBigInteger(candidate).multiply(zSquared).equals(x))
+                    return true;
+            }
+            return false;
+        }
+        return point.normalize().getAffineXCoord().toBigInteger().mod(n).equals(r);
+    }
+
+    private ECPoint decodePubKey(byte[] pubKey) {
+        ECPoint point = pubKeyCache.get(ByteBuffer.wrap(pubKey));
+        if (point != null)
+            return point;
+        point = ECKey.CURVE.getCurve().decodePoint(pubKey);
+        if (pubKeyCacheSlots.length > 0)
+            cachePubKey(ByteBuffer.wrap(pubKey.clone()), point);
+        return point;
+    }
+
+    private void cachePubKey(ByteBuffer key, ECPoint point) {
+        synchronized (pubKeyCacheSlots) {
+            if (pubKeyCache.putIfAbsent(key, point) != null)
+                return;
+            int slot;
+            if (pubKeyCacheSlotsUsed < pubKeyCacheSlots.length) {
+                slot = pubKeyCacheSlotsUsed++;
+            } else {
+                slot = ThreadLocalRandom.current().nextInt(pubKeyCacheSlots.length);
+                pubKeyCache.remove(pubKeyCacheSlots[slot]);
+            }
+            pubKeyCacheSlots[slot] = key;
+        }
+    }
+
+    /** Number of decoded public keys that are currently kept. */
+    public int pubKeyCacheSize() {
+        return pubKeyCache.size();
+    }
+
+    // Same as in ECDSASigner: use the leftmost bits of the hash if it's longer than the curve order.
+    static BigInteger calculateE(BigInteger n, byte[] hash) {
+        int log2n = n.bitLength();
+        int hashBitLength = hash.length * 8;
+        BigInteger e = new BigInteger(1, hash);
+        if (log2n < hashBitLength)
+            e = e.shiftRight(hashBitLength - log2n);
+        return e;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.crypto;
+
+import org.bouncycastle.math.ec.ECPoint;
+import org.bouncycastle.util.BigIntegers;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * <p>Verifies many ECDSA signatures at once. Signatures are {@link #add(byte[], ECKey.ECDSASignature, byte[]) added}
+ * one by one and then {@link #verify()}d together, which yields a separate result for each of them.</p>
+ *
+ * <p>Compared to calling {@link ECKey#verify(byte[], ECKey.ECDSASignature, byte[])} in a loop, this decodes each
+ * distinct public key only once, replaces the modular inversions of the {@code s} values with a single inversion per
+ * chunk of signatures (Montgomery's trick) and verifies the chunks on all cores.</p>
+ *
+ * <p>If a {@link Secp256k1Provider} other than {@link BouncyCastleSecp256k1Provider} has been selected via
+ * {@link ECKey#setSecp256k1Provider(Secp256k1Provider)}, signatures are verified by that provider instead, still in
+ * parallel.</p>
+ *
+ * <p>Instances of this class are not thread-safe.</p>
+ */
+public final class ECDSABatchVerifier {
+    // Signatures up to this number are verified by a single task, sharing one modular inversion.
+    private static final int SIGNATURES_PER_TASK = 64;
+
+    private final List<byte[]> hashes = new ArrayList<>();
+    private final List<ECKey.ECDSASignature> signatures = new ArrayList<>();
+    private final List<byte[]> pubKeys = new ArrayList<>();
+
+    /**
+     * Add a signature to the batch.
+     *
+     * @param hash      hash that was signed
+     * @param signature signature to verify
+     * @param pubKey    encoded public key
+     * @return index of the result of this signature in the array returned by {@link #verify()}
+     */
+    public int add(byte[] hash, ECKey.ECDSASignature signature, byte[] pubKey) {
+        hashes.add(Objects.requireNonNull(hash));
+        signatures.add(Objects.requireNonNull(signature));
+        pubKeys.add(Objects.requireNonNull(pubKey));
+        return hashes.size() - 1;
+    }
+
+    /** Number of signatures in the batch. */
+    public int size() {
+        return hashes.size();
+    }
+
+    /**
+     * Verify all signatures of the batch on the {@link ForkJoinPool#commonPool() common pool}.
+     *
+     * @return for each signature in the order they were added, true if it is valid; malformed public keys yield
+     *         false
+     */
+    public boolean[] verify() {
+        return verify(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Verify all signatures of the batch on the given pool.
+     *
+     * @param pool pool to verify on
+     * @return for each signature in the order they were added, true if it is valid
+     */
+    public boolean[] verify(ForkJoinPool pool) {
+        boolean[] results = new boolean[size()];
+        if (results.length > 0) {
+            Secp256k1Provider provider = ECKey.getSecp256k1Provider();
+            pool.invoke(new Chunk(provider instanceof BouncyCastleSecp256k1Provider ? null : provider, results,
+                    new ConcurrentHashMap<>(), 0, results.length));
+        }
+        return results;
+    }
+
+    /** Verifies the signatures {@code from} (inclusive) to {@code to} (exclusive). */
+    @SuppressWarnings("serial")
+    private final class Chunk extends RecursiveAction {
+        private final Secp256k1Provider provider; // null for the built-in batch verification
+        private final boolean[] results;
+        private final ConcurrentHashMap<ByteBuffer, Optional<ECPoint>> points;
+        private final int from;
+        private final int to;
+
+        Chunk(Secp256k1Provider provider, boolean[] results, ConcurrentHashMap<ByteBuffer, Optional<ECPoint>> points,
+              int from, int to) {
+            this.provider = provider;
+            this.results = results;
+            this.points = points;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > SIGNATURES_PER_TASK) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Chunk(provider, results, points, from, mid), new Chunk(provider, results, points, mid, to));
+                return;
+            }
+            if (provider != null) {
+                for (int i = from; i < to; i++)
+                    results[i] = verifyWithProvider(i);
+                return;
+            }
+
+            // Montgomery's trick: invert the product of all s values once, then recover the individual inverses with
+            // multiplications only.
+            BigInteger n = ECKey.CURVE.getN();
+            int[] indexes = new int[to - from];
+            BigInteger[] products = new BigInteger[to - from];
+            int count = 0;
+            BigInteger product = BigInteger.ONE;
+            for (int i = from; i < to; i++) {
+                BigInteger r = signatures.get(i).r;
+                BigInteger s = signatures.get(i).s;
+                if (r.signum() <= 0 || r.compareTo(n) >= 0 || s.signum() <= 0 || s.compareTo(n) >= 0)
+                    continue; // results[i] stays false
+                product = product.multiply(s).mod(n);
+                indexes[count] = i;
+                products[count] = product;
+                count++;
+            }
+            if (count == 0)
+                return;
+            BigInteger inverse = BigIntegers.modOddInverseVar(n, product);
+            for (int j = count - 1; j >= 0; j--) {
+                int i = indexes[j];
+                BigInteger w = j == 0 ? inverse : inverse.multiply(products[j - 1]).mod(n);
+                if (j > 0)
+                    inverse = inverse.multiply(signatures.get(i).s).mod(n);
+                Optional<ECPoint> q = decodePubKey(pubKeys.get(i));
+                if (q.isPresent())
+                    results[i] = BouncyCastleSecp256k1Provider.verify(
+                            BouncyCastleSecp256k1Provider.calculateE(n, hashes.get(i)), signatures.get(i).r, w,
+                            q.get());
+            }
+        }
+
+        private boolean verifyWithProvider(int i) {
+            try {
+                return provider.verify(hashes.get(i), signatures.get(i), pubKeys.get(i));
+            } catch (RuntimeException e) {
+                // a malformed public key only invalidates its own entry, not the whole batch
+                return false;
+            }
+        }
+
+        private Optional<ECPoint> decodePubKey(byte[] pubKey) {
+            return points.computeIfAbsent(ByteBuffer.wrap(pubKey), k -> {
+                try {
+                    return Optional.of(ECKey.CURVE.getCurve().decodePoint(pubKey));
+                } catch (IllegalArgumentException e) {
+                    return Optional.empty();
+                }
+            });
+        }
+    }
+}
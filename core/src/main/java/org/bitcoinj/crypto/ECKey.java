@@ -46,15 +46,12 @@ import org.bouncycastle.asn1.DLSequence;
 import org.bouncycastle.asn1.x9.X9ECParameters;
 import org.bouncycastle.asn1.x9.X9IntegerConverter;
 import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
-import org.bouncycastle.crypto.digests.SHA256Digest;
 import org.bouncycastle.crypto.ec.CustomNamedCurves;
 import org.bouncycastle.crypto.generators.ECKeyPairGenerator;
 import org.bouncycastle.crypto.params.ECDomainParameters;
 import org.bouncycastle.crypto.params.ECKeyGenerationParameters;
 import org.bouncycastle.crypto.params.ECPrivateKeyParameters;
 import org.bouncycastle.crypto.params.ECPublicKeyParameters;
-import org.bouncycastle.crypto.signers.ECDSASigner;
-import org.bouncycastle.crypto.signers.HMacDSAKCalculator;
 import org.bouncycastle.math.ec.ECAlgorithms;
 import org.bouncycastle.math.ec.ECPoint;
 import org.bouncycastle.math.ec.FixedPointCombMultiplier;
@@ -76,8 +73,10 @@ import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.Iterator;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.ServiceLoader;
 
 import static org.bitcoinj.base.internal.Preconditions.checkArgument;
 import static org.bitcoinj.base.internal.Preconditions.checkState;
@@ -137,6 +136,41 @@ public class ECKey implements EncryptableItem {
         return CURVE;
     }
 
+    @Nullable
+    private static volatile Secp256k1Provider secp256k1Provider;
+
+    /**
+     * Set the implementation of the ECDSA operations used for signing and verifying.
+     *
+     * @param provider provider to use from now on
+     */
+    public static void setSecp256k1Provider(Secp256k1Provider provider) {
+        secp256k1Provider = Objects.requireNonNull(provider);
+    }
+
+    /**
+     * Get the implementation of the ECDSA operations used for signing and verifying. Unless one has been set via
+     * {@link #setSecp256k1Provider(Secp256k1Provider)}, this is the first provider found by {@link ServiceLoader},
+     * or else a {@link BouncyCastleSecp256k1Provider}.
+     *
+     * @return provider in use
+     */
+    public static Secp256k1Provider getSecp256k1Provider() {
+        Secp256k1Provider provider = secp256k1Provider;
+        if (provider == null) {
+            synchronized (ECKey.class) {
+                provider = secp256k1Provider;
+                if (provider == null) {
+                    Iterator<Secp256k1Provider> providers = ServiceLoader.load(Secp256k1Provider.class).iterator();
+                    provider = providers.hasNext() ? providers.next() : new BouncyCastleSecp256k1Provider();
+                    log.info("Using {} for secp256k1", provider.getClass().getName());
+                    secp256k1Provider = provider;
+                }
+            }
+        }
+        return provider;
+    }
+
     /**
      * Equal to CURVE.getN().shiftRight(1), used for canonicalising the S value of a signature. If you aren't
      * sure what this is about, you can ignore it.
@@ -593,11 +627,7 @@ public class ECKey implements EncryptableItem {
 
     protected ECDSASignature doSign(Sha256Hash input, BigInteger privateKeyForSigning) {
         Objects.requireNonNull(privateKeyForSigning);
-        ECDSASigner signer = new ECDSASigner(new HMacDSAKCalculator(new SHA256Digest()));
-        ECPrivateKeyParameters privKey = new ECPrivateKeyParameters(privateKeyForSigning, CURVE);
-        signer.init(true, privKey);
-        BigInteger[] components = signer.generateSignature(input.getBytes());
-        return new ECDSASignature(components[0], components[1]).toCanonicalised();
+        return getSecp256k1Provider().sign(input.getBytes(), privateKeyForSigning).toCanonicalised();
     }
 
     /**
@@ -608,11 +638,8 @@ public class ECKey implements EncryptableItem {
      * @param pub       The public key bytes to use.
      */
     public static boolean verify(byte[] data, ECDSASignature signature, byte[] pub) {
-        ECDSASigner signer = new ECDSASigner();
-        ECPublicKeyParameters params = new ECPublicKeyParameters(CURVE.getCurve().decodePoint(pub), CURVE);
-        signer.init(false, params);
         try {
-            return signer.verifySignature(data, signature.r, signature.s);
+            return getSecp256k1Provider().verify(data, signature, pub);
         } catch (NullPointerException e) {
             // Bouncy Castle contains a bug that can cause NPEs given specially crafted signatures. Those signatures
             // are inherently invalid/attack sigs so we just fail them here rather than crash the thread.
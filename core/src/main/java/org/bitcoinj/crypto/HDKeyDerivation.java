@@ -23,8 +23,12 @@ import org.bouncycastle.math.ec.ECPoint;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.function.Supplier;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import static org.bitcoinj.base.internal.Preconditions.checkArgument;
@@ -50,6 +54,9 @@ public final class HDKeyDerivation {
      */
     public static final int MAX_CHILD_DERIVATION_ATTEMPTS = 100;
 
+    // Batches of at least this many keys are derived in parallel.
+    private static final int PARALLEL_DERIVATION_THRESHOLD = 32;
+
     /**
      * Generates a new deterministic key from the given seed, which can be any arbitrary byte array. However resist
      * the temptation to use a string as the seed - any key derived from a password is likely to be weak and easily
@@ -136,6 +143,70 @@ public final class HDKeyDerivation {
         return Stream.generate(new KeySupplier(parent, childNumber));
     }
 
+    /**
+     * <p>Derive the public keys of a range of non-hardened children, skipping children for which derivation fails like
+     * {@link #generate(DeterministicKey, int)} does. The result is the same as that of
+     * {@code generate(parent, childNumber).limit(count)} with private key bytes dropped.</p>
+     *
+     * <p>Each child key is the parent point plus a tweak times the generator. The tweaks are calculated and multiplied
+     * on the common {@link java.util.concurrent.ForkJoinPool} for larger batches, and the resulting points are converted
+     * to affine coordinates all at once, which needs a single field inversion instead of one per key.</p>
+     *
+     * @param parent      the parent key
+     * @param childNumber the index of the first child to derive, must not be hardened
+     * @param count       the number of keys to derive
+     * @return unmodifiable list of keys, in order of their child numbers
+     */
+    public static List<DeterministicKey> deriveChildKeys(DeterministicKey parent, int childNumber, int count) {
+        checkArgument(count >= 0, () -> "count must not be negative: " + count);
+        checkArgument(!new ChildNumber(childNumber).isHardened(), () ->
+                "hardened derivation is unsupported: " + childNumber);
+        if (count == 0)
+            return Collections.emptyList();
+        byte[] parentPublicKey = parent.getPubKeyPoint().getEncoded(true);
+        ECPoint parentPoint = parent.getPubKeyPoint();
+        byte[][] chainCodes = new byte[count][];
+        ECPoint[] points = new ECPoint[count];
+        IntStream children = IntStream.range(0, count);
+        if (count >= PARALLEL_DERIVATION_THRESHOLD)
+            children = children.parallel();
+        children.forEach(i -> {
+            ByteBuffer data = ByteBuffer.allocate(37);
+            data.put(parentPublicKey);
+            data.putInt(childNumber + i);
+            byte[] hmac = HDUtils.hmacSha512(parent.getChainCode(), data.array());
+            BigInteger tweak = ByteUtils.bytesToBigInteger(Arrays.copyOfRange(hmac, 0, 32));
+            if (tweak.compareTo(ECKey.CURVE.getN()) > 0) // same check as assertLessThanN()
+                return; // invalid child, skipped
+            chainCodes[i] = Arrays.copyOfRange(hmac, 32, 64);
+            // not normalized, that is done for all points at once below
+            points[i] = ECKey.publicPointFromPrivate(tweak).add(parentPoint);
+        });
+
+        List<ECPoint> valid = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            if (points[i] != null && !points[i].isInfinity())
+                valid.add(points[i]);
+        ECPoint[] normalized = valid.toArray(new ECPoint[0]);
+        ECKey.CURVE.getCurve().normalizeAll(normalized);
+
+        List<DeterministicKey> keys = new ArrayList<>(count);
+        int next = 0;
+        for (int i = 0; i < count; i++) {
+            if (points[i] == null || points[i].isInfinity())
+                continue;
+            HDPath path = parent.getPath().extend(new ChildNumber(childNumber + i, false));
+            keys.add(new DeterministicKey(path, chainCodes[i], new LazyECPoint(normalized[next++], true), null,
+                    parent));
+        }
+        // Make up for the children that were skipped, which is astronomically unlikely.
+        generate(parent, childNumber + count)
+                .limit(count - keys.size())
+                .map(DeterministicKey::dropPrivateBytes)
+                .forEach(keys::add);
+        return Collections.unmodifiableList(keys);
+    }
+
     /**
      * @throws HDDerivationException if private derivation is attempted for a public-only parent key, or
      * if the resulting derived key is invalid (e.g. private key == 0).
@@ -0,0 +1,53 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.crypto;
+
+import java.math.BigInteger;
+
+/**
+ * <p>Implements the ECDSA operations on the secp256k1 curve that {@link ECKey} needs. This allows plugging in
+ * alternative implementations, for example a binding to the native libsecp256k1.</p>
+ *
+ * <p>{@link ECKey} uses the provider set via {@link ECKey#setSecp256k1Provider(Secp256k1Provider)}. If none is set,
+ * the first provider found by {@link java.util.ServiceLoader} is used, and if there is none either
+ * {@link BouncyCastleSecp256k1Provider}.</p>
+ *
+ * <p>Implementations must be thread-safe.</p>
+ */
+public interface Secp256k1Provider {
+    /**
+     * Sign the given hash with the given private key. The nonce must be derived deterministically, as specified by
+     * <a href="https://tools.ietf.org/html/rfc6979">RFC 6979</a>, and signing should not leak the private key
+     * via timing. The returned signature does not need to be canonical.
+     *
+     * @param hash    hash to sign
+     * @param privKey private key to sign with
+     * @return signature
+     */
+    ECKey.ECDSASignature sign(byte[] hash, BigInteger privKey);
+
+    /**
+     * Verify the given signature against the given hash and public key.
+     *
+     * @param hash      hash that was signed
+     * @param signature signature to verify
+     * @param pubKey    encoded public key, compressed or uncompressed
+     * @return true if the signature is valid
+     * @throws IllegalArgumentException if the public key is not a valid point on the curve
+     */
+    boolean verify(byte[] hash, ECKey.ECDSASignature signature, byte[] pubKey);
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import org.bitcoinj.base.Sha256Hash;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static org.bitcoinj.base.internal.Preconditions.checkArgument;
+
+/**
+ * A thread-safe, bounded set of hashes. When the set is full, adding evicts a random entry. Used by
+ * {@link SignatureCache} and {@link ScriptExecutionCache}.
+ */
+final class RandomEvictionSet {
+    // Rough heap cost of an entry: the hash, its hash map node and the slot in the entries array.
+    static final int BYTES_PER_ENTRY = 160;
+
+    private final Sha256Hash[] entries;
+    private final Map<Sha256Hash, Integer> index = new HashMap<>();
+    private int size;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    static int maxEntriesForBytes(long maxBytes) {
+        checkArgument(maxBytes >= BYTES_PER_ENTRY, () -> "memory limit too low: " + maxBytes);
+        return (int) Math.min(maxBytes / BYTES_PER_ENTRY, Integer.MAX_VALUE - 8);
+    }
+
+    RandomEvictionSet(int maxEntries) {
+        checkArgument(maxEntries > 0, () -> "maxEntries must be positive: " + maxEntries);
+        this.entries = new Sha256Hash[maxEntries];
+    }
+
+    boolean contains(Sha256Hash entry) {
+        lock.readLock().lock();
+        try {
+            return index.containsKey(entry);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    void add(Sha256Hash entry) {
+        lock.writeLock().lock();
+        try {
+            if (index.containsKey(entry))
+                return;
+            int slot;
+            if (size < entries.length) {
+                slot = size++;
+            } else {
+                slot = ThreadLocalRandom.current().nextInt(entries.length);
+                index.remove(entries[slot]);
+            }
+            entries[slot] = entry;
+            index.put(entry, slot);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void clear() {
+        lock.writeLock().lock();
+        try {
+            index.clear();
+            for (int i = 0; i < size; i++)
+                entries[i] = null;
+            size = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    int maxEntries() {
+        return entries.length;
+    }
+}
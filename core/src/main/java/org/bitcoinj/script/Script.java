@@ -28,7 +28,7 @@ import org.bitcoinj.base.Coin;
 import org.bitcoinj.core.LockTime;
 import org.bitcoinj.crypto.ECKey;
 import org.bitcoinj.base.LegacyAddress;
-import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.PrecomputedTransactionData;
 import org.bitcoinj.base.SegwitAddress;
 import org.bitcoinj.base.Sha256Hash;
 import org.bitcoinj.crypto.SignatureDecodeException;
@@ -207,14 +207,80 @@ public class Script {
         CHECKSEQUENCEVERIFY // Enable CHECKSEQUENCEVERIFY operation
     }
     public static final EnumSet<VerifyFlag> ALL_VERIFY_FLAGS = EnumSet.allOf(VerifyFlag.class);
+
+    /**
+     * Implementations of the script interpreter, see {@link #setInterpreter(Interpreter)}.
+     */
+    public enum Interpreter {
+        /** The original interpreter, {@link #executeScript(Transaction, long, Script, LinkedList, Set)}. */
+        LINKED_LIST,
+        /**
+         * An allocation-light interpreter that uses array-backed stacks, constant-time conditional tracking and
+         * {@code long} script numbers. It has the same consensus semantics as {@link #LINKED_LIST}.
+         */
+        ARRAY
+    }
+    private static volatile Interpreter interpreter = Interpreter.LINKED_LIST;
+
+    /**
+     * Select the interpreter used to verify scripts, by {@link #correctlySpends(Transaction, long, Script, Set)}
+     * and the methods that delegate to it. The default is {@link Interpreter#LINKED_LIST}.
+     *
+     * @param interpreter interpreter to use from now on
+     */
+    public static void setInterpreter(Interpreter interpreter) {
+        Script.interpreter = Objects.requireNonNull(interpreter);
+    }
+
+    /**
+     * Get the interpreter used to verify scripts, see {@link #setInterpreter(Interpreter)}.
+     *
+     * @return interpreter in use
+     */
+    public static Interpreter getInterpreter() {
+        return interpreter;
+    }
+
+    @Nullable
+    private static volatile SignatureCache signatureCache = SignatureCache.withMaxBytes(SignatureCache.DEFAULT_MAX_BYTES);
+
+    /**
+     * Select the cache of verified signatures that is consulted during script verification. By default, a cache
+     * limited to {@link SignatureCache#DEFAULT_MAX_BYTES} is used.
+     *
+     * @param signatureCache cache to use from now on, or null to disable caching
+     */
+    public static void setSignatureCache(@Nullable SignatureCache signatureCache) {
+        Script.signatureCache = signatureCache;
+    }
+
+    /**
+     * Get the cache of verified signatures that is consulted during script verification.
+     *
+     * @return signature cache, or null if caching is disabled
+     */
+    @Nullable
+    public static SignatureCache getSignatureCache() {
+        return signatureCache;
+    }
+
+    /** Verifies a signature, consulting the signature cache if there is one. */
+    /* package private */ static boolean verifySignature(Sha256Hash sigHash, byte[] pubKey, byte[] sigBytes,
+                                                         ECKey.ECDSASignature signature) {
+        SignatureCache cache = signatureCache;
+        if (cache == null)
+            return ECKey.verify(sigHash.getBytes(), signature, pubKey);
+        return cache.verify(sigHash, pubKey, sigBytes, signature);
+    }
+
     private static final BigInteger LOCKTIME_THRESHOLD_BIG = BigInteger.valueOf(LockTime.THRESHOLD);
 
     private static final Logger log = LoggerFactory.getLogger(Script.class);
     public static final int MAX_SCRIPT_ELEMENT_SIZE = 520;  // bytes
-    private static final int MAX_OPS_PER_SCRIPT = 201;
-    private static final int MAX_STACK_SIZE = 1000;
-    private static final int MAX_PUBKEYS_PER_MULTISIG = 20;
-    private static final int MAX_SCRIPT_SIZE = 10000;
+    static final int MAX_OPS_PER_SCRIPT = 201;
+    static final int MAX_STACK_SIZE = 1000;
+    static final int MAX_PUBKEYS_PER_MULTISIG = 20;
+    static final int MAX_SCRIPT_SIZE = 10000;
     public static final int SIG_SIZE = 75;
     /** Max number of sigops allowed in a standard p2sh redeem script */
     public static final int MAX_P2SH_SIGOPS = 15;
@@ -842,7 +908,7 @@ public class Script {
     
     ////////////////////// Script verification and helpers ////////////////////////////////
     
-    private static boolean castToBool(byte[] data) {
+    /* package private */ static boolean castToBool(byte[] data) {
         for (int i = 0; i < data.length; i++)
         {
             // "Can be negative zero" - Bitcoin Core (see OpenSSL's BN_bn2mpi)
@@ -1483,7 +1549,7 @@ public class Script {
         checkSequence(nSequence, txContainingThis, index);
     }
 
-    private static void checkSequence(long nSequence, Transaction txContainingThis, int index) {
+    /* package private */ static void checkSequence(long nSequence, Transaction txContainingThis, int index) {
         // Relative lock times are supported by comparing the passed
         // in operand to the sequence number of the input.
         long txToSequence = txContainingThis.getInput(index).getSequenceNumber();
@@ -1554,7 +1620,7 @@ public class Script {
 
             // TODO: Should check hash type is known
             Sha256Hash hash = txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
-            sigValid = ECKey.verify(hash.getBytes(), sig, pubKey);
+            sigValid = verifySignature(hash, pubKey, sigBytes, sig);
         } catch (VerificationException.NoncanonicalSignature e) {
             throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_DER, "Script contains non-canonical signature");
         } catch (SignatureDecodeException e) {
@@ -1630,9 +1696,10 @@ public class Script {
             // We could reasonably move this out of the loop, but because signature verification is significantly
             // more expensive than hashing, its not a big deal.
             try {
-                TransactionSignature sig = TransactionSignature.decodeFromBitcoin(sigs.getFirst(), requireCanonical, false);
+                byte[] sigBytes = sigs.getFirst();
+                TransactionSignature sig = TransactionSignature.decodeFromBitcoin(sigBytes, requireCanonical, false);
                 Sha256Hash hash = txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
-                if (ECKey.verify(hash.getBytes(), sig, pubKey))
+                if (verifySignature(hash, pubKey, sigBytes, sig))
                     sigs.pollFirst();
             } catch (Exception e) {
                 // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
@@ -1671,52 +1738,76 @@ public class Script {
      */
     public void correctlySpends(Transaction txContainingThis, int scriptSigIndex, @Nullable TransactionWitness witness, @Nullable Coin value,
             Script scriptPubKey, Set<VerifyFlag> verifyFlags) throws ScriptException {
+        correctlySpends(txContainingThis, scriptSigIndex, witness, value, scriptPubKey, verifyFlags, null);
+    }
+
+    /**
+     * Verifies that this script (interpreted as a scriptSig) correctly spends the given scriptPubKey. Use this variant
+     * when verifying more than one input of the same transaction.
+     * @param txContainingThis The transaction in which this input scriptSig resides.
+     *                         Accessing txContainingThis from another thread while this method runs results in undefined behavior.
+     * @param scriptSigIndex The index in txContainingThis of the scriptSig (note: NOT the index of the scriptPubKey).
+     * @param scriptPubKey The connected scriptPubKey containing the conditions needed to claim the value.
+     * @param witness Transaction witness belonging to the transaction input containing this script. Needed for segwit.
+     * @param value Value of the output. Needed for segwit scripts.
+     * @param verifyFlags Each flag enables one validation rule.
+     * @param precomputed Signature hash parts precomputed from txContainingThis, or null to compute them on demand.
+     */
+    public void correctlySpends(Transaction txContainingThis, int scriptSigIndex, @Nullable TransactionWitness witness, @Nullable Coin value,
+            Script scriptPubKey, Set<VerifyFlag> verifyFlags, @Nullable PrecomputedTransactionData precomputed)
+            throws ScriptException {
         if (ScriptPattern.isP2WPKH(scriptPubKey)) {
             // For segwit, full validation isn't implemented. So we simply check the signature. P2SH_P2WPKH is handled
             // by the P2SH code for now.
             if (witness.getPushCount() < 2)
                 throw new ScriptException(ScriptError.SCRIPT_ERR_WITNESS_PROGRAM_WITNESS_EMPTY, witness.toString());
+            byte[] sigBytes = witness.getPush(0);
             TransactionSignature signature;
             try {
-                signature = TransactionSignature.decodeFromBitcoin(witness.getPush(0), true, true);
+                signature = TransactionSignature.decodeFromBitcoin(sigBytes, true, true);
             } catch (SignatureDecodeException x) {
                 throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_DER, "Cannot decode", x);
             }
             ECKey pubkey = ECKey.fromPublicOnly(witness.getPush(1));
             Script scriptCode = ScriptBuilder.createP2PKHOutputScript(pubkey);
-            Sha256Hash sigHash = txContainingThis.hashForWitnessSignature(scriptSigIndex, scriptCode, value,
-                    signature.sigHashMode(), false);
-            boolean validSig = pubkey.verify(sigHash, signature);
+            byte sigHashType = (byte) TransactionSignature.calcSigHashValue(signature.sigHashMode(), false);
+            if (precomputed == null)
+                precomputed = PrecomputedTransactionData.of(txContainingThis);
+            Sha256Hash sigHash = txContainingThis.hashForWitnessSignature(scriptSigIndex, scriptCode.program(), value,
+                    sigHashType, precomputed);
+            boolean validSig = verifySignature(sigHash, pubkey.getPubKey(), sigBytes, signature);
             if (!validSig)
                 throw new ScriptException(ScriptError.SCRIPT_ERR_CHECKSIGVERIFY, "Invalid signature");
         } else if (ScriptPattern.isP2PKH(scriptPubKey)) {
             if (chunks.size() != 2)
                 throw new ScriptException(ScriptError.SCRIPT_ERR_SCRIPT_SIZE, "Invalid size: " + chunks.size());
+            byte[] sigBytes = chunks.get(0).data;
             TransactionSignature signature;
             try {
-                signature = TransactionSignature.decodeFromBitcoin(chunks.get(0).data, true, true);
+                signature = TransactionSignature.decodeFromBitcoin(sigBytes, true, true);
             } catch (SignatureDecodeException x) {
                 throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_DER, "Cannot decode", x);
             }
             ECKey pubkey = ECKey.fromPublicOnly(chunks.get(1).data);
             Sha256Hash sigHash = txContainingThis.hashForSignature(scriptSigIndex, scriptPubKey,
                     signature.sigHashMode(), false);
-            boolean validSig = pubkey.verify(sigHash, signature);
+            boolean validSig = verifySignature(sigHash, pubkey.getPubKey(), sigBytes, signature);
             if (!validSig)
                 throw new ScriptException(ScriptError.SCRIPT_ERR_CHECKSIGVERIFY, "Invalid signature");
         } else if (ScriptPattern.isP2PK(scriptPubKey)) {
             if (chunks.size() != 1)
                 throw new ScriptException(ScriptError.SCRIPT_ERR_SCRIPT_SIZE, "Invalid size: " + chunks.size());
+            byte[] sigBytes = chunks.get(0).data;
             TransactionSignature signature;
             try {
-                signature = TransactionSignature.decodeFromBitcoin(chunks.get(0).data, false, false);
+                signature = TransactionSignature.decodeFromBitcoin(sigBytes, false, false);
             } catch (SignatureDecodeException x) {
                 throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_DER, "Cannot decode", x);
             }
             ECKey pubkey = ECKey.fromPublicOnly(ScriptPattern.extractKeyFromP2PK(scriptPubKey));
             Sha256Hash sigHash = txContainingThis.hashForSignature(scriptSigIndex, scriptPubKey,
                     signature.sigHashMode(), false);
-            boolean validSig = pubkey.verify(sigHash, signature);
+            boolean validSig = verifySignature(sigHash, pubkey.getPubKey(), sigBytes, signature);
             if (!validSig)
                 throw new ScriptException(ScriptError.SCRIPT_ERR_CHECKSIGVERIFY, "Invalid signature");
         } else {
@@ -1736,12 +1827,9 @@ public class Script {
     @Deprecated
     public void correctlySpends(Transaction txContainingThis, long scriptSigIndex, Script scriptPubKey,
                                 Set<VerifyFlag> verifyFlags) throws ScriptException {
-        // Clone the transaction because executing the script involves editing it, and if we die, we'll leave
-        // the tx half broken (also it's not so thread safe to work on it directly.
-        try {
-            txContainingThis = Transaction.read(ByteBuffer.wrap(txContainingThis.serialize()));
-        } catch (ProtocolException e) {
-            throw new RuntimeException(e);   // Should not happen unless we were given a totally broken transaction.
+        if (interpreter == Interpreter.ARRAY) {
+            ScriptInterpreter.correctlySpends(this, txContainingThis, (int) scriptSigIndex, scriptPubKey, verifyFlags);
+            return;
         }
         if (program().length > MAX_SCRIPT_SIZE || scriptPubKey.program().length > MAX_SCRIPT_SIZE)
             throw new ScriptException(ScriptError.SCRIPT_ERR_SCRIPT_SIZE, "Script larger than 10,000 bytes");
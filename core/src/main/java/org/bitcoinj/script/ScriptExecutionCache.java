@@ -0,0 +1,143 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.base.internal.ByteUtils;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.script.Script.VerifyFlag;
+
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>A bounded cache of transactions whose scripts have all been verified successfully, the equivalent of
+ * {@code g_scriptExecutionCache} in Bitcoin Core. Entries are keyed by a salted hash of the wtxid and the set of
+ * {@link VerifyFlag}s the scripts were verified with. The wtxid commits to the outpoints being spent and thus to the
+ * scriptPubKeys the inputs were verified against, so a hit means all inputs of the transaction are valid under
+ * those flags. When the cache is full, a random entry is evicted.</p>
+ *
+ * <p>Instances of this class are thread-safe.</p>
+ */
+public final class ScriptExecutionCache {
+    /** Default memory limit, in bytes. */
+    public static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+    private final byte[] salt = new byte[32];
+    private final RandomEvictionSet entries;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Create a script execution cache that uses at most roughly the given amount of memory.
+     *
+     * @param maxBytes memory limit, in bytes
+     * @return script execution cache
+     */
+    public static ScriptExecutionCache withMaxBytes(long maxBytes) {
+        return new ScriptExecutionCache(RandomEvictionSet.maxEntriesForBytes(maxBytes));
+    }
+
+    /**
+     * Create a script execution cache that holds at most the given number of entries.
+     *
+     * @param maxEntries maximum number of cached transactions
+     */
+    public ScriptExecutionCache(int maxEntries) {
+        this.entries = new RandomEvictionSet(maxEntries);
+        new SecureRandom().nextBytes(salt);
+    }
+
+    /**
+     * Check if the scripts of all inputs of the given transaction have been verified successfully with the given
+     * flags.
+     *
+     * @param tx          transaction to check
+     * @param verifyFlags flags to check
+     * @return true if all inputs are known to be valid
+     */
+    public boolean contains(Transaction tx, Set<VerifyFlag> verifyFlags) {
+        boolean contains = entries.contains(entryKey(tx, verifyFlags));
+        if (contains)
+            hits.increment();
+        else
+            misses.increment();
+        return contains;
+    }
+
+    /**
+     * Record that the scripts of all inputs of the given transaction have been verified successfully with the given
+     * flags.
+     *
+     * @param tx          transaction that was verified
+     * @param verifyFlags flags that were verified with
+     */
+    public void add(Transaction tx, Set<VerifyFlag> verifyFlags) {
+        entries.add(entryKey(tx, verifyFlags));
+    }
+
+    private Sha256Hash entryKey(Transaction tx, Set<VerifyFlag> verifyFlags) {
+        MessageDigest digest = Sha256Hash.newDigest();
+        digest.update(salt);
+        digest.update(tx.getWTxId().getBytes());
+        byte[] flags = new byte[4];
+        ByteUtils.writeInt32LE(ScriptInterpreter.toMask(verifyFlags), flags, 0);
+        digest.update(flags);
+        return Sha256Hash.wrap(digest.digest());
+    }
+
+    /** Remove all entries. Hit and miss counters are not reset. */
+    public void clear() {
+        entries.clear();
+    }
+
+    /** Number of cached transactions. */
+    public int size() {
+        return entries.size();
+    }
+
+    /** Maximum number of cached transactions. */
+    public int maxEntries() {
+        return entries.maxEntries();
+    }
+
+    /** Number of lookups that found the transaction. */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /** Number of lookups that didn't find the transaction. */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /** Ratio of hits to all lookups, or 0 if nothing has been looked up yet. */
+    public double getHitRate() {
+        long hits = getHits();
+        long total = hits + getMisses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public String toString() {
+        return "ScriptExecutionCache{size=" + size() + ", maxEntries=" + maxEntries() + ", hits=" + getHits()
+                + ", misses=" + getMisses() + "}";
+    }
+}
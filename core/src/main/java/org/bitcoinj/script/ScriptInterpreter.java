@@ -0,0 +1,820 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.core.LockTime;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.crypto.SignatureDecodeException;
+import org.bitcoinj.crypto.TransactionSignature;
+import org.bitcoinj.crypto.internal.CryptoUtils;
+import org.bitcoinj.script.Script.VerifyFlag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import static org.bitcoinj.script.ScriptOpCodes.*;
+
+/**
+ * <p>An allocation-light implementation of the script interpreter, selected via
+ * {@link Script#setInterpreter(Script.Interpreter)}. It has the same consensus semantics as
+ * {@link Script#executeScript(Transaction, long, Script, java.util.LinkedList, Set)}, and fails with the same
+ * {@link ScriptError}s.</p>
+ *
+ * <p>Compared to the original interpreter, stacks are backed by arrays rather than linked lists, conditional execution
+ * is tracked in constant time rather than by searching the whole if-stack for every opcode, disabled opcodes are
+ * looked up in a table, script numbers are handled as {@code long} rather than {@link java.math.BigInteger}, and
+ * verify flags are converted to a bit mask once per script.</p>
+ */
+final class ScriptInterpreter {
+    private static final Logger log = LoggerFactory.getLogger(ScriptInterpreter.class);
+
+    private static final byte[] EMPTY = new byte[0];
+    private static final byte[] TRUE = new byte[] { 1 };
+
+    private static final boolean[] DISABLED_OPCODES = new boolean[256];
+    static {
+        for (int opcode : new int[] { OP_CAT, OP_SUBSTR, OP_LEFT, OP_RIGHT, OP_INVERT, OP_AND, OP_OR, OP_XOR,
+                OP_2MUL, OP_2DIV, OP_MUL, OP_DIV, OP_MOD, OP_LSHIFT, OP_RSHIFT })
+            DISABLED_OPCODES[opcode] = true;
+    }
+
+    private ScriptInterpreter() {
+    }
+
+    /**
+     * Verifies that the given scriptSig correctly spends the given scriptPubKey, see
+     * {@link Script#correctlySpends(Transaction, long, Script, Set)}.
+     */
+    static void correctlySpends(Script scriptSig, Transaction txContainingThis, int scriptSigIndex,
+                                Script scriptPubKey, Set<VerifyFlag> verifyFlags) throws ScriptException {
+        if (scriptSig.program().length > Script.MAX_SCRIPT_SIZE || scriptPubKey.program().length > Script.MAX_SCRIPT_SIZE)
+            throw new ScriptException(ScriptError.SCRIPT_ERR_SCRIPT_SIZE, "Script larger than 10,000 bytes");
+        int flags = toMask(verifyFlags);
+
+        Stack stack = new Stack();
+        Stack p2shStack = null;
+
+        execute(txContainingThis, scriptSigIndex, scriptSig, stack, flags);
+        if (isSet(flags, VerifyFlag.P2SH))
+            p2shStack = new Stack(stack);
+        execute(txContainingThis, scriptSigIndex, scriptPubKey, stack, flags);
+
+        if (stack.size() == 0)
+            throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE, "Stack empty at end of script execution.");
+        if (!Script.castToBool(stack.peek(0)))
+            throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE,
+                    "Script resulted in a non-true stack: " + Utils.toString(stack.toList()));
+
+        // See Script.correctlySpends() for an explanation of P2SH.
+        if (isSet(flags, VerifyFlag.P2SH) && ScriptPattern.isP2SH(scriptPubKey)) {
+            for (ScriptChunk chunk : scriptSig.chunks())
+                if (!chunk.isPushData())
+                    throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_PUSHONLY, "Attempted to spend a P2SH scriptPubKey with a script that contained the script op " + chunk);
+
+            Script scriptPubKeyP2SH = Script.parse(p2shStack.pop());
+
+            execute(txContainingThis, scriptSigIndex, scriptPubKeyP2SH, p2shStack, flags);
+
+            if (p2shStack.size() == 0)
+                throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE, "P2SH stack empty at end of script execution.");
+            if (!Script.castToBool(p2shStack.peek(0)))
+                throw new ScriptException(ScriptError.SCRIPT_ERR_EVAL_FALSE,
+                        "P2SH script execution resulted in a non-true stack: " + Utils.toString(p2shStack.toList()));
+        }
+    }
+
+    /**
+     * Executes a single script on the given stack.
+     */
+    static void execute(@Nullable Transaction txContainingThis, int index, Script script, Stack stack, int flags)
+            throws ScriptException {
+        int opCount = 0;
+        int lastCodeSepLocation = 0;
+
+        Stack altstack = new Stack();
+        ConditionStack conditions = new ConditionStack();
+        boolean requireMinimal = isSet(flags, VerifyFlag.MINIMALDATA);
+
+        int nextLocationInScript = 0;
+        for (ScriptChunk chunk : script.chunks()) {
+            boolean shouldExecute = conditions.allTrue();
+            int opcode = chunk.opcode;
+            nextLocationInScript += chunk.size();
+
+            // Check stack element size
+            if (chunk.data != null && chunk.data.length > Script.MAX_SCRIPT_ELEMENT_SIZE)
+                throw new ScriptException(ScriptError.SCRIPT_ERR_PUSH_SIZE, "Attempted to push a data string larger than 520 bytes");
+
+            // Note how OP_RESERVED does not count towards the opcode limit.
+            if (opcode > OP_16) {
+                opCount++;
+                if (opCount > Script.MAX_OPS_PER_SCRIPT)
+                    throw new ScriptException(ScriptError.SCRIPT_ERR_OP_COUNT, "More script operations than is allowed");
+            }
+
+            // Disabled opcodes.
+            if (DISABLED_OPCODES[opcode & 0xff])
+                throw new ScriptException(ScriptError.SCRIPT_ERR_DISABLED_OPCODE,
+                        "Script included disabled Script Op " + ScriptOpCodes.getOpCodeName(opcode));
+
+            if (shouldExecute && OP_0 <= opcode && opcode <= OP_PUSHDATA4) {
+                // Check minimal push
+                if (requireMinimal && !chunk.isShortestPossiblePushData())
+                    throw new ScriptException(ScriptError.SCRIPT_ERR_MINIMALDATA, "Script included a not minimal push operation.");
+
+                stack.push(opcode == OP_0 ? EMPTY : chunk.data);
+            } else if (shouldExecute || (OP_IF <= opcode && opcode <= OP_ENDIF)) {
+                switch (opcode) {
+                case OP_IF:
+                case OP_NOTIF:
+                    if (!shouldExecute) {
+                        conditions.push(false);
+                        continue;
+                    }
+                    if (stack.size() < 1)
+                        throw new ScriptException(ScriptError.SCRIPT_ERR_UNBALANCED_CONDITIONAL, "Attempted OP_IF/OP_NOTIF on an empty stack");
+                    boolean condition = Script.castToBool(stack.pop());
+                    conditions.push(opcode == OP_IF ? condition : !condition);
+                    continue;
+                case OP_ELSE:
+                    if (conditions.isEmpty())
+                        throw new ScriptException(ScriptError.SCRIPT_ERR_UNBALANCED_CONDITIONAL, "Attempted OP_ELSE without OP_IF/NOTIF");
+                    conditions.toggleTop();
+                    continue;
+                case OP_ENDIF:
+                    if (conditions.isEmpty())
+                        throw new ScriptException(ScriptError.SCRIPT_ERR_UNBALANCED_CONDITIONAL, "Attempted OP_ENDIF without OP_IF/NOTIF");
+                    conditions.pop();
+                    continue;
+
+                // OP_0 is no opcode
+                case OP_1NEGATE:
+                case OP_1:
+                case OP_2:
+                case OP_3:
+                case OP_4:
+                case OP_5:
+                case OP_6:
+                case OP_7:
+                case OP_8:
+                case OP_9:
+                case OP_10:
+                case OP_11:
+                case OP_12:
+                case OP_13:
+                case OP_14:
+                case OP_15:
+                case OP_16:
+                    stack.push(encodeNum(opcode == OP_1NEGATE ? -1 : Script.decodeFromOpN(opcode)));
+                    break;
+                case OP_NOP:
+                    break;
+                case OP_VERIFY:
+                    checkStackSize(stack, 1, "OP_VERIFY");
+                    if (!Script.castToBool(stack.pop()))
+                        throw new ScriptException(ScriptError.SCRIPT_ERR_VERIFY, "OP_VERIFY failed");
+                    break;
+                case OP_RETURN:
+                    throw new ScriptException(ScriptError.SCRIPT_ERR_OP_RETURN, "Script called OP_RETURN");
+                case OP_TOALTSTACK:
+                    checkStackSize(stack, 1, "OP_TOALTSTACK");
+                    altstack.push(stack.pop());
+                    break;
+                case OP_FROMALTSTACK:
+                    if (altstack.size() < 1)
+                        throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_ALTSTACK_OPERATION, "Attempted OP_FROMALTSTACK on an empty altstack");
+                    stack.push(altstack.pop());
+                    break;
+                case OP_2DROP:
+                    checkStackSize(stack, 2, "OP_2DROP");
+                    stack.drop(2);
+                    break;
+                case OP_2DUP:
+                    checkStackSize(stack, 2, "OP_2DUP");
+                    stack.push(stack.peek(1));
+                    stack.push(stack.peek(1));
+                    break;
+                case OP_3DUP:
+                    checkStackSize(stack, 3, "OP_3DUP");
+                    stack.push(stack.peek(2));
+                    stack.push(stack.peek(2));
+                    stack.push(stack.peek(2));
+                    break;
+                case OP_2OVER:
+                    checkStackSize(stack, 4, "OP_2OVER");
+                    stack.push(stack.peek(3));
+                    stack.push(stack.peek(3));
+                    break;
+                case OP_2ROT:
+                    checkStackSize(stack, 6, "OP_2ROT");
+                    stack.push(stack.remove(5));
+                    stack.push(stack.remove(5));
+                    break;
+                case OP_2SWAP:
+                    checkStackSize(stack, 4, "OP_2SWAP");
+                    stack.swap(3, 1);
+                    stack.swap(2, 0);
+                    break;
+                case OP_IFDUP:
+                    checkStackSize(stack, 1, "OP_IFDUP");
+                    if (Script.castToBool(stack.peek(0)))
+                        stack.push(stack.peek(0));
+                    break;
+                case OP_DEPTH:
+                    stack.push(encodeNum(stack.size()));
+                    break;
+                case OP_DROP:
+                    checkStackSize(stack, 1, "OP_DROP");
+                    stack.drop(1);
+                    break;
+                case OP_DUP:
+                    checkStackSize(stack, 1, "OP_DUP");
+                    stack.push(stack.peek(0));
+                    break;
+                case OP_NIP:
+                    checkStackSize(stack, 2, "OP_NIP");
+                    stack.remove(1);
+                    break;
+                case OP_OVER:
+                    checkStackSize(stack, 2, "OP_OVER");
+                    stack.push(stack.peek(1));
+                    break;
+                case OP_PICK:
+                case OP_ROLL:
+                    if (stack.size() < 1)
+                        throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_PICK/OP_ROLL on an empty stack");
+                    long depth = decodeNum(stack.pop(), 4, requireMinimal);
+                    if (depth < 0 || depth >= stack.size())
+                        throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "OP_PICK/OP_ROLL attempted to get data deeper than stack size");
+                    stack.push(opcode == OP_ROLL ? stack.remove((int) depth) : stack.peek((int) depth));
+                    break;
+                case OP_ROT:
+                    checkStackSize(stack, 3, "OP_ROT");
+                    stack.push(stack.remove(2));
+                    break;
+                case OP_SWAP:
+                    checkStackSize(stack, 2, "OP_SWAP");
+                    stack.swap(1, 0);
+                    break;
+                case OP_TUCK:
+                    checkStackSize(stack, 2, "OP_SWAP");
+                    stack.swap(1, 0);
+                    stack.push(stack.peek(1));
+                    break;
+                case OP_SIZE:
+                    checkStackSize(stack, 1, "OP_SIZE");
+                    stack.push(encodeNum(stack.peek(0).length));
+                    break;
+                case OP_EQUAL:
+                    checkStackSize(stack, 2, "OP_EQUAL");
+                    stack.push(Arrays.equals(stack.pop(), stack.pop()) ? TRUE : EMPTY);
+                    break;
+                case OP_EQUALVERIFY:
+                    checkStackSize(stack, 2, "OP_EQUALVERIFY");
+                    if (!Arrays.equals(stack.pop(), stack.pop()))
+                        throw new ScriptException(ScriptError.SCRIPT_ERR_EQUALVERIFY, "OP_EQUALVERIFY: non-equal data");
+                    break;
+                case OP_1ADD:
+                case OP_1SUB:
+                case OP_NEGATE:
+                case OP_ABS:
+                case OP_NOT:
+                case OP_0NOTEQUAL:
+                    if (stack.size() < 1)
+                        throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted a numeric op on an empty stack");
+                    stack.push(encodeNum(unaryNumericOp(opcode, decodeNum(stack.pop(), 4, requireMinimal))));
+                    break;
+                case OP_ADD:
+                case OP_SUB:
+                case OP_BOOLAND:
+                case OP_BOOLOR:
+                case OP_NUMEQUAL:
+                case OP_NUMNOTEQUAL:
+                case OP_LESSTHAN:
+                case OP_GREATERTHAN:
+                case OP_LESSTHANOREQUAL:
+                case OP_GREATERTHANOREQUAL:
+                case OP_MIN:
+                case OP_MAX:
+                    if (stack.size() < 2)
+                        throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted a numeric op on a stack with size < 2");
+                    long num2 = decodeNum(stack.pop(), 4, requireMinimal);
+                    long num1 = decodeNum(stack.pop(), 4, requireMinimal);
+                    stack.push(encodeNum(binaryNumericOp(opcode, num1, num2)));
+                    break;
+                case OP_NUMEQUALVERIFY:
+                    checkStackSize(stack, 2, "OP_NUMEQUALVERIFY");
+                    long numEqualVerify2 = decodeNum(stack.pop(), 4, requireMinimal);
+                    long numEqualVerify1 = decodeNum(stack.pop(), 4, requireMinimal);
+                    if (numEqualVerify1 != numEqualVerify2)
+                        throw new ScriptException(ScriptError.SCRIPT_ERR_NUMEQUALVERIFY, "OP_NUMEQUALVERIFY failed");
+                    break;
+                case OP_WITHIN:
+                    checkStackSize(stack, 3, "OP_WITHIN");
+                    long max = decodeNum(stack.pop(), 4, requireMinimal);
+                    long min = decodeNum(stack.pop(), 4, requireMinimal);
+                    long value = decodeNum(stack.pop(), 4, requireMinimal);
+                    stack.push(encodeNum(min <= value && value < max ? 1 : 0));
+                    break;
+                case OP_RIPEMD160:
+                    checkStackSize(stack, 1, "OP_RIPEMD160");
+                    stack.push(CryptoUtils.digestRipeMd160(stack.pop()));
+                    break;
+                case OP_SHA1:
+                    checkStackSize(stack, 1, "OP_SHA1");
+                    try {
+                        stack.push(MessageDigest.getInstance("SHA-1").digest(stack.pop()));
+                    } catch (NoSuchAlgorithmException e) {
+                        throw new RuntimeException(e);  // Cannot happen.
+                    }
+                    break;
+                case OP_SHA256:
+                    checkStackSize(stack, 1, "OP_SHA256");
+                    stack.push(Sha256Hash.hash(stack.pop()));
+                    break;
+                case OP_HASH160:
+                    checkStackSize(stack, 1, "OP_HASH160");
+                    stack.push(CryptoUtils.sha256hash160(stack.pop()));
+                    break;
+                case OP_HASH256:
+                    checkStackSize(stack, 1, "OP_HASH256");
+                    stack.push(Sha256Hash.hashTwice(stack.pop()));
+                    break;
+                case OP_CODESEPARATOR:
+                    lastCodeSepLocation = nextLocationInScript;
+                    break;
+                case OP_CHECKSIG:
+                case OP_CHECKSIGVERIFY:
+                    if (txContainingThis == null)
+                        throw new IllegalStateException("Script attempted signature check but no tx was provided");
+                    executeCheckSig(txContainingThis, index, script, stack, lastCodeSepLocation, opcode, flags);
+                    break;
+                case OP_CHECKMULTISIG:
+                case OP_CHECKMULTISIGVERIFY:
+                    if (txContainingThis == null)
+                        throw new IllegalStateException("Script attempted signature check but no tx was provided");
+                    opCount = executeMultiSig(txContainingThis, index, script, stack, opCount, lastCodeSepLocation, opcode, flags);
+                    break;
+                case OP_CHECKLOCKTIMEVERIFY:
+                    if (!isSet(flags, VerifyFlag.CHECKLOCKTIMEVERIFY)) {
+                        // not enabled; treat as a NOP2
+                        checkUpgradableNop(opcode, flags);
+                        break;
+                    }
+                    executeCheckLockTimeVerify(txContainingThis, index, stack, requireMinimal);
+                    break;
+                case OP_CHECKSEQUENCEVERIFY:
+                    if (!isSet(flags, VerifyFlag.CHECKSEQUENCEVERIFY)) {
+                        // not enabled; treat as a NOP3
+                        checkUpgradableNop(opcode, flags);
+                        break;
+                    }
+                    executeCheckSequenceVerify(txContainingThis, index, stack, requireMinimal);
+                    break;
+                case OP_NOP1:
+                case OP_NOP4:
+                case OP_NOP5:
+                case OP_NOP6:
+                case OP_NOP7:
+                case OP_NOP8:
+                case OP_NOP9:
+                case OP_NOP10:
+                    checkUpgradableNop(opcode, flags);
+                    break;
+
+                default:
+                    throw new ScriptException(ScriptError.SCRIPT_ERR_BAD_OPCODE, "Script used a reserved or disabled opcode: " + opcode);
+                }
+            }
+
+            if (stack.size() + altstack.size() > Script.MAX_STACK_SIZE)
+                throw new ScriptException(ScriptError.SCRIPT_ERR_STACK_SIZE, "Stack size exceeded range");
+        }
+
+        if (!conditions.isEmpty())
+            throw new ScriptException(ScriptError.SCRIPT_ERR_UNBALANCED_CONDITIONAL, "OP_IF/OP_NOTIF without OP_ENDIF");
+    }
+
+    private static void checkStackSize(Stack stack, int required, String opName) throws ScriptException {
+        if (stack.size() < required)
+            throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, required == 1 ?
+                    "Attempted " + opName + " on an empty stack" :
+                    "Attempted " + opName + " on a stack with size < " + required);
+    }
+
+    private static void checkUpgradableNop(int opcode, int flags) throws ScriptException {
+        if (isSet(flags, VerifyFlag.DISCOURAGE_UPGRADABLE_NOPS))
+            throw new ScriptException(ScriptError.SCRIPT_ERR_DISCOURAGE_UPGRADABLE_NOPS, "Script used a reserved opcode " + opcode);
+    }
+
+    private static long unaryNumericOp(int opcode, long num) {
+        switch (opcode) {
+        case OP_1ADD:
+            return num + 1;
+        case OP_1SUB:
+            return num - 1;
+        case OP_NEGATE:
+            return -num;
+        case OP_ABS:
+            return Math.abs(num);
+        case OP_NOT:
+            return num == 0 ? 1 : 0;
+        case OP_0NOTEQUAL:
+            return num != 0 ? 1 : 0;
+        default:
+            throw new AssertionError("Unreachable");
+        }
+    }
+
+    private static long binaryNumericOp(int opcode, long num1, long num2) {
+        switch (opcode) {
+        case OP_ADD:
+            return num1 + num2;
+        case OP_SUB:
+            return num1 - num2;
+        case OP_BOOLAND:
+            return num1 != 0 && num2 != 0 ? 1 : 0;
+        case OP_BOOLOR:
+            return num1 != 0 || num2 != 0 ? 1 : 0;
+        case OP_NUMEQUAL:
+            return num1 == num2 ? 1 : 0;
+        case OP_NUMNOTEQUAL:
+            return num1 != num2 ? 1 : 0;
+        case OP_LESSTHAN:
+            return num1 < num2 ? 1 : 0;
+        case OP_GREATERTHAN:
+            return num1 > num2 ? 1 : 0;
+        case OP_LESSTHANOREQUAL:
+            return num1 <= num2 ? 1 : 0;
+        case OP_GREATERTHANOREQUAL:
+            return num1 >= num2 ? 1 : 0;
+        case OP_MIN:
+            return Math.min(num1, num2);
+        case OP_MAX:
+            return Math.max(num1, num2);
+        default:
+            throw new AssertionError("Unreachable");
+        }
+    }
+
+    // This is more or less a direct translation of the code in Bitcoin Core
+    private static void executeCheckLockTimeVerify(Transaction txContainingThis, int index, Stack stack,
+                                                   boolean requireMinimal) throws ScriptException {
+        if (stack.size() < 1)
+            throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_CHECKLOCKTIMEVERIFY on a stack with size < 1");
+
+        // Thus as a special case we tell CScriptNum to accept up
+        // to 5-byte bignums to avoid year 2038 issue.
+        final long nLockTime = decodeNum(stack.peek(0), 5, requireMinimal);
+
+        if (nLockTime < 0)
+            throw new ScriptException(ScriptError.SCRIPT_ERR_NEGATIVE_LOCKTIME, "Negative locktime");
+
+        // There are two kinds of nLockTime, need to ensure we're comparing apples-to-apples
+        LockTime txContainingThisLockTime = txContainingThis.lockTime();
+        if (!(
+            ((txContainingThisLockTime instanceof LockTime.HeightLock) && nLockTime < LockTime.THRESHOLD) ||
+            ((txContainingThisLockTime instanceof LockTime.TimeLock) && nLockTime >= LockTime.THRESHOLD))
+        )
+            throw new ScriptException(ScriptError.SCRIPT_ERR_UNSATISFIED_LOCKTIME, "Lock time requirement type mismatch");
+
+        // Now that we know we're comparing apples-to-apples, the
+        // comparison is a simple numeric one.
+        if (nLockTime > txContainingThisLockTime.rawValue())
+            throw new ScriptException(ScriptError.SCRIPT_ERR_UNSATISFIED_LOCKTIME, "Lock time requirement not satisfied");
+
+        // Testing if this vin is not final is sufficient to prevent the nLockTime feature being bypassed, see
+        // Script.executeCheckLockTimeVerify().
+        if (!txContainingThis.getInput(index).hasSequence())
+            throw new ScriptException(ScriptError.SCRIPT_ERR_UNSATISFIED_LOCKTIME, "Transaction contains a final transaction input for a CHECKLOCKTIMEVERIFY script.");
+    }
+
+    private static void executeCheckSequenceVerify(Transaction txContainingThis, int index, Stack stack,
+                                                   boolean requireMinimal) throws ScriptException {
+        if (stack.size() < 1)
+            throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_CHECKSEQUENCEVERIFY on a stack with size < 1");
+
+        // As a special case we tell CScriptNum to accept up to 5-byte bignums, which are good until 2**39-1, well
+        // beyond the 2**32-1 limit of the nSequence field itself.
+        final long nSequence = decodeNum(stack.peek(0), 5, requireMinimal);
+
+        // In the rare event that the argument may be < 0 due to
+        // some arithmetic being done first, you can always use
+        // 0 MAX CHECKSEQUENCEVERIFY.
+        if (nSequence < 0)
+            throw new ScriptException(ScriptError.SCRIPT_ERR_NEGATIVE_LOCKTIME, "Negative sequence");
+
+        // To provide for future soft-fork extensibility, if the
+        // operand has the disabled lock-time flag set,
+        // CHECKSEQUENCEVERIFY behaves as a NOP.
+        if ((nSequence & TransactionInput.SEQUENCE_LOCKTIME_DISABLE_FLAG) != 0)
+            return;
+
+        // Compare the specified sequence number with the input.
+        Script.checkSequence(nSequence, txContainingThis, index);
+    }
+
+    private static void executeCheckSig(Transaction txContainingThis, int index, Script script, Stack stack,
+                                        int lastCodeSepLocation, int opcode, int flags) throws ScriptException {
+        final boolean requireCanonical = isSet(flags, VerifyFlag.STRICTENC)
+            || isSet(flags, VerifyFlag.DERSIG)
+            || isSet(flags, VerifyFlag.LOW_S);
+        if (stack.size() < 2)
+            throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_CHECKSIG(VERIFY) on a stack with size < 2");
+        byte[] pubKey = stack.pop();
+        byte[] sigBytes = stack.pop();
+
+        byte[] prog = script.program();
+        byte[] connectedScript = Arrays.copyOfRange(prog, lastCodeSepLocation, prog.length);
+        connectedScript = Script.removeAllInstancesOf(connectedScript, pushOf(sigBytes));
+
+        boolean sigValid = false;
+        try {
+            TransactionSignature sig = TransactionSignature.decodeFromBitcoin(sigBytes, requireCanonical,
+                isSet(flags, VerifyFlag.LOW_S));
+
+            // TODO: Should check hash type is known
+            Sha256Hash hash = txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
+            sigValid = Script.verifySignature(hash, pubKey, sigBytes, sig);
+        } catch (VerificationException.NoncanonicalSignature e) {
+            throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_DER, "Script contains non-canonical signature");
+        } catch (SignatureDecodeException e) {
+            // This exception occurs when signing as we run partial/invalid scripts to see if they need more
+            // signing work to be done inside LocalTransactionSigner.signInputs.
+            if (e.getMessage() != null && !e.getMessage().contains("Reached past end of ASN.1 stream"))
+                log.warn("Signature parsing failed!", e);
+        } catch (Exception e) {
+            log.warn("Signature checking failed!", e);
+        }
+
+        if (opcode == OP_CHECKSIG)
+            stack.push(sigValid ? TRUE : EMPTY);
+        else if (!sigValid)
+            throw new ScriptException(ScriptError.SCRIPT_ERR_CHECKSIGVERIFY, "Script failed OP_CHECKSIGVERIFY");
+    }
+
+    private static int executeMultiSig(Transaction txContainingThis, int index, Script script, Stack stack,
+                                       int opCount, int lastCodeSepLocation, int opcode, int flags)
+            throws ScriptException {
+        final boolean requireCanonical = isSet(flags, VerifyFlag.STRICTENC)
+            || isSet(flags, VerifyFlag.DERSIG)
+            || isSet(flags, VerifyFlag.LOW_S);
+        final boolean requireMinimal = isSet(flags, VerifyFlag.MINIMALDATA);
+        if (stack.size() < 1)
+            throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_CHECKMULTISIG(VERIFY) on a stack with size < 2");
+        int pubKeyCount = (int) decodeNum(stack.pop(), 4, requireMinimal);
+        if (pubKeyCount < 0 || pubKeyCount > Script.MAX_PUBKEYS_PER_MULTISIG)
+            throw new ScriptException(ScriptError.SCRIPT_ERR_PUBKEY_COUNT, "OP_CHECKMULTISIG(VERIFY) with pubkey count out of range");
+        opCount += pubKeyCount;
+        if (opCount > Script.MAX_OPS_PER_SCRIPT)
+            throw new ScriptException(ScriptError.SCRIPT_ERR_OP_COUNT, "Total op count > 201 during OP_CHECKMULTISIG(VERIFY)");
+        if (stack.size() < pubKeyCount + 1)
+            throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_CHECKMULTISIG(VERIFY) on a stack with size < num_of_pubkeys + 2");
+
+        byte[][] pubKeys = new byte[pubKeyCount][];
+        for (int i = 0; i < pubKeyCount; i++)
+            pubKeys[i] = stack.pop();
+
+        int sigCount = (int) decodeNum(stack.pop(), 4, requireMinimal);
+        if (sigCount < 0 || sigCount > pubKeyCount)
+            throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_COUNT, "OP_CHECKMULTISIG(VERIFY) with sig count out of range");
+        if (stack.size() < sigCount + 1)
+            throw new ScriptException(ScriptError.SCRIPT_ERR_INVALID_STACK_OPERATION, "Attempted OP_CHECKMULTISIG(VERIFY) on a stack with size < num_of_pubkeys + num_of_signatures + 3");
+
+        byte[][] sigs = new byte[sigCount][];
+        for (int i = 0; i < sigCount; i++)
+            sigs[i] = stack.pop();
+
+        byte[] prog = script.program();
+        byte[] connectedScript = Arrays.copyOfRange(prog, lastCodeSepLocation, prog.length);
+        for (byte[] sig : sigs)
+            connectedScript = Script.removeAllInstancesOf(connectedScript, pushOf(sig));
+
+        boolean valid = true;
+        int sigIndex = 0;
+        int pubKeyIndex = 0;
+        while (sigIndex < sigCount) {
+            byte[] pubKey = pubKeys[pubKeyIndex++];
+            try {
+                TransactionSignature sig = TransactionSignature.decodeFromBitcoin(sigs[sigIndex], requireCanonical, false);
+                Sha256Hash hash = txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
+                if (Script.verifySignature(hash, pubKey, sigs[sigIndex], sig))
+                    sigIndex++;
+            } catch (Exception e) {
+                // See Script.executeMultiSig(), any failure just means the signature doesn't match this key.
+            }
+
+            if (sigCount - sigIndex > pubKeyCount - pubKeyIndex) {
+                valid = false;
+                break;
+            }
+        }
+
+        // We uselessly remove a stack object to emulate a Bitcoin Core bug.
+        byte[] nullDummy = stack.pop();
+        if (isSet(flags, VerifyFlag.NULLDUMMY) && nullDummy.length > 0)
+            throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_NULLFAIL, "OP_CHECKMULTISIG(VERIFY) with non-null nulldummy: " + Arrays.toString(nullDummy));
+
+        if (opcode == OP_CHECKMULTISIG)
+            stack.push(valid ? TRUE : EMPTY);
+        else if (!valid)
+            throw new ScriptException(ScriptError.SCRIPT_ERR_SIG_NULLFAIL, "Script failed OP_CHECKMULTISIGVERIFY");
+        return opCount;
+    }
+
+    /** Returns the given data as it would be pushed by a script. */
+    private static byte[] pushOf(byte[] data) {
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream(data.length + 1);
+        try {
+            Script.writeBytes(outStream, data);
+        } catch (IOException e) {
+            throw new RuntimeException(e); // Cannot happen
+        }
+        return outStream.toByteArray();
+    }
+
+    /**
+     * Decodes a script number: little endian, with the sign in the most significant bit. This is equivalent to
+     * {@link Script#castToBigInteger(byte[], int, boolean)}, but since numbers are at most 5 bytes they always fit
+     * into a {@code long}.
+     */
+    static long decodeNum(byte[] chunk, int maxLength, boolean requireMinimal) throws ScriptException {
+        if (chunk.length > maxLength)
+            throw new ScriptException(ScriptError.SCRIPT_ERR_UNKNOWN_ERROR, "Script attempted to use an integer larger than " + maxLength + " bytes");
+
+        if (chunk.length == 0)
+            return 0;
+        int last = chunk.length - 1;
+        // If the most-significant-byte - excluding the sign bit - is zero then we're not minimal, unless the most
+        // significant bit of the second-most-significant-byte is set and would conflict with the sign bit.
+        if (requireMinimal && (chunk[last] & 0x7f) == 0 && (chunk.length <= 1 || (chunk[last - 1] & 0x80) == 0))
+            throw new ScriptException(ScriptError.SCRIPT_ERR_UNKNOWN_ERROR, "non-minimally encoded script number");
+
+        long result = 0;
+        for (int i = 0; i < last; i++)
+            result |= (chunk[i] & 0xffL) << (8 * i);
+        result |= (chunk[last] & 0x7fL) << (8 * last);
+        return (chunk[last] & 0x80) != 0 ? -result : result;
+    }
+
+    /**
+     * Encodes a script number in the minimal encoding, the inverse of {@link #decodeNum(byte[], int, boolean)}.
+     */
+    static byte[] encodeNum(long value) {
+        if (value == 0)
+            return EMPTY;
+        boolean negative = value < 0;
+        long abs = Math.abs(value);
+        int length = (64 - Long.numberOfLeadingZeros(abs) + 7) / 8;
+        // an extra byte is needed if the most significant bit would collide with the sign bit
+        boolean extraByte = ((abs >>> (8 * length - 1)) & 1) != 0;
+        byte[] result = new byte[extraByte ? length + 1 : length];
+        for (int i = 0; i < length; i++)
+            result[i] = (byte) (abs >>> (8 * i));
+        if (negative)
+            result[result.length - 1] |= (byte) 0x80;
+        return result;
+    }
+
+    static int toMask(Set<VerifyFlag> verifyFlags) {
+        int mask = 0;
+        for (VerifyFlag flag : verifyFlags)
+            mask |= 1 << flag.ordinal();
+        return mask;
+    }
+
+    private static boolean isSet(int flags, VerifyFlag flag) {
+        return (flags & (1 << flag.ordinal())) != 0;
+    }
+
+    /**
+     * A stack of byte arrays backed by an array. Depths are counted from the top of the stack, so depth 0 is the
+     * topmost element.
+     */
+    static final class Stack {
+        private byte[][] elements;
+        private int size;
+
+        Stack() {
+            elements = new byte[16][];
+        }
+
+        Stack(Stack other) {
+            elements = Arrays.copyOf(other.elements, other.elements.length);
+            size = other.size;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void push(byte[] element) {
+            if (size == elements.length)
+                elements = Arrays.copyOf(elements, size * 2);
+            elements[size++] = element;
+        }
+
+        byte[] pop() {
+            byte[] element = elements[--size];
+            elements[size] = null;
+            return element;
+        }
+
+        byte[] peek(int depth) {
+            return elements[size - 1 - depth];
+        }
+
+        void drop(int count) {
+            for (int i = 0; i < count; i++)
+                elements[--size] = null;
+        }
+
+        byte[] remove(int depth) {
+            int i = size - 1 - depth;
+            byte[] element = elements[i];
+            System.arraycopy(elements, i + 1, elements, i, depth);
+            elements[--size] = null;
+            return element;
+        }
+
+        void swap(int depth1, int depth2) {
+            int i = size - 1 - depth1, j = size - 1 - depth2;
+            byte[] tmp = elements[i];
+            elements[i] = elements[j];
+            elements[j] = tmp;
+        }
+
+        /** Returns a copy of the elements, from bottom to top. */
+        List<byte[]> toList() {
+            List<byte[]> list = new ArrayList<>(size);
+            for (int i = 0; i < size; i++)
+                list.add(elements[i]);
+            return list;
+        }
+    }
+
+    /**
+     * Tracks nested OP_IF/OP_NOTIF/OP_ELSE/OP_ENDIF conditions. As only the position of the first false condition
+     * matters for whether to execute, all operations run in constant time.
+     */
+    static final class ConditionStack {
+        private static final int NO_FALSE = -1;
+        private int size;
+        private int firstFalsePos = NO_FALSE;
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        boolean allTrue() {
+            return firstFalsePos == NO_FALSE;
+        }
+
+        void push(boolean condition) {
+            if (firstFalsePos == NO_FALSE && !condition)
+                firstFalsePos = size;
+            size++;
+        }
+
+        void pop() {
+            size--;
+            if (firstFalsePos == size)
+                firstFalsePos = NO_FALSE;
+        }
+
+        void toggleTop() {
+            if (firstFalsePos == NO_FALSE)
+                firstFalsePos = size - 1; // the top was true, now it's the first false
+            else if (firstFalsePos == size - 1)
+                firstFalsePos = NO_FALSE; // the top was the first false, now everything is true
+            // otherwise there is a false below the top, so toggling the top doesn't matter
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.base.internal.ByteUtils;
+import org.bitcoinj.crypto.ECKey;
+
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>A bounded cache of signatures that have been verified successfully, the equivalent of
+ * {@code CSignatureCache} in Bitcoin Core. A transaction is usually verified twice: once when it is relayed to us
+ * and again when it is included in a block. With this cache, the second verification skips the expensive ECDSA
+ * operations.</p>
+ *
+ * <p>Entries are keyed by signature hash, public key and encoded signature. Only valid signatures are cached. The
+ * key is a salted hash of those three, so that the cache contents can't be predicted by others. When the cache is
+ * full, a random entry is evicted.</p>
+ *
+ * <p>Instances of this class are thread-safe. Use {@link Script#setSignatureCache(SignatureCache)} to select the
+ * cache that is consulted during script verification.</p>
+ */
+public final class SignatureCache {
+    /** Default memory limit, in bytes. */
+    public static final long DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+
+    private final byte[] salt = new byte[32];
+    private final RandomEvictionSet entries;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Create a signature cache that uses at most roughly the given amount of memory.
+     *
+     * @param maxBytes memory limit, in bytes
+     * @return signature cache
+     */
+    public static SignatureCache withMaxBytes(long maxBytes) {
+        return new SignatureCache(RandomEvictionSet.maxEntriesForBytes(maxBytes));
+    }
+
+    /**
+     * Create a signature cache that holds at most the given number of entries.
+     *
+     * @param maxEntries maximum number of cached signatures
+     */
+    public SignatureCache(int maxEntries) {
+        this.entries = new RandomEvictionSet(maxEntries);
+        new SecureRandom().nextBytes(salt);
+    }
+
+    /**
+     * Verify the given signature, unless it has been verified successfully before. If it is valid, it is added to
+     * the cache.
+     *
+     * @param sigHash   signature hash that was signed
+     * @param pubKey    encoded public key
+     * @param sigBytes  signature as found in the script or witness, used as part of the cache key
+     * @param signature decoded signature
+     * @return true if the signature is valid
+     */
+    public boolean verify(Sha256Hash sigHash, byte[] pubKey, byte[] sigBytes, ECKey.ECDSASignature signature) {
+        Sha256Hash key = entryKey(sigHash, pubKey, sigBytes);
+        if (entries.contains(key)) {
+            hits.increment();
+            return true;
+        }
+        misses.increment();
+        boolean valid = ECKey.verify(sigHash.getBytes(), signature, pubKey);
+        if (valid)
+            entries.add(key);
+        return valid;
+    }
+
+    /**
+     * Add a signature that is already known to be valid, for example because it has been verified by an
+     * {@link org.bitcoinj.crypto.ECDSABatchVerifier}.
+     */
+    /* package private */ void add(Sha256Hash sigHash, byte[] pubKey, byte[] sigBytes) {
+        entries.add(entryKey(sigHash, pubKey, sigBytes));
+    }
+
+    private Sha256Hash entryKey(Sha256Hash sigHash, byte[] pubKey, byte[] sigBytes) {
+        MessageDigest digest = Sha256Hash.newDigest();
+        digest.update(salt);
+        digest.update(sigHash.getBytes());
+        // the length prefix keeps the boundary between public key and signature unambiguous
+        byte[] pubKeyLength = new byte[4];
+        ByteUtils.writeInt32LE(pubKey.length, pubKeyLength, 0);
+        digest.update(pubKeyLength);
+        digest.update(pubKey);
+        digest.update(sigBytes);
+        return Sha256Hash.wrap(digest.digest());
+    }
+
+    /** Remove all entries. Hit and miss counters are not reset. */
+    public void clear() {
+        entries.clear();
+    }
+
+    /** Number of cached signatures. */
+    public int size() {
+        return entries.size();
+    }
+
+    /** Maximum number of cached signatures. */
+    public int maxEntries() {
+        return entries.maxEntries();
+    }
+
+    /** Number of verifications that were answered from the cache. */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /** Number of verifications that had to be done by ECDSA. */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /** Ratio of hits to all verifications, or 0 if nothing has been verified yet. */
+    public double getHitRate() {
+        long hits = getHits();
+        long total = hits + getMisses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public String toString() {
+        return "SignatureCache{size=" + size() + ", maxEntries=" + maxEntries() + ", hits=" + getHits() + ", misses="
+                + getMisses() + "}";
+    }
+}
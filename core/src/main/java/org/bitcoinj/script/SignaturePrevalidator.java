@@ -0,0 +1,259 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import org.bitcoinj.base.Coin;
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.core.PrecomputedTransactionData;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionWitness;
+import org.bitcoinj.crypto.ECDSABatchVerifier;
+import org.bitcoinj.crypto.ECKey;
+import org.bitcoinj.crypto.SignatureDecodeException;
+import org.bitcoinj.crypto.TransactionSignature;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.bitcoinj.base.internal.Preconditions.checkArgument;
+
+/**
+ * <p>Verifies the signatures of many inputs at once with an {@link ECDSABatchVerifier}, ahead of script execution.
+ * Valid signatures are added to a {@link SignatureCache}, so that the following
+ * {@link Script#correctlySpends(Transaction, int, TransactionWitness, Coin, Script, java.util.Set)} finds them there
+ * instead of verifying them one by one. Alternatively, the caller can be told the result of each signature, so that
+ * it doesn't need to compute the signature hash a second time.</p>
+ *
+ * <p>Only inputs spending P2PKH, P2PK and P2WPKH outputs are collected, as their single signature can be determined
+ * without running the script. Other inputs are silently skipped, and so are invalid signatures: prevalidation never
+ * makes a verification fail, it only makes it faster. Script execution stays authoritative.</p>
+ *
+ * <p>Signatures are verified either all at once by {@link #prevalidate()}, or, if a batch size is given, whenever
+ * that many have been collected. Instances of this class are thread-safe.</p>
+ */
+public final class SignaturePrevalidator {
+    private final SignatureCache signatureCache;
+    private final int batchSize;
+    private final ForkJoinPool pool;
+    private final AtomicInteger collected = new AtomicInteger();
+
+    // guarded by this
+    private List<Candidate> pending = new ArrayList<>();
+    @Nullable private Transaction precomputedTx;
+    @Nullable private PrecomputedTransactionData precomputed;
+
+    /**
+     * @param signatureCache cache to add the valid signatures to; this should be the one returned by
+     *                       {@link Script#getSignatureCache()}
+     */
+    public SignaturePrevalidator(SignatureCache signatureCache) {
+        this(signatureCache, Integer.MAX_VALUE, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param signatureCache cache to add the valid signatures to; this should be the one returned by
+     *                       {@link Script#getSignatureCache()}
+     * @param batchSize      number of collected signatures that are verified together, by the thread that collected
+     *                       the last of them
+     * @param pool           pool to verify these batches on
+     */
+    public SignaturePrevalidator(SignatureCache signatureCache, int batchSize, ForkJoinPool pool) {
+        checkArgument(batchSize > 0, () -> "batch size must be positive: " + batchSize);
+        this.signatureCache = signatureCache;
+        this.batchSize = batchSize;
+        this.pool = pool;
+    }
+
+    /**
+     * Collect the signature of an input, if it spends a supported output type.
+     *
+     * @param tx           transaction containing the input, which must not be modified until {@link #prevalidate()}
+     *                     returns
+     * @param index        index of the input
+     * @param witness      witness of the input, needed for P2WPKH
+     * @param value        value of the spent output, needed for P2WPKH
+     * @param scriptPubKey the spent scriptPubKey
+     * @return true if a signature was collected
+     */
+    public boolean add(Transaction tx, int index, @Nullable TransactionWitness witness, @Nullable Coin value,
+                       Script scriptPubKey) {
+        return add(tx, index, witness, value, scriptPubKey, null, null);
+    }
+
+    /**
+     * Collect the signature of an input, if it spends a supported output type. If it completes a batch, the batch is
+     * verified before this method returns.
+     *
+     * @param tx           transaction containing the input, which must not be modified until {@link #prevalidate()}
+     *                     returns
+     * @param index        index of the input
+     * @param witness      witness of the input, needed for P2WPKH
+     * @param value        value of the spent output, needed for P2WPKH
+     * @param scriptPubKey the spent scriptPubKey
+     * @param precomputed  signature hash parts precomputed from tx, or null to compute them on demand
+     * @param onVerified   called with the result once the signature has been verified, or null. A valid result
+     *                     means the input correctly spends scriptPubKey.
+     * @return true if a signature was collected, in which case onVerified will be called
+     */
+    public boolean add(Transaction tx, int index, @Nullable TransactionWitness witness, @Nullable Coin value,
+                       Script scriptPubKey, @Nullable PrecomputedTransactionData precomputed,
+                       @Nullable Consumer<Boolean> onVerified) {
+        Candidate candidate;
+        try {
+            candidate = candidate(tx, index, witness, value, scriptPubKey, precomputed, onVerified);
+        } catch (SignatureDecodeException | RuntimeException x) {
+            // malformed, leave it to script execution to report
+            return false;
+        }
+        if (candidate == null)
+            return false;
+        collected.incrementAndGet();
+        List<Candidate> full = null;
+        synchronized (this) {
+            pending.add(candidate);
+            if (pending.size() >= batchSize) {
+                full = pending;
+                pending = new ArrayList<>();
+            }
+        }
+        if (full != null)
+            verify(full, pool);
+        return true;
+    }
+
+    @Nullable
+    private Candidate candidate(Transaction tx, int index, @Nullable TransactionWitness witness, @Nullable Coin value,
+                                Script scriptPubKey, @Nullable PrecomputedTransactionData precomputed,
+                                @Nullable Consumer<Boolean> onVerified) throws SignatureDecodeException {
+        if (ScriptPattern.isP2WPKH(scriptPubKey)) {
+            if (witness == null || witness.getPushCount() < 2 || value == null)
+                return null;
+            byte[] sigBytes = witness.getPush(0);
+            TransactionSignature signature = TransactionSignature.decodeFromBitcoin(sigBytes, true, true);
+            ECKey pubKey = ECKey.fromPublicOnly(witness.getPush(1));
+            if (!Arrays.equals(pubKey.getPubKeyHash(), ScriptPattern.extractHashFromP2WH(scriptPubKey)))
+                return null;
+            Script scriptCode = ScriptBuilder.createP2PKHOutputScript(pubKey);
+            byte sigHashType = (byte) TransactionSignature.calcSigHashValue(signature.sigHashMode(), false);
+            Sha256Hash sigHash = tx.hashForWitnessSignature(index, scriptCode.program(), value, sigHashType,
+                    precomputed != null ? precomputed : precomputed(tx));
+            return new Candidate(sigHash, pubKey.getPubKey(), sigBytes, signature, onVerified);
+        }
+        List<ScriptChunk> chunks = tx.getInput(index).getScriptSig().chunks();
+        if (ScriptPattern.isP2PKH(scriptPubKey)) {
+            if (chunks.size() != 2 || chunks.get(0).data == null || chunks.get(1).data == null)
+                return null;
+            byte[] sigBytes = chunks.get(0).data;
+            TransactionSignature signature = TransactionSignature.decodeFromBitcoin(sigBytes, true, true);
+            ECKey pubKey = ECKey.fromPublicOnly(chunks.get(1).data);
+            if (!Arrays.equals(pubKey.getPubKeyHash(), ScriptPattern.extractHashFromP2PKH(scriptPubKey)))
+                return null;
+            Sha256Hash sigHash = tx.hashForSignature(index, scriptPubKey, signature.sigHashMode(), false);
+            return new Candidate(sigHash, pubKey.getPubKey(), sigBytes, signature, onVerified);
+        }
+        if (ScriptPattern.isP2PK(scriptPubKey)) {
+            if (chunks.size() != 1 || chunks.get(0).data == null)
+                return null;
+            byte[] sigBytes = chunks.get(0).data;
+            TransactionSignature signature = TransactionSignature.decodeFromBitcoin(sigBytes, false, false);
+            ECKey pubKey = ECKey.fromPublicOnly(ScriptPattern.extractKeyFromP2PK(scriptPubKey));
+            Sha256Hash sigHash = tx.hashForSignature(index, scriptPubKey, signature.sigHashMode(), false);
+            return new Candidate(sigHash, pubKey.getPubKey(), sigBytes, signature, onVerified);
+        }
+        return null;
+    }
+
+    private synchronized PrecomputedTransactionData precomputed(Transaction tx) {
+        if (tx != precomputedTx) {
+            precomputed = PrecomputedTransactionData.of(tx);
+            precomputedTx = tx;
+        }
+        return precomputed;
+    }
+
+    /** Number of collected signatures. */
+    public int size() {
+        return collected.get();
+    }
+
+    /**
+     * Verify all signatures that have been collected but not verified yet on the
+     * {@link ForkJoinPool#commonPool() common pool}.
+     *
+     * @return number of valid signatures, which have been added to the signature cache
+     */
+    public int prevalidate() {
+        return prevalidate(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Verify all signatures that have been collected but not verified yet on the given pool.
+     *
+     * @param pool pool to verify on
+     * @return number of valid signatures, which have been added to the signature cache
+     */
+    public int prevalidate(ForkJoinPool pool) {
+        List<Candidate> candidates;
+        synchronized (this) {
+            candidates = pending;
+            pending = new ArrayList<>();
+        }
+        return verify(candidates, pool);
+    }
+
+    private int verify(List<Candidate> candidates, ForkJoinPool pool) {
+        if (candidates.isEmpty())
+            return 0;
+        ECDSABatchVerifier batch = new ECDSABatchVerifier();
+        for (Candidate candidate : candidates)
+            batch.add(candidate.sigHash.getBytes(), candidate.signature, candidate.pubKey);
+        boolean[] valid = batch.verify(pool);
+        int count = 0;
+        for (int i = 0; i < valid.length; i++) {
+            Candidate candidate = candidates.get(i);
+            if (valid[i]) {
+                signatureCache.add(candidate.sigHash, candidate.pubKey, candidate.sigBytes);
+                count++;
+            }
+            if (candidate.onVerified != null)
+                candidate.onVerified.accept(valid[i]);
+        }
+        return count;
+    }
+
+    private static final class Candidate {
+        final Sha256Hash sigHash;
+        final byte[] pubKey;
+        final byte[] sigBytes;
+        final TransactionSignature signature;
+        @Nullable final Consumer<Boolean> onVerified;
+
+        Candidate(Sha256Hash sigHash, byte[] pubKey, byte[] sigBytes, TransactionSignature signature,
+                  @Nullable Consumer<Boolean> onVerified) {
+            this.sigHash = sigHash;
+            this.pubKey = pubKey;
+            this.sigBytes = sigBytes;
+            this.signature = signature;
+            this.onVerified = onVerified;
+        }
+    }
+}
@@ -19,6 +19,7 @@ package org.bitcoinj.signers;
 
 import org.bitcoinj.base.Coin;
 import org.bitcoinj.crypto.ECKey;
+import org.bitcoinj.core.PrecomputedTransactionData;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.TransactionInput;
 import org.bitcoinj.core.TransactionOutput;
@@ -68,6 +69,8 @@ public class LocalTransactionSigner implements TransactionSigner {
     public boolean signInputs(ProposedTransaction propTx, KeyBag keyBag) {
         Transaction tx = propTx.partialTx;
         int numInputs = tx.getInputs().size();
+        // Signing only fills in scriptSigs and witnesses, so the precomputed sighash parts stay valid for all inputs.
+        PrecomputedTransactionData precomputed = PrecomputedTransactionData.of(tx);
         for (int i = 0; i < numInputs; i++) {
             TransactionInput txIn = tx.getInput(i);
             final TransactionOutput connectedOutput = txIn.getConnectedOutput();
@@ -82,7 +85,7 @@ public class LocalTransactionSigner implements TransactionSigner {
                 // we sign missing pieces (to check this would require either assuming any signatures are signing
                 // standard output types or a way to get processed signatures out of script execution)
                 txIn.getScriptSig().correctlySpends(tx, i, txIn.getWitness(), connectedOutput.getValue(),
-                        connectedOutput.getScriptPubKey(), MINIMUM_VERIFY_FLAGS);
+                        connectedOutput.getScriptPubKey(), MINIMUM_VERIFY_FLAGS, precomputed);
                 log.warn("Input {} already correctly spends output, assuming SIGHASH type used will be safe and skipping signing.", i);
                 continue;
             } catch (ScriptException e) {
@@ -133,7 +136,7 @@ public class LocalTransactionSigner implements TransactionSigner {
                     Script scriptCode = ScriptBuilder.createP2PKHOutputScript(key);
                     Coin value = txIn.getValue();
                     TransactionSignature signature = tx.calculateWitnessSignature(i, key, scriptCode, value,
-                            Transaction.SigHash.ALL, false);
+                            Transaction.SigHash.ALL, false, precomputed);
                     txIn.setScriptSig(ScriptBuilder.createEmpty());
                     txIn.setWitness(TransactionWitness.redeemP2WPKH(signature, key));
                 } else {
@@ -0,0 +1,1183 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.base.Address;
+import org.bitcoinj.base.Coin;
+import org.bitcoinj.base.Network;
+import org.bitcoinj.base.ScriptType;
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.base.VarInt;
+import org.bitcoinj.base.internal.Buffers;
+import org.bitcoinj.base.internal.ByteUtils;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.StoredUndoableBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutputChanges;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.core.UTXOProviderException;
+import org.bitcoinj.crypto.ECKey;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.utils.DaemonThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * <p>A persistent {@link FullPrunedBlockStore} that keeps all data in a single append-only log file. Every batch of
+ * writes (see {@link #beginDatabaseBatchWrite()}) is appended as a sequence of records, terminated by a commit record
+ * carrying a checksum, and synced to disk. On startup, the log is replayed to rebuild the in-memory indexes; a batch
+ * that was cut short by a crash is detected by its missing or broken commit record and truncated, so the store always
+ * reopens in the state of the last completed commit.</p>
+ *
+ * <p>Unspent outputs are indexed by a compact table of primitive arrays, at about 16 bytes of heap per output
+ * (including slack), and read from the log when they are looked up. Block headers and undo blocks are indexed by
+ * ordinary maps, as there are far fewer of them. Spending an output or pruning an undo block leaves garbage in the log,
+ * which is reclaimed by {@link #compact() compaction}: live records are copied to a new log file that atomically
+ * replaces the old one. Once garbage makes up more than half of the log, compaction is started automatically on a
+ * background thread after a commit. It blocks the store while it runs, and if it fails the store is closed.</p>
+ *
+ * <p>Writes made during a batch are only visible to the thread that began it until they are committed.</p>
+ */
+public class LogFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(LogFullPrunedBlockStore.class);
+
+    // Magic header of the log file, followed by a 4 byte format version.
+    static final byte[] HEADER_MAGIC = "BJLG".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+
+    // Record types. A record is a 4 byte length of type and payload, the type byte and the payload.
+    private static final byte RECORD_UTXO = 1;
+    private static final byte RECORD_UTXO_SPENT = 2;
+    private static final byte RECORD_BLOCK = 3;
+    private static final byte RECORD_UNDO_BLOCK = 4;
+    private static final byte RECORD_UNDO_BLOCK_PRUNED = 5;
+    private static final byte RECORD_CHAIN_HEAD = 6;
+    private static final byte RECORD_VERIFIED_CHAIN_HEAD = 7;
+    private static final byte RECORD_COMMIT = 8;
+    private static final int RECORD_OVERHEAD = 5;
+    private static final int OUTPOINT_SIZE = Sha256Hash.LENGTH + 4;
+    private static final int HEAD_RECORD_SIZE = RECORD_OVERHEAD + StoredBlock.COMPACT_SERIALIZED_SIZE_V2;
+    private static final int COMMIT_RECORD_SIZE = RECORD_OVERHEAD + 4;
+
+    /** Compaction doesn't run automatically while the log has less garbage than this. */
+    public static final long MIN_COMPACTION_GARBAGE = 64 * 1024 * 1024;
+
+    private final NetworkParameters params;
+    private final int fullStoreDepth;
+    private final File file;
+    private final RandomAccessFile lockFile;
+    private final FileLock fileLock;
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    private boolean closed;
+    // Runs the automatic compactions, so that they don't hold up the commit that triggered them.
+    private final Executor compactor = new ThreadPoolExecutor(0, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+            new DaemonThreadFactory("Block store compaction"));
+    private boolean compactionScheduled;
+
+    // Size of the committed log, and the part of it that isn't needed anymore.
+    private long end;
+    private long garbage;
+
+    private final long salt = new SecureRandom().nextLong();
+    private final LogIndex utxos = new LogIndex();
+    private final Map<Sha256Hash, BlockEntry> blocks = new HashMap<>();
+    private final Map<Sha256Hash, UndoEntry> undoBlocks = new HashMap<>();
+    private final Map<Integer, Set<Sha256Hash>> undoBlocksByHeight = new HashMap<>();
+    private StoredBlock chainHead;
+    private StoredBlock verifiedChainHead;
+
+    // Recently used block headers, to avoid hitting the log for the blocks near the chain head.
+    private final LinkedHashMap<Sha256Hash, StoredBlock> blockCache = new LinkedHashMap<Sha256Hash, StoredBlock>(16,
+            0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> entry) {
+            return size() > 2050;  // Slightly more than the difficulty transition period.
+        }
+    };
+
+    @Nullable private Batch batch;
+    @Nullable private Thread batchOwner;
+
+    private static final class BlockEntry {
+        final long offset;
+        final int size;
+        final boolean wasUndoable;
+
+        BlockEntry(long offset, int size, boolean wasUndoable) {
+            this.offset = offset;
+            this.size = size;
+            this.wasUndoable = wasUndoable;
+        }
+    }
+
+    private static final class UndoEntry {
+        final long offset;
+        final int size;
+        final int height;
+
+        UndoEntry(long offset, int size, int height) {
+            this.offset = offset;
+            this.size = size;
+            this.height = height;
+        }
+    }
+
+    /** Key of a UTXO in a {@link Batch}. */
+    private static final class OutPointKey {
+        final Sha256Hash hash;
+        final long index;
+
+        OutPointKey(Sha256Hash hash, long index) {
+            this.hash = hash;
+            this.index = index;
+        }
+
+        OutPointKey(UTXO out) {
+            this(out.getHash(), out.getIndex());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            OutPointKey other = (OutPointKey) o;
+            return index == other.index && hash.equals(other.hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(hash, index);
+        }
+    }
+
+    /** Writes of a batch that haven't been committed yet. */
+    private static final class Batch {
+        final Map<Sha256Hash, StoredBlock> blocks = new LinkedHashMap<>();
+        final Map<Sha256Hash, Boolean> blocksWasUndoable = new HashMap<>();
+        final Map<Sha256Hash, StoredUndoableBlock> undoBlocks = new LinkedHashMap<>();
+        final Map<Sha256Hash, Integer> undoBlockHeights = new HashMap<>();
+        final Set<Sha256Hash> undoBlocksPruned = new LinkedHashSet<>();
+        final Map<OutPointKey, UTXO> utxosAdded = new LinkedHashMap<>();
+        final Set<OutPointKey> utxosSpent = new LinkedHashSet<>();
+        @Nullable StoredBlock chainHead;
+        @Nullable StoredBlock verifiedChainHead;
+    }
+
+    /**
+     * Open the store in the given file, creating it if it doesn't exist. This operation will block on disk, and
+     * replays the entire log.
+     *
+     * @param params         the network parameters of this block store - used to get genesis block
+     * @param file           log file to use
+     * @param fullStoreDepth the depth of blocks to keep {@link StoredUndoableBlock}s for
+     * @throws BlockStoreException if the file can't be opened or isn't a log of this store
+     */
+    public LogFullPrunedBlockStore(NetworkParameters params, File file, int fullStoreDepth) throws BlockStoreException {
+        this.params = Objects.requireNonNull(params);
+        this.file = Objects.requireNonNull(file);
+        this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
+        try {
+            lockFile = new RandomAccessFile(new File(file.getPath() + ".lock"), "rw");
+            FileLock lock;
+            try {
+                lock = lockFile.getChannel().tryLock();
+            } catch (OverlappingFileLockException e) {
+                lock = null; // locked by this process
+            }
+            fileLock = lock;
+            if (fileLock == null) {
+                lockFile.close();
+                throw new ChainFileLockedException("Store file is already locked by another process");
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        try {
+            boolean exists = file.exists() && file.length() > 0;
+            openChannel();
+            if (exists) {
+                log.info("Using existing block store log: {}", file);
+                replay();
+            } else {
+                log.info("Creating new block store log: {}", file);
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.put(HEADER_MAGIC);
+                ByteUtils.writeInt32LE(VERSION, header);
+                ((Buffer) header).flip();
+                writeFully(channel, header, 0);
+                end = HEADER_SIZE;
+                StoredBlock storedGenesisHeader = new StoredBlock(params.getGenesisBlock().cloneAsHeader(),
+                        params.getGenesisBlock().getWork(), 0);
+                // The coinbase in the genesis block is not spendable
+                StoredUndoableBlock storedGenesis = new StoredUndoableBlock(params.getGenesisBlock().getHash(),
+                        new LinkedList<>());
+                beginDatabaseBatchWrite();
+                put(storedGenesisHeader, storedGenesis);
+                setChainHead(storedGenesisHeader);
+                setVerifiedChainHead(storedGenesisHeader);
+                commitDatabaseBatchWrite();
+            }
+        } catch (Exception e) {
+            try {
+                closeFiles();
+            } catch (IOException x) {
+                e.addSuppressed(x);
+            }
+            if (e instanceof BlockStoreException)
+                throw (BlockStoreException) e;
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void openChannel() throws IOException {
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+    }
+
+    // --- BlockStore
+
+    @Override
+    public synchronized void put(StoredBlock block) throws BlockStoreException {
+        checkOpen();
+        Batch b = writeBatch();
+        Sha256Hash hash = block.getHeader().getHash();
+        b.blocks.put(hash, block);
+        b.blocksWasUndoable.put(hash, false);
+        commitIfImplicit(b);
+    }
+
+    @Override
+    public synchronized void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock)
+            throws BlockStoreException {
+        checkOpen();
+        Batch b = writeBatch();
+        Sha256Hash hash = storedBlock.getHeader().getHash();
+        b.blocks.put(hash, storedBlock);
+        b.blocksWasUndoable.put(hash, true);
+        b.undoBlocks.put(hash, undoableBlock);
+        b.undoBlockHeights.put(hash, storedBlock.getHeight());
+        commitIfImplicit(b);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        checkOpen();
+        Batch b = readBatch();
+        if (b != null) {
+            StoredBlock block = b.blocks.get(hash);
+            if (block != null)
+                return block;
+        }
+        return getCommittedBlock(hash);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        checkOpen();
+        Batch b = readBatch();
+        if (b != null && b.blocks.containsKey(hash))
+            return b.blocksWasUndoable.get(hash) ? b.blocks.get(hash) : null;
+        BlockEntry entry = blocks.get(hash);
+        return entry != null && entry.wasUndoable ? getCommittedBlock(hash) : null;
+    }
+
+    @Nullable
+    private StoredBlock getCommittedBlock(Sha256Hash hash) throws BlockStoreException {
+        StoredBlock block = blockCache.get(hash);
+        if (block != null)
+            return block;
+        BlockEntry entry = blocks.get(hash);
+        if (entry == null)
+            return null;
+        ByteBuffer payload = readRecord(entry.offset, RECORD_BLOCK);
+        Buffers.skipBytes(payload, Sha256Hash.LENGTH + 1);
+        block = StoredBlock.deserializeCompactV2(payload);
+        blockCache.put(hash, block);
+        return block;
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        checkOpen();
+        Batch b = readBatch();
+        if (b != null) {
+            StoredUndoableBlock block = b.undoBlocks.get(hash);
+            if (block != null)
+                return block;
+            if (b.undoBlocksPruned.contains(hash))
+                return null;
+        }
+        UndoEntry entry = undoBlocks.get(hash);
+        if (entry == null)
+            return null;
+        ByteBuffer payload = readRecord(entry.offset, RECORD_UNDO_BLOCK);
+        return readUndoBlock(payload);
+    }
+
+    @Override
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        checkOpen();
+        Batch b = readBatch();
+        return b != null && b.chainHead != null ? b.chainHead : chainHead;
+    }
+
+    @Override
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        checkOpen();
+        Batch b = writeBatch();
+        b.chainHead = chainHead;
+        commitIfImplicit(b);
+    }
+
+    @Override
+    public synchronized StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        checkOpen();
+        Batch b = readBatch();
+        return b != null && b.verifiedChainHead != null ? b.verifiedChainHead : verifiedChainHead;
+    }
+
+    @Override
+    public synchronized void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        checkOpen();
+        Batch b = writeBatch();
+        b.verifiedChainHead = chainHead;
+        StoredBlock currentChainHead = b.chainHead != null ? b.chainHead : this.chainHead;
+        if (currentChainHead == null || currentChainHead.getHeight() < chainHead.getHeight())
+            b.chainHead = chainHead;
+        pruneUndoBlocks(b, chainHead.getHeight() - fullStoreDepth);
+        commitIfImplicit(b);
+    }
+
+    private void pruneUndoBlocks(Batch b, int height) {
+        Set<Sha256Hash> committed = undoBlocksByHeight.get(height);
+        if (committed != null)
+            b.undoBlocksPruned.addAll(committed);
+        b.undoBlockHeights.entrySet().removeIf(entry -> {
+            if (entry.getValue() != height)
+                return false;
+            b.undoBlocks.remove(entry.getKey());
+            return true;
+        });
+    }
+
+    @Override
+    public synchronized void close() throws BlockStoreException {
+        if (closed)
+            return;
+        closed = true;
+        batch = null;
+        batchOwner = null;
+        try {
+            closeFiles();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void closeFiles() throws IOException {
+        try {
+            if (randomAccessFile != null)
+                randomAccessFile.close();
+        } finally {
+            fileLock.release();
+            lockFile.close();
+        }
+    }
+
+    // --- UTXOs
+
+    @Override
+    @Nullable
+    public synchronized UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        checkOpen();
+        Batch b = readBatch();
+        if (b != null) {
+            OutPointKey outPoint = new OutPointKey(hash, index);
+            UTXO out = b.utxosAdded.get(outPoint);
+            if (out != null)
+                return out;
+            if (b.utxosSpent.contains(outPoint))
+                return null;
+        }
+        long offset = findUtxo(hash, index);
+        return offset < 0 ? null : readUtxo(readRecord(offset, RECORD_UTXO));
+    }
+
+    @Override
+    public synchronized void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        checkOpen();
+        Batch b = writeBatch();
+        b.utxosAdded.put(new OutPointKey(out), out);
+        commitIfImplicit(b);
+    }
+
+    @Override
+    public synchronized void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        checkOpen();
+        Batch b = writeBatch();
+        OutPointKey outPoint = new OutPointKey(out);
+        boolean removed = b.utxosAdded.remove(outPoint) != null;
+        if (!b.utxosSpent.contains(outPoint) && findUtxo(out.getHash(), out.getIndex()) >= 0) {
+            b.utxosSpent.add(outPoint);
+            removed = true;
+        }
+        if (!removed)
+            throw new BlockStoreException("Tried to remove a UTXO from LogFullPrunedBlockStore that it didn't have!");
+        commitIfImplicit(b);
+    }
+
+    @Override
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        for (int i = 0; i < numOutputs; i++)
+            if (getTransactionOutput(hash, i) != null)
+                return true;
+        return false;
+    }
+
+    private long findUtxo(Sha256Hash hash, long index) throws BlockStoreException {
+        try {
+            return utxos.get(outPointHash(hash, index), offset -> isUtxoAt(offset, hash, index));
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private boolean isUtxoAt(long offset, Sha256Hash hash, long index) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(OUTPOINT_SIZE);
+        readFully(channel, buf, offset + RECORD_OVERHEAD);
+        ((Buffer) buf).flip();
+        return Sha256Hash.read(buf).equals(hash) && ByteUtils.readUint32(buf) == index;
+    }
+
+    private long outPointHash(Sha256Hash hash, long index) {
+        byte[] bytes = hash.getBytes();
+        long h = mix(ByteUtils.readInt64(bytes, 0) ^ salt);
+        return mix(h ^ ByteUtils.readInt64(bytes, 8) ^ (index * 0x9e3779b97f4a7c15L));
+    }
+
+    // finalizer of MurmurHash3
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    // --- Batches
+
+    @Override
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        checkOpen();
+        if (batchOwner == Thread.currentThread())
+            return;
+        if (batch != null)
+            throw new BlockStoreException("Batch write already in progress in thread " + batchOwner.getName());
+        batch = new Batch();
+        batchOwner = Thread.currentThread();
+    }
+
+    @Override
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        checkOpen();
+        if (batchOwner != Thread.currentThread())
+            return;
+        Batch b = batch;
+        batch = null;
+        batchOwner = null;
+        commit(b);
+    }
+
+    @Override
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        if (batchOwner != Thread.currentThread())
+            return;
+        batch = null;
+        batchOwner = null;
+    }
+
+    // Returns the batch of the current thread, if it has one.
+    @Nullable
+    private Batch readBatch() {
+        return batchOwner == Thread.currentThread() ? batch : null;
+    }
+
+    // Returns the batch to write to: the one of the current thread, or a new one that is committed right away.
+    private Batch writeBatch() {
+        Batch b = readBatch();
+        return b != null ? b : new Batch();
+    }
+
+    private void commitIfImplicit(Batch b) throws BlockStoreException {
+        if (b != batch)
+            commit(b);
+    }
+
+    private void commit(Batch b) throws BlockStoreException {
+        RecordWriter writer = new RecordWriter();
+        for (Sha256Hash hash : b.undoBlocksPruned)
+            writer.add(RECORD_UNDO_BLOCK_PRUNED, hash.serialize());
+        for (OutPointKey outPoint : b.utxosSpent)
+            writer.add(RECORD_UTXO_SPENT, serializeOutPoint(outPoint.hash, outPoint.index));
+        for (Map.Entry<Sha256Hash, StoredBlock> entry : b.blocks.entrySet())
+            writer.add(RECORD_BLOCK, serializeBlock(entry.getKey(), entry.getValue(),
+                    b.blocksWasUndoable.get(entry.getKey())));
+        for (Map.Entry<Sha256Hash, StoredUndoableBlock> entry : b.undoBlocks.entrySet())
+            writer.add(RECORD_UNDO_BLOCK, serializeUndoBlock(entry.getValue(),
+                    b.undoBlockHeights.get(entry.getKey())));
+        for (UTXO out : b.utxosAdded.values())
+            writer.add(RECORD_UTXO, serializeUtxo(out));
+        if (b.chainHead != null)
+            writer.add(RECORD_CHAIN_HEAD, serializeHead(b.chainHead));
+        if (b.verifiedChainHead != null)
+            writer.add(RECORD_VERIFIED_CHAIN_HEAD, serializeHead(b.verifiedChainHead));
+        if (writer.isEmpty())
+            return;
+        writer.commit();
+        if (end + writer.size() > LogIndex.MAX_OFFSET)
+            throw new BlockStoreException("Log file too large");
+        try {
+            writeFully(channel, ByteBuffer.wrap(writer.toByteArray()), end);
+            channel.force(false);
+        } catch (IOException e) {
+            // the log may contain a partial batch now, which will be overwritten by the next commit or truncated by
+            // the next replay
+            throw new BlockStoreException(e);
+        }
+        long offset = end;
+        end += writer.size();
+        try {
+            for (Record record : writer.records) {
+                apply(record.type, offset, record.payload);
+                offset += RECORD_OVERHEAD + record.payload.length;
+            }
+        } catch (IOException | RuntimeException e) {
+            // The batch is durable, but the indexes only reflect part of it. Replaying the log fixes them.
+            throw closeAfterFailure("Could not index committed batch, store closed: " + file, e);
+        }
+        if (garbage > MIN_COMPACTION_GARBAGE && garbage > end / 2 && !compactionScheduled) {
+            compactionScheduled = true;
+            compactor.execute(this::compactInBackground);
+        }
+    }
+
+    private synchronized void compactInBackground() {
+        compactionScheduled = false;
+        // the store may have been closed or compacted in the meantime
+        if (closed || garbage <= MIN_COMPACTION_GARBAGE || garbage <= end / 2)
+            return;
+        try {
+            compact();
+        } catch (BlockStoreException e) {
+            log.error("Automatic compaction failed", e);
+        }
+    }
+
+    // Closes the store after a failure left the indexes out of step with the log, and returns the exception to throw.
+    private BlockStoreException closeAfterFailure(String message, Exception e) {
+        closed = true;
+        batch = null;
+        batchOwner = null;
+        try {
+            closeFiles();
+        } catch (IOException x) {
+            e.addSuppressed(x);
+        }
+        return new BlockStoreException(message, e);
+    }
+
+    // Updates the indexes for a record at the given offset. Used both when committing and when replaying the log.
+    private void apply(byte type, long offset, byte[] payload) throws IOException {
+        int size = RECORD_OVERHEAD + payload.length;
+        ByteBuffer buf = ByteBuffer.wrap(payload);
+        switch (type) {
+            case RECORD_UTXO: {
+                Sha256Hash hash = Sha256Hash.read(buf);
+                long index = ByteUtils.readUint32(buf);
+                long previous = utxos.put(outPointHash(hash, index), offset, o -> isUtxoAt(o, hash, index));
+                if (previous >= 0)
+                    garbage += recordSize(previous);
+                break;
+            }
+            case RECORD_UTXO_SPENT: {
+                Sha256Hash hash = Sha256Hash.read(buf);
+                long index = ByteUtils.readUint32(buf);
+                long removed = utxos.remove(outPointHash(hash, index), o -> isUtxoAt(o, hash, index));
+                if (removed >= 0)
+                    garbage += recordSize(removed);
+                garbage += size;
+                break;
+            }
+            case RECORD_BLOCK: {
+                Sha256Hash hash = Sha256Hash.read(buf);
+                boolean wasUndoable = buf.get() != 0;
+                BlockEntry previous = blocks.put(hash, new BlockEntry(offset, size, wasUndoable));
+                if (previous != null)
+                    garbage += previous.size;
+                blockCache.remove(hash);
+                break;
+            }
+            case RECORD_UNDO_BLOCK: {
+                Sha256Hash hash = Sha256Hash.read(buf);
+                int height = ByteUtils.readInt32(buf);
+                removeUndoBlock(hash);
+                undoBlocks.put(hash, new UndoEntry(offset, size, height));
+                undoBlocksByHeight.computeIfAbsent(height, h -> new HashSet<>()).add(hash);
+                break;
+            }
+            case RECORD_UNDO_BLOCK_PRUNED: {
+                removeUndoBlock(Sha256Hash.read(buf));
+                garbage += size;
+                break;
+            }
+            case RECORD_CHAIN_HEAD: {
+                if (chainHead != null)
+                    garbage += HEAD_RECORD_SIZE;
+                chainHead = StoredBlock.deserializeCompactV2(buf);
+                break;
+            }
+            case RECORD_VERIFIED_CHAIN_HEAD: {
+                if (verifiedChainHead != null)
+                    garbage += HEAD_RECORD_SIZE;
+                verifiedChainHead = StoredBlock.deserializeCompactV2(buf);
+                break;
+            }
+            case RECORD_COMMIT: {
+                garbage += size;
+                break;
+            }
+            default:
+                throw new IOException("Unknown record type " + type + " at offset " + offset);
+        }
+    }
+
+    private void removeUndoBlock(Sha256Hash hash) {
+        UndoEntry previous = undoBlocks.remove(hash);
+        if (previous != null) {
+            garbage += previous.size;
+            Set<Sha256Hash> atHeight = undoBlocksByHeight.get(previous.height);
+            atHeight.remove(hash);
+            if (atHeight.isEmpty())
+                undoBlocksByHeight.remove(previous.height);
+        }
+    }
+
+    // --- Log file
+
+    private static final class Record {
+        final byte type;
+        final byte[] payload;
+
+        Record(byte type, byte[] payload) {
+            this.type = type;
+            this.payload = payload;
+        }
+    }
+
+    /** Assembles the records of a batch, followed by a commit record with the checksum of all of them. */
+    private static final class RecordWriter {
+        final List<Record> records = new ArrayList<>();
+        private final CRC32 crc = new CRC32();
+        private int size;
+
+        void add(byte type, byte[] payload) {
+            records.add(new Record(type, payload));
+            updateChecksum(type, payload);
+            size += RECORD_OVERHEAD + payload.length;
+        }
+
+        /** Include a record that has been written by other means in the checksum. */
+        void updateChecksum(byte type, byte[] payload) {
+            updateChecksum(crc, type, payload);
+        }
+
+        static void updateChecksum(CRC32 crc, byte type, byte[] payload) {
+            byte[] header = new byte[RECORD_OVERHEAD];
+            ByteUtils.writeInt32LE(payload.length + 1, header, 0);
+            header[4] = type;
+            crc.update(header);
+            crc.update(payload);
+        }
+
+        boolean isEmpty() {
+            return records.isEmpty();
+        }
+
+        void commit() {
+            byte[] checksum = new byte[4];
+            ByteUtils.writeInt32LE(crc.getValue(), checksum, 0);
+            records.add(new Record(RECORD_COMMIT, checksum));
+            size += COMMIT_RECORD_SIZE;
+        }
+
+        int size() {
+            return size;
+        }
+
+        byte[] toByteArray() {
+            ByteBuffer buf = ByteBuffer.allocate(size);
+            for (Record record : records) {
+                ByteUtils.writeInt32LE(record.payload.length + 1, buf);
+                buf.put(record.type);
+                buf.put(record.payload);
+            }
+            return buf.array();
+        }
+    }
+
+    /** Reads the records after the file header sequentially, keeping track of their offsets. */
+    private static final class RecordReader {
+        private final DataInputStream in;
+        private final long length;
+        private long position = HEADER_SIZE;
+        long offset;
+        byte type;
+        byte[] payload;
+
+        RecordReader(FileChannel channel, long length) throws IOException {
+            channel.position(position);
+            // the stream is never closed, as that would close the channel
+            InputStream stream = Channels.newInputStream(channel);
+            this.in = new DataInputStream(new BufferedInputStream(stream, 1 << 16));
+            this.length = length;
+        }
+
+        /** @return false at the end of the log, or if the next record is incomplete */
+        boolean next() throws IOException {
+            if (position + RECORD_OVERHEAD > length)
+                return false;
+            int size = Integer.reverseBytes(in.readInt());
+            if (size < 1 || position + 4 + size > length)
+                return false;
+            type = in.readByte();
+            payload = new byte[size - 1];
+            in.readFully(payload);
+            offset = position;
+            position += 4 + size;
+            return true;
+        }
+
+        /** Offset just after the last record that was read. */
+        long position() {
+            return position;
+        }
+    }
+
+    private void replay() throws IOException, BlockStoreException {
+        long length = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, header, 0);
+        ((Buffer) header).flip();
+        byte[] magic = new byte[HEADER_MAGIC.length];
+        header.get(magic);
+        if (!Arrays.equals(magic, HEADER_MAGIC))
+            throw new BlockStoreException("Not a block store log: " + file);
+        int version = ByteUtils.readInt32(header);
+        if (version != VERSION)
+            throw new BlockStoreException("Unsupported block store log version " + version + ": " + file);
+
+        List<Record> pending = new ArrayList<>();
+        List<Long> pendingOffsets = new ArrayList<>();
+        CRC32 crc = new CRC32();
+        long committed = HEADER_SIZE;
+        RecordReader reader = new RecordReader(channel, length);
+        while (reader.next()) {
+            if (reader.type == RECORD_COMMIT) {
+                if (reader.payload.length != 4 || ByteUtils.readUint32(reader.payload, 0) != crc.getValue())
+                    break;
+                for (int i = 0; i < pending.size(); i++)
+                    apply(pending.get(i).type, pendingOffsets.get(i), pending.get(i).payload);
+                apply(RECORD_COMMIT, reader.offset, reader.payload);
+                pending.clear();
+                pendingOffsets.clear();
+                crc.reset();
+                committed = reader.position();
+            } else {
+                RecordWriter.updateChecksum(crc, reader.type, reader.payload);
+                pending.add(new Record(reader.type, reader.payload));
+                pendingOffsets.add(reader.offset);
+            }
+        }
+        end = committed;
+        if (committed < length) {
+            log.warn("Truncating {} bytes of uncommitted data from block store log {}", length - committed, file);
+            channel.truncate(committed);
+            channel.force(false);
+        }
+        if (chainHead == null || verifiedChainHead == null)
+            throw new BlockStoreException("Block store log has no chain head: " + file);
+        log.info("Replayed block store log: {} blocks, {} undo blocks, {} unspent outputs, {} of {} bytes garbage",
+                blocks.size(), undoBlocks.size(), utxos.size(), garbage, end);
+    }
+
+    /**
+     * Rewrite the log, leaving out everything that isn't needed anymore: spent outputs, pruned undo blocks and
+     * replaced chain heads. The new log is written next to the old one and then atomically replaces it, so a crash
+     * during compaction leaves the old log intact. This operation blocks the store until it is finished.
+     *
+     * @throws BlockStoreException if the new log can't be written
+     */
+    public synchronized void compact() throws BlockStoreException {
+        checkOpen();
+        File compacted = new File(file.getPath() + ".compact");
+        long before = end;
+        try (RandomAccessFile out = new RandomAccessFile(compacted, "rw")) {
+            out.setLength(0);
+            FileChannel outChannel = out.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+            buffer.put(HEADER_MAGIC);
+            ByteUtils.writeInt32LE(VERSION, buffer);
+            long newEnd = HEADER_SIZE;
+            Map<Sha256Hash, BlockEntry> newBlocks = new HashMap<>();
+            Map<Sha256Hash, UndoEntry> newUndoBlocks = new HashMap<>();
+            RecordWriter writer = new RecordWriter();
+
+            // Copy live records in log order, so both files are accessed sequentially. The UTXO index is updated in
+            // place; should anything fail from here on, the store is closed and can be reopened from the old log.
+            RecordReader reader = new RecordReader(channel, end);
+            while (reader.next()) {
+                ByteBuffer buf = ByteBuffer.wrap(reader.payload);
+                boolean live;
+                switch (reader.type) {
+                    case RECORD_UTXO: {
+                        Sha256Hash hash = Sha256Hash.read(buf);
+                        long index = ByteUtils.readUint32(buf);
+                        live = utxos.move(outPointHash(hash, index), reader.offset, newEnd);
+                        break;
+                    }
+                    case RECORD_BLOCK: {
+                        Sha256Hash hash = Sha256Hash.read(buf);
+                        BlockEntry entry = blocks.get(hash);
+                        live = entry != null && entry.offset == reader.offset;
+                        if (live)
+                            newBlocks.put(hash, new BlockEntry(newEnd, entry.size, entry.wasUndoable));
+                        break;
+                    }
+                    case RECORD_UNDO_BLOCK: {
+                        Sha256Hash hash = Sha256Hash.read(buf);
+                        UndoEntry entry = undoBlocks.get(hash);
+                        live = entry != null && entry.offset == reader.offset;
+                        if (live)
+                            newUndoBlocks.put(hash, new UndoEntry(newEnd, entry.size, entry.height));
+                        break;
+                    }
+                    default:
+                        // spent outputs, pruned undo blocks, chain heads and commits
+                        live = false;
+                }
+                if (!live)
+                    continue;
+                int size = RECORD_OVERHEAD + reader.payload.length;
+                if (buffer.remaining() < size) {
+                    ((Buffer) buffer).flip();
+                    writeFully(outChannel, buffer, newEnd - buffer.limit());
+                    ((Buffer) buffer).clear();
+                    if (buffer.capacity() < size)
+                        buffer = ByteBuffer.allocate(size);
+                }
+                ByteUtils.writeInt32LE(reader.payload.length + 1, buffer);
+                buffer.put(reader.type);
+                buffer.put(reader.payload);
+                writer.updateChecksum(reader.type, reader.payload);
+                newEnd += size;
+            }
+            ((Buffer) buffer).flip();
+            writeFully(outChannel, buffer, newEnd - buffer.limit());
+
+            writer.add(RECORD_CHAIN_HEAD, serializeHead(chainHead));
+            writer.add(RECORD_VERIFIED_CHAIN_HEAD, serializeHead(verifiedChainHead));
+            writer.commit();
+            writeFully(outChannel, ByteBuffer.wrap(writer.toByteArray()), newEnd);
+            newEnd += writer.size();
+            outChannel.force(true);
+
+            randomAccessFile.close();
+            Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            openChannel();
+            blocks.clear();
+            blocks.putAll(newBlocks);
+            undoBlocks.clear();
+            undoBlocks.putAll(newUndoBlocks);
+            end = newEnd;
+            garbage = COMMIT_RECORD_SIZE;
+            log.info("Compacted block store log {} from {} to {} bytes", file, before, end);
+        } catch (IOException e) {
+            throw closeAfterFailure("Compaction failed, store closed: " + file, e);
+        }
+    }
+
+    private ByteBuffer readRecord(long offset, byte expectedType) throws BlockStoreException {
+        try {
+            ByteBuffer header = ByteBuffer.allocate(RECORD_OVERHEAD);
+            readFully(channel, header, offset);
+            ((Buffer) header).flip();
+            int size = ByteUtils.readInt32(header);
+            byte type = header.get();
+            if (type != expectedType)
+                throw new BlockStoreException("Unexpected record type " + type + " at offset " + offset);
+            ByteBuffer payload = ByteBuffer.allocate(size - 1);
+            readFully(channel, payload, offset + RECORD_OVERHEAD);
+            ((Buffer) payload).flip();
+            return payload;
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private int recordSize(long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4);
+        readFully(channel, header, offset);
+        ((Buffer) header).flip();
+        return 4 + ByteUtils.readInt32(header);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int read = channel.read(buf, position);
+            if (read < 0)
+                throw new EOFException("Unexpected end of block store log at " + position);
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining())
+            position += channel.write(buf, position);
+    }
+
+    // --- Serialization
+
+    private static byte[] serializeOutPoint(Sha256Hash hash, long index) {
+        ByteBuffer buf = ByteBuffer.allocate(OUTPOINT_SIZE);
+        hash.write(buf);
+        ByteUtils.writeInt32LE(index, buf);
+        return buf.array();
+    }
+
+    private static byte[] serializeBlock(Sha256Hash hash, StoredBlock block, boolean wasUndoable) {
+        ByteBuffer buf = ByteBuffer.allocate(Sha256Hash.LENGTH + 1 + StoredBlock.COMPACT_SERIALIZED_SIZE_V2);
+        hash.write(buf);
+        buf.put((byte) (wasUndoable ? 1 : 0));
+        block.serializeCompactV2(buf);
+        return buf.array();
+    }
+
+    private static byte[] serializeHead(StoredBlock block) {
+        ByteBuffer buf = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE_V2);
+        block.serializeCompactV2(buf);
+        return buf.array();
+    }
+
+    private static int utxoSize(UTXO out) {
+        int scriptLength = scriptBytes(out).length;
+        int addressLength = out.getAddress().getBytes(StandardCharsets.UTF_8).length;
+        return OUTPOINT_SIZE + 8 + 4 + 1 + VarInt.sizeOf(scriptLength) + scriptLength
+                + VarInt.sizeOf(addressLength) + addressLength;
+    }
+
+    private static byte[] scriptBytes(UTXO out) {
+        return out.getScript() != null ? out.getScript().program() : new byte[0];
+    }
+
+    private static void writeUtxo(UTXO out, ByteBuffer buf) {
+        out.getHash().write(buf);
+        ByteUtils.writeInt32LE(out.getIndex(), buf);
+        ByteUtils.writeInt64LE(out.getValue().value, buf);
+        ByteUtils.writeInt32LE(out.getHeight(), buf);
+        buf.put((byte) (out.isCoinbase() ? 1 : 0));
+        Buffers.writeLengthPrefixedBytes(buf, scriptBytes(out));
+        Buffers.writeLengthPrefixedString(buf, out.getAddress());
+    }
+
+    private static byte[] serializeUtxo(UTXO out) {
+        ByteBuffer buf = ByteBuffer.allocate(utxoSize(out));
+        writeUtxo(out, buf);
+        return buf.array();
+    }
+
+    private static UTXO readUtxo(ByteBuffer buf) {
+        Sha256Hash hash = Sha256Hash.read(buf);
+        long index = ByteUtils.readUint32(buf);
+        Coin value = Coin.valueOf(ByteUtils.readInt64(buf));
+        int height = ByteUtils.readInt32(buf);
+        boolean coinbase = buf.get() != 0;
+        Script script = Script.parse(Buffers.readLengthPrefixedBytes(buf));
+        String address = Buffers.readLengthPrefixedString(buf);
+        return new UTXO(hash, index, value, height, coinbase, script, address);
+    }
+
+    private static byte[] serializeUndoBlock(StoredUndoableBlock block, int height) {
+        List<byte[]> transactions = new ArrayList<>();
+        int size = Sha256Hash.LENGTH + 4 + 1;
+        if (block.getTransactions() != null) {
+            for (Transaction tx : block.getTransactions()) {
+                byte[] bytes = tx.serialize();
+                transactions.add(bytes);
+                size += VarInt.sizeOf(bytes.length) + bytes.length;
+            }
+            size += VarInt.sizeOf(transactions.size());
+        } else {
+            TransactionOutputChanges changes = block.getTxOutChanges();
+            size += VarInt.sizeOf(changes.txOutsCreated.size()) + VarInt.sizeOf(changes.txOutsSpent.size());
+            for (UTXO out : changes.txOutsCreated)
+                size += utxoSize(out);
+            for (UTXO out : changes.txOutsSpent)
+                size += utxoSize(out);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        block.getHash().write(buf);
+        ByteUtils.writeInt32LE(height, buf);
+        if (block.getTransactions() != null) {
+            buf.put((byte) 0);
+            VarInt.of(transactions.size()).write(buf);
+            for (byte[] bytes : transactions)
+                Buffers.writeLengthPrefixedBytes(buf, bytes);
+        } else {
+            TransactionOutputChanges changes = block.getTxOutChanges();
+            buf.put((byte) 1);
+            VarInt.of(changes.txOutsCreated.size()).write(buf);
+            for (UTXO out : changes.txOutsCreated)
+                writeUtxo(out, buf);
+            VarInt.of(changes.txOutsSpent.size()).write(buf);
+            for (UTXO out : changes.txOutsSpent)
+                writeUtxo(out, buf);
+        }
+        return buf.array();
+    }
+
+    private static StoredUndoableBlock readUndoBlock(ByteBuffer buf) {
+        Sha256Hash hash = Sha256Hash.read(buf);
+        ByteUtils.readInt32(buf); // height
+        if (buf.get() == 0) {
+            int count = VarInt.read(buf).intValue();
+            List<Transaction> transactions = new LinkedList<>();
+            for (int i = 0; i < count; i++)
+                transactions.add(Transaction.read(ByteBuffer.wrap(Buffers.readLengthPrefixedBytes(buf))));
+            return new StoredUndoableBlock(hash, transactions);
+        } else {
+            int created = VarInt.read(buf).intValue();
+            List<UTXO> txOutsCreated = new LinkedList<>();
+            for (int i = 0; i < created; i++)
+                txOutsCreated.add(readUtxo(buf));
+            int spent = VarInt.read(buf).intValue();
+            List<UTXO> txOutsSpent = new LinkedList<>();
+            for (int i = 0; i < spent; i++)
+                txOutsSpent.add(readUtxo(buf));
+            return new StoredUndoableBlock(hash, new TransactionOutputChanges(txOutsCreated, txOutsSpent));
+        }
+    }
+
+    // --- UTXOProvider
+
+    @Override
+    public Network network() {
+        return params.network();
+    }
+
+    @Override
+    public int getChainHeadHeight() throws UTXOProviderException {
+        try {
+            return getVerifiedChainHead().getHeight();
+        } catch (BlockStoreException e) {
+            throw new UTXOProviderException(e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>This scans the whole log sequentially, so it's slow for a large UTXO set.</p>
+     */
+    @Override
+    public synchronized List<UTXO> getOpenTransactionOutputs(List<ECKey> keys) throws UTXOProviderException {
+        Set<String> addresses = new HashSet<>();
+        for (ECKey key : keys) {
+            // TODO switch to pubKeyHash in order to support native segwit addresses
+            Address address = key.toAddress(ScriptType.P2PKH, params.network());
+            addresses.add(address.toString());
+        }
+        List<UTXO> foundOutputs = new ArrayList<>();
+        try {
+            checkOpen();
+            RecordReader reader = new RecordReader(channel, end);
+            while (reader.next()) {
+                if (reader.type != RECORD_UTXO)
+                    continue;
+                UTXO out = readUtxo(ByteBuffer.wrap(reader.payload));
+                if (addresses.contains(out.getAddress()) && findUtxo(out.getHash(), out.getIndex()) == reader.offset)
+                    foundOutputs.add(out);
+            }
+        } catch (IOException | BlockStoreException e) {
+            throw new UTXOProviderException(e);
+        }
+        return foundOutputs;
+    }
+
+    private void checkOpen() throws BlockStoreException {
+        if (closed)
+            throw new BlockStoreException("LogFullPrunedBlockStore is closed");
+    }
+
+    @Override
+    public String toString() {
+        return "LogFullPrunedBlockStore{file=" + file + ", size=" + end + ", garbage=" + garbage + ", utxos="
+                + utxos.size() + ", blocks=" + blocks.size() + ", undoBlocks=" + undoBlocks.size() + "}";
+    }
+}
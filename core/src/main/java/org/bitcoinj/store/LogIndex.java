@@ -0,0 +1,231 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import java.io.IOException;
+
+/**
+ * <p>A hash table from 64-bit key hashes to positive record offsets (positions in a log file, for example), made of
+ * primitive arrays so that it can index hundreds of millions of records in a few GB of heap. Each slot takes 12 bytes:
+ * the upper 32 bits of the key hash, and the offset packed together with 24 more bits of the hash. The keys themselves
+ * are not stored; whenever the stored hash bits match, the caller is asked to compare the key of the record at the
+ * offset, which means a read from disk only in the rare case of a partial hash collision.</p>
+ *
+ * <p>Collisions are resolved by linear probing, and removal shifts the following entries back, so there are no
+ * tombstones. Arrays are segmented to get past the maximum array size.</p>
+ *
+ * <p>This class is not thread-safe.</p>
+ */
+final class LogIndex {
+    /** Compares the key of the record at the given offset with the key being looked up. */
+    interface Matcher {
+        boolean matches(long offset) throws IOException;
+    }
+
+    /** Offsets must be below this limit, as only 40 bits are available for them. */
+    static final long MAX_OFFSET = (1L << 40) - 1;
+
+    private static final int SEGMENT_BITS = 20;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+    private static final int MIN_CAPACITY = 1 << 10;
+    private static final long HASH_MASK = (1L << 24) - 1;
+
+    private int[][] hashes;
+    private long[][] values; // offset << 24 | lower 24 bits of the hash, or 0 if empty
+    private long capacity;
+    private long mask;
+    private long size;
+
+    LogIndex() {
+        allocate(MIN_CAPACITY);
+    }
+
+    private void allocate(long capacity) {
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        int segments = (int) Math.max(1, capacity >>> SEGMENT_BITS);
+        int segmentSize = (int) Math.min(capacity, SEGMENT_SIZE);
+        hashes = new int[segments][segmentSize];
+        values = new long[segments][segmentSize];
+    }
+
+    /** Number of entries. */
+    long size() {
+        return size;
+    }
+
+    /** Approximate heap usage of the table, in bytes. */
+    long memoryUsage() {
+        return capacity * 12;
+    }
+
+    /**
+     * Get the offset of the record with the given key.
+     *
+     * @return offset, or -1 if there's no such record
+     */
+    long get(long hash, Matcher matcher) throws IOException {
+        long slot = find(hash, matcher);
+        return slot < 0 ? -1 : offset(value(slot));
+    }
+
+    /**
+     * Set the offset of the record with the given key, replacing the previous one if there is one.
+     *
+     * @return previous offset, or -1 if there was none
+     */
+    long put(long hash, long offset, Matcher matcher) throws IOException {
+        if (offset <= 0 || offset > MAX_OFFSET)
+            throw new IllegalArgumentException("offset out of range: " + offset);
+        long slot = find(hash, matcher);
+        if (slot >= 0) {
+            long previous = offset(value(slot));
+            setValue(slot, pack(offset, hash));
+            return previous;
+        }
+        if (size + 1 > capacity - (capacity >>> 2))
+            grow();
+        insert(hash, pack(offset, hash));
+        size++;
+        return -1;
+    }
+
+    /**
+     * Remove the record with the given key.
+     *
+     * @return offset of the removed record, or -1 if there was none
+     */
+    long remove(long hash, Matcher matcher) throws IOException {
+        long slot = find(hash, matcher);
+        if (slot < 0)
+            return -1;
+        long offset = offset(value(slot));
+        delete(slot);
+        size--;
+        return offset;
+    }
+
+    /**
+     * Change the offset of a record, without consulting the log. Used when records are moved by compaction.
+     *
+     * @return true if the record at {@code oldOffset} was indexed
+     */
+    boolean move(long hash, long oldOffset, long newOffset) {
+        for (long slot = home(hash); value(slot) != 0; slot = (slot + 1) & mask) {
+            if (offset(value(slot)) == oldOffset) {
+                setValue(slot, pack(newOffset, hash));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Remove all entries, and shrink back to the initial capacity. */
+    void clear() {
+        allocate(MIN_CAPACITY);
+        size = 0;
+    }
+
+    private long find(long hash, Matcher matcher) throws IOException {
+        int upper = (int) (hash >>> 32);
+        long lower = hash & HASH_MASK;
+        for (long slot = home(hash); ; slot = (slot + 1) & mask) {
+            long value = value(slot);
+            if (value == 0)
+                return -1;
+            if (hashes[segment(slot)][index(slot)] == upper && (value & HASH_MASK) == lower
+                    && matcher.matches(offset(value)))
+                return slot;
+        }
+    }
+
+    private void insert(long hash, long value) {
+        long slot = home(hash);
+        while (value(slot) != 0)
+            slot = (slot + 1) & mask;
+        hashes[segment(slot)][index(slot)] = (int) (hash >>> 32);
+        setValue(slot, value);
+    }
+
+    private void delete(long slot) {
+        long hole = slot;
+        for (long next = (hole + 1) & mask; value(next) != 0; next = (next + 1) & mask) {
+            long home = homeOfUpper(hashes[segment(next)][index(next)]);
+            // move the entry back into the hole, unless its home lies cyclically in (hole, next]
+            boolean movable = hole <= next ? (home <= hole || home > next) : (home <= hole && home > next);
+            if (movable) {
+                hashes[segment(hole)][index(hole)] = hashes[segment(next)][index(next)];
+                setValue(hole, value(next));
+                hole = next;
+            }
+        }
+        hashes[segment(hole)][index(hole)] = 0;
+        setValue(hole, 0);
+    }
+
+    private void grow() {
+        int[][] oldHashes = hashes;
+        long[][] oldValues = values;
+        allocate(capacity << 1);
+        for (int s = 0; s < oldValues.length; s++) {
+            for (int i = 0; i < oldValues[s].length; i++) {
+                long value = oldValues[s][i];
+                if (value != 0)
+                    insert(((long) oldHashes[s][i] << 32) | (value & HASH_MASK), value);
+            }
+        }
+    }
+
+    // The home slot only depends on the upper 32 bits, which are stored, so it can be recomputed when moving entries.
+    private long home(long hash) {
+        return homeOfUpper((int) (hash >>> 32));
+    }
+
+    private long homeOfUpper(int upper) {
+        return (upper & 0xffffffffL) & mask;
+    }
+
+    private long value(long slot) {
+        return values[segment(slot)][index(slot)];
+    }
+
+    private void setValue(long slot, long value) {
+        values[segment(slot)][index(slot)] = value;
+    }
+
+    private static long pack(long offset, long hash) {
+        return offset << 24 | (hash & HASH_MASK);
+    }
+
+    private static long offset(long value) {
+        return value >>> 24;
+    }
+
+    private static int segment(long slot) {
+        return (int) (slot >>> SEGMENT_BITS);
+    }
+
+    private static int index(long slot) {
+        return (int) (slot & SEGMENT_MASK);
+    }
+
+    @Override
+    public String toString() {
+        return "LogIndex{size=" + size + ", capacity=" + capacity + "}";
+    }
+}
@@ -100,6 +100,15 @@ public class SPVBlockStore implements BlockStore {
     private final FileChannel channel;
     private int fileLength;
 
+    // Index of the records in the ring, so that cache misses don't have to scan it. It maps the last 8 bytes of the
+    // hash (the first bytes are mostly zeros because of proof of work) to the record number plus one. It's not
+    // persisted but rebuilt when the store is opened, which takes a single pass over the ring.
+    private final LogIndex hashIndex = new LogIndex();
+    // Record number plus one of the block at each height of the chain ending at the chain head, or 0 if unknown.
+    // Indexed by height modulo the capacity, as the ring can't hold more blocks than that anyway.
+    private int[] heightIndex;
+    private int indexedHeight = -1;
+
     /**
      * Creates and initializes an SPV block store that can hold {@link #DEFAULT_CAPACITY} block headers. Will create the
      * given file if it's missing. This operation will block on disk.
@@ -190,6 +199,9 @@ public class SPVBlockStore implements BlockStore {
             if (!Arrays.equals(currentHeader, HEADER_MAGIC_V2))
                 throw new BlockStoreException("Magic header V2 expected: " + new String(currentHeader,
                         StandardCharsets.US_ASCII));
+
+            if (exists)
+                rebuildIndex();
         } catch (Exception e) {
             try {
                 if (randomAccessFile != null) randomAccessFile.close();
@@ -201,6 +213,7 @@ public class SPVBlockStore implements BlockStore {
     }
 
     private void initNewStore(Block genesisBlock) throws Exception {
+        resetIndex();
         ((Buffer) buffer).rewind();
         buffer.put(HEADER_MAGIC_V2);
         // Insert the genesis block.
@@ -266,13 +279,19 @@ public class SPVBlockStore implements BlockStore {
                 // Wrapped around.
                 cursor = FILE_PROLOGUE_BYTES;
             }
+            int record = (cursor - FILE_PROLOGUE_BYTES) / RECORD_SIZE_V2;
+            unindex(record);
             ((Buffer) buffer).position(cursor);
             Sha256Hash hash = block.getHeader().getHash();
             notFoundCache.remove(hash);
-            buffer.put(hash.getBytes());
+            byte[] hashBytes = hash.getBytes();
+            buffer.put(hashBytes);
             block.serializeCompactV2(buffer);
             setRingCursor(buffer.position());
+            hashIndex.put(indexKey(hashBytes), record + 1, value -> recordHashEquals(value - 1, hashBytes));
             blockCache.put(hash, block);
+        } catch (IOException e) {
+            throw new RuntimeException(e); // Cannot happen.
         } finally { lock.unlock(); }
     }
 
@@ -290,31 +309,39 @@ public class SPVBlockStore implements BlockStore {
             if (notFoundCache.get(hash) != null)
                 return null;
 
-            // Starting from the current tip of the ring work backwards until we have either found the block or
-            // wrapped around.
-            int cursor = getRingCursor();
-            final int startingPoint = cursor;
-            final byte[] targetHashBytes = hash.getBytes();
-            byte[] scratch = new byte[32];
-            do {
-                cursor -= RECORD_SIZE_V2;
-                if (cursor < FILE_PROLOGUE_BYTES) {
-                    // We hit the start, so wrap around.
-                    cursor = fileLength - RECORD_SIZE_V2;
-                }
-                // Cursor is now at the start of the next record to check, so read the hash and compare it.
-                ((Buffer) buffer).position(cursor);
-                buffer.get(scratch);
-                if (Arrays.equals(scratch, targetHashBytes)) {
-                    // Found the target.
-                    StoredBlock storedBlock = StoredBlock.deserializeCompactV2(buffer);
-                    blockCache.put(hash, storedBlock);
-                    return storedBlock;
-                }
-            } while (cursor != startingPoint);
-            // Not found.
-            notFoundCache.put(hash, NOT_FOUND_MARKER);
-            return null;
+            int record = findRecord(hash.getBytes());
+            if (record < 0) {
+                notFoundCache.put(hash, NOT_FOUND_MARKER);
+                return null;
+            }
+            StoredBlock storedBlock = readRecord(record);
+            blockCache.put(hash, storedBlock);
+            return storedBlock;
+        } catch (ProtocolException | IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        } finally { lock.unlock(); }
+    }
+
+    /**
+     * Returns the block at the given height of the chain ending at the current chain head, or null if that block is
+     * no longer held in the ring buffer (or the height is above the chain head).
+     * @param height height of the block
+     * @return block at that height, or null if not found
+     * @throws BlockStoreException if the store is closed
+     */
+    @Nullable
+    public StoredBlock getByHeight(int height) throws BlockStoreException {
+        final MappedByteBuffer buffer = this.buffer;
+        if (buffer == null) throw new BlockStoreException("Store closed");
+
+        lock.lock();
+        try {
+            if (height < 0 || height > indexedHeight)
+                return null;
+            int record = heightIndex[height % heightIndex.length] - 1;
+            if (record < 0 || recordHeight(record) != height)
+                return null;
+            return readRecord(record);
         } catch (ProtocolException e) {
             throw new RuntimeException(e);  // Cannot happen.
         } finally { lock.unlock(); }
@@ -354,9 +381,113 @@ public class SPVBlockStore implements BlockStore {
             byte[] headHash = chainHead.getHeader().getHash().getBytes();
             ((Buffer) buffer).position(8);
             buffer.put(headHash);
+            indexChain(chainHead.getHeight(), headHash);
+        } catch (ProtocolException | IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
         } finally { lock.unlock(); }
     }
 
+    private void resetIndex() {
+        hashIndex.clear();
+        heightIndex = new int[(fileLength - FILE_PROLOGUE_BYTES) / RECORD_SIZE_V2];
+        indexedHeight = -1;
+    }
+
+    // Index all records of the ring, oldest first so that for duplicates the latest one wins, then the chain ending at
+    // the chain head.
+    private void rebuildIndex() throws IOException, ProtocolException {
+        resetIndex();
+        int capacity = heightIndex.length;
+        int next = (getRingCursor() - FILE_PROLOGUE_BYTES) / RECORD_SIZE_V2;
+        byte[] hashBytes = new byte[32];
+        for (int i = 0; i < capacity; i++) {
+            int record = (next + i) % capacity;
+            ((Buffer) buffer).position(recordOffset(record));
+            buffer.get(hashBytes);
+            if (isZero(hashBytes))
+                continue; // never written
+            byte[] key = hashBytes.clone();
+            hashIndex.put(indexKey(key), record + 1, value -> recordHashEquals(value - 1, key));
+        }
+        byte[] headHash = new byte[32];
+        ((Buffer) buffer).position(8);
+        buffer.get(headHash);
+        int headRecord = findRecord(headHash);
+        if (headRecord >= 0)
+            indexChain(recordHeight(headRecord), headHash);
+    }
+
+    // Walk back from the given block and fill the height index, until reaching a block that is already indexed (which
+    // means all its ancestors are too) or one that is no longer in the ring.
+    private void indexChain(int height, byte[] hashBytes) throws IOException, ProtocolException {
+        // Forget blocks above the new chain head, in case of a re-org to a chain with more work but less height.
+        for (int h = height + 1; h <= indexedHeight && h - height <= heightIndex.length; h++) {
+            int slot = h % heightIndex.length;
+            if (heightIndex[slot] != 0 && recordHeight(heightIndex[slot] - 1) > height)
+                heightIndex[slot] = 0;
+        }
+        indexedHeight = height;
+        for (int i = 0; i < heightIndex.length && height >= 0; i++, height--) {
+            int record = findRecord(hashBytes);
+            if (record < 0)
+                break;
+            int slot = height % heightIndex.length;
+            if (heightIndex[slot] == record + 1)
+                break;
+            heightIndex[slot] = record + 1;
+            hashBytes = readRecord(record).getHeader().getPrevBlockHash().getBytes();
+        }
+    }
+
+    // Remove the record about to be overwritten from the indexes.
+    private void unindex(int record) throws IOException {
+        byte[] hashBytes = new byte[32];
+        ((Buffer) buffer).position(recordOffset(record));
+        buffer.get(hashBytes);
+        if (isZero(hashBytes))
+            return; // never written
+        hashIndex.remove(indexKey(hashBytes), value -> value == record + 1);
+        int slot = recordHeight(record) % heightIndex.length;
+        if (heightIndex[slot] == record + 1)
+            heightIndex[slot] = 0;
+    }
+
+    private int findRecord(byte[] hashBytes) throws IOException {
+        return (int) hashIndex.get(indexKey(hashBytes), value -> recordHashEquals(value - 1, hashBytes)) - 1;
+    }
+
+    private StoredBlock readRecord(int record) throws ProtocolException {
+        ((Buffer) buffer).position(recordOffset(record) + 32);
+        return StoredBlock.deserializeCompactV2(buffer);
+    }
+
+    private int recordHeight(int record) {
+        return buffer.getInt(recordOffset(record) + 32 /* hash */ + 32 /* chain work */);
+    }
+
+    private boolean recordHashEquals(long record, byte[] hashBytes) {
+        int offset = recordOffset((int) record);
+        for (int i = 0; i < hashBytes.length; i++)
+            if (buffer.get(offset + i) != hashBytes[i])
+                return false;
+        return true;
+    }
+
+    private static int recordOffset(int record) {
+        return FILE_PROLOGUE_BYTES + record * RECORD_SIZE_V2;
+    }
+
+    private static long indexKey(byte[] hashBytes) {
+        return ByteUtils.readInt64(hashBytes, 24);
+    }
+
+    private static boolean isZero(byte[] bytes) {
+        for (byte b : bytes)
+            if (b != 0)
+                return false;
+        return true;
+    }
+
     @Override
     public void close() throws BlockStoreException {
         try {
@@ -365,6 +496,7 @@ public class SPVBlockStore implements BlockStore {
             fileLock.release();
             randomAccessFile.close();
             blockCache.clear();
+            hashIndex.clear();
         } catch (IOException e) {
             throw new BlockStoreException(e);
         }
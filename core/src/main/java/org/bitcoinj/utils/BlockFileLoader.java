@@ -17,25 +17,43 @@
 package org.bitcoinj.utils;
 
 import org.bitcoinj.base.Network;
-import org.bitcoinj.base.internal.ByteUtils;
+import org.bitcoinj.base.Sha256Hash;
 import org.bitcoinj.core.Block;
 import org.bitcoinj.core.MessageSerializer;
 import org.bitcoinj.core.NetworkParameters;
-import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.VerificationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.io.BufferedInputStream;
+import javax.annotation.Nullable;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Spliterator;
 import java.util.Spliterators;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
@@ -45,21 +63,31 @@ import static org.bitcoinj.base.internal.Preconditions.checkArgument;
  * <p>This class reads block files stored in the Bitcoin Core format. This is simply a way to concatenate
  * blocks together. Importing block data with this tool can be a lot faster than syncing over the network, if you
  * have the files available.</p>
- * 
- * <p>In order to comply with {@link Iterable}, {@link BlockFileIterator} swallows a lot of {@link IOException}s, which may result in a few
- * blocks being missed followed by a huge set of orphan blocks.</p>
- * 
- * <p>To blindly import all files which can be found in Bitcoin Core (version 0.8 or higher) datadir automatically,
- * try this code fragment:
+ *
+ * <p>Files are memory mapped and indexed in one pass, and blocks are handed out as slices of the mapping, so they are
+ * not copied before being parsed. Data that doesn't look like a block, like the zero padding at the end of a file
+ * or a block that was cut short, is skipped.</p>
+ *
+ * <p>Bitcoin Core doesn't store blocks in chain order. {@link #orderedStream(Sha256Hash)} parses blocks on a pool of
+ * worker threads and reorders them by their parents, so that they can be added to a chain as they come. To blindly
+ * import all files which can be found in Bitcoin Core (version 0.8 or higher) datadir automatically, try this code
+ * fragment:
  * {@code
- * BlockFileLoader loader = new BlockFileLoader(BlockFileLoader.getReferenceClientBlockFileList());
- * for (Block block : loader) {
- * try { chain.add(block); } catch (Exception e) { }
- * }
+ * BlockFileLoader loader = new BlockFileLoader(network, BlockFileLoader.getReferenceClientBlockFileList());
+ * Iterator<Block> blocks = loader.orderedStream(chain.getChainHead().getHeader().getHash()).iterator();
+ * while (blocks.hasNext())
+ * chain.add(blocks.next());
  * }</p>
  */
 public class BlockFileLoader implements Iterable<Block> {
-    private static final int BLOCKFILE_BUFFER_SIZE = 16 * 1024 * 1024;
+    private static final Logger log = LoggerFactory.getLogger(BlockFileLoader.class);
+    // Blocks parsed ahead of the consumer, per worker thread.
+    private static final int PARSE_AHEAD_PER_THREAD = 16;
+    // Parsed blocks that are kept while waiting for their parent. Beyond that, only their position is kept and they
+    // are parsed again once their parent arrives.
+    private static final int MAX_RETAINED_ORPHANS = 1024;
+    // Hashes of recently streamed blocks, to which stale blocks may connect.
+    private static final int MAX_RECENT_HASHES = 100_000;
 
     /**
      * Gets the list of files which contain blocks from Bitcoin Core.
@@ -104,79 +132,85 @@ public class BlockFileLoader implements Iterable<Block> {
     }
 
     /**
-     * Iterates all the blocks in a single block file.
+     * Iterates all the blocks in a single block file. The file is memory mapped, and the positions of its blocks are
+     * indexed when the iterator is created.
      */
     public class BlockFileIterator implements Iterator<ByteBuffer> {
-        private final File file;
-        private final BufferedInputStream currentFileStream;
-        private ByteBuffer nextBlock = null;
+        private final ByteBuffer mapped;
+        private final int[] offsets;
+        private final int[] lengths;
+        private final int count;
+        private int next = 0;
 
         public BlockFileIterator(File blockFile) throws FileNotFoundException {
-            this.file = blockFile;
-            currentFileStream = new BufferedInputStream(new FileInputStream(blockFile), BLOCKFILE_BUFFER_SIZE);
+            try (RandomAccessFile raf = new RandomAccessFile(blockFile, "r")) {
+                FileChannel channel = raf.getChannel();
+                long size = channel.size();
+                if (size > Integer.MAX_VALUE)
+                    throw new IOException("block file too large: " + blockFile);
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } catch (FileNotFoundException e) {
+                throw e;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            List<int[]> index = index(mapped);
+            count = index.size();
+            offsets = new int[count];
+            lengths = new int[count];
+            for (int i = 0; i < count; i++) {
+                offsets[i] = index.get(i)[0];
+                lengths[i] = index.get(i)[1];
+            }
+        }
+
+        // Finds the offset and length of each block: the magic, the length and then that many bytes. Data between
+        // blocks is searched for the magic Horspool style: the last byte of a mismatch tells how far it is safe to
+        // skip, which is four bytes for anything that doesn't occur in the magic, like zero padding.
+        private List<int[]> index(ByteBuffer file) {
+            List<int[]> index = new ArrayList<>();
+            ByteBuffer buf = file.duplicate().order(ByteOrder.BIG_ENDIAN);
+            int magic = (int) packetMagic;
+            int[] skip = new int[256];
+            Arrays.fill(skip, 4);
+            for (int i = 0; i < 3; i++)
+                skip[(magic >>> (24 - 8 * i)) & 0xff] = 3 - i;
+            int limit = buf.limit();
+            int position = 0;
+            while (position + 8 <= limit) {
+                if (buf.getInt(position) != magic) {
+                    position += skip[buf.get(position + 3) & 0xff];
+                    continue;
+                }
+                long length = Integer.reverseBytes(buf.getInt(position + 4)) & 0xffffffffL; // little endian
+                int offset = position + 8;
+                if (length > limit - offset)
+                    break; // cut short
+                index.add(new int[] { offset, (int) length });
+                position = offset + (int) length;
+            }
+            return index;
+        }
+
+        /** Number of blocks in the file. */
+        public int size() {
+            return count;
         }
 
         @Override
         public boolean hasNext() {
-            if (nextBlock == null)
-                loadNextBlock();
-            return nextBlock != null;
+            return next < count;
         }
 
         @Override
         public ByteBuffer next() throws NoSuchElementException {
             if (!hasNext())
                 throw new NoSuchElementException();
-            ByteBuffer next = nextBlock;
-            nextBlock = null;
-            return next;
-        }
-
-        private void loadNextBlock() {
-            try {
-                if (currentFileStream.available() < 1) {
-                    nextBlock = null;
-                    return;
-                }
-                int nextChar = currentFileStream.read();
-                while (nextChar != -1) {
-                    if (nextChar != ((packetMagic >>> 24) & 0xff)) {
-                        nextChar = currentFileStream.read();
-                        continue;
-                    }
-                    nextChar = currentFileStream.read();
-                    if (nextChar != ((packetMagic >>> 16) & 0xff))
-                        continue;
-                    nextChar = currentFileStream.read();
-                    if (nextChar != ((packetMagic >>> 8) & 0xff))
-                        continue;
-                    nextChar = currentFileStream.read();
-                    if (nextChar == (packetMagic & 0xff))
-                        break;
-                }
-                byte[] sizeBytes = new byte[4];
-                int sizeBytesRead = currentFileStream.read(sizeBytes, 0, 4);
-                if (sizeBytesRead != 4) {
-                    nextBlock = null;
-                    return;
-                }
-                long size = ByteUtils.readUint32(sizeBytes, 0);
-                byte[] dataBytes = new byte[(int) size];
-                int dataBytesRead = currentFileStream.read(dataBytes, 0, (int) size);
-                if (dataBytesRead != size) {
-                    nextBlock = null;
-                    return;
-                }
-                try {
-                    nextBlock = ByteBuffer.wrap(dataBytes);
-                } catch (ProtocolException e) {
-                    nextBlock = null;
-                } catch (Exception e) {
-                    throw new RuntimeException("unexpected problem with block in " + file, e);
-                }
-            } catch (IOException e) {
-                nextBlock = null;
-            }
+            ByteBuffer block = mapped.duplicate();
+            ((Buffer) block).position(offsets[next]);
+            ((Buffer) block).limit(offsets[next] + lengths[next]);
+            next++;
+            return block.slice();
         }
 
         @Override
@@ -190,6 +224,9 @@ public class BlockFileLoader implements Iterable<Block> {
         return stream().iterator();
     }
 
+    /**
+     * Stream all blocks, in the order they are stored.
+     */
     public Stream<Block> stream() {
         return streamBuffers()
                 .map(serializer::makeBlock);
@@ -200,17 +237,178 @@ public class BlockFileLoader implements Iterable<Block> {
                 .flatMap(this::fileBlockStream);
     }
 
+    /**
+     * Stream the blocks that build on the given block, in an order in which each block comes after its parent. Blocks
+     * are parsed, hashed and checked for proof of work on as many threads as there are processors. See
+     * {@link #orderedStream(Sha256Hash, int)}.
+     *
+     * @param startHash hash of the block to build on, usually the chain head
+     * @return stream of blocks, which must be closed if it isn't consumed to the end
+     */
+    public Stream<Block> orderedStream(Sha256Hash startHash) {
+        return orderedStream(startHash, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * <p>Stream the blocks that build on the given block, in an order in which each block comes after its parent, so
+     * that they can be added to a chain as they come. Stale blocks are included, after their parent. Blocks that
+     * don't connect, including those that the start block builds on, are left out.</p>
+     *
+     * <p>Blocks are parsed on a pool of worker threads, which also calculate their hashes and transaction ids and check
+     * their proof of work, so adding them to a chain is limited by validation. Blocks that can't be parsed or have
+     * invalid proof of work are left out.</p>
+     *
+     * @param startHash hash of the block to build on, usually the chain head
+     * @param threads   number of worker threads
+     * @return stream of blocks, which must be closed if it isn't consumed to the end
+     */
+    public Stream<Block> orderedStream(Sha256Hash startHash, int threads) {
+        checkArgument(threads > 0, () -> "threads must be positive: " + threads);
+        OrderedBlockIterator iterator = new OrderedBlockIterator(startHash, threads);
+        int characteristics = Spliterator.DISTINCT | Spliterator.ORDERED | Spliterator.NONNULL;
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, characteristics), false)
+                .onClose(iterator::close);
+    }
+
     protected Stream<ByteBuffer> fileBlockStream(File file) {
         return StreamSupport.stream(fileBlockSpliterator(file), false);
     }
 
     protected Spliterator<ByteBuffer> fileBlockSpliterator(File file) {
         try {
-            Iterator<ByteBuffer> iterator = new BlockFileIterator(file);
-            int characteristics = Spliterator.DISTINCT | Spliterator.ORDERED;
-            return Spliterators.spliteratorUnknownSize(iterator, characteristics);
+            BlockFileIterator iterator = new BlockFileIterator(file);
+            int characteristics = Spliterator.DISTINCT | Spliterator.ORDERED | Spliterator.SIZED;
+            return Spliterators.spliterator(iterator, iterator.size(), characteristics);
         } catch (FileNotFoundException e) {
             throw new RuntimeException(e);
         }
     }
+
+    // Parses blocks ahead on the workers, in file order, and hands them out once their parent has been handed out.
+    private class OrderedBlockIterator implements Iterator<Block> {
+        private final Iterator<ByteBuffer> buffers = streamBuffers().iterator();
+        private final ExecutorService executor;
+        private final int parseAhead;
+        private final Deque<Future<Block>> parsing = new ArrayDeque<>();
+        private final Deque<ByteBuffer> buffersInFlight = new ArrayDeque<>();
+        private final Deque<Block> ready = new ArrayDeque<>();
+        // blocks waiting for their parent, by hash of the parent
+        private final Map<Sha256Hash, List<Orphan>> orphans = new HashMap<>();
+        private final Map<Sha256Hash, Boolean> recent = new LinkedHashMap<Sha256Hash, Boolean>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Boolean> eldest) {
+                return size() > MAX_RECENT_HASHES;
+            }
+        };
+        private int orphanCount = 0;
+        private int retainedOrphans = 0;
+
+        OrderedBlockIterator(Sha256Hash startHash, int threads) {
+            this.executor = Executors.newFixedThreadPool(threads,
+                    new ContextPropagatingThreadFactory("BlockFileLoader"));
+            this.parseAhead = threads * PARSE_AHEAD_PER_THREAD;
+            recent.put(startHash, true);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (ready.isEmpty()) {
+                while (parsing.size() < parseAhead && buffers.hasNext()) {
+                    ByteBuffer buffer = buffers.next();
+                    parsing.add(executor.submit(() -> parse(buffer)));
+                    buffersInFlight.add(buffer);
+                }
+                if (parsing.isEmpty()) {
+                    close();
+                    return false;
+                }
+                ByteBuffer buffer = buffersInFlight.poll();
+                Block block = await(parsing.poll());
+                if (block == null || recent.containsKey(block.getHash()))
+                    continue;
+                if (recent.containsKey(block.getPrevBlockHash())) {
+                    ready.add(block);
+                } else {
+                    boolean retain = retainedOrphans < MAX_RETAINED_ORPHANS;
+                    if (retain)
+                        retainedOrphans++;
+                    orphans.computeIfAbsent(block.getPrevBlockHash(), k -> new ArrayList<>(1))
+                            .add(new Orphan(buffer, retain ? block : null));
+                    orphanCount++;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public Block next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Block block = ready.poll();
+            recent.put(block.getHash(), true);
+            List<Orphan> children = orphans.remove(block.getHash());
+            if (children != null) {
+                for (Orphan child : children) {
+                    orphanCount--;
+                    if (child.block != null)
+                        retainedOrphans--;
+                    Block parsed = child.block != null ? child.block : parse(child.buffer);
+                    if (parsed != null)
+                        ready.add(parsed);
+                }
+            }
+            return block;
+        }
+
+        @Nullable
+        private Block parse(ByteBuffer buffer) {
+            try {
+                Block block = serializer.makeBlock(buffer.duplicate());
+                block.getHash();
+                Block.verifyHeader(block);
+                if (block.getTransactions() != null && !block.getTransactions().isEmpty())
+                    Block.verifyMerkleRoot(block); // hashes the transactions as well
+                return block;
+            } catch (VerificationException | BufferUnderflowException e) {
+                log.warn("Skipping block that can't be read: {}", e.getMessage());
+                return null;
+            }
+        }
+
+        @Nullable
+        private Block await(Future<Block> future) {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                close();
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                close();
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                throw new RuntimeException(cause);
+            }
+        }
+
+        void close() {
+            if (executor.isShutdown())
+                return;
+            executor.shutdownNow();
+            if (orphanCount > 0)
+                log.info("{} blocks didn't connect", orphanCount);
+        }
+    }
+
+    // A block waiting for its parent. The parsed block is only kept for a limited number of them.
+    private static class Orphan {
+        final ByteBuffer buffer;
+        @Nullable final Block block;
+
+        Orphan(ByteBuffer buffer, @Nullable Block block) {
+            this.buffer = buffer;
+            this.block = block;
+        }
+    }
 }
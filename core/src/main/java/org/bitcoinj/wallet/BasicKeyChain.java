@@ -46,6 +46,7 @@ import java.util.Optional;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import static org.bitcoinj.base.internal.Preconditions.checkArgument;
@@ -66,6 +67,8 @@ public class BasicKeyChain implements EncryptableKeyChain {
     private boolean isWatching;
 
     private final CopyOnWriteArrayList<ListenerRegistration<KeyChainEventListener>> listeners;
+    // Called with each key as it is added, while the lock is held. Used by KeyChainGroup to index its chains.
+    private final CopyOnWriteArrayList<Consumer<ECKey>> importListeners = new CopyOnWriteArrayList<>();
 
     public BasicKeyChain() {
         this(null);
@@ -195,6 +198,20 @@ public class BasicKeyChain implements EncryptableKeyChain {
         ECKey previousKey = pubkeyToKeys.put(ByteString.copyFrom(key.getPubKey()), key);
         hashToKeys.put(ByteString.copyFrom(key.getPubKeyHash()), key);
         checkState(previousKey == null);
+        for (Consumer<ECKey> listener : importListeners)
+            listener.accept(key);
+    }
+
+    /**
+     * Adds a listener that is called with each key as it is added to the chain, synchronously and while the chain is
+     * locked, so it must not call back into the chain.
+     */
+    void addImportListener(Consumer<ECKey> listener) {
+        importListeners.add(Objects.requireNonNull(listener));
+    }
+
+    void removeImportListener(Consumer<ECKey> listener) {
+        importListeners.remove(listener);
     }
 
     private void importKeysLocked(List<ECKey> keys) {
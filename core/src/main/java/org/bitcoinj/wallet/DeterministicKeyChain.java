@@ -61,6 +61,7 @@ import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.Executor;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.stream.Stream;
 
@@ -734,6 +735,15 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
         return basicKeyChain.removeEventListener(listener);
     }
 
+    /** See {@link BasicKeyChain#addImportListener(Consumer)}. Lookahead keys are reported as they are derived. */
+    void addImportListener(Consumer<ECKey> listener) {
+        basicKeyChain.addImportListener(listener);
+    }
+
+    void removeImportListener(Consumer<ECKey> listener) {
+        basicKeyChain.removeImportListener(listener);
+    }
+
     /** Returns a list of words that represent the seed or null if this chain is a watching chain. */
     @Nullable
     public List<String> getMnemonicCode() {
@@ -1250,10 +1260,8 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
                 limit, parent.getPathAsString(), issued, lookaheadSize, lookaheadThreshold, numChildren);
 
         Stopwatch watch = Stopwatch.start();
-        List<DeterministicKey> result = HDKeyDerivation.generate(parent, numChildren)
-                .limit(limit)
-                .map(DeterministicKey::dropPrivateBytes)
-                .collect(StreamUtils.toUnmodifiableList());
+        // Derived in parallel, and added to the chain all at once by the caller.
+        List<DeterministicKey> result = HDKeyDerivation.deriveChildKeys(parent, numChildren, limit);
         log.info("Took {}", watch);
         return result;
     }
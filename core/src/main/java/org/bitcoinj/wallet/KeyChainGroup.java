@@ -234,6 +234,8 @@ public class KeyChainGroup implements KeyBag {
     private final Network network;
     // Keychains for deterministically derived keys.
     protected final @Nullable LinkedList<DeterministicKeyChain> chains;
+    // Index of the keys of all chains, which must be kept in sync with the list of chains.
+    private final KeyChainIndex index = new KeyChainIndex();
     // currentKeys is used for normal, non-multisig/married wallets. currentAddresses is used when we're handing out
     // P2SH addresses. They're mutually exclusive.
     private final EnumMap<KeyChain.KeyPurpose, DeterministicKey> currentKeys;
@@ -273,6 +275,7 @@ public class KeyChainGroup implements KeyBag {
                     chain.setLookaheadSize(this.lookaheadSize);
                 if (this.lookaheadThreshold > -1)
                     chain.setLookaheadThreshold(this.lookaheadThreshold);
+                index.addChain(chain);
             }
         } else {
             this.chains = null;
@@ -323,6 +326,7 @@ public class KeyChainGroup implements KeyBag {
         if (lookaheadThreshold >= 0)
             chain.setLookaheadThreshold(lookaheadThreshold);
         chains.add(chain);
+        index.addChain(chain);
         currentKeys.clear();
         currentAddresses.clear();
         queueOnCurrentKeyChanged();
@@ -581,10 +585,8 @@ public class KeyChainGroup implements KeyBag {
         if (data == null)
             return;   // Not our P2SH address.
         for (ECKey key : data.keys) {
-            for (DeterministicKeyChain chain : chains) {
-                DeterministicKey k = chain.findKeyFromPubKey(key.getPubKey());
-                if (k == null) continue;
-                chain.markKeyAsUsed(k);
+            for (KeyChainIndex.Entry entry = index.findByPubKey(key.getPubKey()); entry != null; entry = entry.next) {
+                entry.chain.markKeyAsUsed(entry.key);
                 maybeMarkCurrentAddressAsUsed(address);
             }
         }
@@ -597,14 +599,11 @@ public class KeyChainGroup implements KeyBag {
         // BasicKeyChain can mix output script types.
         if ((result = basic.findKeyFromPubHash(pubKeyHash)) != null)
             return result;
-        if (chains != null) {
-            for (DeterministicKeyChain chain : chains) {
-                // This check limits DeterministicKeyChain to specific output script usage.
-                if (scriptType != null && scriptType != chain.getOutputScriptType())
-                    continue;
-                if ((result = chain.findKeyFromPubHash(pubKeyHash)) != null)
-                    return result;
-            }
+        for (KeyChainIndex.Entry entry = index.findByPubKeyHash(pubKeyHash); entry != null; entry = entry.next) {
+            // This check limits DeterministicKeyChain to specific output script usage.
+            if (scriptType != null && scriptType != entry.chain.getOutputScriptType())
+                continue;
+            return entry.key;
         }
         return null;
     }
@@ -614,15 +613,9 @@ public class KeyChainGroup implements KeyBag {
      * See {@link DeterministicKeyChain#markKeyAsUsed(DeterministicKey)} for more info on this.
      */
     public void markPubKeyHashAsUsed(byte[] pubKeyHash) {
-        if (chains != null) {
-            for (DeterministicKeyChain chain : chains) {
-                DeterministicKey key;
-                if ((key = chain.markPubHashAsUsed(pubKeyHash)) != null) {
-                    maybeMarkCurrentKeyAsUsed(key);
-                    return;
-                }
-            }
-        }
+        KeyChainIndex.Entry entry = index.findByPubKeyHash(pubKeyHash);
+        if (entry != null)
+            maybeMarkCurrentKeyAsUsed(entry.chain.markPubHashAsUsed(pubKeyHash));
     }
 
     /** If the given P2SH address is "current", advance it to a new one. */
@@ -655,11 +648,7 @@ public class KeyChainGroup implements KeyBag {
     public boolean hasKey(ECKey key) {
         if (basic.hasKey(key))
             return true;
-        if (chains != null)
-            for (DeterministicKeyChain chain : chains)
-                if (chain.hasKey(key))
-                    return true;
-        return false;
+        return index.findByPubKey(key.getPubKey()) != null;
     }
 
     @Nullable
@@ -668,11 +657,8 @@ public class KeyChainGroup implements KeyBag {
         ECKey result;
         if ((result = basic.findKeyFromPubKey(pubKey)) != null)
             return result;
-        if (chains != null)
-            for (DeterministicKeyChain chain : chains)
-                if ((result = chain.findKeyFromPubKey(pubKey)) != null)
-                    return result;
-        return null;
+        KeyChainIndex.Entry entry = index.findByPubKey(pubKey);
+        return entry != null ? entry.key : null;
     }
 
     /**
@@ -680,15 +666,9 @@ public class KeyChainGroup implements KeyBag {
      * See {@link DeterministicKeyChain#markKeyAsUsed(DeterministicKey)} for more info on this.
      */
     public void markPubKeyAsUsed(byte[] pubkey) {
-        if (chains != null) {
-            for (DeterministicKeyChain chain : chains) {
-                DeterministicKey key;
-                if ((key = chain.markPubKeyAsUsed(pubkey)) != null) {
-                    maybeMarkCurrentKeyAsUsed(key);
-                    return;
-                }
-            }
-        }
+        KeyChainIndex.Entry entry = index.findByPubKey(pubkey);
+        if (entry != null)
+            maybeMarkCurrentKeyAsUsed(entry.chain.markPubKeyAsUsed(pubkey));
     }
 
     /** Returns the number of keys managed by this group, including the lookahead buffers. */
@@ -737,6 +717,7 @@ public class KeyChainGroup implements KeyBag {
         if (chains != null) {
             this.chains.clear();
             this.chains.addAll(newChains);
+            reindex();
         }
     }
 
@@ -758,11 +739,18 @@ public class KeyChainGroup implements KeyBag {
             // Code below this point must be exception safe.
             this.chains.clear();
             this.chains.addAll(newChains);
+            reindex();
         }
         this.basic = newBasic;
         this.keyCrypter = null;
     }
 
+    private void reindex() {
+        index.clear();
+        for (DeterministicKeyChain chain : chains)
+            index.addChain(chain);
+    }
+
     /** Returns true if the group is encrypted. */
     public boolean isEncrypted() {
         return keyCrypter != null;
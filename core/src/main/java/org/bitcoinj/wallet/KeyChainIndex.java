@@ -0,0 +1,115 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import com.google.protobuf.ByteString;
+import org.bitcoinj.crypto.DeterministicKey;
+import org.bitcoinj.crypto.ECKey;
+
+import javax.annotation.Nullable;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * <p>Index from pubkey hashes and pubkeys to the keys of all deterministic chains of a {@link KeyChainGroup}, so that
+ * finding a key takes a single hash lookup no matter how many chains there are. The chains report their keys as they
+ * are added, including lookahead keys, which keeps the index up to date.</p>
+ *
+ * <p>A key that is in several chains has an entry for each of them, in the order the chains were added. Entries are
+ * immutable, so they can be used after the lock of the index is released, in particular to call into the chain.</p>
+ */
+final class KeyChainIndex {
+    /** A key and the chain it is in, linked to the entries for the same key in chains that were added later. */
+    static final class Entry {
+        final DeterministicKeyChain chain;
+        final DeterministicKey key;
+        @Nullable final Entry next;
+        private final int ordinal;
+
+        private Entry(DeterministicKeyChain chain, DeterministicKey key, int ordinal, @Nullable Entry next) {
+            this.chain = chain;
+            this.key = key;
+            this.ordinal = ordinal;
+            this.next = next;
+        }
+    }
+
+    private final Map<ByteString, Entry> byPubKeyHash = new HashMap<>();
+    private final Map<ByteString, Entry> byPubKey = new HashMap<>();
+    private final Map<DeterministicKeyChain, Consumer<ECKey>> listeners = new IdentityHashMap<>();
+    private int nextOrdinal = 0;
+
+    /** Index all keys of the given chain, and the keys that it will derive in future. */
+    void addChain(DeterministicKeyChain chain) {
+        int ordinal;
+        Consumer<ECKey> listener;
+        synchronized (this) {
+            if (listeners.containsKey(chain))
+                return;
+            ordinal = nextOrdinal++;
+            listener = key -> add(chain, (DeterministicKey) key, ordinal);
+            listeners.put(chain, listener);
+        }
+        // Keys added concurrently may be reported twice, which is harmless.
+        chain.addImportListener(listener);
+        for (DeterministicKey key : chain.getKeys(true, true))
+            add(chain, key, ordinal);
+    }
+
+    /** Remove all chains from the index. */
+    void clear() {
+        Map<DeterministicKeyChain, Consumer<ECKey>> removed;
+        synchronized (this) {
+            removed = new IdentityHashMap<>(listeners);
+            listeners.clear();
+            byPubKeyHash.clear();
+            byPubKey.clear();
+        }
+        removed.forEach(DeterministicKeyChain::removeImportListener);
+    }
+
+    /** Returns the entries for the key with the given pubkey hash, or null if there are none. */
+    @Nullable
+    synchronized Entry findByPubKeyHash(byte[] pubKeyHash) {
+        return byPubKeyHash.get(ByteString.copyFrom(pubKeyHash));
+    }
+
+    /** Returns the entries for the key with the given pubkey, or null if there are none. */
+    @Nullable
+    synchronized Entry findByPubKey(byte[] pubKey) {
+        return byPubKey.get(ByteString.copyFrom(pubKey));
+    }
+
+    private synchronized void add(DeterministicKeyChain chain, DeterministicKey key, int ordinal) {
+        if (listeners.get(chain) == null)
+            return; // removed
+        byPubKeyHash.compute(ByteString.copyFrom(key.getPubKeyHash()), (k, entry) -> insert(entry, chain, key, ordinal));
+        byPubKey.compute(ByteString.copyFrom(key.getPubKey()), (k, entry) -> insert(entry, chain, key, ordinal));
+    }
+
+    // Copy of the given entries with the key inserted in order of the chains, or the same entries if it's there already.
+    private static Entry insert(@Nullable Entry entry, DeterministicKeyChain chain, DeterministicKey key, int ordinal) {
+        if (entry == null || ordinal < entry.ordinal)
+            return new Entry(chain, key, ordinal, entry);
+        if (entry.ordinal == ordinal)
+            return entry;
+        Entry rest = insert(entry.next, chain, key, ordinal);
+        return rest == entry.next ? entry : new Entry(entry.chain, entry.key, entry.ordinal, rest);
+    }
+}
@@ -47,6 +47,7 @@ import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.core.Peer;
 import org.bitcoinj.core.PeerFilterProvider;
 import org.bitcoinj.core.PeerGroup;
+import org.bitcoinj.core.PrecomputedTransactionData;
 import org.bitcoinj.base.Sha256Hash;
 import org.bitcoinj.core.StoredBlock;
 import org.bitcoinj.core.Transaction;
@@ -80,6 +81,8 @@ import org.bitcoinj.script.ScriptBuilder;
 import org.bitcoinj.script.ScriptChunk;
 import org.bitcoinj.script.ScriptException;
 import org.bitcoinj.script.ScriptPattern;
+import org.bitcoinj.script.SignatureCache;
+import org.bitcoinj.script.SignaturePrevalidator;
 import org.bitcoinj.signers.LocalTransactionSigner;
 import org.bitcoinj.signers.MissingSigResolutionSigner;
 import org.bitcoinj.signers.TransactionSigner;
@@ -113,6 +116,7 @@ import java.math.RoundingMode;
 import java.nio.ByteBuffer;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.AbstractSet;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -134,6 +138,8 @@ import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -218,9 +224,14 @@ public class Wallet extends BaseTaggableObject
     // All transactions together.
     protected final Map<Sha256Hash, Transaction> transactions;
 
+    // The transactions of all pools that spend each outpoint, so that double spends can be found without walking all
+    // transactions. There's usually just one per outpoint, more means they double spend each other. Kept in sync with
+    // the transactions map, so pool moves don't need to touch it.
+    private final Map<TransactionOutPoint, List<Transaction>> spendingTransactions = new HashMap<>();
+
     // All the TransactionOutput objects that we could spend (ignoring whether we have the private key or not).
     // Used to speed up various calculations.
-    protected final Set<TransactionOutput> myUnspents = new HashSet<>();
+    protected final Set<TransactionOutput> myUnspents = new UnspentOutputSet();
 
     // Transactions that were dropped by the risk analysis system. These are not in any pools and not serialized
     // to disk. We have to keep them around because if we ignore a tx because we think it will never confirm, but
@@ -528,6 +539,7 @@ public class Wallet extends BaseTaggableObject
             // doesn't necessarily know at that point which wallets contain which transactions, so it's up
             // to us to listen for that. Other types of confidence changes (type, etc) are triggered by us,
             // so we'll queue up a wallet change event in other parts of the code.
+            invalidateBalances();
             if (reason == Listener.ChangeReason.SEEN_PEERS) {
                 lock.lock();
                 try {
@@ -916,6 +928,8 @@ public class Wallet extends BaseTaggableObject
         } finally {
             keyChainGroupLock.unlock();
         }
+        invalidateBloomOutPoints();
+        invalidateBalances();
         saveNow();
         return result;
     }
@@ -943,7 +957,10 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             checkNoDeterministicKeys(keys);
-            return keyChainGroup.importKeysAndEncrypt(keys, aesKey);
+            int result = keyChainGroup.importKeysAndEncrypt(keys, aesKey);
+            invalidateBloomOutPoints();
+            invalidateBalances();
+            return result;
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -960,6 +977,8 @@ public class Wallet extends BaseTaggableObject
         } finally {
             keyChainGroupLock.unlock();
         }
+        invalidateBloomOutPoints();
+        invalidateBalances();
     }
 
     /** See {@link DeterministicKeyChain#setLookaheadSize(int)} for more info on this. */
@@ -1097,6 +1116,7 @@ public class Wallet extends BaseTaggableObject
             keyChainGroupLock.unlock();
         }
         if (added > 0) {
+            invalidateBloomOutPoints();
             queueOnScriptsChanged(scripts, true);
             saveNow();
         }
@@ -1143,6 +1163,7 @@ public class Wallet extends BaseTaggableObject
                 watchedScripts.remove(script);
             }
 
+            invalidateBloomOutPoints();
             queueOnScriptsChanged(scripts, false);
             saveNow();
             return true;
@@ -2132,29 +2153,44 @@ public class Wallet extends BaseTaggableObject
     private Set<Transaction> findDoubleSpendsAgainst(Transaction tx, Map<Sha256Hash, Transaction> candidates) {
         checkState(lock.isHeldByCurrentThread());
         if (tx.isCoinBase()) return new HashSet<>();
-        // Compile a set of outpoints that are spent by tx.
-        HashSet<TransactionOutPoint> outpoints = new HashSet<>();
-        for (TransactionInput input : tx.getInputs()) {
-            outpoints.add(input.getOutpoint());
-        }
-        // Now for each pending transaction, see if it shares any outpoints with this tx.
+        // For each outpoint spent by tx, see which of the candidates spend it too. This relies on the fact that
+        // TransactionOutPoint equality is defined at the protocol not object level - outpoints from two different
+        // inputs that point to the same output compare the same.
         Set<Transaction> doubleSpendTxns = new HashSet<>();
-        for (Transaction p : candidates.values()) {
-            if (p.equals(tx))
+        for (TransactionInput input : tx.getInputs()) {
+            List<Transaction> spenders = spendingTransactions.get(input.getOutpoint());
+            if (spenders == null)
                 continue;
-            for (TransactionInput input : p.getInputs()) {
-                // This relies on the fact that TransactionOutPoint equality is defined at the protocol not object
-                // level - outpoints from two different inputs that point to the same output compare the same.
-                TransactionOutPoint outpoint = input.getOutpoint();
-                if (outpoints.contains(outpoint)) {
-                    // It does, it's a double spend against the candidates, which makes it relevant.
+            for (Transaction p : spenders) {
+                // If it's one of the candidates, it's a double spend against them, which makes it relevant.
+                if (!p.equals(tx) && candidates.get(p.getTxId()) == p)
                     doubleSpendTxns.add(p);
-                }
             }
         }
         return doubleSpendTxns;
     }
 
+    private void indexSpends(Transaction tx) {
+        if (tx.isCoinBase())
+            return;
+        for (TransactionInput input : tx.getInputs()) {
+            List<Transaction> spenders = spendingTransactions.computeIfAbsent(input.getOutpoint(),
+                    outpoint -> new ArrayList<>(1));
+            if (!spenders.contains(tx))
+                spenders.add(tx);
+        }
+    }
+
+    private void unindexSpends(Transaction tx) {
+        if (tx.isCoinBase())
+            return;
+        for (TransactionInput input : tx.getInputs()) {
+            List<Transaction> spenders = spendingTransactions.get(input.getOutpoint());
+            if (spenders != null && spenders.remove(tx) && spenders.isEmpty())
+                spendingTransactions.remove(input.getOutpoint());
+        }
+    }
+
     /**
      * Adds to txSet all the txns in txPool spending outputs of txns in txSet,
      * and all txns spending the outputs of those txns, recursively.
@@ -2310,7 +2346,7 @@ public class Wallet extends BaseTaggableObject
                     if (getConfidence(txDependency).getConfidenceType().equals(ConfidenceType.IN_CONFLICT)) {
                         if (isNotSpendingTxnsInConfidenceType(txDependency, ConfidenceType.IN_CONFLICT)) {
                             getConfidence(txDependency).setConfidenceType(ConfidenceType.PENDING);
-                            confidenceChanged.put(txDependency, TransactionConfidence.Listener.ChangeReason.TYPE);
+                            queueConfidenceChange(txDependency, TransactionConfidence.Listener.ChangeReason.TYPE);
                         }
                     }
                 }
@@ -2322,7 +2358,7 @@ public class Wallet extends BaseTaggableObject
         // Side chains don't affect confidence.
         if (bestChain) {
             // notifyNewBestBlock will be invoked next and will then call maybeQueueOnWalletChanged for us.
-            confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
+            queueConfidenceChange(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
         } else {
             maybeQueueOnWalletChanged();
         }
@@ -2404,6 +2440,13 @@ public class Wallet extends BaseTaggableObject
         return false;
     }
 
+    // Queues a confidence change to be announced by informConfidenceListenersIfNotReorganizing(). As confidence affects
+    // which outputs are selectable, it also invalidates the cached balances.
+    private void queueConfidenceChange(Transaction tx, TransactionConfidence.Listener.ChangeReason reason) {
+        invalidateBalances();
+        confidenceChanged.put(tx, reason);
+    }
+
     private void informConfidenceListenersIfNotReorganizing() {
         if (insideReorg)
             return;
@@ -2455,7 +2498,7 @@ public class Wallet extends BaseTaggableObject
                         // wouldn't mean anything different to just remembering peers anyway.
                         if (confidence.incrementDepthInBlocks() > Context.getOrCreate().getEventHorizon())
                             confidence.clearBroadcastBy();
-                        confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
+                        queueConfidenceChange(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
                     }
                 }
             }
@@ -2674,7 +2717,7 @@ public class Wallet extends BaseTaggableObject
                 maybeMovePool(connected, "kill");
             }
             getConfidence(tx).setOverridingTxId(overridingTx != null ? overridingTx.getTxId() : null);
-            confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
+            queueConfidenceChange(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
             // Now kill any transactions we have that depended on this one.
             for (TransactionOutput deadOutput : tx.getOutputs()) {
                 if (myUnspents.remove(deadOutput))
@@ -2774,7 +2817,7 @@ public class Wallet extends BaseTaggableObject
                 // Add tx to the dead pool and schedule confidence listener notifications.
                 log.info("->dead: {}", tx.getTxId());
                 getConfidence(tx).setConfidenceType(ConfidenceType.DEAD);
-                confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
+                queueConfidenceChange(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
                 addWalletTransaction(Pool.DEAD, tx);
             } else if (!doubleSpendPendingTxns.isEmpty() ||
                 !isNotSpendingTxnsInConfidenceType(tx, ConfidenceType.IN_CONFLICT)) {
@@ -2787,14 +2830,14 @@ public class Wallet extends BaseTaggableObject
                 addTransactionsDependingOn(doubleSpendPendingTxns, getTransactions(true));
                 for (Transaction doubleSpendTx : doubleSpendPendingTxns) {
                     getConfidence(doubleSpendTx).setConfidenceType(ConfidenceType.IN_CONFLICT);
-                    confidenceChanged.put(doubleSpendTx, TransactionConfidence.Listener.ChangeReason.TYPE);
+                    queueConfidenceChange(doubleSpendTx, TransactionConfidence.Listener.ChangeReason.TYPE);
                 }
             } else {
                 // No conflict detected.
                 // Add to the pending pool and schedule confidence listener notifications.
                 log.info("->pending: {}", tx.getTxId());
                 getConfidence(tx).setConfidenceType(ConfidenceType.PENDING);
-                confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
+                queueConfidenceChange(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
                 addWalletTransaction(Pool.PENDING, tx);
             }
             if (log.isInfoEnabled())
@@ -3170,7 +3213,14 @@ public class Wallet extends BaseTaggableObject
      */
     private void addWalletTransaction(Pool pool, Transaction tx) {
         checkState(lock.isHeldByCurrentThread());
-        transactions.put(tx.getTxId(), tx);
+        Transaction previous = transactions.put(tx.getTxId(), tx);
+        if (previous != null)
+            unindexSpends(previous);
+        indexSpends(tx);
+        if (pool == Pool.DEAD)
+            removeBloomOutPoints(tx);
+        else
+            addBloomOutPoints(tx);
         switch (pool) {
         case UNSPENT:
             checkState(unspent.put(tx.getTxId(), tx) == null);
@@ -3313,6 +3363,9 @@ public class Wallet extends BaseTaggableObject
         pending.clear();
         dead.clear();
         transactions.clear();
+        spendingTransactions.clear();
+        bloomOutPoints.clear();
+        bloomOutPointCount = 0;
         myUnspents.clear();
     }
 
@@ -3372,6 +3425,8 @@ public class Wallet extends BaseTaggableObject
 
                         i.remove();
                         transactions.remove(tx.getTxId());
+                        unindexSpends(tx);
+                        removeBloomOutPoints(tx);
                         dirty = true;
                         log.info("Removed transaction {} from pending pool during cleanup.", tx.getTxId());
                     } else {
@@ -3786,25 +3841,133 @@ public class Wallet extends BaseTaggableObject
      * Returns the balance of this wallet as calculated by the provided balanceType.
      */
     public Coin getBalance(BalanceType balanceType) {
+        // Callers holding the lock may see the wallet in the middle of a change, so only cache for everyone else.
+        boolean cacheable = !lock.isHeldByCurrentThread() && vUTXOProvider == null;
+        if (cacheable) {
+            CachedBalance cached = cachedBalances.get(balanceType.ordinal());
+            if (cached != null && cached.generation == balanceGeneration.get())
+                return cached.value;
+        }
         lock.lock();
         try {
-            if (balanceType == BalanceType.AVAILABLE || balanceType == BalanceType.AVAILABLE_SPENDABLE) {
-                List<TransactionOutput> candidates = calculateAllSpendCandidates(true, balanceType == BalanceType.AVAILABLE_SPENDABLE);
-                CoinSelection selection = coinSelector.select(BitcoinNetwork.MAX_MONEY, candidates);
-                return selection.totalValue();
-            } else if (balanceType == BalanceType.ESTIMATED || balanceType == BalanceType.ESTIMATED_SPENDABLE) {
-                List<TransactionOutput> all = calculateAllSpendCandidates(false, balanceType == BalanceType.ESTIMATED_SPENDABLE);
-                Coin value = Coin.ZERO;
-                for (TransactionOutput out : all) value = value.add(out.getValue());
-                return value;
-            } else {
-                throw new AssertionError("Unknown balance type");  // Unreachable.
-            }
+            long generation = balanceGeneration.get();
+            Coin balance = calculateBalance(balanceType);
+            if (cacheable && !hasUnannouncedPendingTransactions(balanceType))
+                cachedBalances.set(balanceType.ordinal(), new CachedBalance(generation, balance));
+            return balance;
         } finally {
             lock.unlock();
         }
     }
 
+    private Coin calculateBalance(BalanceType balanceType) {
+        checkState(lock.isHeldByCurrentThread());
+        if (balanceType == BalanceType.AVAILABLE || balanceType == BalanceType.AVAILABLE_SPENDABLE) {
+            List<TransactionOutput> candidates = calculateAllSpendCandidates(true, balanceType == BalanceType.AVAILABLE_SPENDABLE);
+            CoinSelection selection = coinSelector.select(BitcoinNetwork.MAX_MONEY, candidates);
+            return selection.totalValue();
+        } else if (balanceType == BalanceType.ESTIMATED || balanceType == BalanceType.ESTIMATED_SPENDABLE) {
+            List<TransactionOutput> all = calculateAllSpendCandidates(false, balanceType == BalanceType.ESTIMATED_SPENDABLE);
+            Coin value = Coin.ZERO;
+            for (TransactionOutput out : all) value = value.add(out.getValue());
+            return value;
+        } else {
+            throw new AssertionError("Unknown balance type");  // Unreachable.
+        }
+    }
+
+    // Cached balances by BalanceType ordinal, each valid as long as the generation hasn't moved on. Anything that can
+    // change a balance (the set of unspent outputs, the confidence of a transaction, the keys) moves it on, so reads
+    // don't need to take the lock or walk the unspent outputs unless something happened since the last one.
+    private final AtomicReferenceArray<CachedBalance> cachedBalances =
+            new AtomicReferenceArray<>(BalanceType.values().length);
+    private final AtomicLong balanceGeneration = new AtomicLong();
+
+    private static class CachedBalance {
+        final long generation;
+        final Coin value;
+
+        CachedBalance(long generation, Coin value) {
+            this.generation = generation;
+            this.value = value;
+        }
+    }
+
+    private void invalidateBalances() {
+        balanceGeneration.incrementAndGet();
+    }
+
+    // Our own pending transactions become selectable once they are announced by peers. The confidence table tells us
+    // about that, but announcements recorded on the confidence directly are not notified, so don't cache an available
+    // balance while there are any such transactions waiting.
+    private boolean hasUnannouncedPendingTransactions(BalanceType balanceType) {
+        checkState(lock.isHeldByCurrentThread());
+        if (balanceType != BalanceType.AVAILABLE && balanceType != BalanceType.AVAILABLE_SPENDABLE)
+            return false;
+        for (Transaction tx : pending.values()) {
+            TransactionConfidence confidence = getConfidence(tx);
+            if (confidence.getSource() == TransactionConfidence.Source.SELF
+                    && !DefaultCoinSelector.isSelectable(tx, network))
+                return true;
+        }
+        return false;
+    }
+
+    // The set of unspent outputs, which invalidates the cached balances whenever it changes.
+    private class UnspentOutputSet extends AbstractSet<TransactionOutput> {
+        private final Set<TransactionOutput> outputs = new HashSet<>();
+
+        @Override
+        public boolean add(TransactionOutput output) {
+            invalidateBalances();
+            return outputs.add(output);
+        }
+
+        @Override
+        public boolean remove(Object output) {
+            invalidateBalances();
+            return outputs.remove(output);
+        }
+
+        @Override
+        public boolean contains(Object output) {
+            return outputs.contains(output);
+        }
+
+        @Override
+        public void clear() {
+            invalidateBalances();
+            outputs.clear();
+        }
+
+        @Override
+        public int size() {
+            return outputs.size();
+        }
+
+        @Override
+        public Iterator<TransactionOutput> iterator() {
+            Iterator<TransactionOutput> iterator = outputs.iterator();
+            return new Iterator<TransactionOutput>() {
+                @Override
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+
+                @Override
+                public TransactionOutput next() {
+                    return iterator.next();
+                }
+
+                @Override
+                public void remove() {
+                    invalidateBalances();
+                    iterator.remove();
+                }
+            };
+        }
+    }
+
     /**
      * Returns the balance that would be considered spendable by the given coin selector, including watched outputs
      * (i.e. balance includes outputs we don't have the private keys for). Just asks it to select as many coins as
@@ -4539,6 +4702,8 @@ public class Wallet extends BaseTaggableObject
             KeyBag maybeDecryptingKeyBag = new DecryptingKeyBag(this, req.aesKey);
 
             int numInputs = tx.getInputs().size();
+            PrecomputedTransactionData precomputed = PrecomputedTransactionData.of(tx);
+            prevalidateSignatures(tx);
             for (int i = 0; i < numInputs; i++) {
                 TransactionInput txIn = tx.getInput(i);
                 TransactionOutput connectedOutput = txIn.getConnectedOutput();
@@ -4553,7 +4718,7 @@ public class Wallet extends BaseTaggableObject
                     // we sign missing pieces (to check this would require either assuming any signatures are signing
                     // standard output types or a way to get processed signatures out of script execution)
                     txIn.getScriptSig().correctlySpends(tx, i, txIn.getWitness(), connectedOutput.getValue(),
-                            connectedOutput.getScriptPubKey(), Script.ALL_VERIFY_FLAGS);
+                            connectedOutput.getScriptPubKey(), Script.ALL_VERIFY_FLAGS, precomputed);
                     log.warn("Input {} already correctly spends output, assuming SIGHASH type used will be safe and skipping signing.", i);
                     continue;
                 } catch (ScriptException e) {
@@ -4582,6 +4747,26 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * Batch verify the signatures of the inputs that are already signed, so that checking them one by one in
+     * {@link #signTransaction(SendRequest)} is answered by the signature cache.
+     */
+    private void prevalidateSignatures(Transaction tx) {
+        SignatureCache signatureCache = Script.getSignatureCache();
+        if (signatureCache == null || tx.getInputs().size() < 2)
+            return;
+        SignaturePrevalidator prevalidator = new SignaturePrevalidator(signatureCache);
+        for (int i = 0; i < tx.getInputs().size(); i++) {
+            TransactionInput txIn = tx.getInput(i);
+            TransactionOutput connectedOutput = txIn.getConnectedOutput();
+            if (connectedOutput != null)
+                prevalidator.add(tx, i, txIn.getWitness(), connectedOutput.getValue(),
+                        connectedOutput.getScriptPubKey());
+        }
+        if (prevalidator.size() > 1)
+            prevalidator.prevalidate();
+    }
+
     /**
      * Reduce the value of the first output of a transaction to pay the given feePerKb as appropriate for its size.
      * If ensureMinRequiredFee is true, feePerKb is set to at least {@link Transaction#REFERENCE_DEFAULT_MIN_TX_FEE}.
@@ -4928,7 +5113,7 @@ public class Wallet extends BaseTaggableObject
                 log.info("  ->pending {}", tx.getTxId());
 
                 getConfidence(tx).setConfidenceType(ConfidenceType.PENDING);  // Wipe height/depth/work data.
-                confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
+                queueConfidenceChange(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
                 addWalletTransaction(Pool.PENDING, tx);
                 updateForSpends(tx, false);
             }
@@ -4990,7 +5175,7 @@ public class Wallet extends BaseTaggableObject
         for (Transaction tx : transactions) {
             if (getConfidence(tx).getConfidenceType() == ConfidenceType.BUILDING) {
                 getConfidence(tx).setDepthInBlocks(getConfidence(tx).getDepthInBlocks() - depthToSubtract);
-                confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
+                queueConfidenceChange(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
             }
         }
     }
@@ -5001,7 +5186,14 @@ public class Wallet extends BaseTaggableObject
 
     //region Bloom filtering
 
-    private final List<TransactionOutPoint> bloomOutPoints = new ArrayList<>();
+    // Serialized outpoints of the bloom filterable outputs of the unspent, spent and pending transactions, by txid.
+    // Kept up to date as transactions enter and leave these pools, so that filters can be calculated without looking
+    // at every output of the wallet. Whether an output is filterable depends on the keys and watched scripts at the
+    // time the transaction was added; imported keys and watched script changes cause a rebuild, but keys derived for
+    // lookahead don't, as they can only be used by transactions that are added later.
+    @GuardedBy("lock") private final Map<Sha256Hash, List<byte[]>> bloomOutPoints = new HashMap<>();
+    @GuardedBy("lock") private int bloomOutPointCount = 0;
+    private volatile boolean bloomOutPointsInvalid = false;
     // Used to track whether we must automatically begin/end a filter calculation and calc outpoints/take the locks.
     private final AtomicInteger bloomFilterGuard = new AtomicInteger(0);
 
@@ -5012,28 +5204,47 @@ public class Wallet extends BaseTaggableObject
         lock.lock();
         keyChainGroupLock.lock();
         //noinspection FieldAccessNotGuarded
-        calcBloomOutPointsLocked();
+        if (bloomOutPointsInvalid)
+            calcBloomOutPointsLocked();
     }
 
     private void calcBloomOutPointsLocked() {
-        // TODO: This could be done once and then kept up to date.
+        bloomOutPointsInvalid = false;
         bloomOutPoints.clear();
-        // Search unspent, spent, and pending for all TransactionOutputs that are bloom filterable and
-        // then collect a list of the corresponding TransactionOutPoints.
-        List<TransactionOutPoint> outPoints = Stream.of(unspent.values(), spent.values(), pending.values())
+        bloomOutPointCount = 0;
+        // Search unspent, spent, and pending for all TransactionOutputs that are bloom filterable.
+        Stream.of(unspent.values(), spent.values(), pending.values())
                 .flatMap(Collection::stream)
-                .flatMap(tx -> tx.getOutputs().stream())
+                .forEach(this::addBloomOutPoints);
+    }
+
+    private void addBloomOutPoints(Transaction tx) {
+        removeBloomOutPoints(tx);
+        List<byte[]> outPoints = tx.getOutputs().stream()
                 .filter(this::isTxOutputBloomFilterable)
-                .map(TransactionOutput::getOutPointFor)
+                .map(output -> output.getOutPointFor().serialize())
                 .collect(Collectors.toList());
-        bloomOutPoints.addAll(outPoints);
+        if (!outPoints.isEmpty()) {
+            bloomOutPoints.put(tx.getTxId(), outPoints);
+            bloomOutPointCount += outPoints.size();
+        }
+    }
+
+    private void removeBloomOutPoints(Transaction tx) {
+        List<byte[]> outPoints = bloomOutPoints.remove(tx.getTxId());
+        if (outPoints != null)
+            bloomOutPointCount -= outPoints.size();
+    }
+
+    // Forces a rebuild of the bloom filterable outpoints the next time a filter is calculated.
+    private void invalidateBloomOutPoints() {
+        bloomOutPointsInvalid = true;
     }
 
     @Override @GuardedBy("keyChainGroupLock")
     public void endBloomFilterCalculation() {
         if (bloomFilterGuard.decrementAndGet() > 0)
             return;
-        bloomOutPoints.clear();
         keyChainGroupLock.unlock();
         lock.unlock();
     }
@@ -5046,7 +5257,7 @@ public class Wallet extends BaseTaggableObject
     public int getBloomFilterElementCount() {
         beginBloomFilterCalculation();
         try {
-            int size = bloomOutPoints.size();
+            int size = bloomOutPointCount;
             size += keyChainGroup.getBloomFilterElementCount();
             // Some scripts may have more than one bloom element.  That should normally be okay, because under-counting
             // just increases false-positive rate.
@@ -5096,14 +5307,45 @@ public class Wallet extends BaseTaggableObject
                     }
                 }
             }
-            for (TransactionOutPoint point : bloomOutPoints)
-                filter.insert(point);
+            for (List<byte[]> outPoints : bloomOutPoints.values())
+                for (byte[] outPoint : outPoints)
+                    filter.insert(outPoint);
             return filter;
         } finally {
             endBloomFilterCalculation();
         }
     }
 
+    /**
+     * Returns the scripts to look for in BIP158 compact block filters: the P2PK, P2PKH and P2WPKH output scripts of all
+     * keys, including the lookahead zone, and the watched scripts. Compact filters also contain the scripts spent by
+     * the inputs of a block, so these find the transactions spending from this wallet as well.
+     */
+    public List<byte[]> getFilterScripts() {
+        keyChainGroupLock.lock();
+        try {
+            List<ECKey> keys = new ArrayList<>(keyChainGroup.getImportedKeys());
+            if (keyChainGroup.supportsDeterministicChains()) {
+                for (DeterministicKeyChain chain : keyChainGroup.getDeterministicKeyChains()) {
+                    chain.maybeLookAhead();
+                    keys.addAll(chain.getLeafKeys());
+                }
+            }
+            List<byte[]> scripts = new ArrayList<>(keys.size() * 3 + watchedScripts.size());
+            for (ECKey key : keys) {
+                scripts.add(ScriptBuilder.createP2PKOutputScript(key).program());
+                scripts.add(ScriptBuilder.createP2PKHOutputScript(key).program());
+                if (key.isCompressed())
+                    scripts.add(ScriptBuilder.createP2WPKHOutputScript(key).program());
+            }
+            for (Script script : watchedScripts)
+                scripts.add(script.program());
+            return scripts;
+        } finally {
+            keyChainGroupLock.unlock();
+        }
+    }
+
     // Returns true if the output is one that won't be selected by a data element matching in the scriptSig.
     private boolean isTxOutputBloomFilterable(TransactionOutput out) {
         Script script = out.getScriptPubKey();
@@ -50,6 +50,7 @@ import static org.bitcoinj.base.Coin.FIFTY_COINS;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 /**
@@ -177,6 +178,42 @@ public abstract class AbstractFullPrunedBlockChainTest {
         } catch (Exception e) {}
     }
 
+    @Test
+    public void scriptVerificationStats() throws Exception {
+        store = createStore(PARAMS, 10);
+        chain = new FullPrunedBlockChain(PARAMS, store);
+
+        ECKey outKey = new ECKey();
+        int height = 1;
+
+        // Build some blocks on genesis block to create a spendable output
+        Block rollingBlock = PARAMS.getGenesisBlock().createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), height++);
+        chain.add(rollingBlock);
+        TransactionOutput spendableOutput = rollingBlock.getTransactions().get(0).getOutput(0);
+        for (int i = 1; i < PARAMS.getSpendableCoinbaseDepth(); i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), height++);
+            chain.add(rollingBlock);
+        }
+        assertNull(chain.getLastScriptVerificationStats());
+
+        rollingBlock = rollingBlock.createNextBlock(null);
+        Transaction t = new Transaction();
+        t.addOutput(new TransactionOutput(t, FIFTY_COINS, new byte[] {}));
+        t.addSignedInput(spendableOutput, outKey);
+        rollingBlock.addTransaction(t);
+        rollingBlock.solve();
+        assertTrue(chain.add(rollingBlock));
+
+        FullPrunedBlockChain.ScriptVerificationStats stats = chain.getLastScriptVerificationStats();
+        assertNotNull(stats);
+        assertEquals(1, stats.transactions());
+        assertEquals(1, stats.inputs());
+        assertTrue(chain.getScriptExecutionCache().size() > 0);
+        try {
+            store.close();
+        } catch (Exception e) {}
+    }
+
     @Test
     public void testFinalizedBlocks() throws Exception {
         final int UNDOABLE_BLOCKS_STORED = 10;
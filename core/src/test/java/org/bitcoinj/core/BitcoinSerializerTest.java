@@ -18,6 +18,7 @@
 package org.bitcoinj.core;
 
 import com.google.common.io.BaseEncoding;
+import org.bitcoinj.base.Sha256Hash;
 import org.bitcoinj.base.internal.ByteUtils;
 import org.bitcoinj.base.internal.TimeUtils;
 import org.bitcoinj.params.MainNetParams;
@@ -29,6 +30,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.math.BigInteger;
 import java.net.InetAddress;
+import java.nio.Buffer;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.time.temporal.ChronoUnit;
@@ -39,6 +41,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class BitcoinSerializerTest {
     private static final BaseEncoding HEX = BaseEncoding.base16().lowerCase();
@@ -209,6 +212,49 @@ public class BitcoinSerializerTest {
         assertArrayEquals(headersMessageBytes, serializedBytes);
     }
 
+    @Test
+    public void testDeserializeInPlace() throws Exception {
+        MessageSerializer serializer = MAINNET.getDefaultSerializer();
+        // two messages back to back, followed by the start of a third
+        ByteBuffer in = ByteBuffer.allocateDirect(TRANSACTION_MESSAGE_BYTES.length + ADDRESS_MESSAGE_BYTES.length + 4);
+        in.put(TRANSACTION_MESSAGE_BYTES).put(ADDRESS_MESSAGE_BYTES).put(ADDRESS_MESSAGE_BYTES, 0, 4);
+        ((Buffer) in).flip();
+        Transaction tx = (Transaction) serializer.deserialize(in);
+        assertEquals(TRANSACTION_MESSAGE_BYTES.length, in.position());
+        AddressMessage addressMessage = (AddressMessage) serializer.deserialize(in);
+        assertEquals(1, addressMessage.getAddresses().size());
+        // overwriting the buffer doesn't affect the messages
+        ((Buffer) in).clear();
+        in.put(new byte[in.capacity()]);
+        assertEquals("10.0.0.1", addressMessage.getAddresses().get(0).getAddr().getHostAddress());
+        assertArrayEquals(Arrays.copyOfRange(TRANSACTION_MESSAGE_BYTES, 24, TRANSACTION_MESSAGE_BYTES.length),
+                tx.serialize());
+    }
+
+    @Test
+    public void testDeserializePayloadWithHash() throws Exception {
+        MessageSerializer serializer = MAINNET.getDefaultSerializer();
+        ByteBuffer in = ByteBuffer.wrap(ADDRESS_MESSAGE_BYTES);
+        serializer.seekPastMagicBytes(in);
+        BitcoinSerializer.BitcoinPacketHeader header = serializer.deserializeHeader(in);
+        ByteBuffer payload = in.slice();
+        byte[] hash = Sha256Hash.hashTwice(Arrays.copyOfRange(ADDRESS_MESSAGE_BYTES, 24, ADDRESS_MESSAGE_BYTES.length));
+        AddressMessage addressMessage = (AddressMessage) serializer.deserializePayload(header, payload, hash);
+        assertEquals(1, addressMessage.getAddresses().size());
+        try {
+            serializer.deserializePayload(header, payload, new byte[32]);
+            fail();
+        } catch (ProtocolException e) {
+            assertTrue(e.getMessage().startsWith("Checksum failed to verify"));
+        }
+    }
+
+    @Test(expected = BufferUnderflowException.class)
+    public void testDeserializeIncompletePayload() throws Exception {
+        ByteBuffer in = ByteBuffer.wrap(TRANSACTION_MESSAGE_BYTES, 0, TRANSACTION_MESSAGE_BYTES.length - 1);
+        MAINNET.getDefaultSerializer().deserialize(in);
+    }
+
     @Test(expected = BufferUnderflowException.class)
     public void testBitcoinPacketHeaderTooShort() {
         new BitcoinSerializer.BitcoinPacketHeader(ByteBuffer.wrap(new byte[] { 0 }));
@@ -249,4 +295,85 @@ public class BitcoinSerializerTest {
         assertFalse(MAINNET.getDefaultSerializer().equals(TestNet3Params.get().getDefaultSerializer()));
         assertFalse(MAINNET.getDefaultSerializer().equals(MAINNET.getDefaultSerializer().withProtocolVersion(0)));
     }
+
+    @Test
+    public void testRegisterMessageParser() throws Exception {
+        BitcoinSerializer.registerMessageParser("testnonce", TestNonceMessage.class,
+                payload -> new TestNonceMessage(ByteUtils.readInt64(payload)));
+        MessageSerializer serializer = MAINNET.getDefaultSerializer();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serializer.serialize(new TestNonceMessage(42), bos);
+
+        Message message = serializer.deserialize(ByteBuffer.wrap(bos.toByteArray()));
+        assertTrue(message instanceof TestNonceMessage);
+        assertEquals(42, ((TestNonceMessage) message).nonce);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRegisterBuiltInCommand() {
+        BitcoinSerializer.registerMessageParser("ping", TestNonceMessage.class,
+                payload -> new TestNonceMessage(ByteUtils.readInt64(payload)));
+    }
+
+    @Test
+    public void testReregisterMessageParser() throws Exception {
+        BitcoinSerializer.registerMessageParser("testnonce2", TestNonceMessage.class,
+                payload -> new TestNonceMessage(ByteUtils.readInt64(payload)));
+        BitcoinSerializer.registerMessageParser("testnonce2", OtherNonceMessage.class,
+                payload -> new OtherNonceMessage(ByteUtils.readInt64(payload)));
+        MessageSerializer serializer = MAINNET.getDefaultSerializer();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serializer.serialize(new OtherNonceMessage(42), bos);
+
+        Message message = serializer.deserialize(ByteBuffer.wrap(bos.toByteArray()));
+        assertTrue(message instanceof OtherNonceMessage);
+        assertEquals(42, ((TestNonceMessage) message).nonce);
+    }
+
+    @Test
+    public void testRegisterTypeUnderNewCommand() throws Exception {
+        BitcoinSerializer.registerMessageParser("testmoved1", MovedNonceMessage.class,
+                payload -> new MovedNonceMessage(ByteUtils.readInt64(payload)));
+        BitcoinSerializer.registerMessageParser("testmoved2", MovedNonceMessage.class,
+                payload -> new MovedNonceMessage(ByteUtils.readInt64(payload)));
+        MessageSerializer serializer = MAINNET.getDefaultSerializer();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serializer.serialize(new MovedNonceMessage(42), bos);
+        assertTrue(serializer.deserialize(ByteBuffer.wrap(bos.toByteArray())) instanceof MovedNonceMessage);
+
+        // the old command is no longer parsed into the type
+        bos.reset();
+        serializer.serialize("testmoved1", new byte[0], bos);
+        assertTrue(serializer.deserialize(ByteBuffer.wrap(bos.toByteArray())) instanceof UnknownMessage);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRegisterBuiltInType() {
+        BitcoinSerializer.registerMessageParser("testping", Ping.class, Ping::read);
+    }
+
+    private static class TestNonceMessage extends BaseMessage {
+        private final long nonce;
+
+        private TestNonceMessage(long nonce) {
+            this.nonce = nonce;
+        }
+
+        @Override
+        protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+            ByteUtils.writeInt64LE(nonce, stream);
+        }
+    }
+
+    private static class OtherNonceMessage extends TestNonceMessage {
+        private OtherNonceMessage(long nonce) {
+            super(nonce);
+        }
+    }
+
+    private static class MovedNonceMessage extends TestNonceMessage {
+        private MovedNonceMessage(long nonce) {
+            super(nonce);
+        }
+    }
 }
@@ -43,6 +43,8 @@ import java.time.Duration;
 import java.time.Instant;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 
 import static org.bitcoinj.base.Coin.COIN;
@@ -139,6 +141,50 @@ public class BlockChainTest {
         assertEquals(testNetChain.getChainHead().getHeader(), b3.cloneAsHeader());
     }
 
+    @Test
+    public void orphanChainConnectsAtOnce() throws Exception {
+        Context.propagate(new Context(100, Coin.ZERO, false, true));
+        List<Block> blocks = new ArrayList<>();
+        Block block = TESTNET.getGenesisBlock();
+        for (int i = 0; i < 20; i++) {
+            block = block.createNextBlock(coinbaseTo);
+            blocks.add(block);
+        }
+        // A fork that is also waiting for the first block.
+        Block fork = blocks.get(0).createNextBlock(coinbaseTo);
+        assertFalse(testNetChain.add(fork));
+        for (int i = blocks.size() - 1; i > 0; i--)
+            assertFalse(testNetChain.add(blocks.get(i)));
+        assertEquals(20, testNetChain.getOrphanBlockCount());
+        assertEquals(blocks.get(1), testNetChain.getOrphanRoot(blocks.get(19).getHash()));
+
+        assertTrue(testNetChain.add(blocks.get(0)));
+        assertEquals(blocks.get(19).cloneAsHeader(), testNetChain.getChainHead().getHeader());
+        assertEquals(0, testNetChain.getOrphanBlockCount());
+        assertEquals(0, testNetChain.getOrphanBlockBytes());
+        assertEquals(20, testNetChain.getLongestConnectedOrphanChain());
+        assertEquals(0, testNetChain.getEvictedOrphanBlockCount());
+    }
+
+    @Test
+    public void orphanBlocksAreEvicted() throws Exception {
+        Context.propagate(new Context(100, Coin.ZERO, false, true));
+        testNetChain.setOrphanBlockLimits(5, Long.MAX_VALUE);
+        Block b1 = TESTNET.getGenesisBlock().createNextBlock(coinbaseTo);
+        Block block = b1;
+        for (int i = 0; i < 10; i++) {
+            block = block.createNextBlock(coinbaseTo);
+            assertFalse(testNetChain.add(block));
+        }
+        assertEquals(5, testNetChain.getOrphanBlockCount());
+        assertEquals(5, testNetChain.getEvictedOrphanBlockCount());
+        assertTrue(testNetChain.isOrphan(block.getHash()));
+        // The evicted orphans left a gap, so connecting the first block doesn't connect the rest.
+        assertTrue(testNetChain.add(b1));
+        assertEquals(b1.cloneAsHeader(), testNetChain.getChainHead().getHeader());
+        assertEquals(5, testNetChain.getOrphanBlockCount());
+    }
+
     // adds 2015 (interval-1) intermediate blocks between the transition points
     private static void addIntermediteBlocks(BlockChain chain, int epoch, Duration spacing) throws PrunedException {
         int interval = chain.params.interval;
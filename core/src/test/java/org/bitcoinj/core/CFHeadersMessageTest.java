@@ -0,0 +1,87 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.base.BitcoinNetwork;
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.base.internal.ByteUtils;
+import org.bitcoinj.params.TestNet3Params;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class CFHeadersMessageTest {
+    private static final Sha256Hash GENESIS_FILTER_HEADER =
+            Sha256Hash.wrap("21584579b7eb08997773e5aeff3a7f932700042d0ed2a6129012b7d7ae81b750");
+
+    @Test
+    public void genesisFilterHeader() {
+        // from the BIP158 test vectors
+        Sha256Hash genesisHash = TestNet3Params.get().getGenesisBlock().getHash();
+        CFilterMessage filter = CFilterMessage.of(GolombCodedSet.BASIC_FILTER_TYPE, genesisHash,
+                ByteUtils.parseHex("019dfca8"));
+        assertEquals(GENESIS_FILTER_HEADER, CFHeadersMessage.filterHeader(filter.filterHash(), Sha256Hash.ZERO_HASH));
+        CFHeadersMessage headers = CFHeadersMessage.of(GolombCodedSet.BASIC_FILTER_TYPE, genesisHash,
+                Sha256Hash.ZERO_HASH, Arrays.asList(filter.filterHash()));
+        assertEquals(GENESIS_FILTER_HEADER, headers.stopFilterHeader());
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        Sha256Hash a = Sha256Hash.of(new byte[] { 1 });
+        Sha256Hash b = Sha256Hash.of(new byte[] { 2 });
+        CFHeadersMessage headers = CFHeadersMessage.of(GolombCodedSet.BASIC_FILTER_TYPE, a, b, Arrays.asList(a, b));
+        CFHeadersMessage read = CFHeadersMessage.read(ByteBuffer.wrap(headers.serialize()));
+        assertEquals(a, read.stopHash());
+        assertEquals(b, read.previousFilterHeader());
+        assertEquals(Arrays.asList(a, b), read.filterHashes());
+
+        CFilterMessage filter = CFilterMessage.of(GolombCodedSet.BASIC_FILTER_TYPE, a, new byte[] { 1, 2, 3 });
+        CFilterMessage readFilter = CFilterMessage.read(ByteBuffer.wrap(filter.serialize()));
+        assertEquals(a, readFilter.blockHash());
+        assertArrayEquals(new byte[] { 1, 2, 3 }, readFilter.filter());
+
+        GetCFiltersMessage getFilters = GetCFiltersMessage.of(GolombCodedSet.BASIC_FILTER_TYPE, 100, b);
+        assertEquals(getFilters, GetCFiltersMessage.read(ByteBuffer.wrap(getFilters.serialize())));
+        GetCFHeadersMessage getHeaders = GetCFHeadersMessage.of(GolombCodedSet.BASIC_FILTER_TYPE, 100, b);
+        assertEquals(getHeaders, GetCFHeadersMessage.read(ByteBuffer.wrap(getHeaders.serialize())));
+    }
+
+    @Test
+    public void serializerKnowsMessages() throws Exception {
+        BitcoinSerializer serializer = new BitcoinSerializer(BitcoinNetwork.TESTNET);
+        Sha256Hash a = Sha256Hash.of(new byte[] { 1 });
+        Message[] messages = {
+                GetCFiltersMessage.of(GolombCodedSet.BASIC_FILTER_TYPE, 1, a),
+                CFilterMessage.of(GolombCodedSet.BASIC_FILTER_TYPE, a, new byte[] { 0 }),
+                GetCFHeadersMessage.of(GolombCodedSet.BASIC_FILTER_TYPE, 1, a),
+                CFHeadersMessage.of(GolombCodedSet.BASIC_FILTER_TYPE, a, a, Arrays.asList(a))
+        };
+        for (Message message : messages) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            serializer.serialize(message, out);
+            Message read = serializer.deserialize(ByteBuffer.wrap(out.toByteArray()));
+            assertEquals(message.getClass(), read.getClass());
+            assertArrayEquals(message.serialize(), read.serialize());
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class CommandTableTest {
+    private static final List<String> COMMANDS = Arrays.asList("version", "inv", "block", "merkleblock", "getdata",
+            "getblocks", "getheaders", "tx", "sendaddrv2", "addr", "addrv2", "ping", "pong", "verack", "headers",
+            "filterload", "notfound", "mempool", "reject", "sendheaders", "feefilter", "getcfilters", "cfilter",
+            "getcfheaders", "cfheaders");
+
+    @Test
+    public void lookup() {
+        List<CommandTable.Entry<Integer>> entries = new ArrayList<>();
+        for (int i = 0; i < COMMANDS.size(); i++)
+            entries.add(new CommandTable.Entry<>(COMMANDS.get(i), i));
+        CommandTable<Integer> table = CommandTable.of(entries);
+        for (int i = 0; i < COMMANDS.size(); i++) {
+            CommandTable.Entry<Integer> entry = table.get(header(COMMANDS.get(i)), 4);
+            assertEquals(COMMANDS.get(i), entry.command);
+            assertSame(entries.get(i), entry);
+        }
+        assertNull(table.get(header("getaddr"), 4));
+        assertNull(table.get(header("versio"), 4));
+        assertNull(table.get(header("verack\0\0\0\0\0x"), 4));
+    }
+
+    @Test
+    public void empty() {
+        assertNull(CommandTable.of(new ArrayList<CommandTable.Entry<String>>()).get(header("ping"), 4));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void duplicateCommand() {
+        CommandTable.of(Arrays.asList(new CommandTable.Entry<>("ping", 1), new CommandTable.Entry<>("ping", 2)));
+    }
+
+    // the command padded to twelve bytes, after some leading bytes
+    private static byte[] header(String command) {
+        byte[] header = new byte[4 + 12];
+        byte[] bytes = command.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(bytes, 0, header, 4, bytes.length);
+        return header;
+    }
+}
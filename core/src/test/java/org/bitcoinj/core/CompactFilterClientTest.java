@@ -0,0 +1,333 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.base.BitcoinNetwork;
+import org.bitcoinj.base.ScriptType;
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.base.internal.ByteUtils;
+import org.bitcoinj.base.internal.TimeUtils;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
+import org.bitcoinj.wallet.Wallet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CompactFilterClientTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+    // Height of the block that pays to the wallet.
+    private static final int PAYMENT_HEIGHT = 4;
+
+    private Wallet wallet;
+    private BlockChain chain;
+    private PeerGroup peerGroup;
+    private List<TestPeer> peers;
+    private CompactFilterClient client;
+    // Blocks and their filters and filter headers, by height.
+    private List<Block> blocks;
+    private List<CFilterMessage> filters;
+    private List<Sha256Hash> filterHeaders;
+    private List<Block> headers;
+    private final List<Sha256Hash> added = Collections.synchronizedList(new ArrayList<>());
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context());
+        wallet = Wallet.createDeterministic(BitcoinNetwork.TESTNET, ScriptType.P2PKH);
+        chain = new BlockChain(UNITTEST, wallet, new MemoryBlockStore(UNITTEST.getGenesisBlock()));
+        peerGroup = new PeerGroup(BitcoinNetwork.TESTNET, chain) {
+            @Override
+            protected ScheduledExecutorService createPrivateExecutor() {
+                // Runs jobs without start(), so that stalled requests are noticed.
+                return new ScheduledThreadPoolExecutor(1, new ContextPropagatingThreadFactory("PeerGroup test thread"));
+            }
+        };
+        peerGroup.setFastCatchupTime(Instant.EPOCH);
+        peers = new ArrayList<>();
+        client = new CompactFilterClient(peerGroup, chain, Collections.singletonList(wallet)) {
+            @Override
+            List<Peer> connectedPeers() {
+                return new ArrayList<>(peers);
+            }
+        };
+        blocks = new ArrayList<>();
+        filters = new ArrayList<>();
+        filterHeaders = new ArrayList<>();
+        Block block = UNITTEST.getGenesisBlock();
+        addBlock(block);
+        // stays below the first difficulty transition of the unit test network
+        for (int height = 1; height < UNITTEST.getInterval(); height++) {
+            block = block.createNextBlock(height == PAYMENT_HEIGHT ? wallet.currentReceiveAddress() : null);
+            addBlock(block);
+        }
+        headers = blocks.subList(1, blocks.size()).stream().map(Block::cloneAsHeader).collect(Collectors.toList());
+    }
+
+    @After
+    public void tearDown() {
+        TimeUtils.clearMockClock();
+        peerGroup.executor.shutdownNow();
+    }
+
+    private void addBlock(Block block) {
+        CFilterMessage filter = CFilterMessage.of(GolombCodedSet.BASIC_FILTER_TYPE, block.getHash(),
+                GolombCodedSet.ofBlock(block, Collections.emptyList()).serialize());
+        Sha256Hash previousFilterHeader = filterHeaders.isEmpty() ? Sha256Hash.ZERO_HASH
+                : filterHeaders.get(filterHeaders.size() - 1);
+        blocks.add(block);
+        filters.add(filter);
+        filterHeaders.add(CFHeadersMessage.filterHeader(filter.filterHash(), previousFilterHeader));
+    }
+
+    @Test
+    public void downloadsMatchingBlocksOnly() throws Exception {
+        TestPeer peer1 = addPeer();
+        TestPeer peer2 = addPeer();
+        processHeaders(peer1).get(10, TimeUnit.SECONDS);
+        assertRequested(Collections.singleton(blocks.get(PAYMENT_HEIGHT).getHash()), peer1, peer2);
+        assertAllAdded();
+        assertEquals(1, wallet.getTransactions(false).size());
+    }
+
+    @Test
+    public void downloadsBlockInFullWhenDownloadPeerHidesTransactions() throws Exception {
+        TestPeer peer1 = addPeer();
+        TestPeer peer2 = addPeer();
+        // The download peer hides the payment behind a filter without it, and the other peer doesn't agree.
+        peer1.hideTransactions(PAYMENT_HEIGHT);
+        processHeaders(peer1).get(10, TimeUnit.SECONDS);
+        assertRequested(Collections.singleton(blocks.get(PAYMENT_HEIGHT).getHash()), peer1, peer2);
+        assertAllAdded();
+        assertEquals(1, wallet.getTransactions(false).size());
+    }
+
+    @Test
+    public void downloadsBlockInFullWhenOtherPeerDisagrees() throws Exception {
+        TestPeer peer1 = addPeer();
+        TestPeer peer2 = addPeer();
+        peer2.hideTransactions(2);
+        processHeaders(peer1).get(10, TimeUnit.SECONDS);
+        Set<Sha256Hash> expected = new HashSet<>();
+        expected.add(blocks.get(2).getHash());
+        expected.add(blocks.get(PAYMENT_HEIGHT).getHash());
+        assertRequested(expected, peer1, peer2);
+        assertAllAdded();
+    }
+
+    @Test
+    public void downloadsBlocksInFullWithoutAnotherPeer() throws Exception {
+        TestPeer peer = addPeer();
+        processHeaders(peer).get(10, TimeUnit.SECONDS);
+        assertEquals(headers.stream().map(Block::getHash).collect(Collectors.toSet()), requested(peer));
+        assertAllAdded();
+    }
+
+    @Test
+    public void trustsFilterHashesUpToCheckpoint() throws Exception {
+        TestPeer peer = addPeer();
+        int last = blocks.size() - 1;
+        client.addCheckpoint(blocks.get(last).getHash(), filterHeaders.get(last));
+        processHeaders(peer).get(10, TimeUnit.SECONDS);
+        assertRequested(Collections.singleton(blocks.get(PAYMENT_HEIGHT).getHash()), peer);
+        assertAllAdded();
+        assertEquals(1, wallet.getTransactions(false).size());
+    }
+
+    @Test
+    public void rejectsFilterHeadersContradictingCheckpoint() throws Exception {
+        TestPeer peer = addPeer();
+        int last = blocks.size() - 1;
+        client.addCheckpoint(blocks.get(last).getHash(), filterHeaders.get(last));
+        peer.hideTransactions(PAYMENT_HEIGHT);
+        try {
+            processHeaders(peer).get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ProtocolException);
+        }
+        assertTrue(requested(peer).isEmpty());
+        assertEquals(0, chain.getBestChainHeight());
+    }
+
+    @Test
+    public void asksDownloadPeerWhenOtherPeerStalls() throws Exception {
+        TimeUtils.setMockClock();
+        TestPeer peer1 = addPeer();
+        TestPeer peer2 = addPeer();
+        peer2.stall();
+        CompletableFuture<Void> done = processHeaders(peer1);
+        assertFalse(done.isDone());
+        TimeUtils.rollMockClock(CompactFilterClient.STALL_TIMEOUT.plus(Duration.ofSeconds(1)));
+        done.get(10, TimeUnit.SECONDS);
+        // Without a second opinion on the filter hashes, all blocks are downloaded, and none from the silent peer.
+        assertEquals(headers.stream().map(Block::getHash).collect(Collectors.toSet()), requested(peer1));
+        assertTrue(requested(peer2).isEmpty());
+        assertAllAdded();
+    }
+
+    @Test
+    public void failsWhenDownloadPeerStalls() throws Exception {
+        TimeUtils.setMockClock();
+        TestPeer peer1 = addPeer();
+        addPeer();
+        peer1.stall();
+        CompletableFuture<Void> done = processHeaders(peer1);
+        assertFalse(done.isDone());
+        TimeUtils.rollMockClock(CompactFilterClient.STALL_TIMEOUT.plus(Duration.ofSeconds(1)));
+        try {
+            done.get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof PeerException);
+        }
+        assertEquals(0, chain.getBestChainHeight());
+    }
+
+    private CompletableFuture<Void> processHeaders(Peer downloadPeer) {
+        return client.processHeaders(downloadPeer, headers, (block, filteredBlock) -> added.add(block.getHash()),
+                () -> {});
+    }
+
+    private TestPeer addPeer() {
+        TestPeer peer = new TestPeer();
+        peers.add(peer);
+        return peer;
+    }
+
+    private Set<Sha256Hash> requested(TestPeer... peers) {
+        Set<Sha256Hash> requested = new HashSet<>();
+        for (TestPeer peer : peers)
+            requested.addAll(peer.requestedBlocks);
+        return requested;
+    }
+
+    // Asserts that the expected blocks were requested, and any others only because their filters match the wallet by
+    // chance, which the random keys of the wallet and the blocks make happen now and then.
+    private void assertRequested(Set<Sha256Hash> expected, TestPeer... peers) {
+        Set<Sha256Hash> requested = requested(peers);
+        assertTrue(requested.containsAll(expected));
+        List<byte[]> scripts = wallet.getFilterScripts();
+        for (Sha256Hash hash : requested)
+            if (!expected.contains(hash))
+                assertTrue(filters.get(height(hash)).toGolombCodedSet().matchAny(scripts));
+    }
+
+    private int height(Sha256Hash blockHash) {
+        for (int height = 0; height < blocks.size(); height++)
+            if (blocks.get(height).getHash().equals(blockHash))
+                return height;
+        throw new IllegalArgumentException(blockHash.toString());
+    }
+
+    private void assertAllAdded() {
+        assertEquals(headers.stream().map(Block::getHash).collect(Collectors.toList()), added);
+        assertEquals(headers.get(headers.size() - 1).getHash(), chain.getChainHead().getHeader().getHash());
+    }
+
+    private class TestPeer extends Peer {
+        final List<Sha256Hash> requestedBlocks = Collections.synchronizedList(new ArrayList<>());
+        // Filters that leave out the transactions of their block, by height.
+        private final Map<Integer, CFilterMessage> fakeFilters = new HashMap<>();
+        private final VersionMessage version;
+        // Whether the peer leaves all requests unanswered.
+        private boolean stalling;
+
+        TestPeer() {
+            super(UNITTEST, new VersionMessage(UNITTEST, 0), PeerAddress.localhost(UNITTEST), chain);
+            version = new VersionMessage(UNITTEST, 0);
+            version.localServices = Services.of(Services.NODE_NETWORK | Services.NODE_COMPACT_FILTERS);
+        }
+
+        void hideTransactions(int height) {
+            byte[] key = blocks.get(height).getHash().serialize();
+            GolombCodedSet empty = GolombCodedSet.build(ByteUtils.readInt64(key, 0), ByteUtils.readInt64(key, 8),
+                    GolombCodedSet.BASIC_FILTER_P, GolombCodedSet.BASIC_FILTER_M, Collections.emptyList());
+            fakeFilters.put(height, CFilterMessage.of(GolombCodedSet.BASIC_FILTER_TYPE, blocks.get(height).getHash(),
+                    empty.serialize()));
+        }
+
+        void stall() {
+            stalling = true;
+        }
+
+        private CFilterMessage filter(int height) {
+            return fakeFilters.getOrDefault(height, filters.get(height));
+        }
+
+        @Override
+        public VersionMessage getPeerVersionMessage() {
+            return version;
+        }
+
+        @Override
+        public String toString() {
+            return "TestPeer";
+        }
+
+        @Override
+        public CompletableFuture<List<CFilterMessage>> getFilters(int startHeight, Sha256Hash stopHash) {
+            if (stalling)
+                return new CompletableFuture<>();
+            List<CFilterMessage> range = new ArrayList<>();
+            for (int height = startHeight; height <= height(stopHash); height++)
+                range.add(filter(height));
+            return CompletableFuture.completedFuture(range);
+        }
+
+        @Override
+        public CompletableFuture<CFHeadersMessage> getFilterHeaders(int startHeight, Sha256Hash stopHash) {
+            if (stalling)
+                return new CompletableFuture<>();
+            List<Sha256Hash> filterHashes = new ArrayList<>();
+            for (int height = startHeight; height <= height(stopHash); height++)
+                filterHashes.add(filter(height).filterHash());
+            return CompletableFuture.completedFuture(CFHeadersMessage.of(GolombCodedSet.BASIC_FILTER_TYPE, stopHash,
+                    filterHeaders.get(startHeight - 1), filterHashes));
+        }
+
+        @Override
+        public CompletableFuture<Block> getBlock(Sha256Hash blockHash) {
+            requestedBlocks.add(blockHash);
+            if (stalling)
+                return new CompletableFuture<>();
+            return CompletableFuture.completedFuture(blocks.get(height(blockHash)));
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.base.internal.ByteUtils;
+import org.bitcoinj.params.TestNet3Params;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GolombCodedSetTest {
+    // basic filter of the testnet genesis block, from the BIP158 test vectors
+    private static final byte[] GENESIS_FILTER = ByteUtils.parseHex("019dfca8");
+
+    @Test
+    public void sipHash() {
+        // test vectors from the SipHash paper
+        long k0 = 0x0706050403020100L;
+        long k1 = 0x0f0e0d0c0b0a0908L;
+        byte[] message = new byte[15];
+        for (int i = 0; i < message.length; i++)
+            message[i] = (byte) i;
+        assertEquals(0xa129ca6149be45e5L, GolombCodedSet.sipHash24(k0, k1, message));
+        assertEquals(0x726fdb47dd0e0e31L, GolombCodedSet.sipHash24(k0, k1, new byte[0]));
+    }
+
+    @Test
+    public void multiplyHighUnsigned() {
+        Random random = new Random(42);
+        for (int i = 0; i < 1000; i++) {
+            long x = random.nextLong(), y = random.nextLong();
+            BigInteger product = unsigned(x).multiply(unsigned(y));
+            assertEquals(product.shiftRight(64).longValue(), GolombCodedSet.multiplyHighUnsigned(x, y));
+        }
+        assertEquals(-2, GolombCodedSet.multiplyHighUnsigned(-1, -1));
+    }
+
+    @Test
+    public void genesisFilter() {
+        Block genesis = TestNet3Params.get().getGenesisBlock();
+        GolombCodedSet set = GolombCodedSet.ofBasicFilter(genesis.getHash(), GENESIS_FILTER);
+        assertEquals(1, set.size());
+        byte[] script = genesis.getTransactions().get(0).getOutput(0).getScriptPubKey().program();
+        assertTrue(set.match(script));
+        assertTrue(set.matchAny(Arrays.asList(new byte[] { 1, 2, 3 }, script)));
+        assertFalse(set.match(new byte[] { 1, 2, 3 }));
+        assertFalse(set.matchAny(Collections.singletonList(new byte[] { 1, 2, 3 })));
+        assertFalse(set.matchAny(Collections.emptyList()));
+        assertArrayEquals(GENESIS_FILTER, set.serialize());
+    }
+
+    @Test
+    public void matchAnyOfMany() {
+        Block genesis = TestNet3Params.get().getGenesisBlock();
+        byte[] script = genesis.getTransactions().get(0).getOutput(0).getScriptPubKey().program();
+        GolombCodedSet set = GolombCodedSet.ofBasicFilter(genesis.getHash(), GENESIS_FILTER);
+        List<byte[]> queries = new ArrayList<>();
+        for (int i = 0; i < 1000; i++)
+            queries.add(Sha256Hash.of(new byte[] { (byte) i, (byte) (i >> 8) }).getBytes());
+        assertFalse(set.matchAny(queries));
+        queries.add(500, script);
+        assertTrue(set.matchAny(queries));
+    }
+
+    @Test
+    public void buildGenesisFilter() {
+        Block genesis = TestNet3Params.get().getGenesisBlock();
+        GolombCodedSet set = GolombCodedSet.ofBlock(genesis, Collections.emptyList());
+        assertArrayEquals(GENESIS_FILTER, set.serialize());
+    }
+
+    @Test
+    public void buildSkipsEmptyAndDuplicateElements() {
+        byte[] element = { 1, 2, 3 };
+        GolombCodedSet set = GolombCodedSet.build(1, 2, GolombCodedSet.BASIC_FILTER_P, GolombCodedSet.BASIC_FILTER_M,
+                Arrays.asList(element, new byte[0], element.clone()));
+        assertEquals(1, set.size());
+        assertTrue(set.match(element));
+    }
+
+    @Test
+    public void buildAndMatchLargeSets() {
+        // about the number of elements of the filter of a full mainnet block, and the scripts of a large wallet
+        Random random = new Random(42);
+        List<byte[]> elements = randomElements(random, 5000);
+        GolombCodedSet set = GolombCodedSet.build(random.nextLong(), random.nextLong(), GolombCodedSet.BASIC_FILTER_P,
+                GolombCodedSet.BASIC_FILTER_M, elements);
+        assertEquals(elements.size(), set.size());
+        for (byte[] element : elements)
+            assertTrue(set.match(element));
+
+        List<byte[]> queries = randomElements(random, 10000);
+        boolean anyMatch = false;
+        for (byte[] query : queries)
+            anyMatch |= set.match(query);
+        assertEquals(anyMatch, set.matchAny(queries));
+        for (int i = 0; i < 10; i++) {
+            List<byte[]> withMember = new ArrayList<>(queries);
+            withMember.add(random.nextInt(withMember.size()), elements.get(random.nextInt(elements.size())));
+            assertTrue(set.matchAny(withMember));
+        }
+    }
+
+    @Test
+    public void emptyFilter() {
+        GolombCodedSet set = GolombCodedSet.ofBasicFilter(Sha256Hash.ZERO_HASH, new byte[] { 0 });
+        assertEquals(0, set.size());
+        assertFalse(set.match(new byte[] { 1 }));
+        assertFalse(set.matchAny(Collections.singletonList(new byte[] { 1 })));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void truncatedFilter() {
+        GolombCodedSet set = GolombCodedSet.ofBasicFilter(Sha256Hash.ZERO_HASH, new byte[] { 5, (byte) 0xff });
+        set.matchAny(Collections.singletonList(new byte[] { 1 }));
+    }
+
+    private static List<byte[]> randomElements(Random random, int count) {
+        List<byte[]> elements = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] element = new byte[22 + random.nextInt(12)];
+            random.nextBytes(element);
+            elements.add(element);
+        }
+        return elements;
+    }
+
+    private static BigInteger unsigned(long value) {
+        return new BigInteger(Long.toUnsignedString(value));
+    }
+}
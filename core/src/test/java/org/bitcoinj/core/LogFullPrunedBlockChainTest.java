@@ -0,0 +1,47 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.FullPrunedBlockStore;
+import org.bitcoinj.store.LogFullPrunedBlockStore;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A LogFullPrunedBlockStore implementation of the FullPrunedBlockStoreTest
+ */
+public class LogFullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest {
+    @Override
+    public FullPrunedBlockStore createStore(NetworkParameters params, int blockCount) throws BlockStoreException {
+        try {
+            File file = File.createTempFile("logfullprunedblockstore", null);
+            file.delete();
+            file.deleteOnExit();
+            new File(file.getPath() + ".lock").deleteOnExit();
+            return new LogFullPrunedBlockStore(params, file, blockCount);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public void resetStore(FullPrunedBlockStore store) throws BlockStoreException {
+        // No-op, every test creates a new file
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.base.Coin;
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.crypto.ECKey;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.bitcoinj.base.Sha256Hash.hashTwice;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MerkleHasherTest {
+    private static final Random RANDOM = new Random(42);
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context());
+    }
+
+    @Test
+    public void matchesNaiveTree() {
+        for (int size = 1; size <= 70; size++) {
+            byte[][] leaves = new byte[size][];
+            byte[] nodes = new byte[size * 32];
+            for (int i = 0; i < size; i++) {
+                leaves[i] = new byte[32];
+                RANDOM.nextBytes(leaves[i]);
+                System.arraycopy(leaves[i], 0, nodes, i * 32, 32);
+            }
+            MerkleHasher.Result result = MerkleHasher.calculate(nodes, size);
+            assertArrayEquals(naiveRoot(leaves), result.root.serialize());
+            assertFalse(result.mutated);
+        }
+    }
+
+    @Test
+    public void duplicatedSubtreeIsDetected() {
+        byte[][] leaves = new byte[6][32];
+        for (int i = 0; i < 5; i++)
+            RANDOM.nextBytes(leaves[i]);
+        leaves[5] = leaves[4];
+        MerkleHasher.Result five = MerkleHasher.calculate(concat(leaves, 5), 5);
+        MerkleHasher.Result six = MerkleHasher.calculate(concat(leaves, 6), 6);
+        assertEquals(five.root, six.root);
+        assertFalse(five.mutated);
+        assertTrue(six.mutated);
+    }
+
+    @Test
+    public void parallelLeaves() {
+        ECKey key = new ECKey();
+        List<Transaction> transactions = new ArrayList<>();
+        for (int i = 0; i < MerkleHasher.PARALLEL_THRESHOLD + 3; i++) {
+            Transaction tx = new Transaction();
+            tx.addInput(new TransactionInput(tx, new byte[] { (byte) i, (byte) (i >> 8) }, TransactionOutPoint.UNCONNECTED));
+            tx.addOutput(Coin.valueOf(i + 1), key);
+            transactions.add(tx);
+        }
+        byte[][] leaves = new byte[transactions.size()][];
+        for (int i = 0; i < leaves.length; i++)
+            leaves[i] = transactions.get(i).getTxId().serialize();
+        MerkleHasher.Result result = MerkleHasher.calculate(transactions, false);
+        assertArrayEquals(naiveRoot(leaves), result.root.serialize());
+        assertFalse(result.mutated);
+        assertEquals(Sha256Hash.ZERO_HASH, MerkleHasher.calculate(Collections.singletonList(transactions.get(0)),
+                true).root);
+    }
+
+    private static byte[] naiveRoot(byte[][] leaves) {
+        List<byte[]> level = new ArrayList<>();
+        Collections.addAll(level, leaves);
+        while (level.size() > 1) {
+            List<byte[]> next = new ArrayList<>();
+            for (int i = 0; i < level.size(); i += 2)
+                next.add(hashTwice(level.get(i), level.get(Math.min(i + 1, level.size() - 1))));
+            level = next;
+        }
+        return level.get(0);
+    }
+
+    private static byte[] concat(byte[][] leaves, int size) {
+        byte[] nodes = new byte[size * 32];
+        for (int i = 0; i < size; i++)
+            System.arraycopy(leaves[i], 0, nodes, i * 32, 32);
+        return nodes;
+    }
+}
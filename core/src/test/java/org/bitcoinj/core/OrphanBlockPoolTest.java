@@ -0,0 +1,142 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.base.Address;
+import org.bitcoinj.base.ScriptType;
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.core.AbstractBlockChain.OrphanBlock;
+import org.bitcoinj.crypto.ECKey;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class OrphanBlockPoolTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+    private static final Address ADDRESS = new ECKey().toAddress(ScriptType.P2PKH, UNITTEST.network());
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context());
+    }
+
+    @Test
+    public void indexedByPrevHash() {
+        Block parent = UNITTEST.getGenesisBlock().createNextBlock(ADDRESS);
+        OrphanBlock a = orphan(parent.createNextBlock(ADDRESS));
+        OrphanBlock b = orphan(parent.createNextBlock(ADDRESS));
+        OrphanBlock c = orphan(a.block.createNextBlock(ADDRESS));
+        OrphanBlockPool pool = new OrphanBlockPool();
+        pool.add(a);
+        pool.add(b);
+        pool.add(c);
+        assertEquals(3, pool.size());
+        assertEquals(new HashSet<>(Arrays.asList(a, b)), new HashSet<>(pool.getChildren(parent.getHash())));
+        assertEquals(Collections.singletonList(c), pool.getChildren(a.block.getHash()));
+        assertTrue(pool.getChildren(c.block.getHash()).isEmpty());
+
+        assertSame(a, pool.remove(a.block.getHash()));
+        assertNull(pool.remove(a.block.getHash()));
+        assertEquals(Collections.singletonList(b), pool.getChildren(parent.getHash()));
+        assertEquals(OrphanBlockPool.sizeOf(b) + OrphanBlockPool.sizeOf(c), pool.bytes());
+
+        assertEquals(new HashSet<>(Arrays.asList(b.block.getHash(), c.block.getHash())), pool.clear());
+        assertEquals(0, pool.size());
+        assertEquals(0, pool.bytes());
+        assertTrue(pool.getChildren(a.block.getHash()).isEmpty());
+    }
+
+    @Test
+    public void evictsOldestOverCount() {
+        OrphanBlockPool pool = new OrphanBlockPool();
+        pool.setLimits(2, Long.MAX_VALUE);
+        Block block = UNITTEST.getGenesisBlock();
+        OrphanBlock[] orphans = new OrphanBlock[4];
+        for (int i = 0; i < orphans.length; i++) {
+            block = block.createNextBlock(ADDRESS);
+            orphans[i] = orphan(block);
+            pool.add(orphans[i]);
+        }
+        assertEquals(2, pool.size());
+        assertEquals(2, pool.evictions());
+        assertFalse(pool.contains(orphans[0].block.getHash()));
+        assertFalse(pool.contains(orphans[1].block.getHash()));
+        assertTrue(pool.contains(orphans[2].block.getHash()));
+        assertTrue(pool.getChildren(orphans[0].block.getHash()).isEmpty());
+        assertEquals(Collections.singletonList(orphans[2]), pool.getChildren(orphans[1].block.getHash()));
+    }
+
+    @Test
+    public void evictsOldestOverBytes() {
+        Block block = UNITTEST.getGenesisBlock().createNextBlock(ADDRESS);
+        OrphanBlock first = orphan(block);
+        // a filtered block without any transactions
+        OrphanBlock header = new OrphanBlock(block.createNextBlock(ADDRESS).cloneAsHeader(), Collections.emptyList(),
+                Collections.emptyMap());
+        OrphanBlockPool pool = new OrphanBlockPool();
+        pool.setLimits(100, OrphanBlockPool.sizeOf(first));
+        pool.add(first);
+        assertEquals(1, pool.size());
+        pool.add(header);
+        assertEquals(1, pool.size());
+        assertTrue(pool.contains(header.block.getHash()));
+        assertEquals(Block.HEADER_SIZE, pool.bytes());
+        assertEquals(1, pool.evictions());
+    }
+
+    @Test
+    public void keepsNewestOverBytes() {
+        Block block = UNITTEST.getGenesisBlock().createNextBlock(ADDRESS);
+        OrphanBlock first = orphan(block);
+        OrphanBlock second = orphan(block.createNextBlock(ADDRESS));
+        OrphanBlockPool pool = new OrphanBlockPool();
+        pool.setLimits(100, 1);
+        pool.add(first);
+        assertTrue(pool.contains(first.block.getHash()));
+        pool.add(second);
+        assertEquals(1, pool.size());
+        assertTrue(pool.contains(second.block.getHash()));
+        assertEquals(OrphanBlockPool.sizeOf(second), pool.bytes());
+        assertEquals(1, pool.evictions());
+    }
+
+    @Test
+    public void replacesSameHash() {
+        Block block = UNITTEST.getGenesisBlock().createNextBlock(ADDRESS);
+        OrphanBlockPool pool = new OrphanBlockPool();
+        pool.add(orphan(block));
+        OrphanBlock again = orphan(block);
+        pool.add(again);
+        assertEquals(1, pool.size());
+        assertEquals(OrphanBlockPool.sizeOf(again), pool.bytes());
+        assertEquals(Collections.singletonList(again), pool.getChildren(block.getPrevBlockHash()));
+    }
+
+    private static OrphanBlock orphan(Block block) {
+        return new OrphanBlock(block, null, null);
+    }
+}
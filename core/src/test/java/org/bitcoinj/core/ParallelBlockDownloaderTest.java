@@ -0,0 +1,199 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.base.BitcoinNetwork;
+import org.bitcoinj.base.ScriptType;
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.bitcoinj.wallet.Wallet;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelBlockDownloaderTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    private BlockChain chain;
+    private PeerGroup peerGroup;
+    private List<TestPeer> peers;
+    private ParallelBlockDownloader downloader;
+    private List<Block> blocks;
+    private List<Block> headers;
+    private final List<Block> added = Collections.synchronizedList(new ArrayList<>());
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context());
+        chain = new BlockChain(UNITTEST, Wallet.createDeterministic(BitcoinNetwork.TESTNET, ScriptType.P2PKH),
+                new MemoryBlockStore(UNITTEST.getGenesisBlock()));
+        peerGroup = new PeerGroup(BitcoinNetwork.TESTNET, chain);
+        peerGroup.setFastCatchupTime(Instant.EPOCH);
+        peers = new ArrayList<>();
+        downloader = new ParallelBlockDownloader(peerGroup, chain, Collections.emptyList()) {
+            @Override
+            List<Peer> connectedPeers() {
+                return new ArrayList<>(peers);
+            }
+        };
+        blocks = new ArrayList<>();
+        Block block = UNITTEST.getGenesisBlock();
+        // stays below the first difficulty transition of the unit test network
+        for (int i = 0; i < UNITTEST.getInterval() - 1; i++) {
+            block = block.createNextBlock(null);
+            blocks.add(block);
+        }
+        headers = blocks.stream().map(Block::cloneAsHeader).collect(Collectors.toList());
+    }
+
+    @Test
+    public void addsBlocksArrivingOutOfOrderInOrder() throws Exception {
+        TestPeer peer1 = addPeer();
+        TestPeer peer2 = addPeer();
+        CompletableFuture<Void> done = processHeaders(peer1);
+        assertEquals(blocks.size(), peer1.requests.size() + peer2.requests.size());
+        for (int i = blocks.size() - 1; i >= 0; i--) {
+            assertFalse(done.isDone());
+            answer(blocks.get(i));
+        }
+        done.get(10, TimeUnit.SECONDS);
+        assertEquals(blocks, added);
+        assertEquals(blocks.get(blocks.size() - 1).getHash(), chain.getChainHead().getHeader().getHash());
+    }
+
+    @Test
+    public void reassignsBlocksOfDisconnectedPeer() throws Exception {
+        TestPeer peer1 = addPeer();
+        TestPeer peer2 = addPeer();
+        CompletableFuture<Void> done = processHeaders(peer1);
+        assertFalse(peer1.requests.isEmpty());
+        List<Sha256Hash> lost = new ArrayList<>(peer1.requests.keySet());
+        // peer2 delivers its part, and peer1 disconnects without delivering any
+        for (Block block : blocks)
+            peer2.answer(block);
+        peers.remove(peer1);
+        peer1.connectionClosed();
+        // the blocks of peer1 were requested from peer2 again
+        for (Sha256Hash hash : lost)
+            assertTrue(peer2.requests.containsKey(hash));
+        for (Block block : blocks)
+            peer2.answer(block);
+        done.get(10, TimeUnit.SECONDS);
+        assertEquals(blocks, added);
+    }
+
+    @Test
+    public void reassignsBlocksOfFailedPeerMidBatch() throws Exception {
+        TestPeer peer1 = addPeer();
+        TestPeer peer2 = addPeer();
+        CompletableFuture<Void> done = processHeaders(peer1);
+        // the first half arrives, then peer1 can't deliver the rest
+        for (Block block : blocks.subList(0, blocks.size() / 2))
+            answer(block);
+        waitForAdded(blocks.size() / 2);
+        for (Block block : blocks.subList(blocks.size() / 2, blocks.size()))
+            peer1.fail(block.getHash());
+        for (Block block : blocks.subList(blocks.size() / 2, blocks.size())) {
+            assertTrue(peer2.requests.containsKey(block.getHash()));
+            peer2.answer(block);
+        }
+        done.get(10, TimeUnit.SECONDS);
+        assertEquals(blocks, added);
+    }
+
+    private CompletableFuture<Void> processHeaders(Peer downloadPeer) {
+        return downloader.processHeaders(downloadPeer, headers, (block, filteredBlock) -> added.add(block), () -> {});
+    }
+
+    private TestPeer addPeer() {
+        TestPeer peer = new TestPeer();
+        peers.add(peer);
+        return peer;
+    }
+
+    // Answers the outstanding request for the block, from whichever peer it was made to.
+    private void answer(Block block) {
+        for (TestPeer peer : peers)
+            peer.answer(block);
+    }
+
+    private void waitForAdded(int count) throws InterruptedException {
+        for (int i = 0; i < 1000 && added.size() < count; i++)
+            Thread.sleep(10);
+        assertEquals(count, added.size());
+    }
+
+    private class TestPeer extends Peer {
+        final Map<Sha256Hash, CompletableFuture<Block>> requests = new ConcurrentHashMap<>();
+        private final VersionMessage version;
+
+        TestPeer() {
+            super(UNITTEST, new VersionMessage(UNITTEST, 0), PeerAddress.localhost(UNITTEST), chain);
+            version = new VersionMessage(UNITTEST, 0);
+            version.localServices = Services.of(Services.NODE_NETWORK | Services.NODE_WITNESS);
+        }
+
+        @Override
+        public VersionMessage getPeerVersionMessage() {
+            return version;
+        }
+
+        @Override
+        public String toString() {
+            return "TestPeer";
+        }
+
+        @Override
+        public CompletableFuture<Block> getBlock(Sha256Hash blockHash) {
+            CompletableFuture<Block> future = new CompletableFuture<>();
+            requests.put(blockHash, future);
+            return future;
+        }
+
+        @Override
+        public void connectionClosed() {
+            for (Sha256Hash hash : new ArrayList<>(requests.keySet()))
+                fail(hash);
+        }
+
+        void answer(Block block) {
+            CompletableFuture<Block> future = requests.remove(block.getHash());
+            if (future != null)
+                future.complete(block);
+        }
+
+        void fail(Sha256Hash hash) {
+            CompletableFuture<Block> future = requests.remove(hash);
+            if (future != null)
+                future.completeExceptionally(new PeerException("Connection closed"));
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class PayloadBufferPoolTest {
+
+    @Test
+    public void buffersAreReused() {
+        PayloadBufferPool pool = new PayloadBufferPool(1024 * 1024);
+        ByteBuffer buffer = pool.acquire(5000);
+        assertEquals(0, buffer.position());
+        assertEquals(5000, buffer.limit());
+        assertEquals(8192, buffer.capacity());
+        buffer.put(new byte[100]);
+        pool.release(buffer);
+        assertEquals(8192, pool.pooledBytes());
+
+        ByteBuffer again = pool.acquire(6000);
+        assertSame(buffer, again);
+        assertEquals(0, again.position());
+        assertEquals(6000, again.limit());
+        assertEquals(0, pool.pooledBytes());
+        // a different size class
+        assertNotSame(buffer, pool.acquire(9000));
+    }
+
+    @Test
+    public void sizeClasses() {
+        PayloadBufferPool pool = new PayloadBufferPool(0);
+        assertEquals(4096, pool.acquire(0).capacity());
+        assertEquals(4096, pool.acquire(4096).capacity());
+        assertEquals(8192, pool.acquire(4097).capacity());
+        assertEquals(Message.MAX_SIZE, pool.acquire(Message.MAX_SIZE).capacity());
+    }
+
+    @Test
+    public void poolIsBounded() {
+        PayloadBufferPool pool = new PayloadBufferPool(3 * 8192);
+        ByteBuffer[] buffers = new ByteBuffer[4];
+        for (int i = 0; i < buffers.length; i++)
+            buffers[i] = pool.acquire(8192);
+        for (ByteBuffer buffer : buffers)
+            pool.release(buffer);
+        assertEquals(3 * 8192, pool.pooledBytes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tooLarge() {
+        new PayloadBufferPool(0).acquire(Message.MAX_SIZE + 1);
+    }
+}
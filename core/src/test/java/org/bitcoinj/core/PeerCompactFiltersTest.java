@@ -0,0 +1,148 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.params.TestNet3Params;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the compact block filter requests of {@link Peer}, without a connection: sent messages are collected, and
+ * received ones are serialized and parsed before they are handed to the peer.
+ */
+public class PeerCompactFiltersTest {
+    private static final NetworkParameters TESTNET = TestNet3Params.get();
+
+    private TestPeer peer;
+    private Block b1, b2;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context());
+        peer = new TestPeer();
+        VersionMessage version = new VersionMessage(TESTNET, 100);
+        version.localServices = Services.of(Services.NODE_NETWORK | Services.NODE_COMPACT_FILTERS);
+        peer.receive(version);
+        peer.receive(new VersionAck());
+        assertTrue(peer.getVersionHandshakeFuture().isDone());
+        peer.sent.clear();
+        b1 = UnitTestParams.get().getGenesisBlock().createNextBlock(null);
+        b2 = b1.createNextBlock(null);
+    }
+
+    @Test
+    public void getFilters() throws Exception {
+        CompletableFuture<List<CFilterMessage>> future = peer.getFilters(1, b2.getHash());
+        GetCFiltersMessage request = (GetCFiltersMessage) peer.sent.get(0);
+        assertEquals(GolombCodedSet.BASIC_FILTER_TYPE, request.filterType());
+        assertEquals(1, request.startHeight());
+        assertEquals(b2.getHash(), request.stopHash());
+        // The request is only complete once the filter of the stop block has arrived.
+        peer.receive(filter(b1));
+        assertFalse(future.isDone());
+        peer.receive(filter(b2));
+        List<CFilterMessage> filters = future.get();
+        assertEquals(2, filters.size());
+        assertEquals(filter(b1).filterHash(), filters.get(0).filterHash());
+        assertEquals(filter(b2).filterHash(), filters.get(1).filterHash());
+    }
+
+    @Test
+    public void getFiltersAnswersRequestsInOrder() throws Exception {
+        CompletableFuture<List<CFilterMessage>> first = peer.getFilters(1, b1.getHash());
+        CompletableFuture<List<CFilterMessage>> second = peer.getFilters(2, b2.getHash());
+        peer.receive(filter(b1));
+        assertTrue(first.isDone());
+        assertFalse(second.isDone());
+        peer.receive(filter(b2));
+        assertEquals(b1.getHash(), first.get().get(0).blockHash());
+        assertEquals(b2.getHash(), second.get().get(0).blockHash());
+    }
+
+    @Test
+    public void getFilterHeaders() throws Exception {
+        CompletableFuture<CFHeadersMessage> future = peer.getFilterHeaders(1, b2.getHash());
+        GetCFHeadersMessage request = (GetCFHeadersMessage) peer.sent.get(0);
+        assertEquals(GolombCodedSet.BASIC_FILTER_TYPE, request.filterType());
+        assertEquals(1, request.startHeight());
+        assertEquals(b2.getHash(), request.stopHash());
+        assertFalse(future.isDone());
+        List<Sha256Hash> filterHashes = Arrays.asList(filter(b1).filterHash(), filter(b2).filterHash());
+        peer.receive(CFHeadersMessage.of(GolombCodedSet.BASIC_FILTER_TYPE, b2.getHash(), Sha256Hash.ZERO_HASH,
+                filterHashes));
+        CFHeadersMessage headers = future.get();
+        assertEquals(b2.getHash(), headers.stopHash());
+        assertEquals(filterHashes, headers.filterHashes());
+    }
+
+    @Test
+    public void filterRequestsFailOnDisconnect() throws Exception {
+        CompletableFuture<List<CFilterMessage>> filters = peer.getFilters(1, b1.getHash());
+        CompletableFuture<CFHeadersMessage> headers = peer.getFilterHeaders(1, b1.getHash());
+        peer.connectionClosed();
+        for (CompletableFuture<?> future : Arrays.asList(filters, headers)) {
+            try {
+                future.get();
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof PeerException);
+            }
+        }
+    }
+
+    private static CFilterMessage filter(Block block) {
+        return CFilterMessage.of(GolombCodedSet.BASIC_FILTER_TYPE, block.getHash(),
+                GolombCodedSet.ofBlock(block, Collections.emptyList()).serialize());
+    }
+
+    private static class TestPeer extends Peer {
+        final List<Message> sent = new ArrayList<>();
+
+        TestPeer() {
+            super(TESTNET, new VersionMessage(TESTNET, 0), PeerAddress.localhost(TESTNET), null);
+        }
+
+        @Override
+        public CompletableFuture<Void> sendMessage(Message message) {
+            sent.add(message);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        // Hands the message to the peer the way it would arrive from the network.
+        void receive(Message message) throws Exception {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            TESTNET.getDefaultSerializer().serialize(message, out);
+            processMessage(TESTNET.getDefaultSerializer().deserialize(ByteBuffer.wrap(out.toByteArray())));
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.base.Address;
+import org.bitcoinj.base.ScriptType;
+import org.bitcoinj.crypto.ECKey;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class PeerSocketHandlerTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context());
+    }
+
+    @Test
+    public void messagesLargerThanReadBuffer() throws Exception {
+        Address address = new ECKey().toAddress(ScriptType.P2PKH, UNITTEST.network());
+        List<Block> headers = new ArrayList<>();
+        Block block = UNITTEST.getGenesisBlock();
+        for (int i = 0; i < 200; i++) {
+            block = block.createNextBlock(address);
+            headers.add(block.cloneAsHeader());
+        }
+        List<Message> sent = new ArrayList<>();
+        sent.add(Ping.of(1));
+        sent.add(new HeadersMessage(headers));
+        sent.add(Ping.of(2));
+        sent.add(new HeadersMessage(headers.subList(0, 100)));
+        sent.add(new HeadersMessage(headers.subList(0, 1)));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (Message message : sent)
+            UNITTEST.getDefaultSerializer().serialize(message, bytes);
+
+        List<Message> received = new ArrayList<>();
+        PeerSocketHandler handler = new PeerSocketHandler(UNITTEST, new InetSocketAddress("127.0.0.1", 8333)) {
+            @Override
+            protected void processMessage(Message m) {
+                received.add(m);
+            }
+
+            @Override
+            public void connectionClosed() {
+            }
+
+            @Override
+            public void connectionOpened() {
+            }
+        };
+        // Feed the bytes in random chunks, the way the network code does.
+        ByteBuffer readBuffer = ByteBuffer.allocateDirect(4096);
+        ByteBuffer in = ByteBuffer.wrap(bytes.toByteArray());
+        Random random = new Random(1);
+        while (in.hasRemaining()) {
+            ByteBuffer chunk = in.slice();
+            ((Buffer) chunk).limit(Math.min(chunk.remaining(),
+                    Math.min(readBuffer.remaining(), 1 + random.nextInt(3000))));
+            ((Buffer) in).position(in.position() + chunk.remaining());
+            readBuffer.put(chunk);
+            ((Buffer) readBuffer).flip();
+            int consumed = handler.receiveBytes(readBuffer);
+            assertEquals(readBuffer.position(), consumed);
+            readBuffer.compact();
+        }
+        assertEquals(sent.size(), received.size());
+        for (int i = 0; i < sent.size(); i++) {
+            if (sent.get(i) instanceof Ping)
+                assertEquals(((Ping) sent.get(i)).nonce(), ((Ping) received.get(i)).nonce());
+            else
+                assertEquals(((HeadersMessage) sent.get(i)).getBlockHeaders(),
+                        ((HeadersMessage) received.get(i)).getBlockHeaders());
+        }
+    }
+}
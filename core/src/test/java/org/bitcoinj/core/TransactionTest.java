@@ -33,6 +33,7 @@ import org.bitcoinj.script.Script;
 import org.bitcoinj.script.ScriptBuilder;
 import org.bitcoinj.script.ScriptError;
 import org.bitcoinj.script.ScriptException;
+import org.bitcoinj.script.ScriptOpCodes;
 import org.bitcoinj.testing.FakeTxBuilder;
 import org.bitcoinj.wallet.Wallet;
 import org.easymock.EasyMock;
@@ -46,6 +47,7 @@ import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Iterator;
 import java.util.List;
@@ -366,6 +368,112 @@ public class TransactionTest {
         assertEquals(signedTxHex.length() / 2, tx.messageSize());
     }
 
+    @Test
+    public void witnessSignatureWithPrecomputedTransactionData() {
+        // test vector P2WPKH from:
+        // https://github.com/bitcoin/bips/blob/master/bip-0143.mediawiki
+        String txHex = "01000000" // version
+                + "02" // num txIn
+                + "fff7f7881a8099afa6940d42d1e7f6362bec38171ea3edf433541db4e4ad969f" + "00000000" + "00" + "eeffffff" // txIn
+                + "ef51e1b804cc89d182d279655c3aa89e815b1b309fe287d9b2b55d57b90ec68a" + "01000000" + "00" + "ffffffff" // txIn
+                + "02" // num txOut
+                + "202cb20600000000" + "1976a914" + "8280b37df378db99f66f85c95a783a76ac7a6d59" + "88ac" // txOut
+                + "9093510d00000000" + "1976a914" + "3bde42dbee7e4dbe6a21b2d50ce2f0167faa8159" + "88ac" // txOut
+                + "11000000"; // nLockTime
+        Transaction tx = Transaction.read(ByteBuffer.wrap(ByteUtils.parseHex(txHex)));
+        PrecomputedTransactionData precomputed = PrecomputedTransactionData.of(tx);
+        ECKey key1 = ECKey.fromPrivate(ByteUtils.parseHex("619c335025c7f4012e556c2a58b2506e30b8511b53ade95ea316fd8c3286feb9"));
+        Script witnessScript = ScriptBuilder.createP2PKHOutputScript(key1);
+        byte sigHashAll = (byte) TransactionSignature.calcSigHashValue(Transaction.SigHash.ALL, false);
+
+        assertEquals("c37af31116d1b27caf68aae9e3ac82f1477929014d5b917657d0eb49478cb670",
+                tx.hashForWitnessSignature(1, witnessScript.program(), Coin.COIN.multiply(6), sigHashAll,
+                        precomputed).toString());
+
+        // filling in scriptSigs and witnesses doesn't invalidate the precomputed data
+        tx.getInput(0).setScriptSig(new ScriptBuilder().data(new byte[71]).build());
+        tx.getInput(1).setWitness(TransactionWitness.of(new byte[71], key1.getPubKey()));
+        assertEquals("c37af31116d1b27caf68aae9e3ac82f1477929014d5b917657d0eb49478cb670",
+                tx.hashForWitnessSignature(1, witnessScript.program(), Coin.COIN.multiply(6), sigHashAll,
+                        precomputed).toString());
+
+        for (Transaction.SigHash sigHash : new Transaction.SigHash[] { Transaction.SigHash.ALL,
+                Transaction.SigHash.NONE, Transaction.SigHash.SINGLE }) {
+            for (boolean anyoneCanPay : new boolean[] { false, true }) {
+                byte sigHashType = (byte) TransactionSignature.calcSigHashValue(sigHash, anyoneCanPay);
+                for (int i = 0; i < tx.getInputs().size(); i++)
+                    assertEquals(tx.hashForWitnessSignature(i, witnessScript, Coin.COIN, sigHash, anyoneCanPay),
+                            tx.hashForWitnessSignature(i, witnessScript.program(), Coin.COIN, sigHashType,
+                                    precomputed));
+            }
+        }
+    }
+
+    @Test
+    public void hashForSignatureMatchesModifiedCopy() {
+        Transaction tx = new Transaction();
+        for (int i = 0; i < 3; i++) {
+            TransactionInput input = tx.addInput(Sha256Hash.of(new byte[] { (byte) i }), i,
+                    new ScriptBuilder().data(new byte[] { 1, 2, (byte) i }).build());
+            input.setSequenceNumber(TransactionInput.NO_SEQUENCE - i);
+        }
+        tx.getInput(1).setWitness(TransactionWitness.of(new byte[] { 1 }));
+        tx.addOutput(Coin.COIN, ADDRESS);
+        tx.addOutput(Coin.CENT, ADDRESS);
+        tx.setLockTime(123);
+        byte[] connectedScript = new ScriptBuilder(ScriptBuilder.createOutputScript(ADDRESS))
+                .op(0, ScriptOpCodes.OP_CODESEPARATOR).build().program();
+
+        for (Transaction.SigHash sigHash : new Transaction.SigHash[] { Transaction.SigHash.ALL,
+                Transaction.SigHash.NONE, Transaction.SigHash.SINGLE }) {
+            for (boolean anyoneCanPay : new boolean[] { false, true }) {
+                byte sigHashType = (byte) TransactionSignature.calcSigHashValue(sigHash, anyoneCanPay);
+                for (int i = 0; i < tx.getInputs().size(); i++)
+                    assertEquals(sigHash + " " + anyoneCanPay + " " + i,
+                            hashForSignatureOfModifiedCopy(tx, i, connectedScript, sigHashType),
+                            tx.hashForSignature(i, connectedScript, sigHashType));
+            }
+        }
+        // unusual sighash type, see tx c99c49da4c38af669dea436d3e73780dfdb6c1ecf9958baa52960e8baee30e73
+        assertEquals(hashForSignatureOfModifiedCopy(tx, 0, connectedScript, (byte) 0),
+                tx.hashForSignature(0, connectedScript, (byte) 0));
+    }
+
+    /** The way signature hashes were calculated originally: by modifying a copy of the transaction. */
+    private static Sha256Hash hashForSignatureOfModifiedCopy(Transaction original, int inputIndex,
+                                                             byte[] connectedScript, byte sigHashType) {
+        Transaction tx = Transaction.read(ByteBuffer.wrap(original.serialize()));
+        for (TransactionInput input : tx.getInputs()) {
+            input.clearScriptBytes();
+            input.setWitness(null);
+        }
+        TransactionInput input = tx.getInput(inputIndex);
+        input.setScriptBytes(Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR));
+        int basicSigHashType = sigHashType & 0x1f;
+        if (basicSigHashType == Transaction.SigHash.NONE.value || basicSigHashType == Transaction.SigHash.SINGLE.value) {
+            List<TransactionOutput> outputs = new ArrayList<>(tx.getOutputs());
+            tx.clearOutputs();
+            if (basicSigHashType == Transaction.SigHash.SINGLE.value) {
+                if (inputIndex >= outputs.size())
+                    return Sha256Hash.wrap("0100000000000000000000000000000000000000000000000000000000000000");
+                for (int i = 0; i < inputIndex; i++)
+                    tx.addOutput(new TransactionOutput(tx, Coin.NEGATIVE_SATOSHI, new byte[] {}));
+                tx.addOutput(outputs.get(inputIndex));
+            }
+            for (TransactionInput in : tx.getInputs())
+                if (in != input)
+                    in.setSequenceNumber(0);
+        }
+        if ((sigHashType & Transaction.SigHash.ANYONECANPAY.value) != 0) {
+            tx.clearInputs();
+            tx.addInput(input);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(tx.messageSize() + 4);
+        buf.put(tx.serialize());
+        ByteUtils.writeInt32LE(0x000000ff & sigHashType, buf);
+        return Sha256Hash.twiceOf(buf.array());
+    }
+
     @Test
     public void testWitnessSignatureP2SH_P2WPKH() {
         // test vector P2SH-P2WPKH from:
@@ -789,4 +897,49 @@ public class TransactionTest {
         Transaction tx = serializer.withProtocolVersion(protoVersionNoWitness).makeTransaction(ByteBuffer.wrap(ByteUtils.parseHex(txHex)));
         assertEquals(txHex, ByteUtils.formatHex(tx.serialize()));
     }
+
+    @Test
+    public void txIdCacheIsInvalidatedByMutators() {
+        Transaction tx = FakeTxBuilder.createFakeTx(TESTNET.network());
+        Sha256Hash txId = tx.getTxId();
+        long hits = Transaction.getIdCacheHits();
+        assertEquals(txId, tx.getTxId());
+        assertTrue(Transaction.getIdCacheHits() > hits);
+
+        tx.getInput(0).setSequenceNumber(0);
+        assertNotEquals(txId, tx.getTxId());
+        assertEquals(tx.getTxId(), Transaction.read(ByteBuffer.wrap(tx.serialize())).getTxId());
+
+        txId = tx.getTxId();
+        tx.getOutput(0).setValue(Coin.SATOSHI);
+        assertNotEquals(txId, tx.getTxId());
+
+        txId = tx.getTxId();
+        tx.getInput(0).setScriptBytes(new byte[] { ScriptOpCodes.OP_TRUE });
+        assertNotEquals(txId, tx.getTxId());
+
+        txId = tx.getTxId();
+        tx.setLockTime(1);
+        assertNotEquals(txId, tx.getTxId());
+
+        txId = tx.getTxId();
+        tx.addOutput(Coin.COIN, ADDRESS);
+        assertNotEquals(txId, tx.getTxId());
+    }
+
+    @Test
+    public void wTxIdCacheIsInvalidatedByWitnessChange() {
+        Transaction tx = FakeTxBuilder.createFakeTx(TESTNET.network());
+        Sha256Hash txId = tx.getTxId();
+        assertEquals(txId, tx.getWTxId());
+
+        tx.getInput(0).setWitness(TransactionWitness.of(new byte[] { 1 }));
+        Sha256Hash wTxId = tx.getWTxId();
+        assertEquals(txId, tx.getTxId());
+        assertNotEquals(txId, wTxId);
+
+        tx.getInput(0).setWitness(TransactionWitness.of(new byte[] { 2 }));
+        assertNotEquals(wTxId, tx.getWTxId());
+        assertEquals(tx.getWTxId(), Transaction.read(ByteBuffer.wrap(tx.serialize())).getWTxId());
+    }
 }
@@ -30,6 +30,12 @@ import org.junit.Test;
 
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.bitcoinj.base.Coin.COIN;
 import static org.easymock.EasyMock.anyObject;
@@ -40,6 +46,7 @@ import static org.easymock.EasyMock.replay;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class TxConfidenceTableTest {
     private static final NetworkParameters TESTNET = TestNet3Params.get();
@@ -139,4 +146,42 @@ public class TxConfidenceTableTest {
         assertEquals(3, tx2.getConfidence().numBroadcastPeers());
         assertEquals(3, table.numBroadcastPeers(tx1.getTxId()));
     }
+
+    @Test
+    public void sizeIsBounded() {
+        TxConfidenceTable table = new TxConfidenceTable(100);
+        List<TransactionConfidence> pinned = new ArrayList<>();
+        for (int i = 0; i < 1000; i++)
+            pinned.add(table.seen(Sha256Hash.of(new byte[] { (byte) i, (byte) (i >> 8) }), address1));
+        int tracked = 0;
+        for (int i = 0; i < 1000; i++)
+            if (table.get(Sha256Hash.of(new byte[] { (byte) i, (byte) (i >> 8) })) != null)
+                tracked++;
+        assertTrue(tracked <= 100);
+        assertTrue(tracked > 0);
+    }
+
+    @Test
+    public void concurrentlySeen() throws Exception {
+        int threads = 8, hashes = 200;
+        PeerAddress[] peers = new PeerAddress[threads];
+        for (int i = 0; i < threads; i++)
+            peers[i] = PeerAddress.simple(InetAddress.getByAddress(new byte[] { 10, 0, 0, (byte) i }),
+                    TESTNET.getPort());
+        List<TransactionConfidence> pinned = Collections.synchronizedList(new ArrayList<>());
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            PeerAddress peer = peers[t];
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < hashes; i++)
+                    pinned.add(table.seen(Sha256Hash.of(new byte[] { (byte) i }), peer));
+            }));
+        }
+        for (Future<?> future : futures)
+            future.get();
+        executor.shutdown();
+        for (int i = 0; i < hashes; i++)
+            assertEquals(threads, table.numBroadcastPeers(Sha256Hash.of(new byte[] { (byte) i })));
+    }
 }
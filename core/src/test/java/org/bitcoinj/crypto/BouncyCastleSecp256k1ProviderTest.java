@@ -0,0 +1,116 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.crypto;
+
+import org.bitcoinj.base.Sha256Hash;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.params.ECPrivateKeyParameters;
+import org.bouncycastle.crypto.params.ECPublicKeyParameters;
+import org.bouncycastle.crypto.signers.ECDSASigner;
+import org.bouncycastle.crypto.signers.HMacDSAKCalculator;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BouncyCastleSecp256k1ProviderTest {
+    private static final Random RANDOM = new Random(42);
+    private static final BigInteger N = ECKey.CURVE.getN();
+
+    private final BouncyCastleSecp256k1Provider provider = new BouncyCastleSecp256k1Provider(4);
+
+    @Test
+    public void signMatchesECDSASigner() {
+        for (int i = 0; i < 20; i++) {
+            ECKey key = new ECKey();
+            byte[] hash = randomHash();
+            ECDSASigner signer = new ECDSASigner(new HMacDSAKCalculator(new SHA256Digest()));
+            signer.init(true, new ECPrivateKeyParameters(key.getPrivKey(), ECKey.CURVE));
+            BigInteger[] expected = signer.generateSignature(hash);
+            ECKey.ECDSASignature signature = provider.sign(hash, key.getPrivKey());
+            assertEquals(expected[0], signature.r);
+            assertEquals(expected[1], signature.s);
+        }
+    }
+
+    @Test
+    public void verifyMatchesECDSASigner() {
+        for (int i = 0; i < 50; i++) {
+            ECKey key = new ECKey();
+            byte[] pubKey = RANDOM.nextBoolean() ? key.getPubKey() : key.decompress().getPubKey();
+            byte[] hash = randomHash();
+            ECKey.ECDSASignature signature = key.sign(Sha256Hash.wrap(hash));
+            ECKey.ECDSASignature[] candidates = {
+                    signature,
+                    new ECKey.ECDSASignature(signature.r, N.subtract(signature.s)), // high S is valid ECDSA
+                    new ECKey.ECDSASignature(signature.r.add(BigInteger.ONE), signature.s),
+                    new ECKey.ECDSASignature(signature.r, signature.s.add(BigInteger.ONE)),
+                    new ECKey.ECDSASignature(BigInteger.ZERO, signature.s),
+                    new ECKey.ECDSASignature(signature.r, N),
+                    new ECKey.ECDSASignature(signature.r.add(N), signature.s)
+            };
+            for (ECKey.ECDSASignature candidate : candidates) {
+                assertEquals(verifyWithECDSASigner(hash, candidate, pubKey), provider.verify(hash, candidate, pubKey));
+                byte[] otherHash = randomHash();
+                assertEquals(verifyWithECDSASigner(otherHash, candidate, pubKey),
+                        provider.verify(otherHash, candidate, pubKey));
+            }
+            assertTrue(provider.verify(hash, signature, pubKey));
+        }
+    }
+
+    @Test
+    public void verifyKeepsPubKeys() {
+        ECKey key = new ECKey();
+        byte[] hash = randomHash();
+        ECKey.ECDSASignature signature = key.sign(Sha256Hash.wrap(hash));
+        for (int i = 0; i < 3; i++)
+            assertTrue(provider.verify(hash, signature, key.getPubKey()));
+        assertEquals(1, provider.pubKeyCacheSize());
+        for (int i = 0; i < 10; i++)
+            assertFalse(provider.verify(hash, signature, new ECKey().getPubKey()));
+        assertEquals(4, provider.pubKeyCacheSize());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void verifyInvalidPubKey() {
+        byte[] pubKey = new ECKey().getPubKey();
+        pubKey[0] = 0x05;
+        provider.verify(randomHash(), new ECKey.ECDSASignature(BigInteger.ONE, BigInteger.ONE), pubKey);
+    }
+
+    @Test
+    public void defaultProvider() {
+        assertEquals(BouncyCastleSecp256k1Provider.class, ECKey.getSecp256k1Provider().getClass());
+    }
+
+    private static boolean verifyWithECDSASigner(byte[] hash, ECKey.ECDSASignature signature, byte[] pubKey) {
+        ECDSASigner signer = new ECDSASigner();
+        signer.init(false, new ECPublicKeyParameters(ECKey.CURVE.getCurve().decodePoint(pubKey), ECKey.CURVE));
+        return signer.verifySignature(hash, signature.r, signature.s);
+    }
+
+    private static byte[] randomHash() {
+        byte[] hash = new byte[32];
+        RANDOM.nextBytes(hash);
+        return hash;
+    }
+}
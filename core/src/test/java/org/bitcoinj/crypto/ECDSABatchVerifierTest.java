@@ -0,0 +1,87 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.crypto;
+
+import org.bitcoinj.base.Sha256Hash;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ECDSABatchVerifierTest {
+
+    private static final Random RANDOM = new Random(42);
+
+    @Test
+    public void empty() {
+        assertEquals(0, new ECDSABatchVerifier().verify().length);
+    }
+
+    @Test
+    public void matchesIndividualVerification() {
+        ECKey[] keys = { new ECKey(), new ECKey(), new ECKey() };
+        ECDSABatchVerifier batch = new ECDSABatchVerifier();
+        boolean[] expected = new boolean[300];
+        for (int i = 0; i < expected.length; i++) {
+            ECKey key = keys[i % keys.length];
+            Sha256Hash hash = Sha256Hash.of(new byte[] { (byte) i, (byte) (i >> 8) });
+            ECKey.ECDSASignature sig = key.sign(hash);
+            byte[] signedHash = hash.getBytes();
+            switch (RANDOM.nextInt(4)) {
+                case 0: // wrong hash
+                    signedHash = Sha256Hash.of(signedHash).getBytes();
+                    break;
+                case 1: // wrong key
+                    key = keys[(i + 1) % keys.length];
+                    break;
+                default:
+                    break;
+            }
+            expected[i] = ECKey.verify(signedHash, sig, key.getPubKey());
+            assertEquals(i, batch.add(signedHash, sig, key.getPubKey()));
+        }
+        assertEquals(expected.length, batch.size());
+        boolean[] results = batch.verify();
+        for (int i = 0; i < expected.length; i++)
+            assertEquals(Integer.toString(i), expected[i], results[i]);
+    }
+
+    @Test
+    public void invalidEntriesDoNotAffectOthers() {
+        ECKey key = new ECKey();
+        Sha256Hash hash = Sha256Hash.of(new byte[] { 1 });
+        ECKey.ECDSASignature sig = key.sign(hash);
+        BigInteger n = ECKey.CURVE.getN();
+
+        ECDSABatchVerifier batch = new ECDSABatchVerifier();
+        batch.add(hash.getBytes(), sig, key.getPubKey());
+        batch.add(hash.getBytes(), new ECKey.ECDSASignature(sig.r, n), key.getPubKey());
+        batch.add(hash.getBytes(), new ECKey.ECDSASignature(BigInteger.ZERO, sig.s), key.getPubKey());
+        batch.add(hash.getBytes(), sig, new byte[] { 2, 3 });
+        batch.add(hash.getBytes(), sig, key.getPubKey());
+        boolean[] results = batch.verify();
+        assertTrue(results[0]);
+        assertFalse(results[1]);
+        assertFalse(results[2]);
+        assertFalse(results[3]);
+        assertTrue(results[4]);
+    }
+}
@@ -164,4 +164,26 @@ public class HDKeyDerivationTest {
         assertEquals(HDPath.parsePath("m/1"), keys2.get(0).getPath());
         assertEquals(HDPath.parsePath("m/2"), keys2.get(1).getPath());
     }
+
+    @Test
+    public void testDeriveChildKeys() {
+        DeterministicKey parent = new DeterministicKey(HDPath.m(), new byte[32], BigInteger.TEN,
+                null);
+        DeterministicKey publicParent = parent.dropPrivateBytes().dropParent();
+        assertEquals(0, HDKeyDerivation.deriveChildKeys(parent, 5, 0).size());
+        for (int count : new int[] { 1, 3, 100 }) {
+            List<DeterministicKey> expected = HDKeyDerivation.generate(parent, 5)
+                    .limit(count)
+                    .map(DeterministicKey::dropPrivateBytes)
+                    .collect(Collectors.toList());
+            List<DeterministicKey> keys = HDKeyDerivation.deriveChildKeys(parent, 5, count);
+            assertEquals(expected, keys);
+            for (int i = 0; i < count; i++) {
+                assertEquals(expected.get(i).getPath(), keys.get(i).getPath());
+                assertEquals(expected.get(i).getPublicKeyAsHex(), keys.get(i).getPublicKeyAsHex());
+                assertEquals(expected.get(i).isPubKeyOnly(), keys.get(i).isPubKeyOnly());
+            }
+            assertEquals(expected, HDKeyDerivation.deriveChildKeys(publicParent, 5, count));
+        }
+    }
 }
@@ -0,0 +1,71 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import org.bitcoinj.base.Coin;
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.crypto.ECKey;
+import org.bitcoinj.script.Script.VerifyFlag;
+import org.junit.Test;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ScriptExecutionCacheTest {
+
+    @Test
+    public void keyedByTransactionAndFlags() {
+        ScriptExecutionCache cache = new ScriptExecutionCache(10);
+        Transaction tx = newTransaction(0);
+        Set<VerifyFlag> flags = EnumSet.of(VerifyFlag.P2SH);
+        Set<VerifyFlag> otherFlags = EnumSet.of(VerifyFlag.P2SH, VerifyFlag.DERSIG);
+
+        assertFalse(cache.contains(tx, flags));
+        cache.add(tx, flags);
+        assertTrue(cache.contains(tx, flags));
+        assertFalse(cache.contains(tx, otherFlags));
+        assertFalse(cache.contains(newTransaction(1), flags));
+        assertEquals(1, cache.getHits());
+        assertEquals(3, cache.getMisses());
+
+        cache.clear();
+        assertFalse(cache.contains(tx, flags));
+    }
+
+    @Test
+    public void evictsWhenFull() {
+        ScriptExecutionCache cache = new ScriptExecutionCache(3);
+        for (int i = 0; i < 10; i++) {
+            cache.add(newTransaction(i), EnumSet.noneOf(VerifyFlag.class));
+            assertEquals(Math.min(i + 1, 3), cache.size());
+        }
+    }
+
+    private static Transaction newTransaction(int index) {
+        Transaction tx = new Transaction();
+        tx.addInput(new TransactionInput(tx, new byte[0], new TransactionOutPoint(index, Sha256Hash.ZERO_HASH)));
+        tx.addOutput(Coin.COIN, new ECKey());
+        return tx;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import org.bitcoinj.base.internal.ByteUtils;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ScriptInterpreterTest {
+
+    private static final Random RANDOM = new Random(42);
+
+    @Test
+    public void encodeNumMatchesMPI() {
+        long[] values = { 0, 1, -1, 16, 127, 128, -128, 255, -255, 256, 32767, 32768, -32768, Integer.MAX_VALUE,
+                Integer.MIN_VALUE + 1, 0xffffffffL, -0xffffffffL, (1L << 39) - 1 };
+        for (long value : values)
+            assertArrayEquals(Long.toString(value), encodeMPI(value), ScriptInterpreter.encodeNum(value));
+        for (int i = 0; i < 10000; i++) {
+            long value = RANDOM.nextInt();
+            assertArrayEquals(Long.toString(value), encodeMPI(value), ScriptInterpreter.encodeNum(value));
+        }
+    }
+
+    @Test
+    public void decodeNumMatchesCastToBigInteger() {
+        for (int i = 0; i < 10000; i++) {
+            byte[] chunk = new byte[RANDOM.nextInt(6)];
+            RANDOM.nextBytes(chunk);
+            for (boolean requireMinimal : new boolean[] { false, true }) {
+                BigInteger expected;
+                try {
+                    expected = Script.castToBigInteger(chunk, 5, requireMinimal);
+                } catch (ScriptException x) {
+                    try {
+                        ScriptInterpreter.decodeNum(chunk, 5, requireMinimal);
+                        fail(ByteUtils.formatHex(chunk));
+                    } catch (ScriptException x2) {
+                        assertEquals(x.getError(), x2.getError());
+                    }
+                    continue;
+                }
+                assertEquals(ByteUtils.formatHex(chunk), expected.longValue(),
+                        ScriptInterpreter.decodeNum(chunk, 5, requireMinimal));
+            }
+        }
+    }
+
+    @Test(expected = ScriptException.class)
+    public void decodeNum_tooLong() {
+        ScriptInterpreter.decodeNum(new byte[5], 4, false);
+    }
+
+    @Test
+    public void conditionStack() {
+        ScriptInterpreter.ConditionStack conditions = new ScriptInterpreter.ConditionStack();
+        assertTrue(conditions.isEmpty());
+        assertTrue(conditions.allTrue());
+        conditions.push(true);
+        assertTrue(conditions.allTrue());
+        conditions.push(false);
+        assertFalse(conditions.allTrue());
+        conditions.push(true);
+        assertFalse(conditions.allTrue());
+        conditions.toggleTop();
+        assertFalse(conditions.allTrue());
+        conditions.pop();
+        assertFalse(conditions.allTrue());
+        conditions.toggleTop();
+        assertTrue(conditions.allTrue());
+        conditions.toggleTop();
+        assertFalse(conditions.allTrue());
+        conditions.pop();
+        assertTrue(conditions.allTrue());
+        conditions.pop();
+        assertTrue(conditions.isEmpty());
+    }
+
+    @Test
+    public void stackOperations() {
+        ScriptInterpreter.Stack stack = new ScriptInterpreter.Stack();
+        for (int i = 0; i < 40; i++)
+            stack.push(new byte[] { (byte) i });
+        assertEquals(40, stack.size());
+        assertArrayEquals(new byte[] { 39 }, stack.peek(0));
+        assertArrayEquals(new byte[] { 37 }, stack.remove(2));
+        assertArrayEquals(new byte[] { 36 }, stack.peek(2));
+        stack.swap(0, 1);
+        assertArrayEquals(new byte[] { 38 }, stack.pop());
+        stack.drop(2);
+        assertEquals(36, stack.size());
+        assertArrayEquals(new byte[] { 35 }, stack.peek(0));
+    }
+
+    private static byte[] encodeMPI(long value) {
+        return ByteUtils.reverseBytes(ByteUtils.encodeMPI(BigInteger.valueOf(value), false));
+    }
+}
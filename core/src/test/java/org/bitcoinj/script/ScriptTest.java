@@ -465,6 +465,36 @@ public class ScriptTest {
         }
     }
 
+    @Test
+    public void dataDrivenScripts_arrayInterpreter() throws Exception {
+        Script.setInterpreter(Script.Interpreter.ARRAY);
+        try {
+            dataDrivenScripts();
+        } finally {
+            Script.setInterpreter(Script.Interpreter.LINKED_LIST);
+        }
+    }
+
+    @Test
+    public void dataDrivenValidTransactions_arrayInterpreter() throws Exception {
+        Script.setInterpreter(Script.Interpreter.ARRAY);
+        try {
+            dataDrivenValidTransactions();
+        } finally {
+            Script.setInterpreter(Script.Interpreter.LINKED_LIST);
+        }
+    }
+
+    @Test
+    public void dataDrivenInvalidTransactions_arrayInterpreter() throws Exception {
+        Script.setInterpreter(Script.Interpreter.ARRAY);
+        try {
+            dataDrivenInvalidTransactions();
+        } finally {
+            Script.setInterpreter(Script.Interpreter.LINKED_LIST);
+        }
+    }
+
     @Test
     public void getToAddress() {
         // P2PK
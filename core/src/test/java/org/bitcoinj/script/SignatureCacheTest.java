@@ -0,0 +1,85 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.crypto.ECKey;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SignatureCacheTest {
+
+    @Test
+    public void cachesValidSignatures() {
+        SignatureCache cache = new SignatureCache(10);
+        ECKey key = new ECKey();
+        Sha256Hash hash = Sha256Hash.of(new byte[] { 1 });
+        ECKey.ECDSASignature sig = key.sign(hash);
+        byte[] sigBytes = sig.encodeToDER();
+
+        assertTrue(cache.verify(hash, key.getPubKey(), sigBytes, sig));
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.size());
+
+        assertTrue(cache.verify(hash, key.getPubKey(), sigBytes, sig));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(0.5, cache.getHitRate(), 0);
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertTrue(cache.verify(hash, key.getPubKey(), sigBytes, sig));
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void doesNotCacheInvalidSignatures() {
+        SignatureCache cache = new SignatureCache(10);
+        ECKey key = new ECKey();
+        Sha256Hash hash = Sha256Hash.of(new byte[] { 1 });
+        Sha256Hash otherHash = Sha256Hash.of(new byte[] { 2 });
+        ECKey.ECDSASignature sig = key.sign(hash);
+        byte[] sigBytes = sig.encodeToDER();
+
+        assertFalse(cache.verify(otherHash, key.getPubKey(), sigBytes, sig));
+        assertFalse(cache.verify(otherHash, key.getPubKey(), sigBytes, sig));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void evictsWhenFull() {
+        SignatureCache cache = new SignatureCache(3);
+        ECKey key = new ECKey();
+        for (int i = 0; i < 10; i++) {
+            Sha256Hash hash = Sha256Hash.of(new byte[] { (byte) i });
+            ECKey.ECDSASignature sig = key.sign(hash);
+            assertTrue(cache.verify(hash, key.getPubKey(), sig.encodeToDER(), sig));
+            assertEquals(Math.min(i + 1, 3), cache.size());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void withMaxBytes_tooLow() {
+        SignatureCache.withMaxBytes(1);
+    }
+}
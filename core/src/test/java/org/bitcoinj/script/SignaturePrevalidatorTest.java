@@ -0,0 +1,112 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import org.bitcoinj.base.Coin;
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.crypto.ECKey;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SignaturePrevalidatorTest {
+
+    @Test
+    public void prevalidatedSignaturesAreCached() {
+        ECKey key = new ECKey();
+        Script p2pkh = ScriptBuilder.createP2PKHOutputScript(key);
+        Script p2pk = ScriptBuilder.createP2PKOutputScript(key);
+        Transaction tx = newTransaction(p2pkh, key);
+        Transaction tx2 = newTransaction(p2pk, key);
+
+        SignatureCache cache = new SignatureCache(10);
+        SignaturePrevalidator prevalidator = new SignaturePrevalidator(cache);
+        assertTrue(prevalidator.add(tx, 0, null, null, p2pkh));
+        assertTrue(prevalidator.add(tx2, 0, null, null, p2pk));
+        // wrong scriptPubKey, so the signature doesn't match the key
+        assertTrue(prevalidator.add(tx2, 0, null, null, ScriptBuilder.createP2PKOutputScript(new ECKey())));
+        // public key doesn't hash to the scriptPubKey, left to script execution
+        assertFalse(prevalidator.add(tx, 0, null, null, ScriptBuilder.createP2PKHOutputScript(new ECKey())));
+        // not a supported template
+        assertFalse(prevalidator.add(tx, 0, null, null, ScriptBuilder.createOpReturnScript(new byte[0])));
+        assertEquals(3, prevalidator.size());
+        assertEquals(2, prevalidator.prevalidate());
+        assertEquals(2, cache.size());
+
+        SignatureCache previous = Script.getSignatureCache();
+        Script.setSignatureCache(cache);
+        try {
+            tx.getInput(0).getScriptSig().correctlySpends(tx, 0, null, null, p2pkh,
+                    EnumSet.noneOf(Script.VerifyFlag.class));
+            tx2.getInput(0).getScriptSig().correctlySpends(tx2, 0, null, null, p2pk,
+                    EnumSet.noneOf(Script.VerifyFlag.class));
+        } finally {
+            Script.setSignatureCache(previous);
+        }
+        assertEquals(2, cache.getHits());
+        assertEquals(0, cache.getMisses());
+    }
+
+    @Test
+    public void fullBatchesAreVerifiedWhileCollecting() {
+        ECKey key = new ECKey();
+        Script p2wpkh = ScriptBuilder.createP2WPKHOutputScript(key);
+        Script p2pkh = ScriptBuilder.createP2PKHOutputScript(key);
+        Transaction segwitTx = new Transaction();
+        segwitTx.addOutput(Coin.COIN, new ECKey());
+        segwitTx.addSignedInput(new TransactionOutPoint(0, Sha256Hash.of(p2wpkh.program())), p2wpkh, Coin.FIFTY_COINS,
+                key);
+        Transaction tx = newTransaction(p2pkh, key);
+
+        SignatureCache cache = new SignatureCache(10);
+        SignaturePrevalidator prevalidator = new SignaturePrevalidator(cache, 2, ForkJoinPool.commonPool());
+        List<Boolean> results = new ArrayList<>();
+        // P2WPKH needs the witness and the spent value
+        assertFalse(prevalidator.add(segwitTx, 0, null, null, p2wpkh, null, results::add));
+        assertTrue(prevalidator.add(segwitTx, 0, segwitTx.getInput(0).getWitness(), Coin.FIFTY_COINS, p2wpkh, null,
+                results::add));
+        assertTrue(results.isEmpty());
+        // completes the batch
+        assertTrue(prevalidator.add(tx, 0, null, null, p2pkh, null, results::add));
+        assertEquals(Arrays.asList(true, true), results);
+        assertEquals(2, cache.size());
+
+        // wrong value, so the signature hash doesn't match
+        assertTrue(prevalidator.add(segwitTx, 0, segwitTx.getInput(0).getWitness(), Coin.COIN, p2wpkh, null,
+                results::add));
+        assertEquals(0, prevalidator.prevalidate());
+        assertEquals(Arrays.asList(true, true, false), results);
+        assertEquals(3, prevalidator.size());
+    }
+
+    private static Transaction newTransaction(Script scriptPubKey, ECKey key) {
+        Transaction tx = new Transaction();
+        tx.addOutput(Coin.COIN, new ECKey());
+        tx.addSignedInput(new TransactionOutPoint(0, Sha256Hash.of(scriptPubKey.program())), scriptPubKey, key);
+        return tx;
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.base.BitcoinNetwork;
+import org.bitcoinj.base.Coin;
+import org.bitcoinj.base.ScriptType;
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.StoredUndoableBlock;
+import org.bitcoinj.core.TransactionOutputChanges;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.crypto.ECKey;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LogFullPrunedBlockStoreTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+    private File file;
+    private LogFullPrunedBlockStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context());
+        file = File.createTempFile("logfullprunedblockstore", null);
+        file.delete();
+        file.deleteOnExit();
+        new File(file.getPath() + ".lock").deleteOnExit();
+        store = new LogFullPrunedBlockStore(UNITTEST, file, 10);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+    }
+
+    @Test
+    public void genesis() throws Exception {
+        StoredBlock genesis = store.getChainHead();
+        assertEquals(UNITTEST.getGenesisBlock().getHash(), genesis.getHeader().getHash());
+        assertEquals(genesis, store.getVerifiedChainHead());
+        assertNotNull(store.getUndoBlock(genesis.getHeader().getHash()));
+        assertEquals(genesis, store.getOnceUndoableStoredBlock(genesis.getHeader().getHash()));
+    }
+
+    @Test
+    public void reopen() throws Exception {
+        StoredBlock genesis = store.getChainHead();
+        StoredBlock b1 = nextBlock(genesis);
+        UTXO spent = utxo(1, 0);
+        UTXO unspent = utxo(1, 1);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(spent);
+        store.addUnspentTransactionOutput(unspent);
+        store.commitDatabaseBatchWrite();
+        store.beginDatabaseBatchWrite();
+        store.put(b1, new StoredUndoableBlock(b1.getHeader().getHash(), new TransactionOutputChanges(
+                Collections.singletonList(unspent), Collections.singletonList(spent))));
+        store.removeUnspentTransactionOutput(spent);
+        store.setVerifiedChainHead(b1);
+        store.commitDatabaseBatchWrite();
+        store.close();
+
+        store = new LogFullPrunedBlockStore(UNITTEST, file, 10);
+        assertEquals(b1, store.getChainHead());
+        assertEquals(b1, store.getVerifiedChainHead());
+        assertEquals(b1, store.get(b1.getHeader().getHash()));
+        assertNull(store.getTransactionOutput(spent.getHash(), spent.getIndex()));
+        UTXO out = store.getTransactionOutput(unspent.getHash(), unspent.getIndex());
+        assertEquals(unspent, out);
+        assertEquals(unspent.getScript(), out.getScript());
+        assertEquals(unspent.getAddress(), out.getAddress());
+        assertEquals(unspent.getHeight(), out.getHeight());
+        TransactionOutputChanges changes = store.getUndoBlock(b1.getHeader().getHash()).getTxOutChanges();
+        assertEquals(Collections.singletonList(unspent), changes.txOutsCreated);
+        assertEquals(Collections.singletonList(spent), changes.txOutsSpent);
+    }
+
+    @Test
+    public void abortedBatchIsDiscarded() throws Exception {
+        UTXO out = utxo(1, 0);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(out);
+        assertEquals(out, store.getTransactionOutput(out.getHash(), out.getIndex()));
+        store.abortDatabaseBatchWrite();
+        assertNull(store.getTransactionOutput(out.getHash(), out.getIndex()));
+    }
+
+    @Test
+    public void batchIsInvisibleToOtherThreads() throws Exception {
+        UTXO out = utxo(1, 0);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(out);
+        UTXO[] seen = new UTXO[1];
+        Thread thread = new Thread(() -> {
+            try {
+                seen[0] = store.getTransactionOutput(out.getHash(), out.getIndex());
+            } catch (BlockStoreException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        thread.start();
+        thread.join();
+        assertNull(seen[0]);
+        store.commitDatabaseBatchWrite();
+        assertEquals(out, store.getTransactionOutput(out.getHash(), out.getIndex()));
+    }
+
+    @Test
+    public void incompleteBatchIsTruncated() throws Exception {
+        UTXO out = utxo(1, 0);
+        store.addUnspentTransactionOutput(out);
+        store.close();
+        long length = file.length();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            // a record that was cut short by a crash
+            raf.seek(length);
+            raf.write(new byte[] { 100, 0, 0, 0, 1, 2, 3 });
+        }
+
+        store = new LogFullPrunedBlockStore(UNITTEST, file, 10);
+        assertEquals(length, file.length());
+        assertEquals(out, store.getTransactionOutput(out.getHash(), out.getIndex()));
+    }
+
+    @Test
+    public void manyOutputsAndCompaction() throws Exception {
+        int count = 5000;
+        store.beginDatabaseBatchWrite();
+        for (int i = 0; i < count; i++)
+            store.addUnspentTransactionOutput(utxo(i, i % 3));
+        store.commitDatabaseBatchWrite();
+        store.beginDatabaseBatchWrite();
+        for (int i = 0; i < count; i += 2)
+            store.removeUnspentTransactionOutput(utxo(i, i % 3));
+        store.commitDatabaseBatchWrite();
+        long before = file.length();
+
+        store.compact();
+        assertTrue(file.length() < before);
+        for (int i = 0; i < count; i++)
+            assertEquals(i % 2 == 0 ? null : utxo(i, i % 3), store.getTransactionOutput(hash(i), i % 3));
+        store.close();
+
+        store = new LogFullPrunedBlockStore(UNITTEST, file, 10);
+        for (int i = 0; i < count; i++)
+            assertEquals(i % 2 == 0 ? null : utxo(i, i % 3), store.getTransactionOutput(hash(i), i % 3));
+        assertEquals(UNITTEST.getGenesisBlock().getHash(), store.getChainHead().getHeader().getHash());
+    }
+
+    @Test
+    public void undoBlocksArePruned() throws Exception {
+        StoredBlock block = store.getChainHead();
+        StoredBlock first = null;
+        for (int i = 0; i < 15; i++) {
+            block = nextBlock(block);
+            if (first == null)
+                first = block;
+            store.beginDatabaseBatchWrite();
+            store.put(block, new StoredUndoableBlock(block.getHeader().getHash(), Collections.emptyList()));
+            store.setVerifiedChainHead(block);
+            store.commitDatabaseBatchWrite();
+        }
+        assertNull(store.getUndoBlock(first.getHeader().getHash()));
+        assertNotNull(store.getUndoBlock(block.getHeader().getHash()));
+        assertEquals(first, store.getOnceUndoableStoredBlock(first.getHeader().getHash()));
+    }
+
+    @Test
+    public void getOpenTransactionOutputs() throws Exception {
+        ECKey key = new ECKey();
+        UTXO mine = new UTXO(hash(1), 0, Coin.COIN, 1, false, ScriptBuilder.createP2PKHOutputScript(key),
+                key.toAddress(ScriptType.P2PKH, BitcoinNetwork.REGTEST).toString());
+        store.addUnspentTransactionOutput(mine);
+        store.addUnspentTransactionOutput(utxo(2, 0));
+        List<UTXO> outputs = store.getOpenTransactionOutputs(Collections.singletonList(key));
+        assertEquals(Collections.singletonList(mine), outputs);
+        store.removeUnspentTransactionOutput(mine);
+        assertTrue(store.getOpenTransactionOutputs(Collections.singletonList(key)).isEmpty());
+    }
+
+    @Test(expected = BlockStoreException.class)
+    public void removeMissing() throws Exception {
+        store.removeUnspentTransactionOutput(utxo(1, 0));
+    }
+
+    @Test(expected = ChainFileLockedException.class)
+    public void twoStoresOnSameFile() throws Exception {
+        new LogFullPrunedBlockStore(UNITTEST, file, 10);
+    }
+
+    private static StoredBlock nextBlock(StoredBlock previous) {
+        ECKey key = new ECKey();
+        return previous.build(previous.getHeader().createNextBlock(key.toAddress(ScriptType.P2PKH,
+                BitcoinNetwork.REGTEST)).cloneAsHeader());
+    }
+
+    private static Sha256Hash hash(int i) {
+        return Sha256Hash.of(new byte[] { (byte) i, (byte) (i >> 8) });
+    }
+
+    private static UTXO utxo(int i, int index) {
+        return new UTXO(hash(i), index, Coin.valueOf(i + 1), i, i % 5 == 0,
+                ScriptBuilder.createOpReturnScript(new byte[] { (byte) i, (byte) (i >> 8), 0x6a, 0x6a }));
+    }
+}
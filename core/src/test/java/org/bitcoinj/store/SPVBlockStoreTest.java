@@ -43,7 +43,9 @@ import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
@@ -184,6 +186,69 @@ public class SPVBlockStoreTest {
         store.close();
     }
 
+    @Test
+    public void getAfterWrapAround() throws Exception {
+        Context.propagate(new Context(100, Transaction.DEFAULT_TX_FEE, false, true));
+        Address to = new ECKey().toAddress(ScriptType.P2PKH, BitcoinNetwork.TESTNET);
+        SPVBlockStore store = new SPVBlockStore(TESTNET, blockStoreFile, 10, false);
+        List<StoredBlock> blocks = new ArrayList<>();
+        blocks.add(store.getChainHead());
+        for (int i = 1; i < 25; i++) {
+            StoredBlock prev = blocks.get(i - 1);
+            StoredBlock block = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(block);
+            store.setChainHead(block);
+            blocks.add(block);
+        }
+        store.close();
+
+        // Reopen so that the caches are empty and the index has to be rebuilt.
+        store = new SPVBlockStore(TESTNET, blockStoreFile, 10, false);
+        for (int i = 0; i < blocks.size(); i++) {
+            StoredBlock expected = i < 15 ? null : blocks.get(i);
+            assertEquals(expected, store.get(blocks.get(i).getHeader().getHash()));
+            assertEquals(expected, store.getByHeight(i));
+        }
+        assertNull(store.getByHeight(25));
+        store.close();
+    }
+
+    @Test
+    public void getByHeight_reorg() throws Exception {
+        Context.propagate(new Context(100, Transaction.DEFAULT_TX_FEE, false, true));
+        Address to = new ECKey().toAddress(ScriptType.P2PKH, BitcoinNetwork.TESTNET);
+        SPVBlockStore store = new SPVBlockStore(TESTNET, blockStoreFile);
+        StoredBlock genesis = store.getChainHead();
+        StoredBlock a1 = genesis.build(genesis.getHeader().createNextBlock(to).cloneAsHeader());
+        StoredBlock a2 = a1.build(a1.getHeader().createNextBlock(to).cloneAsHeader());
+        StoredBlock a3 = a2.build(a2.getHeader().createNextBlock(to).cloneAsHeader());
+        StoredBlock b2 = a1.build(a1.getHeader().createNextBlock(new ECKey().toAddress(ScriptType.P2PKH,
+                BitcoinNetwork.TESTNET)).cloneAsHeader());
+        store.put(a1);
+        store.put(a2);
+        store.put(a3);
+        store.setChainHead(a3);
+        assertEquals(a2, store.getByHeight(2));
+        assertEquals(a3, store.getByHeight(3));
+
+        // Re-org to a shorter chain.
+        store.put(b2);
+        store.setChainHead(b2);
+        assertEquals(genesis, store.getByHeight(0));
+        assertEquals(a1, store.getByHeight(1));
+        assertEquals(b2, store.getByHeight(2));
+        assertNull(store.getByHeight(3));
+
+        // And back again.
+        StoredBlock a4 = a3.build(a3.getHeader().createNextBlock(to).cloneAsHeader());
+        store.put(a4);
+        store.setChainHead(a4);
+        assertEquals(a2, store.getByHeight(2));
+        assertEquals(a3, store.getByHeight(3));
+        assertEquals(a4, store.getByHeight(4));
+        store.close();
+    }
+
     @Test
     public void oneStoreDelete() throws Exception {
         SPVBlockStore store = new SPVBlockStore(TESTNET, blockStoreFile);
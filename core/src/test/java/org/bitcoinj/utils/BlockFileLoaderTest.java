@@ -17,17 +17,29 @@
 package org.bitcoinj.utils;
 
 import org.bitcoinj.base.BitcoinNetwork;
+import org.bitcoinj.base.Sha256Hash;
+import org.bitcoinj.base.internal.ByteUtils;
 import org.bitcoinj.core.Block;
 import org.bitcoinj.core.Context;
+import org.bitcoinj.params.MainNetParams;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class BlockFileLoaderTest {
     @Before
@@ -105,4 +117,88 @@ public class BlockFileLoaderTest {
 
         assertEquals(446, transactionCount);
     }
+
+    @Test
+    public void orderedStreamFirst100k() {
+        File blockFile = new File(getClass().getResource("../core/first-100k-blocks.dat").getFile());
+        BlockFileLoader loader = new BlockFileLoader(BitcoinNetwork.MAINNET, Collections.singletonList(blockFile));
+        Sha256Hash genesis = MainNetParams.get().getGenesisBlock().getHash();
+
+        List<Block> blocks;
+        try (Stream<Block> stream = loader.orderedStream(genesis, 3)) {
+            blocks = stream.collect(Collectors.toList());
+        }
+        assertEquals(loader.stream().filter(b -> !b.getHash().equals(genesis)).count(), blocks.size());
+        assertConnected(genesis, blocks);
+    }
+
+    @Test
+    public void orderedStreamReordersBlocks() throws Exception {
+        File blockFile = new File(getClass().getResource("../core/first-100k-blocks.dat").getFile());
+        BlockFileLoader loader = new BlockFileLoader(BitcoinNetwork.MAINNET, Collections.singletonList(blockFile));
+        List<ByteBuffer> buffers = loader.streamBuffers().collect(Collectors.toList());
+        Collections.reverse(buffers);
+        File reversed = File.createTempFile("blk", ".dat");
+        reversed.deleteOnExit();
+        try (OutputStream out = new FileOutputStream(reversed)) {
+            for (ByteBuffer buffer : buffers) {
+                ByteUtils.writeInt32BE(MainNetParams.get().getPacketMagic(), out);
+                ByteUtils.writeInt32LE(buffer.remaining(), out);
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                out.write(bytes);
+            }
+            out.write(new byte[100]); // padding
+        }
+        Sha256Hash genesis = MainNetParams.get().getGenesisBlock().getHash();
+
+        BlockFileLoader reversedLoader = new BlockFileLoader(BitcoinNetwork.MAINNET,
+                Collections.singletonList(reversed));
+        assertEquals(buffers.size(), reversedLoader.streamBuffers().count());
+        List<Block> blocks;
+        try (Stream<Block> stream = reversedLoader.orderedStream(genesis, 2)) {
+            blocks = stream.collect(Collectors.toList());
+        }
+        assertEquals(loader.stream().filter(b -> !b.getHash().equals(genesis)).count(), blocks.size());
+        assertConnected(genesis, blocks);
+    }
+
+    @Test
+    public void indexFindsMagicAfterJunk() throws Exception {
+        File blockFile = new File(getClass().getResource("../core/first-100k-blocks.dat").getFile());
+        BlockFileLoader loader = new BlockFileLoader(BitcoinNetwork.MAINNET, Collections.singletonList(blockFile));
+        List<ByteBuffer> buffers = loader.streamBuffers().limit(6).collect(Collectors.toList());
+        byte[] magic = new byte[4];
+        ByteUtils.writeInt32BE(MainNetParams.get().getPacketMagic(), magic, 0);
+        // partial magics at all offsets, which the search must not skip past the real magic
+        byte[][] junk = {
+                {}, { magic[0] }, { magic[0], magic[1] }, { 1, magic[0], magic[1], magic[2] },
+                { magic[1], magic[2], magic[3], 0, 0 }, { magic[0], magic[0], magic[1], magic[2], magic[0], 7 }
+        };
+        File junked = File.createTempFile("blk", ".dat");
+        junked.deleteOnExit();
+        try (OutputStream out = new FileOutputStream(junked)) {
+            for (int i = 0; i < buffers.size(); i++) {
+                out.write(junk[i]);
+                out.write(magic);
+                ByteBuffer buffer = buffers.get(i).duplicate();
+                ByteUtils.writeInt32LE(buffer.remaining(), out);
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                out.write(bytes);
+            }
+        }
+        List<ByteBuffer> found = new BlockFileLoader(BitcoinNetwork.MAINNET, Collections.singletonList(junked))
+                .streamBuffers().collect(Collectors.toList());
+        assertEquals(buffers, found);
+    }
+
+    private static void assertConnected(Sha256Hash start, List<Block> blocks) {
+        Set<Sha256Hash> seen = new HashSet<>();
+        seen.add(start);
+        for (Block block : blocks) {
+            assertTrue(seen.contains(block.getPrevBlockHash()));
+            assertTrue(seen.add(block.getHash()));
+        }
+    }
 }
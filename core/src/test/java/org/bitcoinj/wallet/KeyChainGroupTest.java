@@ -39,10 +39,12 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.math.BigInteger;
+import java.security.SecureRandom;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Objects;
 import java.util.Random;
@@ -461,6 +463,34 @@ public class KeyChainGroupTest {
         assertNotEquals(addr2, addr3);
     }
 
+    @Test
+    public void findKeyAcrossChains() {
+        DeterministicKeyChain first = group.getActiveKeyChain();
+        for (int i = 0; i < 10; i++)
+            group.addAndActivateHDChain(DeterministicKeyChain.builder().random(new SecureRandom())
+                    .outputScriptType(i % 2 == 0 ? ScriptType.P2WPKH : ScriptType.P2PKH).build());
+        first.maybeLookAhead();
+        DeterministicKey last = first.getLeafKeys().stream()
+                .max(Comparator.comparingInt(key -> key.getChildNumber().num())).get();
+        assertEquals(last, group.findKeyFromPubKeyHash(last.getPubKeyHash(), ScriptType.P2PKH));
+        assertNull(group.findKeyFromPubKeyHash(last.getPubKeyHash(), ScriptType.P2WPKH));
+        assertEquals(last, group.findKeyFromPubKey(last.getPubKey()));
+        assertTrue(group.hasKey(last));
+
+        // using a key of an old chain extends its lookahead, and the new keys are found too
+        int numKeys = first.numKeys();
+        group.markPubKeyHashAsUsed(last.getPubKeyHash());
+        assertTrue(first.numKeys() > numKeys);
+        for (DeterministicKey key : first.getKeys(true, false))
+            assertEquals(key, group.findKeyFromPubKeyHash(key.getPubKeyHash(), null));
+
+        group.encrypt(KEY_CRYPTER, AES_KEY);
+        ECKey found = group.findKeyFromPubKey(last.getPubKey());
+        assertTrue(found.isEncrypted());
+        group.decrypt(AES_KEY);
+        assertFalse(group.findKeyFromPubKey(last.getPubKey()).isEncrypted());
+    }
+
     @Test
     public void isNotWatching() {
         group = KeyChainGroup.builder(BitcoinNetwork.MAINNET).fromRandom(ScriptType.P2PKH).build();
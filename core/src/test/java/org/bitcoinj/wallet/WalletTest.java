@@ -1611,6 +1611,22 @@ public class WalletTest extends TestWithWallet {
         wallet.createSend(OTHER_ADDRESS, CENT);
     }
 
+    @Test
+    public void balancesFollowKeyImport() {
+        ECKey key = new ECKey();
+        Address address = key.toAddress(ScriptType.P2PKH, TESTNET);
+        wallet.addWatchedAddress(address);
+        sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, CENT, address);
+        assertEquals(CENT, wallet.getBalance(BalanceType.ESTIMATED));
+        assertEquals(ZERO, wallet.getBalance(BalanceType.ESTIMATED_SPENDABLE));
+        assertEquals(ZERO, wallet.getBalance(BalanceType.AVAILABLE_SPENDABLE));
+
+        // Now that we have the private key, the same output becomes spendable.
+        wallet.importKey(key);
+        assertEquals(CENT, wallet.getBalance(BalanceType.ESTIMATED_SPENDABLE));
+        assertEquals(CENT, wallet.getBalance(BalanceType.AVAILABLE_SPENDABLE));
+    }
+
     @Test
     public void watchingScriptsSentFrom() {
         int baseElements = wallet.getBloomFilterElementCount();
@@ -1647,6 +1663,29 @@ public class WalletTest extends TestWithWallet {
         assertTrue(wallet.getBloomFilter(1e-12).contains(outPoint.serialize()));
     }
 
+    @Test
+    public void bloomFilterTracksWatchedScriptChanges() {
+        Address watchedAddress = new ECKey().toAddress(ScriptType.P2PKH, TESTNET);
+        wallet.addWatchedAddress(watchedAddress);
+        int baseElements = wallet.getBloomFilterElementCount();
+        Transaction t1 = createFakeTx(TESTNET, CENT, watchedAddress);
+        TransactionOutPoint outPoint = new TransactionOutPoint(0, t1);
+        sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, t1);
+        assertEquals(baseElements + 1, wallet.getBloomFilterElementCount());
+
+        // The output is no longer filterable once the script isn't watched anymore, even though the transaction stays.
+        // Note that this has a 1e-12 chance of failing this unit test due to a false positive
+        wallet.removeWatchedAddress(watchedAddress);
+        assertEquals(baseElements - 1, wallet.getBloomFilterElementCount());
+        assertFalse(wallet.getBloomFilter(1e-12).contains(outPoint.serialize()));
+        wallet.addWatchedAddress(watchedAddress);
+        assertTrue(wallet.getBloomFilter(1e-12).contains(outPoint.serialize()));
+
+        wallet.reset();
+        assertEquals(baseElements, wallet.getBloomFilterElementCount());
+        assertFalse(wallet.getBloomFilter(1e-12).contains(outPoint.serialize()));
+    }
+
     @Test
     public void getWatchedAddresses() {
         Address watchedAddress = new ECKey().toAddress(ScriptType.P2PKH, TESTNET);
@@ -3329,6 +3368,31 @@ public class WalletTest extends TestWithWallet {
         assertTrue(wallet.isConsistent());
     }
 
+    @Test
+    public void doubleSpendOfForeignOutputIsRelevant() throws Exception {
+        Transaction foreign = createFakeTxWithoutChangeAddress(COIN, OTHER_ADDRESS);
+        Transaction tx1 = new Transaction();
+        tx1.addInput(foreign.getOutput(0));
+        tx1.addOutput(COIN, myAddress);
+        wallet.receivePending(tx1, null);
+
+        // tx2 pays nothing to us, but double spends tx1
+        Transaction tx2 = new Transaction();
+        tx2.addInput(foreign.getOutput(0));
+        tx2.addOutput(COIN, OTHER_ADDRESS);
+        // tx3 pays nothing to us and spends something else
+        Transaction tx3 = new Transaction();
+        tx3.addInput(createFakeTxWithoutChangeAddress(COIN, OTHER_ADDRESS).getOutput(0));
+        tx3.addOutput(COIN, OTHER_ADDRESS);
+        assertTrue(wallet.isTransactionRelevant(tx2));
+        assertFalse(wallet.isTransactionRelevant(tx3));
+
+        wallet = roundTrip(wallet);
+        assertTrue(wallet.isTransactionRelevant(tx2));
+        wallet.reset();
+        assertFalse(wallet.isTransactionRelevant(tx2));
+    }
+
     @Test
     public void overridingDeadTxTest() throws Exception {
         Transaction tx0 = createFakeTx(TESTNET);
@@ -34,6 +34,8 @@ import org.bitcoinj.store.SPVBlockStore;
 import org.bitcoinj.utils.BlockFileLoader;
 
 import java.io.File;
+import java.util.Iterator;
+import java.util.stream.Stream;
 
 import static org.bitcoinj.base.internal.Preconditions.checkArgument;
 
@@ -45,8 +47,8 @@ public class BlockImporter {
         System.out.println("       Does full verification if the store supports it");
         checkArgument(args.length == 2 || args.length == 3);
 
-        Network network = BitcoinNetwork.fromString(args[1])
-                .orElseThrow(() -> new IllegalArgumentException("Unknown network: " + args[1]));
+        Network network = BitcoinNetwork.fromString(args[0])
+                .orElseThrow(() -> new IllegalArgumentException("Unknown network: " + args[0]));
         NetworkParameters params = NetworkParameters.of(network);
 
         BlockStore store;
@@ -74,7 +76,11 @@ public class BlockImporter {
         
         BlockFileLoader loader = new BlockFileLoader(network, BlockFileLoader.getReferenceClientBlockFileList());
         
-        for (Block block : loader)
-            chain.add(block);
+        // Blocks are parsed in parallel and handed out in chain order, so only adding them is sequential.
+        try (Stream<Block> blocks = loader.orderedStream(chain.getChainHead().getHeader().getHash())) {
+            Iterator<Block> iterator = blocks.iterator();
+            while (iterator.hasNext())
+                chain.add(iterator.next());
+        }
     }
 }